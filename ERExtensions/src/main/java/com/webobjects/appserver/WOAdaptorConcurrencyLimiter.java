@@ -0,0 +1,185 @@
+package com.webobjects.appserver;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import er.extensions.foundation.ERXProperties;
+
+/**
+ * Limits the number of requests an adaptor has inside the application at once, and keeps counters that show how close we are to that limit.
+ *
+ * A request that arrives when all permits are taken waits in a bounded queue for up to maxQueueWaitMS. If the queue is full, or the wait times out,
+ * the request is rejected and the adaptor answers 503 with a Retry-After header. This keeps a traffic spike from putting thousands of requests
+ * into dispatchRequest() at once (and creating the sessions and pages that come with them).
+ *
+ * Configured by properties under the given prefix (for example <code>er.extensions.WOAdaptorPlain.</code>)
+ *
+ * <ul>
+ * <li>maxConcurrentRequests: Number of requests allowed in the application at once. 0 (the default) means no limit, in which case we're only counting</li>
+ * <li>maxQueuedRequests: Number of requests allowed to wait for a permit (default 100)</li>
+ * <li>maxQueueWaitMS: How long a request waits for a permit before it's rejected (default 5000)</li>
+ * <li>retryAfterSeconds: Value of the Retry-After header sent with a 503 (default 5)</li>
+ * </ul>
+ */
+
+public class WOAdaptorConcurrencyLimiter {
+
+	private final int _maxConcurrentRequests;
+	private final int _maxQueuedRequests;
+	private final long _maxQueueWaitMS;
+	private final int _retryAfterSeconds;
+
+	/**
+	 * null when we're not limiting
+	 */
+	private final Semaphore _permits;
+
+	private final AtomicInteger _inFlight = new AtomicInteger();
+	private final AtomicInteger _queued = new AtomicInteger();
+	private final LongAdder _rejected = new LongAdder();
+	private final LongAdder _dispatched = new LongAdder();
+	private final LongAdder _dispatchLatencyNanos = new LongAdder();
+	private final AtomicLong _maxDispatchLatencyNanos = new AtomicLong();
+
+	public WOAdaptorConcurrencyLimiter( final String propertyPrefix ) {
+		this( ERXProperties.intForKeyWithDefault( propertyPrefix + "maxConcurrentRequests", 0 ),
+				ERXProperties.intForKeyWithDefault( propertyPrefix + "maxQueuedRequests", 100 ),
+				ERXProperties.longForKeyWithDefault( propertyPrefix + "maxQueueWaitMS", 5000 ),
+				ERXProperties.intForKeyWithDefault( propertyPrefix + "retryAfterSeconds", 5 ) );
+	}
+
+	public WOAdaptorConcurrencyLimiter( final int maxConcurrentRequests, final int maxQueuedRequests, final long maxQueueWaitMS, final int retryAfterSeconds ) {
+		_maxConcurrentRequests = maxConcurrentRequests;
+		_maxQueuedRequests = maxQueuedRequests;
+		_maxQueueWaitMS = maxQueueWaitMS;
+		_retryAfterSeconds = retryAfterSeconds;
+		_permits = maxConcurrentRequests > 0 ? new Semaphore( maxConcurrentRequests, true ) : null;
+	}
+
+	/**
+	 * Obtains a permit to enter the application, waiting in the queue if necessary. Every successful acquire() must be paired with a release().
+	 *
+	 * @return true if the request may proceed, false if it was rejected
+	 */
+	public boolean acquire() {
+
+		if( _permits != null && !_permits.tryAcquire() ) {
+
+			if( _queued.incrementAndGet() > _maxQueuedRequests ) {
+				_queued.decrementAndGet();
+				_rejected.increment();
+				return false;
+			}
+
+			try {
+				if( !_permits.tryAcquire( _maxQueueWaitMS, TimeUnit.MILLISECONDS ) ) {
+					_rejected.increment();
+					return false;
+				}
+			}
+			catch( InterruptedException e ) {
+				Thread.currentThread().interrupt();
+				_rejected.increment();
+				return false;
+			}
+			finally {
+				_queued.decrementAndGet();
+			}
+		}
+
+		_inFlight.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Returns a permit obtained by acquire()
+	 */
+	public void release() {
+		_inFlight.decrementAndGet();
+
+		if( _permits != null ) {
+			_permits.release();
+		}
+	}
+
+	/**
+	 * Records the time from when the adaptor received a request until it was handed to the application
+	 */
+	public void recordDispatchLatency( final long nanos ) {
+		_dispatched.increment();
+		_dispatchLatencyNanos.add( nanos );
+		_maxDispatchLatencyNanos.accumulateAndGet( nanos, Math::max );
+	}
+
+	/**
+	 * @return Maximum number of concurrent requests, 0 if unlimited
+	 */
+	public int maxConcurrentRequests() {
+		return _maxConcurrentRequests;
+	}
+
+	/**
+	 * @return Value for the Retry-After header of a rejected request
+	 */
+	public int retryAfterSeconds() {
+		return _retryAfterSeconds;
+	}
+
+	/**
+	 * @return Number of requests currently inside the application
+	 */
+	public int inFlight() {
+		return _inFlight.get();
+	}
+
+	/**
+	 * @return Number of requests currently waiting for a permit
+	 */
+	public int queued() {
+		return _queued.get();
+	}
+
+	/**
+	 * @return Number of requests rejected since startup
+	 */
+	public long rejected() {
+		return _rejected.sum();
+	}
+
+	/**
+	 * @return Number of requests handed to the application since startup
+	 */
+	public long dispatched() {
+		return _dispatched.sum();
+	}
+
+	/**
+	 * @return Total time requests have spent between arrival and dispatch, in nanoseconds
+	 */
+	public long totalDispatchLatencyNanos() {
+		return _dispatchLatencyNanos.sum();
+	}
+
+	/**
+	 * @return Mean time between a request's arrival and it's dispatch, in milliseconds
+	 */
+	public double meanDispatchLatencyMS() {
+		final long dispatched = dispatched();
+		return dispatched == 0 ? 0 : totalDispatchLatencyNanos() / (double)dispatched / 1_000_000;
+	}
+
+	/**
+	 * @return Longest time a request has spent between arrival and dispatch, in milliseconds
+	 */
+	public double maxDispatchLatencyMS() {
+		return _maxDispatchLatencyNanos.get() / 1_000_000d;
+	}
+
+	@Override
+	public String toString() {
+		return "%s [maxConcurrentRequests=%s, inFlight=%s, queued=%s, rejected=%s, dispatched=%s, meanDispatchLatencyMS=%.2f, maxDispatchLatencyMS=%.2f]".formatted( getClass().getSimpleName(), _maxConcurrentRequests, inFlight(), queued(), rejected(), dispatched(), meanDispatchLatencyMS(), maxDispatchLatencyMS() );
+	}
+}
@@ -0,0 +1,955 @@
+package com.webobjects.appserver;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.webobjects.appserver._private.WOProperties;
+import com.webobjects.foundation.NSData;
+import com.webobjects.foundation.NSDictionary;
+
+import er.extensions.appserver.ERXFileResponse;
+import er.extensions.foundation.ERXProperties;
+
+/**
+ * A WOAdaptor built directly on a blocking NIO socket loop, with each connection served by it's own virtual thread. To use, set the property -WOAdaptor WOAdaptorNIO
+ *
+ * Compared to WOAdaptorPlain (which sits on com.sun.net.httpserver) this gives us control over the connection handling:
+ * HTTP/1.1 keep-alive (with pipelined requests served in order), timeouts, header size limits and a cap on open connections.
+ * ERXFileResponses are written straight from the file to the socket using FileChannel.transferTo().
+ *
+ * Tuning properties (all prefixed with <code>er.extensions.WOAdaptorNIO.</code>)
+ *
+ * <ul>
+ * <li>acceptBacklog: Length of the OS accept queue (default 1024)</li>
+ * <li>maxConnections: Maximum number of open connections. Connections beyond that are answered with 503 and closed (default 10000)</li>
+ * <li>keepAlive: Keep connections open between requests (default true)</li>
+ * <li>maxKeepAliveRequests: Number of requests served on a connection before it's closed (default 1000)</li>
+ * <li>idleTimeoutMS: How long a kept-alive connection may wait for the next request (default 30000)</li>
+ * <li>readTimeoutMS: How long we wait for data while reading a request (default 20000)</li>
+ * <li>maxHeaderSize: Maximum size of the request line and headers, in bytes. Larger requests get 431 (default 16384)</li>
+ * <li>maxRequestBodySize: Maximum size of a request body, in bytes. Larger requests get 413 (default, and upper bound, is Integer.MAX_VALUE)</li>
+ * <li>requestBodyMemoryThreshold: Chunked request bodies up to this size are kept in memory, larger ones are spooled to a temporary file (default 65536)</li>
+ * </ul>
+ *
+ * The number of requests inside the application at once can be limited as well, see WOAdaptorConcurrencyLimiter.
+ */
+
+public class WOAdaptorNIO extends WOAdaptor {
+
+	private static final Logger logger = LoggerFactory.getLogger( WOAdaptorNIO.class );
+
+	private static final String PROPERTY_PREFIX = "er.extensions.WOAdaptorNIO.";
+
+	private static final int ACCEPT_BACKLOG = ERXProperties.intForKeyWithDefault( PROPERTY_PREFIX + "acceptBacklog", 1024 );
+	private static final int MAX_CONNECTIONS = ERXProperties.intForKeyWithDefault( PROPERTY_PREFIX + "maxConnections", 10000 );
+	private static final boolean KEEP_ALIVE = ERXProperties.booleanForKeyWithDefault( PROPERTY_PREFIX + "keepAlive", true );
+	private static final int MAX_KEEP_ALIVE_REQUESTS = ERXProperties.intForKeyWithDefault( PROPERTY_PREFIX + "maxKeepAliveRequests", 1000 );
+	private static final int IDLE_TIMEOUT_MS = ERXProperties.intForKeyWithDefault( PROPERTY_PREFIX + "idleTimeoutMS", 30000 );
+	private static final int READ_TIMEOUT_MS = ERXProperties.intForKeyWithDefault( PROPERTY_PREFIX + "readTimeoutMS", 20000 );
+	private static final int MAX_HEADER_SIZE = ERXProperties.intForKeyWithDefault( PROPERTY_PREFIX + "maxHeaderSize", 16 * 1024 );
+	private static final long MAX_REQUEST_BODY_SIZE = Math.min( ERXProperties.longForKeyWithDefault( PROPERTY_PREFIX + "maxRequestBodySize", Integer.MAX_VALUE ), Integer.MAX_VALUE );
+	private static final int REQUEST_BODY_MEMORY_THRESHOLD = ERXProperties.intForKeyWithDefault( PROPERTY_PREFIX + "requestBodyMemoryThreshold", 64 * 1024 );
+
+	/**
+	 * Size of the buffers used for reading requests and writing responses
+	 */
+	private static final int IO_BUFFER_SIZE = 16 * 1024;
+
+	/**
+	 * Unread request content up to this size gets drained so the connection can be kept alive. If more is left, we close the connection instead.
+	 */
+	private static final long MAX_DRAIN_SIZE = 64 * 1024;
+
+	private static final byte[] CRLF = { '\r', '\n' };
+
+	private ServerSocketChannel _serverChannel;
+	private ExecutorService _connectionExecutor;
+	private final Semaphore _connectionPermits = new Semaphore( MAX_CONNECTIONS );
+	private final WOAdaptorConcurrencyLimiter _concurrencyLimiter = new WOAdaptorConcurrencyLimiter( PROPERTY_PREFIX );
+	private volatile boolean _stopping;
+
+	/**
+	 * Invoked by WO to construct an adaptor instance
+	 */
+	public WOAdaptorNIO( String name, NSDictionary<String, Object> config ) {
+		super( name, config );
+		_port = WOAdaptorPlain.port( config );
+
+		WOAdaptorPlain.checkPortAvailable( _port );
+	}
+
+	/**
+	 * Overridden, since WO will invoke this method when constructing a direct connect URL
+	 */
+	@Override
+	public int port() {
+		return _port;
+	}
+
+	/**
+	 * @return The limiter controlling (and counting) the requests this adaptor has inside the application
+	 */
+	public WOAdaptorConcurrencyLimiter concurrencyLimiter() {
+		return _concurrencyLimiter;
+	}
+
+	@Override
+	public boolean dispatchesRequestsConcurrently() {
+		return true;
+	}
+
+	@Override
+	public void registerForEvents() {
+		try {
+			logger.info( "%s starting %s".formatted( getClass().getSimpleName(), _port == 0 ? "on a random port" : "on port " + _port ) );
+
+			_serverChannel = ServerSocketChannel.open();
+			_serverChannel.setOption( StandardSocketOptions.SO_REUSEADDR, true );
+			_serverChannel.bind( new InetSocketAddress( _port ), ACCEPT_BACKLOG );
+			_connectionExecutor = Executors.newVirtualThreadPerTaskExecutor();
+
+			// If port was 0, get the actual assigned port and update WO properties
+			if( _port == 0 ) {
+				_port = ((InetSocketAddress)_serverChannel.getLocalAddress()).getPort();
+				System.setProperty( WOProperties._PortKey, Integer.toString( _port ) );
+				logger.info( "Running on port %s".formatted( _port ) );
+			}
+
+			Thread.ofPlatform().name( "WOAdaptorNIO-acceptor-" + _port ).start( this::acceptLoop );
+		}
+		catch( final Exception e ) {
+			e.printStackTrace();
+			System.exit( -1 );
+		}
+	}
+
+	@Override
+	public void unregisterForEvents() {
+		if( _serverChannel != null ) {
+			logger.info( "Stopping %s".formatted( getClass().getSimpleName() ) );
+			_stopping = true;
+
+			try {
+				_serverChannel.close();
+			}
+			catch( IOException e ) {
+				logger.warn( "Failed to close server socket", e );
+			}
+
+			// Requests in flight get to finish, we just don't start any new ones
+			_connectionExecutor.shutdown();
+		}
+	}
+
+	/**
+	 * Accepts connections and hands each of them to a virtual thread, until the server channel is closed
+	 */
+	private void acceptLoop() {
+		while( _serverChannel.isOpen() ) {
+			final SocketChannel channel;
+
+			try {
+				channel = _serverChannel.accept();
+			}
+			catch( ClosedChannelException e ) {
+				break;
+			}
+			catch( IOException e ) {
+				logger.warn( "Failed to accept connection", e );
+				continue;
+			}
+
+			if( !_connectionPermits.tryAcquire() ) {
+				rejectConnection( channel );
+				continue;
+			}
+
+			try {
+				_connectionExecutor.execute( () -> {
+					try {
+						new Connection( channel ).serve();
+					}
+					finally {
+						_connectionPermits.release();
+					}
+				} );
+			}
+			catch( RuntimeException e ) {
+				// Executor has been shut down
+				_connectionPermits.release();
+				closeQuietly( channel );
+			}
+		}
+	}
+
+	/**
+	 * Answers a connection we don't have room for with 503 and closes it
+	 */
+	private static void rejectConnection( final SocketChannel channel ) {
+		logger.warn( "Connection limit of {} reached. Returning 503 Service Unavailable", MAX_CONNECTIONS );
+
+		try {
+			channel.socket().getOutputStream().write( "HTTP/1.1 503 Service Unavailable\r\nContent-Length: 0\r\nConnection: close\r\n\r\n".getBytes( StandardCharsets.US_ASCII ) );
+		}
+		catch( IOException e ) {
+			logger.debug( "Failed to write 503 to rejected connection", e );
+		}
+		finally {
+			closeQuietly( channel );
+		}
+	}
+
+	private static void closeQuietly( final SocketChannel channel ) {
+		try {
+			channel.close();
+		}
+		catch( IOException e ) {
+			logger.debug( "Failed to close connection", e );
+		}
+	}
+
+	/**
+	 * A single client connection, serving requests in sequence for as long as it's kept alive
+	 */
+	private class Connection {
+
+		private final SocketChannel _channel;
+		private final Socket _socket;
+		private InputStream _in;
+		private OutputStream _out;
+
+		public Connection( final SocketChannel channel ) {
+			_channel = channel;
+			_socket = channel.socket();
+		}
+
+		void serve() {
+			try {
+				_socket.setTcpNoDelay( true );
+				_in = new BufferedInputStream( _socket.getInputStream(), IO_BUFFER_SIZE );
+				_out = new BufferedOutputStream( _socket.getOutputStream(), IO_BUFFER_SIZE );
+
+				int requestCount = 0;
+				boolean keepAlive = true;
+
+				while( keepAlive ) {
+					final RequestHead head;
+
+					try {
+						head = readRequestHead( requestCount == 0 ? READ_TIMEOUT_MS : IDLE_TIMEOUT_MS );
+					}
+					catch( HeaderTooLargeException e ) {
+						writeError( 431, "Request Header Fields Too Large" );
+						break;
+					}
+					catch( MalformedRequestException e ) {
+						logger.debug( "Malformed request from {}: {}", _channel.getRemoteAddress(), e.getMessage() );
+						writeError( 400, "Bad Request" );
+						break;
+					}
+
+					// Connection closed (or idle timeout) between requests
+					if( head == null ) {
+						break;
+					}
+
+					requestCount++;
+					keepAlive = KEEP_ALIVE && !_stopping && requestCount < MAX_KEEP_ALIVE_REQUESTS && head.wantsKeepAlive();
+
+					if( !_concurrencyLimiter.acquire() ) {
+						logger.debug( "Rejecting request to {}, application saturated. Returning 503 Service Unavailable. {}", head.uri(), _concurrencyLimiter );
+						writeASCII( "HTTP/1.1 503 Service Unavailable\r\nRetry-After: " + _concurrencyLimiter.retryAfterSeconds() + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n" );
+						_out.flush();
+						break;
+					}
+
+					try {
+						keepAlive = handleRequest( head, keepAlive );
+					}
+					finally {
+						_concurrencyLimiter.release();
+					}
+				}
+			}
+			catch( SocketTimeoutException e ) {
+				logger.debug( "Read timed out, closing connection" );
+			}
+			catch( IOException e ) {
+				// Usually just the client going away
+				logger.debug( "I/O error on connection, closing", e );
+			}
+			catch( RuntimeException e ) {
+				logger.error( "Unexpected error while serving connection", e );
+			}
+			finally {
+				closeQuietly( _channel );
+			}
+		}
+
+		/**
+		 * Reads the request's content, dispatches it to the application and writes the response.
+		 *
+		 * @return true if the connection can be kept alive for another request
+		 */
+		private boolean handleRequest( final RequestHead head, boolean keepAlive ) throws IOException {
+
+			if( head.expectsContinue() && (head.isChunked() || head.contentLength() > 0) ) {
+				_out.write( "HTTP/1.1 100 Continue\r\n\r\n".getBytes( StandardCharsets.US_ASCII ) );
+				_out.flush();
+			}
+
+			final BoundedInputStream bodyStream;
+			final WOAdaptorRequestContent content;
+
+			try {
+				if( head.isChunked() ) {
+					bodyStream = null;
+					content = WOAdaptorRequestContent.spool( head.headers(), new ChunkedInputStream( _in ), MAX_REQUEST_BODY_SIZE, REQUEST_BODY_MEMORY_THRESHOLD );
+				}
+				else {
+					bodyStream = new BoundedInputStream( _in, head.contentLength() );
+					content = WOAdaptorRequestContent.stream( head.headers(), bodyStream, head.contentLength(), MAX_REQUEST_BODY_SIZE );
+				}
+			}
+			catch( WOAdaptorRequestContent.TooLargeException e ) {
+				logger.warn( "Rejecting request to {} with a body exceeding the maximum of {} bytes. Returning 413 Payload Too Large", head.uri(), MAX_REQUEST_BODY_SIZE );
+				writeError( 413, "Payload Too Large" );
+				return false;
+			}
+			catch( MalformedRequestException e ) {
+				logger.debug( "Malformed request body from {}: {}", _channel.getRemoteAddress(), e.getMessage() );
+				writeError( 400, "Bad Request" );
+				return false;
+			}
+
+			final WOResponse response;
+
+			try {
+				final WORequest request = WOApplication.application().createRequest( head.method(), head.uri(), head.httpVersion(), content.headers(), content.data(), null );
+				populateAddresses( request );
+
+				_concurrencyLimiter.recordDispatchLatency( System.nanoTime() - head.receivedNanos() );
+
+				// This is where the application logic will perform it's actual work
+				response = WOApplication.application().dispatchRequest( request );
+			}
+			finally {
+				content.dispose();
+			}
+
+			// Whatever the application didn't read of the request body has to go before we can read the next request
+			if( keepAlive && bodyStream != null ) {
+				keepAlive = bodyStream.drain( MAX_DRAIN_SIZE );
+			}
+
+			writeResponse( head, response, keepAlive );
+			return keepAlive;
+		}
+
+		/**
+		 * Reads the request line and headers.
+		 *
+		 * @return The request head, or null if the connection was closed (or timed out) before a new request started
+		 */
+		private RequestHead readRequestHead( final int initialTimeout ) throws IOException {
+
+			_socket.setSoTimeout( initialTimeout );
+
+			final int firstByte;
+
+			try {
+				firstByte = _in.read();
+			}
+			catch( SocketTimeoutException e ) {
+				return null;
+			}
+
+			if( firstByte == -1 ) {
+				return null;
+			}
+
+			final long receivedNanos = System.nanoTime();
+
+			// Once a request has started we're reading, not idling
+			_socket.setSoTimeout( READ_TIMEOUT_MS );
+
+			final HeaderReader reader = new HeaderReader( _in, firstByte );
+
+			String requestLine = reader.readLine();
+
+			// Tolerate empty lines preceding the request line (RFC 9112 2.2)
+			while( requestLine.isEmpty() ) {
+				requestLine = reader.readLine();
+			}
+
+			final String[] parts = requestLine.split( " " );
+
+			if( parts.length != 3 || !parts[2].startsWith( "HTTP/" ) ) {
+				throw new MalformedRequestException( "Invalid request line: " + requestLine );
+			}
+
+			final Map<String, List<String>> headers = new TreeMap<>( String.CASE_INSENSITIVE_ORDER );
+
+			String line;
+
+			while( !(line = reader.readLine()).isEmpty() ) {
+				final int colonIndex = line.indexOf( ':' );
+
+				if( colonIndex <= 0 ) {
+					throw new MalformedRequestException( "Invalid header line: " + line );
+				}
+
+				final String name = line.substring( 0, colonIndex ).trim();
+				final String value = line.substring( colonIndex + 1 ).trim();
+				headers.computeIfAbsent( name, _ -> new ArrayList<>() ).add( value );
+			}
+
+			final long contentLength;
+
+			try {
+				contentLength = WOAdaptorRequestContent.contentLength( headers );
+			}
+			catch( NumberFormatException e ) {
+				throw new MalformedRequestException( "Invalid Content-Length" );
+			}
+
+			if( contentLength < 0 ) {
+				throw new MalformedRequestException( "Negative Content-Length" );
+			}
+
+			return new RequestHead( parts[0], parts[1], parts[2], headers, contentLength, WOAdaptorRequestContent.isChunked( headers ), receivedNanos );
+		}
+
+		/**
+		 * Writes the response status line, headers and content
+		 */
+		private void writeResponse( final RequestHead head, final WOResponse response, final boolean keepAlive ) throws IOException {
+
+			final boolean isHead = "HEAD".equals( head.method() );
+			final int status = response.status();
+			final boolean bodyAllowed = !isHead && status >= 200 && status != 204 && status != 304;
+
+			final ERXFileResponse fileResponse = response instanceof ERXFileResponse fr && fr.hasFileContent() ? fr : null;
+			final InputStream contentStream = fileResponse == null ? response.contentInputStream() : null;
+			final NSData contentData = fileResponse == null && contentStream == null ? response.content() : null;
+
+			final long contentLength;
+
+			if( fileResponse != null ) {
+				contentLength = fileResponse.length();
+			}
+			else if( contentStream != null ) {
+				contentLength = response.contentInputStreamLength();
+			}
+			else {
+				contentLength = contentData.length();
+			}
+
+			// Content of unknown length gets chunked for HTTP/1.1 clients. HTTP/1.0 clients don't know chunked so there we delimit the content by closing the connection.
+			final boolean chunked = contentLength == -1 && head.isHTTP11();
+			final boolean closeAfter = !keepAlive || (contentLength == -1 && !chunked);
+
+			writeASCII( "HTTP/1.1 " + status + " " + reasonPhrase( status ) );
+			_out.write( CRLF );
+
+			for( Map.Entry<String, ? extends List<String>> header : response.headers().entrySet() ) {
+				final String name = header.getKey();
+
+				// Framing headers are our business
+				if( "content-length".equalsIgnoreCase( name ) || "transfer-encoding".equalsIgnoreCase( name ) || "connection".equalsIgnoreCase( name ) ) {
+					continue;
+				}
+
+				for( String value : header.getValue() ) {
+					writeHeader( name, value );
+				}
+			}
+
+			if( chunked ) {
+				writeHeader( "transfer-encoding", "chunked" );
+			}
+			else if( contentLength >= 0 ) {
+				writeHeader( "content-length", String.valueOf( contentLength ) );
+			}
+
+			if( closeAfter ) {
+				writeHeader( "connection", "close" );
+			}
+			else if( !head.isHTTP11() ) {
+				writeHeader( "connection", "keep-alive" );
+			}
+
+			_out.write( CRLF );
+
+			if( !bodyAllowed ) {
+				if( contentStream != null ) {
+					contentStream.close();
+				}
+
+				_out.flush();
+				return;
+			}
+
+			if( fileResponse != null ) {
+				_out.flush();
+				fileResponse.transferTo( _channel );
+			}
+			else if( contentStream != null ) {
+				try( contentStream ) {
+					if( chunked ) {
+						writeChunked( contentStream, response );
+					}
+					else {
+						contentStream.transferTo( _out );
+					}
+				}
+			}
+			else {
+				contentData.writeToStream( _out );
+			}
+
+			_out.flush();
+
+			if( closeAfter ) {
+				_socket.shutdownOutput();
+			}
+		}
+
+		/**
+		 * Writes the given stream using chunked transfer encoding, flushing each chunk as soon as it's been read
+		 */
+		private void writeChunked( final InputStream contentStream, final WOResponse response ) throws IOException {
+			final int bufferSize = response.contentInputStreamBufferSize() > 0 ? Math.min( response.contentInputStreamBufferSize(), 256 * 1024 ) : IO_BUFFER_SIZE;
+			final byte[] buffer = new byte[bufferSize];
+
+			int read;
+
+			while( (read = contentStream.read( buffer )) != -1 ) {
+				if( read > 0 ) {
+					writeASCII( Integer.toHexString( read ) );
+					_out.write( CRLF );
+					_out.write( buffer, 0, read );
+					_out.write( CRLF );
+					_out.flush();
+				}
+			}
+
+			writeASCII( "0" );
+			_out.write( CRLF );
+			_out.write( CRLF );
+		}
+
+		/**
+		 * Writes a bodyless error response. Used when we can't read the request, so the connection gets closed afterwards.
+		 */
+		private void writeError( final int status, final String reason ) throws IOException {
+			writeASCII( "HTTP/1.1 " + status + " " + reason + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n" );
+			_out.flush();
+		}
+
+		private void writeHeader( final String name, final String value ) throws IOException {
+			_out.write( name.getBytes( StandardCharsets.ISO_8859_1 ) );
+			_out.write( ':' );
+			_out.write( ' ' );
+			_out.write( value.getBytes( StandardCharsets.ISO_8859_1 ) );
+			_out.write( CRLF );
+		}
+
+		private void writeASCII( final String string ) throws IOException {
+			_out.write( string.getBytes( StandardCharsets.US_ASCII ) );
+		}
+
+		/**
+		 * Set originating/target addresses on the given request
+		 */
+		private void populateAddresses( final WORequest request ) throws IOException {
+			final InetSocketAddress remote = (InetSocketAddress)_channel.getRemoteAddress();
+			final InetSocketAddress local = (InetSocketAddress)_channel.getLocalAddress();
+
+			request._setOriginatingAddress( remote.getAddress() );
+			request._setOriginatingPort( remote.getPort() );
+
+			request._setAcceptingAddress( local.getAddress() );
+			request._setAcceptingPort( local.getPort() );
+		}
+	}
+
+	/**
+	 * The parsed request line and headers
+	 */
+	private record RequestHead( String method, String uri, String httpVersion, Map<String, List<String>> headers, long contentLength, boolean isChunked, long receivedNanos ) {
+
+		boolean isHTTP11() {
+			return !"HTTP/1.0".equals( httpVersion );
+		}
+
+		/**
+		 * HTTP/1.1 connections are persistent unless the client says otherwise, HTTP/1.0 connections only if the client asks for it
+		 */
+		boolean wantsKeepAlive() {
+			final List<String> connection = headers.get( "Connection" );
+
+			if( isHTTP11() ) {
+				return connection == null || connection.stream().noneMatch( s -> s.toLowerCase().contains( "close" ) );
+			}
+
+			return connection != null && connection.stream().anyMatch( s -> s.toLowerCase().contains( "keep-alive" ) );
+		}
+
+		boolean expectsContinue() {
+			final List<String> expect = headers.get( "Expect" );
+			return expect != null && expect.stream().anyMatch( s -> s.equalsIgnoreCase( "100-continue" ) );
+		}
+	}
+
+	/**
+	 * Reads CRLF (or bare LF) terminated ISO-8859-1 lines, enforcing MAX_HEADER_SIZE over all lines read
+	 */
+	private static class HeaderReader {
+
+		private final InputStream _in;
+		private int _pendingByte;
+		private int _bytesRead;
+		private final ByteArrayOutputStream _line = new ByteArrayOutputStream( 256 );
+
+		public HeaderReader( final InputStream in, final int firstByte ) {
+			_in = in;
+			_pendingByte = firstByte;
+		}
+
+		String readLine() throws IOException {
+			_line.reset();
+
+			while( true ) {
+				final int b;
+
+				if( _pendingByte != -1 ) {
+					b = _pendingByte;
+					_pendingByte = -1;
+				}
+				else {
+					b = _in.read();
+				}
+
+				if( b == -1 ) {
+					throw new EOFException( "Connection closed while reading request head" );
+				}
+
+				if( ++_bytesRead > MAX_HEADER_SIZE ) {
+					throw new HeaderTooLargeException();
+				}
+
+				if( b == '\n' ) {
+					final byte[] bytes = _line.toByteArray();
+					final int length = bytes.length > 0 && bytes[bytes.length - 1] == '\r' ? bytes.length - 1 : bytes.length;
+					return new String( bytes, 0, length, StandardCharsets.ISO_8859_1 );
+				}
+
+				_line.write( b );
+			}
+		}
+	}
+
+	/**
+	 * Reads at most [length] bytes from the underlying stream, without closing it (it belongs to the connection)
+	 */
+	private static class BoundedInputStream extends InputStream {
+
+		private final InputStream _in;
+		private long _remaining;
+
+		public BoundedInputStream( final InputStream in, final long length ) {
+			_in = in;
+			_remaining = length;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if( _remaining <= 0 ) {
+				return -1;
+			}
+
+			final int b = _in.read();
+
+			if( b == -1 ) {
+				throw new EOFException( "Connection closed with %s bytes of request content remaining".formatted( _remaining ) );
+			}
+
+			_remaining--;
+			return b;
+		}
+
+		@Override
+		public int read( final byte[] b, final int off, final int len ) throws IOException {
+			if( len == 0 ) {
+				return 0;
+			}
+
+			if( _remaining <= 0 ) {
+				return -1;
+			}
+
+			final int read = _in.read( b, off, (int)Math.min( len, _remaining ) );
+
+			if( read == -1 ) {
+				throw new EOFException( "Connection closed with %s bytes of request content remaining".formatted( _remaining ) );
+			}
+
+			_remaining -= read;
+			return read;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return (int)Math.min( _in.available(), _remaining );
+		}
+
+		/**
+		 * Skips whatever remains of the content, if it's no more than [maxSize] bytes
+		 *
+		 * @return true if the content was fully consumed
+		 */
+		boolean drain( final long maxSize ) throws IOException {
+			if( _remaining > maxSize ) {
+				return false;
+			}
+
+			while( _remaining > 0 ) {
+				final long skipped = _in.skip( _remaining );
+
+				if( skipped <= 0 ) {
+					if( read() == -1 ) {
+						return false;
+					}
+				}
+				else {
+					_remaining -= skipped;
+				}
+			}
+
+			return true;
+		}
+
+		@Override
+		public void close() {}
+	}
+
+	/**
+	 * Decodes a chunked request body (RFC 9112 7.1). Chunk extensions and trailers are read and ignored.
+	 */
+	static class ChunkedInputStream extends InputStream {
+
+		private final InputStream _in;
+		private long _chunkRemaining;
+		private boolean _done;
+
+		public ChunkedInputStream( final InputStream in ) {
+			_in = in;
+		}
+
+		@Override
+		public int read() throws IOException {
+			final byte[] b = new byte[1];
+			return read( b, 0, 1 ) == -1 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read( final byte[] b, final int off, final int len ) throws IOException {
+			if( _done ) {
+				return -1;
+			}
+
+			if( _chunkRemaining == 0 ) {
+				_chunkRemaining = readChunkSize();
+
+				if( _chunkRemaining == 0 ) {
+					// Last chunk, skip trailers up to the terminating empty line
+					while( !readLine().isEmpty() ) {}
+					_done = true;
+					return -1;
+				}
+			}
+
+			final int read = _in.read( b, off, (int)Math.min( len, _chunkRemaining ) );
+
+			if( read == -1 ) {
+				throw new EOFException( "Connection closed in the middle of a chunk" );
+			}
+
+			_chunkRemaining -= read;
+
+			// Each chunk's data is followed by CRLF. Anything else means the chunk is longer than it's size says.
+			if( _chunkRemaining == 0 ) {
+				readCRLF();
+			}
+
+			return read;
+		}
+
+		private void readCRLF() throws IOException {
+			final int cr = _in.read();
+			final int lf = _in.read();
+
+			if( cr == -1 || lf == -1 ) {
+				throw new EOFException( "Connection closed while reading chunked content" );
+			}
+
+			if( cr != '\r' || lf != '\n' ) {
+				throw new MalformedRequestException( "Chunk data not followed by CRLF" );
+			}
+		}
+
+		/**
+		 * Reads a chunk-size line: hex digits only (no sign, prefix or leading whitespace), optionally followed by whitespace and extensions
+		 */
+		private long readChunkSize() throws IOException {
+			final String line = readLine();
+
+			int end = line.indexOf( ';' );
+
+			if( end < 0 ) {
+				end = line.length();
+			}
+
+			// Whitespace is allowed before the extensions
+			while( end > 0 && (line.charAt( end - 1 ) == ' ' || line.charAt( end - 1 ) == '\t') ) {
+				end--;
+			}
+
+			// 15 hex digits can't overflow a long
+			if( end == 0 || end > 15 ) {
+				throw new MalformedRequestException( "Invalid chunk size: " + line );
+			}
+
+			long size = 0;
+
+			for( int i = 0; i < end; i++ ) {
+				final int digit = hexDigit( line.charAt( i ) );
+
+				if( digit < 0 ) {
+					throw new MalformedRequestException( "Invalid chunk size: " + line );
+				}
+
+				size = size * 16 + digit;
+			}
+
+			return size;
+		}
+
+		/**
+		 * @return The value of the given hex digit, -1 if it isn't one
+		 */
+		private static int hexDigit( final char c ) {
+			if( c >= '0' && c <= '9' ) {
+				return c - '0';
+			}
+
+			if( c >= 'a' && c <= 'f' ) {
+				return c - 'a' + 10;
+			}
+
+			if( c >= 'A' && c <= 'F' ) {
+				return c - 'A' + 10;
+			}
+
+			return -1;
+		}
+
+		/**
+		 * Reads a chunk-size or trailer line. These are short so we limit their length to the header size limit.
+		 */
+		private String readLine() throws IOException {
+			final StringBuilder line = new StringBuilder();
+
+			int b;
+
+			while( (b = _in.read()) != '\n' ) {
+				if( b == -1 ) {
+					throw new EOFException( "Connection closed while reading chunked content" );
+				}
+
+				if( b != '\r' ) {
+					if( line.length() >= MAX_HEADER_SIZE ) {
+						throw new MalformedRequestException( "Chunk line too long" );
+					}
+
+					line.append( (char)b );
+				}
+			}
+
+			return line.toString();
+		}
+	}
+
+	static class MalformedRequestException extends IOException {
+		public MalformedRequestException( String message ) {
+			super( message );
+		}
+	}
+
+	private static class HeaderTooLargeException extends IOException {}
+
+	/**
+	 * @return The reason phrase for the given status code
+	 */
+	private static String reasonPhrase( final int status ) {
+		return switch( status ) {
+			case 100 -> "Continue";
+			case 101 -> "Switching Protocols";
+			case 200 -> "OK";
+			case 201 -> "Created";
+			case 202 -> "Accepted";
+			case 204 -> "No Content";
+			case 206 -> "Partial Content";
+			case 301 -> "Moved Permanently";
+			case 302 -> "Found";
+			case 303 -> "See Other";
+			case 304 -> "Not Modified";
+			case 307 -> "Temporary Redirect";
+			case 308 -> "Permanent Redirect";
+			case 400 -> "Bad Request";
+			case 401 -> "Unauthorized";
+			case 403 -> "Forbidden";
+			case 404 -> "Not Found";
+			case 405 -> "Method Not Allowed";
+			case 408 -> "Request Timeout";
+			case 409 -> "Conflict";
+			case 410 -> "Gone";
+			case 411 -> "Length Required";
+			case 412 -> "Precondition Failed";
+			case 413 -> "Payload Too Large";
+			case 416 -> "Range Not Satisfiable";
+			case 429 -> "Too Many Requests";
+			case 431 -> "Request Header Fields Too Large";
+			case 500 -> "Internal Server Error";
+			case 501 -> "Not Implemented";
+			case 502 -> "Bad Gateway";
+			case 503 -> "Service Unavailable";
+			case 504 -> "Gateway Timeout";
+			default -> "";
+		};
+	}
+}
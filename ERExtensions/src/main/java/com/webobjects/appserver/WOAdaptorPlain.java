@@ -6,6 +6,7 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
+import java.nio.channels.Channels;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Executors;
@@ -16,26 +17,72 @@ import org.slf4j.LoggerFactory;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
-import com.webobjects.appserver._private.WOInputStreamData;
-import com.webobjects.appserver._private.WONoCopyPushbackInputStream;
 import com.webobjects.appserver._private.WOProperties;
 import com.webobjects.foundation.NSData;
 import com.webobjects.foundation.NSDictionary;
 import com.webobjects.foundation.NSForwardException;
 
+import er.extensions.appserver.ERXFileResponse;
+import er.extensions.foundation.ERXProperties;
+
 /**
  * A WOAdaptor based on Java's built in HTTP server. To use, set the property -WOAdaptor WOAdaptorPlain
+ *
+ * Request bodies are accepted both with a Content-Length and with Transfer-Encoding: chunked. Since WORequest needs to know the length of it's content,
+ * a chunked body is spooled before dispatch; in memory up to <code>er.extensions.WOAdaptorPlain.requestBodyMemoryThreshold</code> bytes (default 64KB)
+ * and to a temporary file beyond that, which WO then reads lazily as a stream. Bodies larger than <code>er.extensions.WOAdaptorPlain.maxRequestBodySize</code>
+ * bytes (default, and upper bound, is Integer.MAX_VALUE since that's what WO can represent) are rejected with 413 Payload Too Large.
+ *
+ * A response with a content stream of unknown length (contentInputStreamLength() of -1) is sent using Transfer-Encoding: chunked, flushing each buffer as it's read.
+ *
+ * An ERXFileResponse is written from the file using FileChannel.transferTo(), so the file's content never passes through a heap buffer of it's own size.
+ * Since HttpServer only gives us an OutputStream, the channel copies through a small fixed size buffer rather than handing the bytes directly to the socket.
+ *
+ * The length of the OS accept queue is set by <code>er.extensions.WOAdaptorPlain.acceptBacklog</code> (default 1024, like WOAdaptorNIO's).
+ *
+ * The number of requests inside the application at once can be limited, see WOAdaptorConcurrencyLimiter for the <code>er.extensions.WOAdaptorPlain.</code> properties that control it.
+ * Note that HttpServer has already read the request head when we get the request, so the measured dispatch latency starts there rather than at accept().
  */
 
 public class WOAdaptorPlain extends WOAdaptor {
 
 	private static final Logger logger = LoggerFactory.getLogger( WOAdaptorPlain.class );
 
+	/**
+	 * Length of the OS accept queue. HttpServer's own default (0, meaning the JDK's default of 50) drops connections under a burst of load.
+	 */
+	private static final int ACCEPT_BACKLOG = ERXProperties.intForKeyWithDefault( "er.extensions.WOAdaptorPlain.acceptBacklog", 1024 );
+
+	/**
+	 * Maximum size of a request body, in bytes. Larger requests get rejected with 413 Payload Too Large.
+	 */
+	private static final long MAX_REQUEST_BODY_SIZE = Math.min( ERXProperties.longForKeyWithDefault( "er.extensions.WOAdaptorPlain.maxRequestBodySize", Integer.MAX_VALUE ), Integer.MAX_VALUE );
+
+	/**
+	 * Chunked request bodies up to this size (in bytes) are kept in memory. Larger ones are spooled to a temporary file.
+	 */
+	private static final int REQUEST_BODY_MEMORY_THRESHOLD = ERXProperties.intForKeyWithDefault( "er.extensions.WOAdaptorPlain.requestBodyMemoryThreshold", 64 * 1024 );
+
+	/**
+	 * Buffer size used when streaming response content of unknown length, if the response doesn't specify one
+	 */
+	private static final int STREAM_BUFFER_SIZE_DEFAULT = 32 * 1024;
+
+	/**
+	 * Upper bound for the buffer size used when streaming response content of unknown length, in bytes
+	 */
+	private static final int STREAM_BUFFER_SIZE_MAX = ERXProperties.intForKeyWithDefault( "er.extensions.WOAdaptorPlain.maxStreamBufferSize", 256 * 1024 );
+
 	/**
 	 * The HttpServer instance
 	 */
 	private HttpServer _server;
 
+	/**
+	 * Limits and counts the requests we have inside the application
+	 */
+	private final WOAdaptorConcurrencyLimiter _concurrencyLimiter = new WOAdaptorConcurrencyLimiter( "er.extensions.WOAdaptorPlain." );
+
 	/**
 	 * Invoked by WO to construct an adaptor instance
 	 */
@@ -57,7 +104,7 @@ public class WOAdaptorPlain extends WOAdaptor {
 	/**
 	 * @return the port we'll be listening on
 	 */
-	private static int port( NSDictionary<String, Object> config ) {
+	static int port( NSDictionary<String, Object> config ) {
 		final Number number = (Number)config.objectForKey( WOProperties._PortKey );
 
 		int port = 0;
@@ -76,7 +123,7 @@ public class WOAdaptorPlain extends WOAdaptor {
 	/**
 	 * Briefly try binding to the requested port. If unsuccessful, emulate WO's behaviour (wrap the BindException in NSForwardException) to help ERXApplication catch it and stop any apps occupying the port
 	 */
-	private static void checkPortAvailable( final int port ) {
+	static void checkPortAvailable( final int port ) {
 
 		// Port 0 just means "WOPort not set", so we don't need to perform a check (the server will pick a random free port)
 		if( port != 0 ) {
@@ -87,6 +134,13 @@ public class WOAdaptorPlain extends WOAdaptor {
 		}
 	}
 
+	/**
+	 * @return The limiter controlling (and counting) the requests this adaptor has inside the application
+	 */
+	public WOAdaptorConcurrencyLimiter concurrencyLimiter() {
+		return _concurrencyLimiter;
+	}
+
 	@Override
 	public boolean dispatchesRequestsConcurrently() {
 		return true;
@@ -106,9 +160,9 @@ public class WOAdaptorPlain extends WOAdaptor {
 			logger.info( "%s starting %s".formatted( getClass().getSimpleName(), _port == 0 ? "on a random port" : "on port " + _port ) );
 
 			// FIXME: Use WOHost when constructing? // Hugi 2025-11-15
-			_server = HttpServer.create( new InetSocketAddress( _port ), 0 );
+			_server = HttpServer.create( new InetSocketAddress( _port ), ACCEPT_BACKLOG );
 			_server.setExecutor( Executors.newVirtualThreadPerTaskExecutor() );
-			_server.createContext( "/" ).setHandler( new WOHandler() );
+			_server.createContext( "/" ).setHandler( new WOHandler( _concurrencyLimiter ) );
 			_server.start();
 
 			// If port was 0, get the actual assigned port and update WO properties
@@ -129,32 +183,87 @@ public class WOAdaptorPlain extends WOAdaptor {
 
 	public static class WOHandler implements HttpHandler {
 
+		private final WOAdaptorConcurrencyLimiter _limiter;
+
+		public WOHandler() {
+			this( new WOAdaptorConcurrencyLimiter( 0, 0, 0, 0 ) );
+		}
+
+		public WOHandler( final WOAdaptorConcurrencyLimiter limiter ) {
+			_limiter = limiter;
+		}
+
 		public void handle( final HttpExchange exchange ) throws IOException {
 
-			// If the request has Transfer-Encoding: chunked we currently just reject it
-			if( rejectChunkedTransferEncoding( exchange ) ) {
+			final long receivedNanos = System.nanoTime();
+
+			if( !_limiter.acquire() ) {
+				logger.debug( "Rejecting request to {}, application saturated. Returning 503 Service Unavailable. {}", exchange.getRequestURI(), _limiter );
+				exchange.getResponseHeaders().set( "Retry-After", String.valueOf( _limiter.retryAfterSeconds() ) );
+				exchange.sendResponseHeaders( 503, -1 ); // 503 Service Unavailable
+				exchange.close();
 				return;
 			}
 
-			final WORequest request = requestFromExchange( exchange );
+			// The permit is held until the response has been written, since that's when the request lets go of it's memory
+			try {
+				handleAdmitted( exchange, receivedNanos );
+			}
+			finally {
+				_limiter.release();
+			}
+		}
+
+		private void handleAdmitted( final HttpExchange exchange, final long receivedNanos ) throws IOException {
+
+			final WOAdaptorRequestContent content;
+
+			try {
+				content = requestContent( exchange );
+			}
+			catch( WOAdaptorRequestContent.TooLargeException e ) {
+				logger.warn( "Rejecting request to {} with a body exceeding the maximum of {} bytes. Returning 413 Payload Too Large", exchange.getRequestURI(), MAX_REQUEST_BODY_SIZE );
+				exchange.sendResponseHeaders( 413, -1 ); // 413 Payload Too Large
+				exchange.close();
+				return;
+			}
+
+			final WOResponse response;
+
+			try {
+				final WORequest request = requestFromExchange( exchange, content );
+
+				_limiter.recordDispatchLatency( System.nanoTime() - receivedNanos );
 
-			// This is where the application logic will perform it's actual work
-			final WOResponse response = WOApplication.application().dispatchRequest( request );
+				// This is where the application logic will perform it's actual work
+				response = WOApplication.application().dispatchRequest( request );
+			}
+			finally {
+				content.dispose();
+			}
 
 			exchange.getResponseHeaders().putAll( response.headers() );
 
-			if( response.contentInputStream() != null ) {
-				final long contentLength = response.contentInputStreamLength(); // If an InputStream is present, the stream's length must be present as well
+			if( response instanceof ERXFileResponse fileResponse && fileResponse.hasFileContent() ) {
+				exchange.sendResponseHeaders( response.status(), fileResponse.length() > 0 ? fileResponse.length() : -1 );
 
-				if( contentLength == -1 ) {
-					throw new IllegalArgumentException( "WOResponse.contentInputStream() is set but contentInputLength has not been set. You must provide the content length when serving an InputStream" );
+				try( final OutputStream out = exchange.getResponseBody()) {
+					fileResponse.transferTo( Channels.newChannel( out ) );
 				}
+			}
+			else if( response.contentInputStream() != null ) {
+				final long contentLength = response.contentInputStreamLength();
 
-				exchange.sendResponseHeaders( response.status(), contentLength );
+				if( contentLength == -1 ) {
+					writeStreamChunked( exchange, response );
+				}
+				else {
+					exchange.sendResponseHeaders( response.status(), contentLength );
 
-				try( final InputStream inputStream = response.contentInputStream()) {
-					try( final OutputStream out = exchange.getResponseBody()) {
-						inputStream.transferTo( out );
+					try( final InputStream inputStream = response.contentInputStream()) {
+						try( final OutputStream out = exchange.getResponseBody()) {
+							inputStream.transferTo( out );
+						}
 					}
 				}
 			}
@@ -171,48 +280,74 @@ public class WOAdaptorPlain extends WOAdaptor {
 		}
 
 		/**
-		 * @return the given Request converted to a WORequest
+		 * Writes a response whose content stream has unknown length using Transfer-Encoding: chunked (or, for HTTP/1.0 clients, by closing the connection when done, which the HttpServer handles for us).
+		 *
+		 * Content is read into a buffer of the response's contentInputStreamBufferSize() (bounded by STREAM_BUFFER_SIZE_MAX) and flushed to the client as soon as the stream hands it over,
+		 * so the client starts receiving data before the producer is done and we never hold more than a single buffer of the content.
 		 */
-		private static WORequest requestFromExchange( final HttpExchange exchange ) {
+		private static void writeStreamChunked( final HttpExchange exchange, final WOResponse response ) throws IOException {
 
-			final String method = exchange.getRequestMethod();
-			final String uri = exchange.getRequestURI().toString();
-			final String httpVersion = exchange.getProtocol();
-			final Map<String, List<String>> headers = exchange.getRequestHeaders();
+			// A Content-Length header would conflict with the chunked encoding
+			exchange.getResponseHeaders().remove( "Content-Length" );
+			exchange.sendResponseHeaders( response.status(), 0 );
 
-			final NSData contentData;
+			final byte[] buffer = new byte[streamBufferSize( response )];
 
-			final int contentLength = contentLength( headers );
+			try( final InputStream inputStream = response.contentInputStream()) {
+				try( final OutputStream out = exchange.getResponseBody()) {
+					int read;
 
-			if (contentLength  > 0) {
-				final InputStream requestStream = exchange.getRequestBody();
-				final InputStream bufferedStream = new BufferedInputStream(requestStream);
-				final WONoCopyPushbackInputStream wrappedStream = new WONoCopyPushbackInputStream(bufferedStream, contentLength);
-				contentData = new WOInputStreamData(wrappedStream, contentLength);
+					while( (read = inputStream.read( buffer )) != -1 ) {
+						out.write( buffer, 0, read );
+						out.flush();
+					}
+				}
 			}
-			else {
-				contentData = NSData.EmptyData;
+		}
+
+		/**
+		 * @return The buffer size to use when streaming the given response's content
+		 */
+		private static int streamBufferSize( final WOResponse response ) {
+			final int requestedSize = response.contentInputStreamBufferSize();
+
+			if( requestedSize <= 0 ) {
+				return STREAM_BUFFER_SIZE_DEFAULT;
 			}
 
-			final WORequest worequest = WOApplication.application().createRequest( method, uri, httpVersion, headers, contentData, null );
+			return Math.min( requestedSize, STREAM_BUFFER_SIZE_MAX );
+		}
+
+		/**
+		 * @return the given Request converted to a WORequest
+		 */
+		private static WORequest requestFromExchange( final HttpExchange exchange, final WOAdaptorRequestContent content ) {
+
+			final String method = exchange.getRequestMethod();
+			final String uri = exchange.getRequestURI().toString();
+			final String httpVersion = exchange.getProtocol();
+			final Map<String, List<String>> headers = content.headers();
+
+			final WORequest worequest = WOApplication.application().createRequest( method, uri, httpVersion, headers, content.data(), null );
 
 			populateAddresses(exchange, worequest);
 
 			return worequest;
 		}
-		
+
 		/**
-		 * @return The value of the content-length header or 0 (zero) if not present 
+		 * @return The request's content. A body with a Content-Length is handed to WO as a stream, a chunked body gets spooled first (see class documentation)
 		 */
-		private static int contentLength( final Map<String, List<String>> headers ) {
+		private static WOAdaptorRequestContent requestContent( final HttpExchange exchange ) throws IOException {
 
-			final List<String> contentLengthHeaders = headers.get("Content-Length");
+			final Map<String, List<String>> headers = exchange.getRequestHeaders();
 
-			if (contentLengthHeaders != null && !contentLengthHeaders.isEmpty()) {
-				return Integer.parseInt( contentLengthHeaders.getFirst() );
+			// The HttpServer takes care of decoding the chunks for us
+			if( WOAdaptorRequestContent.isChunked( headers ) ) {
+				return WOAdaptorRequestContent.spool( headers, exchange.getRequestBody(), MAX_REQUEST_BODY_SIZE, REQUEST_BODY_MEMORY_THRESHOLD );
 			}
-			
-			return 0;
+
+			return WOAdaptorRequestContent.stream( headers, new BufferedInputStream( exchange.getRequestBody() ), WOAdaptorRequestContent.contentLength( headers ), MAX_REQUEST_BODY_SIZE );
 		}
 
 		/**
@@ -228,21 +363,5 @@ public class WOAdaptorPlain extends WOAdaptor {
 		    request._setAcceptingAddress(local.getAddress());
 		    request._setAcceptingPort(local.getPort());
 		}
-		
-		/**
-		 * Check for chunked transfer encoding - we don't support it (our current handling of the request's content requires known content-length)
-		 */
-		private boolean rejectChunkedTransferEncoding( final HttpExchange exchange ) throws IOException {
-			final List<String> transferEncoding = exchange.getRequestHeaders().get( "Transfer-Encoding" );
-
-			if( transferEncoding != null && transferEncoding.stream().anyMatch( s -> s.toLowerCase().contains( "chunked" ) ) ) {
-				logger.warn( "Received chunked transfer-encoded request to {} - not supported. Returning 411 Length Required", exchange.getRequestURI() );
-				exchange.sendResponseHeaders( 411, -1 ); // 411 Length Required
-				exchange.close();
-				return true;
-			}
-			
-			return false;
-		}
 	}
 }
\ No newline at end of file
@@ -0,0 +1,196 @@
+package com.webobjects.appserver;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.webobjects.appserver._private.WOInputStreamData;
+import com.webobjects.appserver._private.WONoCopyPushbackInputStream;
+import com.webobjects.foundation.NSData;
+
+/**
+ * The content of a request as handed to WO by our adaptors, along with the headers WO should see and any temporary storage to clean up once the request has been handled.
+ *
+ * A body with a known Content-Length is passed on as a lazily read stream. A chunked body has no known length, which WORequest needs,
+ * so it's spooled first; in memory up to a threshold, to a temporary file beyond that (which WO then reads lazily as a stream).
+ */
+
+final class WOAdaptorRequestContent {
+
+	private static final Logger logger = LoggerFactory.getLogger( WOAdaptorRequestContent.class );
+
+	private final Map<String, List<String>> _headers;
+	private final NSData _data;
+	private final InputStream _spoolStream;
+	private final Path _spoolFile;
+
+	private WOAdaptorRequestContent( final Map<String, List<String>> headers, final NSData data, final InputStream spoolStream, final Path spoolFile ) {
+		_headers = headers;
+		_data = data;
+		_spoolStream = spoolStream;
+		_spoolFile = spoolFile;
+	}
+
+	/**
+	 * @return The headers to pass to WO
+	 */
+	Map<String, List<String>> headers() {
+		return _headers;
+	}
+
+	/**
+	 * @return The content to pass to WO
+	 */
+	NSData data() {
+		return _data;
+	}
+
+	/**
+	 * @return The temporary file the content was spooled to, null if it's in memory or read from the connection
+	 */
+	Path spoolFile() {
+		return _spoolFile;
+	}
+
+	/**
+	 * @return Content with a known length, read lazily from the given stream
+	 */
+	static WOAdaptorRequestContent stream( final Map<String, List<String>> headers, final InputStream bodyStream, final long contentLength, final long maxBodySize ) throws TooLargeException {
+
+		if( contentLength > maxBodySize ) {
+			throw new TooLargeException();
+		}
+
+		if( contentLength > 0 ) {
+			final WONoCopyPushbackInputStream wrappedStream = new WONoCopyPushbackInputStream( bodyStream, contentLength );
+			return new WOAdaptorRequestContent( headers, new WOInputStreamData( wrappedStream, (int)contentLength ), null, null );
+		}
+
+		return new WOAdaptorRequestContent( headers, NSData.EmptyData, null, null );
+	}
+
+	/**
+	 * Reads an already de-chunked request body to it's end. Small bodies are kept in memory, larger ones are written to a temporary file that's handed to WO as a lazily read stream.
+	 * The returned headers have the Transfer-Encoding replaced with the now known Content-Length, so WO's content handling sees a regular request.
+	 */
+	static WOAdaptorRequestContent spool( final Map<String, List<String>> requestHeaders, final InputStream bodyStream, final long maxBodySize, final int memoryThreshold ) throws IOException {
+
+		final byte[] buffer = new byte[8192];
+		final ByteArrayOutputStream memoryBuffer = new ByteArrayOutputStream();
+
+		Path spoolFile = null;
+		OutputStream spoolStream = null;
+		long length = 0;
+
+		try {
+			int read;
+
+			while( (read = bodyStream.read( buffer )) != -1 ) {
+				length += read;
+
+				if( length > maxBodySize ) {
+					throw new TooLargeException();
+				}
+
+				if( spoolStream == null && length > memoryThreshold ) {
+					spoolFile = Files.createTempFile( "WOAdaptor-", ".body" );
+					spoolStream = Files.newOutputStream( spoolFile );
+					memoryBuffer.writeTo( spoolStream );
+					memoryBuffer.reset();
+				}
+
+				if( spoolStream != null ) {
+					spoolStream.write( buffer, 0, read );
+				}
+				else {
+					memoryBuffer.write( buffer, 0, read );
+				}
+			}
+
+			if( spoolStream != null ) {
+				spoolStream.close();
+			}
+		}
+		catch( IOException | RuntimeException e ) {
+			if( spoolStream != null ) {
+				spoolStream.close();
+			}
+
+			if( spoolFile != null ) {
+				Files.deleteIfExists( spoolFile );
+			}
+
+			throw e;
+		}
+
+		final Map<String, List<String>> headers = new LinkedHashMap<>( requestHeaders );
+		headers.keySet().removeIf( "Transfer-Encoding"::equalsIgnoreCase );
+		headers.keySet().removeIf( "Content-Length"::equalsIgnoreCase );
+		headers.put( "Content-Length", List.of( String.valueOf( length ) ) );
+
+		if( spoolFile == null ) {
+			return new WOAdaptorRequestContent( headers, length > 0 ? new NSData( memoryBuffer.toByteArray() ) : NSData.EmptyData, null, null );
+		}
+
+		logger.debug( "Spooled chunked request body of {} bytes to {}", length, spoolFile );
+
+		final InputStream fileStream = Files.newInputStream( spoolFile );
+		final WONoCopyPushbackInputStream wrappedStream = new WONoCopyPushbackInputStream( new BufferedInputStream( fileStream ), length );
+		return new WOAdaptorRequestContent( headers, new WOInputStreamData( wrappedStream, (int)length ), fileStream, spoolFile );
+	}
+
+	/**
+	 * Closes and deletes the spool file, if the content was spooled
+	 */
+	void dispose() {
+		try {
+			if( _spoolStream != null ) {
+				_spoolStream.close();
+			}
+
+			if( _spoolFile != null ) {
+				Files.deleteIfExists( _spoolFile );
+			}
+		}
+		catch( IOException e ) {
+			logger.warn( "Failed to delete request body spool file {}", _spoolFile, e );
+		}
+	}
+
+	/**
+	 * @return true if the given headers have Transfer-Encoding: chunked
+	 */
+	static boolean isChunked( final Map<String, List<String>> headers ) {
+		final List<String> transferEncoding = headers.get( "Transfer-Encoding" );
+		return transferEncoding != null && transferEncoding.stream().anyMatch( s -> s.toLowerCase().contains( "chunked" ) );
+	}
+
+	/**
+	 * @return The value of the content-length header or 0 (zero) if not present
+	 */
+	static long contentLength( final Map<String, List<String>> headers ) {
+
+		final List<String> contentLengthHeaders = headers.get( "Content-Length" );
+
+		if( contentLengthHeaders != null && !contentLengthHeaders.isEmpty() ) {
+			return Long.parseLong( contentLengthHeaders.getFirst().trim() );
+		}
+
+		return 0;
+	}
+
+	/**
+	 * Thrown when a request body exceeds the configured maximum size
+	 */
+	static class TooLargeException extends IOException {}
+}
@@ -258,6 +258,7 @@ public class WOStatsPage extends WOComponent {
 
 	private NSArray<ERXStats.LogEntry> _aggregateLogEntries;
 	private ERXStats.LogEntry _aggregateLogEntry;
+	private ERXStats.Percentiles _aggregateLogEntryPercentiles;
 
 
 	public Format byteFormat() {
@@ -281,11 +282,22 @@ public class WOStatsPage extends WOComponent {
 
 	public void setAggregateLogEntry(ERXStats.LogEntry aggregateLogEntry) {
 		_aggregateLogEntry = aggregateLogEntry;
+		_aggregateLogEntryPercentiles = null;
 	}
 
 	public ERXStats.LogEntry aggregateLogEntry() {
 		return _aggregateLogEntry;
 	}
+
+	/**
+	 * @return The current row's percentiles, taken from one snapshot of it's histogram rather than one per column
+	 */
+	public ERXStats.Percentiles aggregateLogEntryPercentiles() {
+		if (_aggregateLogEntryPercentiles == null && _aggregateLogEntry != null) {
+			_aggregateLogEntryPercentiles = _aggregateLogEntry.percentiles();
+		}
+		return _aggregateLogEntryPercentiles;
+	}
 	
 	public WOActionResults resetStats() {
 		ERXStats.reset();
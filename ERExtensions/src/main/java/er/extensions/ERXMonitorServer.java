@@ -6,8 +6,8 @@ import java.lang.management.ManagementFactory;
 import java.lang.management.ThreadInfo;
 import java.lang.management.ThreadMXBean;
 import java.net.InetSocketAddress;
-import java.util.List;
-import java.util.Objects;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 import java.util.concurrent.Executors;
 
 import org.slf4j.Logger;
@@ -19,9 +19,19 @@ import com.sun.net.httpserver.HttpServer;
 import com.webobjects.appserver.WOApplication;
 
 import er.extensions.foundation.ERXProperties;
+import er.extensions.statistics.ERXMetrics;
 
 /**
  * Access point for Monitor operations that get info and/or perform admin operations
+ * <p>
+ * Besides /monitor/jstack, serves the application's metrics in the OpenMetrics text format at /metrics (see {@link ERXMetrics}),
+ * for Prometheus or anything else that scrapes it. Requests must carry the monitor service password in a monitor-service-password
+ * header, unless they're for /metrics and er.extensions.ERXMonitorServer.metricsPasswordRequired is false (in which case the
+ * server also starts without a password, for the metrics alone).
+ *
+ * @property WOMonitorServicePassword the password, the server only starts if it's set (or metrics don't require it)
+ * @property er.extensions.ERXMonitorServer.port defaults to the application's port + 10000
+ * @property er.extensions.ERXMonitorServer.metricsPasswordRequired defaults to true
  */
 
 public class ERXMonitorServer {
@@ -29,13 +39,10 @@ public class ERXMonitorServer {
 	private static Logger logger = LoggerFactory.getLogger( ERXMonitorServer.class );
 
 	public static void start() {
-		// We'll only start up the monitor server if a password is set for it
-		final String monitorServerPassword = ERXProperties.stringForKey( "WOMonitorServicePassword" );
-
-		if( monitorServerPassword != null ) {
+		// We'll only start up the monitor server if a password is set for it, or if it's there to serve metrics to anyone
+		if( password() != null || !metricsPasswordRequired() ) {
 			try {
-				// FIXME: This method of obtaining a port for the monitor service absolutely sucks
-				final int monitorServerPort = WOApplication.application().port().intValue() + 10000;
+				final int monitorServerPort = ERXProperties.intForKeyWithDefault( "er.extensions.ERXMonitorServer.port", WOApplication.application().port().intValue() + 10000 );
 				ERXMonitorServer.start( monitorServerPort );
 			}
 			catch( IOException e ) {
@@ -52,6 +59,7 @@ public class ERXMonitorServer {
 		final HttpServer server = HttpServer.create( new InetSocketAddress( port ), 0 );
 
 		server.createContext( "/monitor", new MonitorHandler() );
+		server.createContext( "/metrics", new MetricsHandler() );
 		server.setExecutor( Executors.newVirtualThreadPerTaskExecutor() );
 		server.start();
 
@@ -64,35 +72,69 @@ public class ERXMonitorServer {
 		return ERXProperties.stringForKey( "WOMonitorServicePassword" );
 	}
 
+	private static boolean metricsPasswordRequired() {
+		return ERXProperties.booleanForKeyWithDefault( "er.extensions.ERXMonitorServer.metricsPasswordRequired", true );
+	}
+
+	/**
+	 * @return true if the exchange carries the monitor service password. Always false if no password is set.
+	 */
+	private static boolean isAuthorized( final HttpExchange exchange ) {
+		final String password = password();
+		final String providedPassword = exchange.getRequestHeaders().getFirst( "monitor-service-password" );
+
+		if( password == null || providedPassword == null ) {
+			return false;
+		}
+
+		// Constant time comparison, so the response time doesn't tell how much of the password was right
+		return MessageDigest.isEqual( password.getBytes( StandardCharsets.UTF_8 ), providedPassword.getBytes( StandardCharsets.UTF_8 ) );
+	}
+
+	private static void respond( final HttpExchange exchange, final int status, final String contentType, final String body ) throws IOException {
+		final byte[] responseBytes = body.getBytes( StandardCharsets.UTF_8 );
+		exchange.getResponseHeaders().set( "Content-Type", contentType );
+		exchange.sendResponseHeaders( status, responseBytes.length );
+
+		try( final OutputStream os = exchange.getResponseBody()) {
+			os.write( responseBytes );
+		}
+	}
+
 	private static class MonitorHandler implements HttpHandler {
 
 		@Override
 		public void handle( HttpExchange exchange ) throws IOException {
 
-			final List<String> providedPassword = exchange.getRequestHeaders().get( "monitor-service-password" );
-
-			if( providedPassword.isEmpty() ) {
-				throw new IllegalStateException( "No password provided" );
+			if( !isAuthorized( exchange ) ) {
+				respond( exchange, 401, "text/plain; charset=utf-8", "Wrong or missing password" );
+				return;
 			}
 
-			if( !Objects.equals( password(), providedPassword.getFirst() ) ) {
-				throw new IllegalStateException( "Wrong password" );
+			if( exchange.getRequestURI().getPath().equals( "/monitor/jstack" ) ) {
+				respond( exchange, 200, "text/plain; charset=utf-8", threadDumpAsString( true, true ) );
 			}
+			else {
+				respond( exchange, 404, "text/plain; charset=utf-8", "Unknown operation" );
+			}
+		}
+	}
 
+	private static class MetricsHandler implements HttpHandler {
 
-			if( exchange.getRequestURI().toString().equals( "/monitor/jstack" ) ) {
-				final String responseString = threadDumpAsString( true, true );
-				final byte[] responseBytes = responseString.getBytes();
-				exchange.sendResponseHeaders( 200, responseBytes.length );
+		@Override
+		public void handle( HttpExchange exchange ) throws IOException {
+
+			if( metricsPasswordRequired() && !isAuthorized( exchange ) ) {
+				respond( exchange, 401, "text/plain; charset=utf-8", "Wrong or missing password" );
+				return;
+			}
 
-				try( final OutputStream os = exchange.getResponseBody()) {
-					os.write( responseBytes );
-				}
+			if( exchange.getRequestURI().getPath().equals( "/metrics" ) ) {
+				respond( exchange, 200, ERXMetrics.CONTENT_TYPE, ERXMetrics.render() );
 			}
 			else {
-				try( final OutputStream os = exchange.getResponseBody()) {
-					os.write( "Unknown operation".getBytes() );
-				}
+				respond( exchange, 404, "text/plain; charset=utf-8", "Unknown operation" );
 			}
 		}
 	}
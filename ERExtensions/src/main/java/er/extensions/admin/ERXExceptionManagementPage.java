@@ -1,5 +1,6 @@
 package er.extensions.admin;
 
+import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.List;
 
@@ -8,16 +9,20 @@ import com.webobjects.appserver.WOComponent;
 import com.webobjects.appserver.WOContext;
 
 import er.extensions.appserver.ERXApplication;
+import er.extensions.appserver.ERXExceptionManager.ExceptionSummary;
 import er.extensions.appserver.ERXExceptionManager.LoggedException;
 
 /**
- * For viewing the exceptions kept track of in ERXExceptionManager 
+ * For viewing the exceptions kept track of in ERXExceptionManager, aggregated by fingerprint (exception class plus top stack frames)
  */
 
 public class ERXExceptionManagementPage extends WOComponent {
 
 	private static final DateTimeFormatter DATE_WITH_TIME_FORMAT = DateTimeFormatter.ofPattern( "yyyy-MM-dd HH:mm" );
 
+	public ExceptionSummary currentSummary;
+	public ExceptionSummary selectedSummary;
+
 	public LoggedException current;
 	public LoggedException selected;
 
@@ -28,33 +33,52 @@ public class ERXExceptionManagementPage extends WOComponent {
         super(context);
     }
     
-    public List<LoggedException> exceptions() {
-    	List<LoggedException> list = ERXApplication
+    public List<ExceptionSummary> summaries() {
+    	List<ExceptionSummary> list = ERXApplication
     			.erxApplication()
     			.exceptionManager()
-    			.loggedExceptions();
+    			.exceptionSummaries();
     	
     	if( selectedExceptionClass != null ) {
     		list = list
     				.stream()
-    				.filter(p -> p.throwable().getClass().equals(selectedExceptionClass))
+    				.filter(p -> p.exceptionClass().equals(selectedExceptionClass))
     				.toList();
     	}
     	
-    	return list.reversed();
+    	return list;
     }
     
     public WOActionResults filter() {
+    	selectedSummary = null;
     	selected = null;
     	return null;
     }
 
+    public WOActionResults selectSummary() {
+    	selectedSummary = currentSummary;
+    	selected = currentSummary.latest();
+    	return null;
+    }
+
     public WOActionResults selectException() {
     	selected = current;
     	return null;
     }
     
     public String currentDateTimeFormatted() {
-    	return current.dateTime().format(DATE_WITH_TIME_FORMAT);
+    	return format(current.dateTime());
+    }
+
+    public String currentSummaryFirstSeenFormatted() {
+    	return format(currentSummary.firstSeen());
+    }
+
+    public String currentSummaryLastSeenFormatted() {
+    	return format(currentSummary.lastSeen());
+    }
+
+    private static String format( final LocalDateTime dateTime ) {
+    	return dateTime.format(DATE_WITH_TIME_FORMAT);
     }
-}
\ No newline at end of file
+}
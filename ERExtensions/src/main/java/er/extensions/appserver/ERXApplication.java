@@ -69,6 +69,9 @@ import er.extensions.resources.ERXAppBasedResourceRequestHandler;
 import er.extensions.resources.ERXResourceManagerBase;
 import er.extensions.routes.RouteAction;
 import er.extensions.routes.RouteTable;
+import er.extensions.statistics.ERXRequestTimeline;
+import er.extensions.statistics.ERXRequestTimeline.Phase;
+import er.extensions.statistics.ERXStatisticsStore;
 import er.extensions.statistics.ERXStats;
 import parsley.ParsleyConfiguration;
 
@@ -825,23 +828,42 @@ public abstract class ERXApplication extends ERXAjaxApplication {
 			requestHandlingLog.debug("{}", request);
 		}
 
+		final ERXRequestTimeline timeline = ERXRequestTimeline.begin();
+
 		try {
-			ERXStats.initStatisticsIfNecessary();
-			_lowMemoryHandler.checkMemory();
-			response = super.dispatchRequest(request);
-		}
-		finally {
-			ERXStats.logStatisticsForOperation(statsLog, "key");
-			ERXThreadStorage.reset();
-		}
+			try {
+				ERXStats.initStatisticsIfNecessary();
+				_lowMemoryHandler.checkMemory();
+				response = super.dispatchRequest(request);
+			}
+			finally {
+				ERXStats.logStatisticsForOperation(statsLog, "key");
+				ERXThreadStorage.reset();
 
-		if (requestHandlingLog.isDebugEnabled()) {
-			requestHandlingLog.debug("Returning, encoding: " + response.contentEncoding() + " response: " + response);
+				if (request instanceof ERXRequest erxRequest) {
+					erxRequest.releaseBrowser();
+				}
+			}
+
+			if (requestHandlingLog.isDebugEnabled()) {
+				requestHandlingLog.debug("Returning, encoding: " + response.contentEncoding() + " response: " + response);
+			}
+
+			if( ERXResponseCompression.responseCompressionEnabled() ) {
+				if( ERXResponseCompression.shouldCompress( request, response ) ) {
+					final long compressionStart = System.nanoTime();
+					ERXResponseCompression.compressResponse( response );
+					ERXRequestTimeline.record( Phase.COMPRESSION, compressionStart );
+				}
+			}
 		}
+		finally {
+			if (timeline != null) {
+				timeline.end();
 
-		if( ERXResponseCompression.responseCompressionEnabled() ) {
-			if( ERXResponseCompression.shouldCompress( request, response ) ) {
-				ERXResponseCompression.compressResponse( response );
+				if (statisticsStore() instanceof ERXStatisticsStore statisticsStore) {
+					statisticsStore.logRequestTimeline(timeline);
+				}
 			}
 		}
 
@@ -15,6 +15,8 @@ import com.webobjects.appserver.WOStatisticsStore;
 import com.webobjects.foundation.NSArray;
 
 import er.extensions.appserver.ajax.ERXAjaxSession;
+import er.extensions.statistics.ERXRequestTimeline;
+import er.extensions.statistics.ERXRequestTimeline.Phase;
 
 /**
  * Component-action dispatch (the /wo/ handler), written from requirements as owned code, replacing
@@ -27,7 +29,8 @@ import er.extensions.appserver.ajax.ERXAjaxSession;
  * session (NEVER create one - session-creating access to this handler is what allowed session-less
  * direct component access), consult the repeated-request guard, restore the page by contextID, run
  * the request phases (takeValues / invokeAction / appendToResponse), save the page, and check the
- * session back in - exactly once, on every path, including exception paths.
+ * session back in - exactly once, on every path, including exception paths. Each of those phases is
+ * timed into the request's {@link ERXRequestTimeline}.
  * <p>
  * Deliberate divergences from the old handler, beyond style - the complete list, from a line-by-line
  * differential audit:
@@ -144,7 +147,9 @@ public class ERXComponentActionRequestHandler extends WORequestHandler {
 			// whatever path we took. A failure here must not replace the response we already have.
 			if (context != null && context._session() != null) {
 				try {
+					final long checkInStart = System.nanoTime();
 					application.saveSessionForContext(context);
+					ERXRequestTimeline.record(Phase.SESSION_CHECK_IN, checkInStart);
 				}
 				catch (Exception e) {
 					log.error("Failed to check the session back in after handling {}", request.uri(), e);
@@ -160,9 +165,12 @@ public class ERXComponentActionRequestHandler extends WORequestHandler {
 			response._finalizeInContext(context);
 		}
 
+		final WOComponent page = context.page();
+		final String pageName = page == null ? null : page.name();
+		ERXRequestTimeline.setCurrentPageName(pageName);
+
 		if (statistics != null) {
-			WOComponent page = context.page();
-			statistics.applicationDidHandleComponentActionRequestWithPageNamed(page == null ? null : page.name());
+			statistics.applicationDidHandleComponentActionRequestWithPageNamed(pageName);
 		}
 
 		return response;
@@ -179,7 +187,9 @@ public class ERXComponentActionRequestHandler extends WORequestHandler {
 			return application.handleSessionRestorationErrorInContext(context);
 		}
 
+		final long checkOutStart = System.nanoTime();
 		final WOSession session = application.restoreSessionWithID(url.sessionID(), context);
+		ERXRequestTimeline.record(Phase.SESSION_CHECK_OUT, checkOutStart);
 
 		// The session id didn't resolve - typically an expired session.
 		if (session == null) {
@@ -192,7 +202,9 @@ public class ERXComponentActionRequestHandler extends WORequestHandler {
 			return application.handlePageRestorationErrorInContext(context);
 		}
 
+		final long restoreStart = System.nanoTime();
 		final WOComponent page = session.restorePageForContextID(url.contextID());
+		ERXRequestTimeline.record(Phase.PAGE_RESTORE, restoreStart);
 
 		// The page's contextID has aged out of the page cache ("backtracked too far").
 		if (page == null) {
@@ -235,7 +247,9 @@ public class ERXComponentActionRequestHandler extends WORequestHandler {
 				: session._contextIDMatchingIDs(context);
 
 		if (repeatedRequestContextID != null) {
+			final long restoreStart = System.nanoTime();
 			WOComponent storedPage = session.restorePageForContextID(repeatedRequestContextID);
+			ERXRequestTimeline.record(Phase.PAGE_RESTORE, restoreStart);
 
 			if (storedPage != null) {
 				context._setPageElement(storedPage);
@@ -243,12 +257,16 @@ public class ERXComponentActionRequestHandler extends WORequestHandler {
 		}
 		else if (url.senderID() != null) {
 			if (request._hasFormValues()) {
+				final long takeValuesStart = System.nanoTime();
 				application.takeValuesFromRequest(request, context);
+				ERXRequestTimeline.record(Phase.TAKE_VALUES, takeValuesStart);
 			}
 
 			context._setPageChanged(false);
 
+			final long invokeActionStart = System.nanoTime();
 			final WOActionResults results = application.invokeAction(request, context);
+			ERXRequestTimeline.record(Phase.INVOKE_ACTION, invokeActionStart);
 
 			if (results == null || results instanceof WOComponent) {
 				final WOComponent resultPage = (WOComponent)results;
@@ -265,11 +283,16 @@ public class ERXComponentActionRequestHandler extends WORequestHandler {
 				}
 			}
 			else {
-				return results.generateResponse();
+				final long generateStart = System.nanoTime();
+				final WOResponse generatedResponse = results.generateResponse();
+				ERXRequestTimeline.record(Phase.APPEND_TO_RESPONSE, generateStart);
+				return generatedResponse;
 			}
 		}
 
+		final long appendStart = System.nanoTime();
 		application.appendToResponse(response, context);
+		ERXRequestTimeline.record(Phase.APPEND_TO_RESPONSE, appendStart);
 		return response;
 	}
 
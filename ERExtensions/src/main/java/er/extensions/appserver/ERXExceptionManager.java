@@ -8,6 +8,11 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.Enumeration;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
 
 import com.webobjects.appserver.WOContext;
 import com.webobjects.foundation.NSArray;
@@ -16,12 +21,34 @@ import com.webobjects.foundation.NSDictionary;
 import com.webobjects.foundation.NSMutableDictionary;
 import com.webobjects.foundation.NSPropertyListSerialization;
 
+import er.extensions.foundation.ERXProperties;
+
 /**
  * Keeps track of exceptions caught by ERXApplication.handleException()
+ *
+ * Memory use is bounded however many exceptions are thrown. We keep the most recent exceptions in a fixed size ring buffer,
+ * and aggregate all of them by fingerprint (the exception's class plus it's top stack frames, i.e. most likely the same bug)
+ * into {@link ExceptionSummary}s that count occurrences and keep a few samples. When there are more distinct fingerprints than
+ * we keep, the one seen least recently is dropped.
+ *
+ * <ul>
+ * <li>er.extensions.ERXExceptionManager.recentExceptionsSize: Number of recent exceptions kept (default 100)</li>
+ * <li>er.extensions.ERXExceptionManager.maxFingerprints: Number of distinct fingerprints kept (default 200)</li>
+ * </ul>
  */
 
 public class ERXExceptionManager {
 
+	/**
+	 * Number of stack frames (from the top) that go into an exception's fingerprint
+	 */
+	private static final int FINGERPRINT_FRAMES = 5;
+
+	/**
+	 * Number of most recent occurrences an ExceptionSummary keeps (in addition to the first one)
+	 */
+	private static final int SAMPLES_PER_FINGERPRINT = 3;
+
 	/**
 	 * A class for keeping info about our thrown exception, along with some metadata 
 	 */
@@ -38,13 +65,150 @@ public class ERXExceptionManager {
 		}
 	}
 
-	private final List<LoggedException> _loggedExceptions = Collections.synchronizedList(new ArrayList<>());
+	/**
+	 * Aggregated occurrences of exceptions with the same fingerprint
+	 */
+	public static class ExceptionSummary {
+
+		private final String _fingerprint;
+		private final LoggedException _first;
+		private final LongAdder _count = new LongAdder();
+		private volatile LocalDateTime _lastSeen;
+
+		/**
+		 * Value of ERXExceptionManager._seenSequence when we were last seen. What eviction goes by, since unlike _lastSeen it can't go back in time
+		 * when a thread that took it's timestamp earlier gets to add() later.
+		 */
+		private volatile long _lastSeenSequence;
+
+		/**
+		 * The most recent occurrences. A ring buffer indexed by _latestCount.
+		 */
+		private final AtomicReferenceArray<LoggedException> _latest = new AtomicReferenceArray<>(SAMPLES_PER_FINGERPRINT);
+		private final AtomicLong _latestCount = new AtomicLong();
+
+		private ExceptionSummary(String fingerprint, LoggedException first) {
+			_fingerprint = fingerprint;
+			_first = first;
+			_lastSeen = first.dateTime();
+		}
+
+		/**
+		 * @return this
+		 */
+		private ExceptionSummary add(LoggedException loggedException, long sequence) {
+			_count.increment();
+			_lastSeen = loggedException.dateTime();
+			_lastSeenSequence = sequence;
+			_latest.set((int) (_latestCount.getAndIncrement() % SAMPLES_PER_FINGERPRINT), loggedException);
+			return this;
+		}
+
+		/**
+		 * @return The exception's class plus it's top stack frames
+		 */
+		public String fingerprint() {
+			return _fingerprint;
+		}
+
+		public Class<?> exceptionClass() {
+			return _first.throwable().getClass();
+		}
+
+		/**
+		 * @return Number of times we've seen this exception
+		 */
+		public long count() {
+			return _count.sum();
+		}
+
+		public LocalDateTime firstSeen() {
+			return _first.dateTime();
+		}
+
+		public LocalDateTime lastSeen() {
+			return _lastSeen;
+		}
+
+		/**
+		 * @return The most recent occurrence
+		 */
+		public LoggedException latest() {
+			final List<LoggedException> samples = samples();
+			return samples.isEmpty() ? _first : samples.getFirst();
+		}
+
+		/**
+		 * @return The retained occurrences, newest first: the most recent few, and the first one
+		 */
+		public List<LoggedException> samples() {
+			final List<LoggedException> samples = new ArrayList<>(SAMPLES_PER_FINGERPRINT + 1);
+			final long latestCount = _latestCount.get();
+
+			for (long i = latestCount - 1; i >= Math.max(0, latestCount - SAMPLES_PER_FINGERPRINT); i--) {
+				final LoggedException sample = _latest.get((int) (i % SAMPLES_PER_FINGERPRINT));
+
+				if (sample != null && !samples.contains(sample)) {
+					samples.add(sample);
+				}
+			}
+
+			if (!samples.contains(_first)) {
+				samples.add(_first);
+			}
+
+			return samples;
+		}
+	}
+
+	/**
+	 * The most recent exceptions. A ring buffer indexed by _recentCount.
+	 */
+	private final AtomicReferenceArray<LoggedException> _recent;
+	private final AtomicLong _recentCount = new AtomicLong();
+
+	private final Map<String, ExceptionSummary> _summaries = new ConcurrentHashMap<>();
+	private final int _maxFingerprints;
+	private final Object _insertLock = new Object();
+	private final AtomicLong _seenSequence = new AtomicLong();
+
+	public ERXExceptionManager() {
+		_recent = new AtomicReferenceArray<>(Math.max(1, ERXProperties.intForKeyWithDefault("er.extensions.ERXExceptionManager.recentExceptionsSize", 100)));
+		_maxFingerprints = Math.max(1, ERXProperties.intForKeyWithDefault("er.extensions.ERXExceptionManager.maxFingerprints", 200));
+	}
 
 	/**
-	 * @return All exceptions handled by ERXApplication.handleException()
+	 * @return The most recent exceptions handled by ERXApplication.handleException(), oldest first
 	 */
 	public List<LoggedException> loggedExceptions() {
-		return _loggedExceptions;
+		final int capacity = _recent.length();
+		final long count = _recentCount.get();
+		final List<LoggedException> result = new ArrayList<>(capacity);
+
+		for (long i = Math.max(0, count - capacity); i < count; i++) {
+			final LoggedException loggedException = _recent.get((int) (i % capacity));
+
+			// null if the slot has been claimed but not yet written
+			if (loggedException != null) {
+				result.add(loggedException);
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * @return Summaries of all exceptions we've kept track of, most recently seen first
+	 */
+	public List<ExceptionSummary> exceptionSummaries() {
+		// lastSeen is captured before sorting since it may change while we sort
+		return _summaries
+				.values()
+				.stream()
+				.map(summary -> Map.entry(summary.lastSeen(), summary))
+				.sorted(Map.Entry.<LocalDateTime, ExceptionSummary>comparingByKey().reversed())
+				.map(Map.Entry::getValue)
+				.toList();
 	}
 
 	/**
@@ -52,18 +216,83 @@ public class ERXExceptionManager {
 	 */
 	public LoggedException log( Throwable throwable, LocalDateTime dateTime, String id, NSDictionary extraInfo  ) {
 		var l = new LoggedException(throwable, dateTime, id, extraInfo );
-		_loggedExceptions.add(l);
+		_recent.set((int) (_recentCount.getAndIncrement() % _recent.length()), l);
+
+		final String fingerprint = fingerprint(throwable);
+
+		if (!addToExistingSummary(fingerprint, l)) {
+			addSummary(fingerprint, l);
+		}
+
 		return l;
 	}
+
+	/**
+	 * Adds the exception to the summary for it's fingerprint. The add runs under the map's lock for the key, so it can't interleave with that summary's eviction.
+	 *
+	 * @return false if we don't have a summary for the fingerprint
+	 */
+	private boolean addToExistingSummary(final String fingerprint, final LoggedException l) {
+		return _summaries.computeIfPresent(fingerprint, (_, summary) -> summary.add(l, _seenSequence.incrementAndGet())) != null;
+	}
+
+	/**
+	 * Adds a summary for a fingerprint we don't have one for, making room for it if we're full. Summaries are only ever inserted and evicted
+	 * while holding _insertLock, so we can't end up with more than _maxFingerprints of them. Only taken when a new fingerprint shows up.
+	 */
+	private void addSummary(final String fingerprint, final LoggedException l) {
+		synchronized (_insertLock) {
+			// Another thread may have added it while we were waiting
+			if (addToExistingSummary(fingerprint, l)) {
+				return;
+			}
+
+			while (_summaries.size() >= _maxFingerprints) {
+				evictLeastRecentlySeenSummary();
+			}
+
+			final ExceptionSummary summary = new ExceptionSummary(fingerprint, l);
+			summary.add(l, _seenSequence.incrementAndGet());
+			_summaries.put(fingerprint, summary);
+		}
+	}
+
+	/**
+	 * Evicts the least recently seen summary, unless it's been seen again since we found it (in which case the caller tries again).
+	 * A scan, but only done when a never before seen exception arrives while we're full.
+	 */
+	private void evictLeastRecentlySeenSummary() {
+		_summaries
+				.values()
+				.stream()
+				.map(summary -> Map.entry(summary._lastSeenSequence, summary))
+				.min(Map.Entry.comparingByKey())
+				.ifPresent(oldest -> _summaries.computeIfPresent(oldest.getValue().fingerprint(), (_, current) -> current._lastSeenSequence == oldest.getKey() ? null : current));
+	}
+
+	/**
+	 * @return The fingerprint of the given exception: it's class and top stack frames
+	 */
+	static String fingerprint(Throwable throwable) {
+		final StringBuilder b = new StringBuilder(throwable.getClass().getName());
+		final StackTraceElement[] stackTrace = throwable.getStackTrace();
+
+		for (int i = 0; i < Math.min(FINGERPRINT_FRAMES, stackTrace.length); i++) {
+			final StackTraceElement frame = stackTrace[i];
+			b.append('|').append(frame.getClassName()).append('.').append(frame.getMethodName()).append(':').append(frame.getLineNumber());
+		}
+
+		return b.toString();
+	}
 	
 	/**
 	 * @return A list of the types of thrown exceptions
 	 */
 	public List<?> exceptionClasses() {
-		final List<?> exceptionClasses = _loggedExceptions
+		final List<?> exceptionClasses = _summaries
+				.values()
 				.stream()
-				.map(LoggedException::throwable)
-				.map(Throwable::getClass)
+				.map(ExceptionSummary::exceptionClass)
 				.distinct()
 				.sorted( Comparator.comparing(Class::getName))
 				.toList();
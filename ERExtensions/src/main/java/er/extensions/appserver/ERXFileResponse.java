@@ -0,0 +1,200 @@
+package er.extensions.appserver;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Objects;
+
+import com.webobjects.appserver.WOResponse;
+
+/**
+ * A response that serves a region of a file (or the whole file) without reading it into the heap.
+ *
+ * Adaptors that know about this class (WOAdaptorPlain) write the region directly from a FileChannel using transferTo(),
+ * which lets the OS copy the bytes straight to the socket where the target channel supports it.
+ * For everyone else (other adaptors, response compression) the response carries a regular content stream over the same region,
+ * opened lazily on first read, so it behaves like any other streaming WOResponse.
+ */
+
+public class ERXFileResponse extends WOResponse {
+
+	/**
+	 * Buffer size for the fallback content stream
+	 */
+	private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+	private final Path _file;
+	private final long _offset;
+	private final long _length;
+
+	/**
+	 * The content stream we set initially. Used to check if somebody has since replaced the content.
+	 */
+	private final InputStream _regionStream;
+
+	/**
+	 * Serves the entire given file
+	 */
+	public ERXFileResponse( final Path file ) {
+		this( file, 0, sizeOf( file ) );
+	}
+
+	/**
+	 * Serves [length] bytes of the given file, starting at [offset]
+	 */
+	public ERXFileResponse( final Path file, final long offset, final long length ) {
+		Objects.requireNonNull( file );
+
+		if( offset < 0 || length < 0 ) {
+			throw new IllegalArgumentException( "offset and length must be non-negative (offset: %s, length: %s)".formatted( offset, length ) );
+		}
+
+		_file = file;
+		_offset = offset;
+		_length = length;
+		_regionStream = new RegionInputStream( file, offset, length );
+
+		setContentStream( _regionStream, STREAM_BUFFER_SIZE, length );
+		setHeader( String.valueOf( length ), "content-length" );
+	}
+
+	/**
+	 * @return The file being served
+	 */
+	public Path file() {
+		return _file;
+	}
+
+	/**
+	 * @return The position in the file where the served region starts
+	 */
+	public long offset() {
+		return _offset;
+	}
+
+	/**
+	 * @return The length of the served region
+	 */
+	public long length() {
+		return _length;
+	}
+
+	/**
+	 * @return true if the response's content is still the file region, i.e. it hasn't been replaced (for example by response compression)
+	 */
+	public boolean hasFileContent() {
+		return contentInputStream() == _regionStream;
+	}
+
+	/**
+	 * Writes the file region to the given channel using FileChannel.transferTo().
+	 */
+	public void transferTo( final WritableByteChannel target ) throws IOException {
+		try( final FileChannel channel = FileChannel.open( _file, StandardOpenOption.READ )) {
+			long position = _offset;
+			long remaining = _length;
+
+			while( remaining > 0 ) {
+				final long transferred = channel.transferTo( position, remaining, target );
+
+				// transferTo() returns 0 when we're at the end of the file (the file has shrunk since we were constructed)
+				if( transferred <= 0 ) {
+					throw new IOException( "Premature end of file %s. %s bytes remaining of region [%s, %s]".formatted( _file, remaining, _offset, _length ) );
+				}
+
+				position += transferred;
+				remaining -= transferred;
+			}
+		}
+	}
+
+	/**
+	 * @return A stream over [length] bytes of the given file, starting at [offset]. The file isn't opened until the stream is first read.
+	 */
+	public static InputStream regionStream( final Path file, final long offset, final long length ) {
+		return new RegionInputStream( file, offset, length );
+	}
+
+	private static long sizeOf( final Path file ) {
+		try {
+			return Files.size( file );
+		}
+		catch( IOException e ) {
+			throw new UncheckedIOException( e );
+		}
+	}
+
+	/**
+	 * Stream over a file region that doesn't open the file until it's first read
+	 */
+	private static class RegionInputStream extends InputStream {
+
+		private final Path _file;
+		private final long _offset;
+		private long _remaining;
+		private InputStream _stream;
+
+		public RegionInputStream( final Path file, final long offset, final long length ) {
+			_file = file;
+			_offset = offset;
+			_remaining = length;
+		}
+
+		private InputStream stream() throws IOException {
+			if( _stream == null ) {
+				final FileChannel channel = FileChannel.open( _file, StandardOpenOption.READ );
+				channel.position( _offset );
+				_stream = Channels.newInputStream( channel );
+			}
+
+			return _stream;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if( _remaining <= 0 ) {
+				return -1;
+			}
+
+			final int b = stream().read();
+
+			if( b != -1 ) {
+				_remaining--;
+			}
+
+			return b;
+		}
+
+		@Override
+		public int read( final byte[] b, final int off, final int len ) throws IOException {
+			if( len == 0 ) {
+				return 0;
+			}
+
+			if( _remaining <= 0 ) {
+				return -1;
+			}
+
+			final int read = stream().read( b, off, (int)Math.min( len, _remaining ) );
+
+			if( read > 0 ) {
+				_remaining -= read;
+			}
+
+			return read;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if( _stream != null ) {
+				_stream.close();
+			}
+		}
+	}
+}
@@ -65,6 +65,11 @@ public  class ERXRequest extends WORequest {
      */
     private ERXBrowser _browser;
 
+    /**
+     * true while we hold a retain on _browser in the browser pool
+     */
+    private boolean _browserRetained;
+
     /**
      * Specifies whether https should be overridden to be enabled or disabled app-wide. This is 
      * useful if you are developing with DirectConnect and you want to be able to specify secure 
@@ -299,23 +304,24 @@ public  class ERXRequest extends WORequest {
         if (_browser == null) {
             ERXBrowserFactory browserFactory = ERXBrowserFactory.factory();
             _browser = browserFactory.browserMatchingRequest(this);
-            browserFactory.retainBrowser(_browser);            
+            browserFactory.retainBrowser(_browser);
+            _browserRetained = true;
         }
 
         return _browser;
     }
 
     /**
-     * Cleaning up retain count on the browser.
-     * 
-     * FIXME: Finalization is dead, remove // Hugi 2025-10-22
+     * Releases the browser pool's retain on this request's browser, if browser() took one. The browser itself stays usable (it's immutable).
+     *
+     * Called by {@link ERXApplication#dispatchRequest(WORequest)} once the request has been handled. This used to happen in finalize(), which made
+     * every request a finalizable object that survived at least one extra GC and had to wait for the finalizer thread.
      */
-    @Override
-	public void finalize() throws Throwable {
-        if (_browser != null) {
+    public void releaseBrowser() {
+        if (_browserRetained) {
+            _browserRetained = false;
             ERXBrowserFactory.factory().releaseBrowser(_browser);
         }
-        super.finalize();
     }
     
     /**
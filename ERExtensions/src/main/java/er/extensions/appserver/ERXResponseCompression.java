@@ -1,11 +1,19 @@
 package er.extensions.appserver;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
-import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Set;
-import java.util.zip.GZIPOutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -27,8 +35,23 @@ public class ERXResponseCompression {
 
 	private static final Logger log = LoggerFactory.getLogger(ERXResponseCompression.class);
 
+	/**
+	 * userInfo key marking a response we shouldn't compress
+	 */
+	private static final String COMPRESSION_DISABLED_KEY = "ERXResponseCompression.disabled";
+
+	/**
+	 * userInfo key marking a response whose body is likely to be served again byte for byte
+	 */
+	private static final String CACHEABLE_KEY = "ERXResponseCompression.cacheable";
+
 	private static Set<String> _responseCompressionTypes;
 	private static Boolean _responseCompressionEnabled;
+	private static Integer _minimumSize;
+	private static Integer _level;
+	private static Integer _streamingThreshold;
+	private static Integer _cacheSize;
+	private static Integer _cacheMaxEntrySize;
 
 	/**
 	 * checks the value of
@@ -75,309 +98,592 @@ public class ERXResponseCompression {
 
 		final boolean contentTypeCheck = !"gzip".equals(responseContentEncoding) && (responseContentType != null) && (responseContentType.startsWith("text/") || responseCompressionTypes().contains(responseContentType));
 		final boolean acceptEncodingCheck = (requestAcceptEncoding != null) && (requestAcceptEncoding.toLowerCase().indexOf("gzip") != -1);
-		
-		return contentTypeCheck && acceptEncodingCheck;
+
+		// A partial response's byte offsets refer to the uncompressed representation, so compressing it would corrupt it
+		final boolean partialContentCheck = response.headerForKey("content-range") == null;
+
+		final boolean disabledCheck = response.userInfoForKey(COMPRESSION_DISABLED_KEY) == null;
+
+		return contentTypeCheck && acceptEncodingCheck && partialContentCheck && disabledCheck;
+	}
+
+	/**
+	 * Marks the given response as one we shouldn't compress. For responses whose encoding has already been negotiated, e.g. resources served from a precompressed copy.
+	 */
+	public static void disableCompression( final WOResponse response ) {
+		response.setUserInfoForKey(Boolean.TRUE, COMPRESSION_DISABLED_KEY);
+	}
+
+	/**
+	 * Marks the given response as one whose body is likely to be served again byte for byte, so it's compressed body is worth keeping in the cache of compressed bodies.
+	 * Responses with an ETag or a public Cache-Control don't need to be marked.
+	 */
+	public static void markCacheable( final WOResponse response ) {
+		response.setUserInfoForKey(Boolean.TRUE, CACHEABLE_KEY);
+	}
+
+	/**
+	 * @return true if the given response's compressed body is worth caching: it's marked by markCacheable(), has an ETag, or a Cache-Control that allows shared caches to keep it
+	 */
+	private static boolean isCacheable( final WOResponse response ) {
+		if (response.userInfoForKey(CACHEABLE_KEY) != null || response.headerForKey("etag") != null) {
+			return true;
+		}
+
+		final String cacheControl = response.headerForKey("cache-control");
+
+		if (cacheControl != null) {
+			for (String directive : cacheControl.split(",")) {
+				if ("public".equalsIgnoreCase(directive.trim())) {
+					return true;
+				}
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Gzips the given bytes using a pooled Deflater, for callers that keep a compressed copy of their own (e.g. precompressed resources).
+	 *
+	 * @param level the compression level (0-9, or -1 for the Deflater's default)
+	 * @return The given bytes, gzipped
+	 */
+	public static byte[] gzip( final byte[] bytes, final int level ) {
+		final Compressor compressor = Compressor.borrow(level);
+
+		try {
+			return compressor.gzip(bytes, 0, bytes.length);
+		}
+		finally {
+			compressor.release();
+		}
+	}
+
+	/**
+	 * Responses smaller than this (in bytes) aren't worth compressing. Set by <code>er.extensions.ERXResponseCompression.minimumSize</code> (default 1024)
+	 */
+	private static int minimumSize() {
+		if (_minimumSize == null) {
+			_minimumSize = ERXProperties.intForKeyWithDefault("er.extensions.ERXResponseCompression.minimumSize", 1024);
+		}
+
+		return _minimumSize;
+	}
+
+	/**
+	 * Compression level (0-9) passed to the Deflater. Set by <code>er.extensions.ERXResponseCompression.level</code> (default is the Deflater's default, -1)
+	 */
+	private static int level() {
+		if (_level == null) {
+			_level = ERXProperties.intForKeyWithDefault("er.extensions.ERXResponseCompression.level", Deflater.DEFAULT_COMPRESSION);
+		}
+
+		return _level;
+	}
+
+	/**
+	 * Responses of this size (in bytes) and larger, or of unknown length, are compressed while the adaptor writes them instead of up front.
+	 * Set by <code>er.extensions.ERXResponseCompression.streamingThreshold</code> (default 65536). Set to -1 to always compress up front.
+	 *
+	 * Streamed responses have no known length, so they're sent using chunked transfer encoding. That requires an adaptor that can send a content stream
+	 * of unknown length (WOAdaptorPlain and WOAdaptorNIO can).
+	 */
+	private static int streamingThreshold() {
+		if (_streamingThreshold == null) {
+			_streamingThreshold = ERXProperties.intForKeyWithDefault("er.extensions.ERXResponseCompression.streamingThreshold", 64 * 1024);
+		}
+
+		return _streamingThreshold;
+	}
+
+
+	/**
+	 * Maximum number of compressed bodies kept for reuse by content. Set by <code>er.extensions.ERXResponseCompression.cacheSize</code> (default 128). 0 disables the cache.
+	 */
+	private static int cacheSize() {
+		if (_cacheSize == null) {
+			_cacheSize = ERXProperties.intForKeyWithDefault("er.extensions.ERXResponseCompression.cacheSize", 128);
+		}
+
+		return _cacheSize;
+	}
+
+	/**
+	 * Largest response (uncompressed, in bytes) we keep a compressed copy of. Set by <code>er.extensions.ERXResponseCompression.cacheMaxEntrySize</code> (default 65536)
+	 */
+	private static int cacheMaxEntrySize() {
+		if (_cacheMaxEntrySize == null) {
+			_cacheMaxEntrySize = ERXProperties.intForKeyWithDefault("er.extensions.ERXResponseCompression.cacheMaxEntrySize", 64 * 1024);
+		}
+
+		return _cacheMaxEntrySize;
 	}
 
+	/**
+	 * Compresses the given response's content using gzip.
+	 *
+	 * Small responses are compressed up front, replacing the response's content with the compressed bytes.
+	 * Large ones (see streamingThreshold()) get their content replaced with a stream that compresses as it's read, meaning we compress while the adaptor writes the response.
+	 * That way we never hold the compressed copy of a large response in memory alongside the original, and the client starts receiving data before we're done compressing.
+	 *
+	 * Cacheable responses (see markCacheable()) we've compressed before (byte for byte) are served from a small cache of compressed bodies, keyed by a hash of their content.
+	 * Hashing every response would cost more than it saves, as most dynamic pages are never served twice.
+	 */
 	public static void compressResponse( final WOResponse response ) {
 	
 		final long start = System.currentTimeMillis();
 		final long inputBytesLength;
 		final InputStream contentInputStream = response.contentInputStream();
-		final NSData compressedData;
+		final NSData input;
 
 		if (contentInputStream != null) {
 			inputBytesLength = response.contentInputStreamLength();
-			compressedData = ERXCompressionUtilities.gzipInputStreamAsNSData(contentInputStream, (int) inputBytesLength);
-			response.setContentStream(null, 0, 0);
+			input = null;
 		}
 		else {
-			final NSData input = response.content();
+			input = response.content();
 			inputBytesLength = input.length();
+		}
+
+		// -1 means a content stream of unknown length, which we can't check
+		if (inputBytesLength != -1 && inputBytesLength < Math.max(minimumSize(), 1)) {
+			return;
+		}
+
+		final int level = level();
+
+		if (input != null && inputBytesLength <= cacheMaxEntrySize() && cacheSize() > 0 && isCacheable(response)) {
+			final String cacheKey = CompressedBodyCache.keyFor(input._bytesNoCopy(), (int) inputBytesLength, level);
+			NSData compressedData = CompressedBodyCache.get(cacheKey);
+
+			if (compressedData == null) {
+				compressedData = ERXCompressionUtilities.gzipByteArrayAsNSData(input._bytesNoCopy(), 0, (int) inputBytesLength, level);
 
-			if (inputBytesLength > 0) {
-				compressedData = ERXCompressionUtilities.gzipByteArrayAsNSData(input._bytesNoCopy(), 0, (int) inputBytesLength);
+				if (compressedData != null) {
+					CompressedBodyCache.put(cacheKey, compressedData);
+				}
 			}
-			else {
-				compressedData = NSData.EmptyData;
+
+			setCompressedContent(response, compressedData, inputBytesLength, start);
+			return;
+		}
+
+		final int streamingThreshold = streamingThreshold();
+
+		if (streamingThreshold >= 0 && (inputBytesLength == -1 || inputBytesLength >= streamingThreshold)) {
+			final InputStream source = contentInputStream != null ? contentInputStream : new ByteArrayInputStream(input._bytesNoCopy(), 0, (int) inputBytesLength);
+			response.setContent(NSData.EmptyData);
+			response.setContentStream(new GZIPCompressingInputStream(source, level), STREAMING_BUFFER_SIZE, -1);
+			response.removeHeadersForKey("content-length");
+			response.setHeader("gzip", "content-encoding");
+
+			if (log.isDebugEnabled()) {
+				log.debug("streaming compression of " + inputBytesLength + " bytes");
 			}
+
+			return;
 		}
 
-		if (inputBytesLength > 0) {
-			if (compressedData == null) {
-				// something went wrong
+		final NSData compressedData;
+
+		if (contentInputStream != null) {
+			compressedData = ERXCompressionUtilities.gzipInputStreamAsNSData(contentInputStream, level);
+			response.setContentStream(null, 0, 0);
+		}
+		else {
+			compressedData = ERXCompressionUtilities.gzipByteArrayAsNSData(input._bytesNoCopy(), 0, (int) inputBytesLength, level);
+		}
+
+		setCompressedContent(response, compressedData, inputBytesLength, start);
+	}
+
+	private static void setCompressedContent( final WOResponse response, final NSData compressedData, final long inputBytesLength, final long start ) {
+		if (compressedData == null) {
+			// something went wrong
+		}
+		else {
+			response.setContent(compressedData);
+			response.setHeader(String.valueOf(compressedData.length()), "content-length");
+			response.setHeader("gzip", "content-encoding");
+
+			if (log.isDebugEnabled()) {
+				log.debug("before: " + inputBytesLength + ", after " + compressedData.length() + ", time: " + (System.currentTimeMillis() - start));
 			}
-			else {
-				response.setContent(compressedData);
-				response.setHeader(String.valueOf(compressedData.length()), "content-length");
-				response.setHeader("gzip", "content-encoding");
+		}
+	}
+
+	/**
+	 * @return Number of responses served from the cache of compressed bodies since startup
+	 */
+	public static long cacheHits() {
+		return CompressedBodyCache._hits.sum();
+	}
+
+	/**
+	 * @return Number of cacheable responses we had to compress since startup
+	 */
+	public static long cacheMisses() {
+		return CompressedBodyCache._misses.sum();
+	}
+
+	/**
+	 * Buffer size we ask the adaptor to use when writing a response compressed by streaming
+	 */
+	private static final int STREAMING_BUFFER_SIZE = 32 * 1024;
+
+	/**
+	 * gzip header (RFC 1952): magic, compression method (deflate), no flags, no modification time, no extra flags, unknown OS
+	 */
+	private static final byte[] GZIP_HEADER = { (byte) 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+
+	/**
+	 * Size of the gzip trailer (CRC-32 and uncompressed size)
+	 */
+	private static final int GZIP_TRAILER_LENGTH = 8;
+
+	/**
+	 * A Deflater along with the CRC and buffers used to produce gzip output with it.
+	 *
+	 * Creating a Deflater allocates native memory that's only released by end() (or eventually by a Cleaner), and compressing used to create one per response,
+	 * so we keep a pool of these around instead. A Compressor is only ever used by one thread at a time; it's borrowed from the pool for the duration of one compression.
+	 */
+	private static class Compressor {
 
-				if (log.isDebugEnabled()) {
-					log.debug("before: " + inputBytesLength + ", after " + compressedData.length() + ", time: " + (System.currentTimeMillis() - start));
+		/**
+		 * Initial (and pooled) size of the output buffer
+		 */
+		private static final int OUTPUT_BUFFER_SIZE = 16 * 1024;
+
+		/**
+		 * If the output buffer has grown beyond this while compressing, we don't keep it around when the Compressor is returned to the pool
+		 */
+		private static final int MAX_POOLED_OUTPUT_BUFFER_SIZE = 256 * 1024;
+
+		private static final ArrayBlockingQueue<Compressor> _pool = new ArrayBlockingQueue<>(Runtime.getRuntime().availableProcessors() * 2);
+
+		private final Deflater _deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		private final CRC32 _crc = new CRC32();
+		private final byte[] _inputBuffer = new byte[8192];
+		private byte[] _outputBuffer = new byte[OUTPUT_BUFFER_SIZE];
+		private int _outputLength;
+
+		/**
+		 * @return A Compressor from the pool (or a new one if the pool is empty), ready to compress at the given level
+		 */
+		public static Compressor borrow(final int level) {
+			Compressor compressor = _pool.poll();
+
+			if (compressor == null) {
+				compressor = new Compressor();
+			}
+
+			compressor._deflater.setLevel(level);
+			return compressor;
+		}
+
+		/**
+		 * Resets the Compressor and returns it to the pool. Don't use it after this.
+		 */
+		public void release() {
+			_deflater.reset();
+			_crc.reset();
+			_outputLength = 0;
+
+			if (_outputBuffer.length > MAX_POOLED_OUTPUT_BUFFER_SIZE) {
+				_outputBuffer = new byte[OUTPUT_BUFFER_SIZE];
+			}
+
+			if (!_pool.offer(this)) {
+				_deflater.end();
+			}
+		}
+
+		/**
+		 * @return The given bytes, gzipped
+		 */
+		public byte[] gzip(final byte[] input, final int offset, final int length) {
+			writeHeader();
+			_crc.update(input, offset, length);
+			_deflater.setInput(input, offset, length);
+			_deflater.finish();
+			deflateAll();
+			writeTrailer();
+			return Arrays.copyOf(_outputBuffer, _outputLength);
+		}
+
+		/**
+		 * @return The content of the given stream, gzipped
+		 */
+		public byte[] gzip(final InputStream input) throws IOException {
+			writeHeader();
+
+			int read;
+
+			while ((read = input.read(_inputBuffer, 0, _inputBuffer.length)) != -1) {
+				_crc.update(_inputBuffer, 0, read);
+				_deflater.setInput(_inputBuffer, 0, read);
+				deflateAll();
+			}
+
+			_deflater.finish();
+			deflateAll();
+			writeTrailer();
+			return Arrays.copyOf(_outputBuffer, _outputLength);
+		}
+
+		/**
+		 * Runs the deflater until it has consumed it's input (or, once finish() has been invoked, until it's finished), growing the output buffer as required
+		 */
+		private void deflateAll() {
+			while (true) {
+				if (_outputLength == _outputBuffer.length) {
+					_outputBuffer = Arrays.copyOf(_outputBuffer, _outputBuffer.length * 2);
 				}
+
+				final int count = _deflater.deflate(_outputBuffer, _outputLength, _outputBuffer.length - _outputLength);
+				_outputLength += count;
+
+				if (_deflater.finished() || (count == 0 && _deflater.needsInput())) {
+					return;
+				}
+			}
+		}
+
+		private void writeHeader() {
+			ensureOutputCapacity(GZIP_HEADER.length);
+			System.arraycopy(GZIP_HEADER, 0, _outputBuffer, _outputLength, GZIP_HEADER.length);
+			_outputLength += GZIP_HEADER.length;
+		}
+
+		private void writeTrailer() {
+			ensureOutputCapacity(GZIP_TRAILER_LENGTH);
+			writeIntLE(_outputBuffer, _outputLength, (int) _crc.getValue());
+			writeIntLE(_outputBuffer, _outputLength + 4, (int) _deflater.getBytesRead());
+			_outputLength += GZIP_TRAILER_LENGTH;
+		}
+
+		private void ensureOutputCapacity(final int count) {
+			if (_outputLength + count > _outputBuffer.length) {
+				_outputBuffer = Arrays.copyOf(_outputBuffer, Math.max(_outputBuffer.length * 2, _outputLength + count));
 			}
 		}
 	}
-	
+
+	private static void writeIntLE(final byte[] buffer, final int offset, final int value) {
+		buffer[offset] = (byte) value;
+		buffer[offset + 1] = (byte) (value >> 8);
+		buffer[offset + 2] = (byte) (value >> 16);
+		buffer[offset + 3] = (byte) (value >> 24);
+	}
+
+	/**
+	 * An InputStream that gzips the source stream as it's read. Think DeflaterInputStream, but producing the gzip format (RFC 1952) rather than zlib.
+	 * Uses a pooled Compressor, returned to the pool when the stream is closed.
+	 */
+	private static class GZIPCompressingInputStream extends InputStream {
+
+		private static final int STATE_HEADER = 0;
+		private static final int STATE_BODY = 1;
+		private static final int STATE_TRAILER = 2;
+		private static final int STATE_DONE = 3;
+
+		private final InputStream _source;
+		private Compressor _compressor;
+		private int _outputPosition;
+		private int _outputLimit;
+		private int _state = STATE_HEADER;
+		private boolean _sourceExhausted;
+
+		public GZIPCompressingInputStream(final InputStream source, final int level) {
+			_source = source;
+			_compressor = Compressor.borrow(level);
+		}
+
+		@Override
+		public int read() throws IOException {
+			final byte[] b = new byte[1];
+			return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(final byte[] b, final int off, final int len) throws IOException {
+			if (_compressor == null) {
+				throw new IOException("Stream closed");
+			}
+
+			if (len == 0) {
+				return 0;
+			}
+
+			while (_outputPosition == _outputLimit) {
+				if (_state == STATE_DONE) {
+					return -1;
+				}
+
+				fillOutputBuffer();
+			}
+
+			final int count = Math.min(len, _outputLimit - _outputPosition);
+			System.arraycopy(_compressor._outputBuffer, _outputPosition, b, off, count);
+			_outputPosition += count;
+			return count;
+		}
+
+		/**
+		 * Produces the next piece of output into the compressor's output buffer. Might produce nothing (while the deflater is still consuming input), in which case we're just invoked again.
+		 */
+		private void fillOutputBuffer() throws IOException {
+			final Deflater deflater = _compressor._deflater;
+			final byte[] outputBuffer = _compressor._outputBuffer;
+
+			_outputPosition = 0;
+			_outputLimit = 0;
+
+			switch (_state) {
+			case STATE_HEADER:
+				System.arraycopy(GZIP_HEADER, 0, outputBuffer, 0, GZIP_HEADER.length);
+				_outputLimit = GZIP_HEADER.length;
+				_state = STATE_BODY;
+				break;
+
+			case STATE_BODY:
+				if (deflater.needsInput() && !_sourceExhausted) {
+					final byte[] inputBuffer = _compressor._inputBuffer;
+					final int read = _source.read(inputBuffer, 0, inputBuffer.length);
+
+					if (read == -1) {
+						_sourceExhausted = true;
+						deflater.finish();
+					}
+					else if (read > 0) {
+						_compressor._crc.update(inputBuffer, 0, read);
+						deflater.setInput(inputBuffer, 0, read);
+					}
+				}
+
+				_outputLimit = deflater.deflate(outputBuffer, 0, outputBuffer.length);
+
+				if (deflater.finished()) {
+					_state = STATE_TRAILER;
+				}
+				break;
+
+			case STATE_TRAILER:
+				writeIntLE(outputBuffer, 0, (int) _compressor._crc.getValue());
+				writeIntLE(outputBuffer, 4, (int) deflater.getBytesRead());
+				_outputLimit = GZIP_TRAILER_LENGTH;
+				_state = STATE_DONE;
+				break;
+
+			default:
+				break;
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (_compressor != null) {
+				_compressor.release();
+				_compressor = null;
+				_source.close();
+			}
+		}
+	}
+
+	/**
+	 * LRU cache of compressed response bodies, keyed by a hash of the uncompressed content (and the compression level).
+	 * Lets us skip compressing cacheable responses that are byte-for-byte identical to ones we've already compressed, like static-ish pages and resources served through dispatchRequest().
+	 * Hashing is a lot cheaper than deflating, so a miss costs us little.
+	 */
+	private static class CompressedBodyCache {
+
+		private static final LongAdder _hits = new LongAdder();
+		private static final LongAdder _misses = new LongAdder();
+
+		private static final Map<String, NSData> _cache = new LinkedHashMap<>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, NSData> eldest) {
+				return size() > cacheSize();
+			}
+		};
+
+		/**
+		 * @return The cache key for the given content
+		 */
+		public static String keyFor(final byte[] bytes, final int length, final int level) {
+			try {
+				final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+				digest.update(bytes, 0, length);
+				return level + ":" + length + ":" + Base64.getEncoder().encodeToString(digest.digest());
+			}
+			catch (NoSuchAlgorithmException e) {
+				// SHA-256 is required to be present in every Java platform
+				throw new IllegalStateException(e);
+			}
+		}
+
+		public static NSData get(final String key) {
+			final NSData data;
+
+			synchronized (_cache) {
+				data = _cache.get(key);
+			}
+
+			if (data != null) {
+				_hits.increment();
+			}
+			else {
+				_misses.increment();
+			}
+
+			return data;
+		}
+
+		public static void put(final String key, final NSData data) {
+			synchronized (_cache) {
+				_cache.put(key, data);
+			}
+		}
+	}
+
 	private static class ERXCompressionUtilities {
 
 		/**
 		 * Returns an NSData containing the gzipped version of the given input stream.
 		 * 
 		 * @param input the input stream to compress
-		 * @param length the length of the input stream
+		 * @param level the compression level
 		 * @return gzipped NSData
 		 */
-		private static NSData gzipInputStreamAsNSData(InputStream input, int length) {
-			try( ERXRefByteArrayOutputStream bos = new ERXRefByteArrayOutputStream(length)) {
-				if (input != null) {
-					try( GZIPOutputStream out = new GZIPOutputStream(bos)) {
-						input.transferTo(out);
-					}
-					finally {
-						input.close();
-					}
-				}
-				return bos.toNSData();
+		private static NSData gzipInputStreamAsNSData(InputStream input, int level) {
+			final Compressor compressor = Compressor.borrow(level);
+
+			try (input) {
+				return noCopyData(compressor.gzip(input));
 			}
 			catch (IOException e) {
-				log.error("Failed to gzip byte array.", e);
+				log.error("Failed to gzip input stream.", e);
 				return null;
 			}
+			finally {
+				compressor.release();
+			}
 		}
 
-		private static NSData gzipByteArrayAsNSData(byte[] input, int offset, int length) {
-			try( ERXRefByteArrayOutputStream bos = new ERXRefByteArrayOutputStream(length)) {
-				if (input != null) {
-					try( GZIPOutputStream out = new GZIPOutputStream(bos)) {
-						out.write(input, offset, length);
-						out.finish();
-					}
-				}
-				return bos.toNSData();
+		private static NSData gzipByteArrayAsNSData(byte[] input, int offset, int length, int level) {
+			final Compressor compressor = Compressor.borrow(level);
+
+			try {
+				return noCopyData(compressor.gzip(input, offset, length));
 			}
-			catch (IOException e) {
-				log.error("Failed to gzip byte array.", e);
-				return null;
+			finally {
+				compressor.release();
 			}
 		}
 
-		/**
-		 * This class is uh ... inspired ... by ByteArrayOutputStream, except
-		 * that it gives direct access to the underlying byte buffer for 
-		 * performing operations on the buffer without a byte array copying
-		 * penalty.
-		 *
-		 * @author  Arthur van Hoff
-		 * @author mschrag
-		 */
-		private static class ERXRefByteArrayOutputStream extends OutputStream {
-
-		  /** 
-		   * The buffer where data is stored. 
-		   */
-		  protected byte buf[];
-
-		  /**
-		   * The number of valid bytes in the buffer. 
-		   */
-		  protected int count;
-
-		  /**
-		   * Creates a new byte array output stream. The buffer capacity is 
-		   * initially 32 bytes, though its size increases if necessary. 
-		   */
-		  public ERXRefByteArrayOutputStream() {
-		    this(32);
-		  }
-
-		  /**
-		   * Creates a new byte array output stream, with a buffer capacity of 
-		   * the specified size, in bytes. 
-		   *
-		   * @param   size   the initial size.
-		   * @exception  IllegalArgumentException if size is negative.
-		   */
-		  public ERXRefByteArrayOutputStream(int size) {
-		    if (size < 0) {
-		      throw new IllegalArgumentException("Negative initial size: " + size);
-		    }
-		    buf = new byte[size];
-		  }
-
-		  /**
-		   * Writes the specified byte to this byte array output stream. 
-		   *
-		   * @param   b   the byte to be written.
-		   */
-		  @Override
-		  public synchronized void write(int b) {
-		    int newcount = count + 1;
-		    if (newcount > buf.length) {
-		      byte newbuf[] = new byte[Math.max(buf.length << 1, newcount)];
-		      System.arraycopy(buf, 0, newbuf, 0, count);
-		      buf = newbuf;
-		    }
-		    buf[count] = (byte) b;
-		    count = newcount;
-		  }
-
-		  /**
-		   * Writes <code>len</code> bytes from the specified byte array 
-		   * starting at offset <code>off</code> to this byte array output stream.
-		   *
-		   * @param   b     the data.
-		   * @param   off   the start offset in the data.
-		   * @param   len   the number of bytes to write.
-		   */
-		  @Override
-		  public synchronized void write(byte b[], int off, int len) {
-		    if ((off < 0) || (off > b.length) || (len < 0) || ((off + len) > b.length) || ((off + len) < 0)) {
-		      throw new IndexOutOfBoundsException();
-		    }
-		    else if (len == 0) {
-		      return;
-		    }
-		    int newcount = count + len;
-		    if (newcount > buf.length) {
-		      byte newbuf[] = new byte[Math.max(buf.length << 1, newcount)];
-		      System.arraycopy(buf, 0, newbuf, 0, count);
-		      buf = newbuf;
-		    }
-		    System.arraycopy(b, off, buf, count, len);
-		    count = newcount;
-		  }
-
-		  /**
-		   * Writes the complete contents of this byte array output stream to 
-		   * the specified output stream argument, as if by calling the output 
-		   * stream's write method using <code>out.write(buf, 0, count)</code>.
-		   *
-		   * @param      out   the output stream to which to write the data.
-		   * @exception  IOException  if an I/O error occurs.
-		   */
-		  public synchronized void writeTo(OutputStream out) throws IOException {
-		    out.write(buf, 0, count);
-		  }
-
-		  /**
-		   * Resets the <code>count</code> field of this byte array output 
-		   * stream to zero, so that all currently accumulated output in the 
-		   * ouput stream is discarded. The output stream can be used again, 
-		   * reusing the already allocated buffer space. 
-		   *
-		   * @see     java.io.ByteArrayInputStream#count
-		   */
-		  public synchronized void reset() {
-		    count = 0;
-		  }
-
-		  /**
-		   * Creates a newly allocated byte array. Its size is the current 
-		   * size of this output stream and the valid contents of the buffer 
-		   * have been copied into it. 
-		   *
-		   * @return  the current contents of this output stream, as a byte array.
-		   * @see     java.io.ByteArrayOutputStream#size()
-		   */
-		  public synchronized byte toByteArray()[] {
-		    byte newbuf[] = new byte[count];
-		    System.arraycopy(buf, 0, newbuf, 0, count);
-		    return newbuf;
-		  }
-
-		  /**
-		   * Returns the current size of the buffer.
-		   *
-		   * @return  the value of the <code>count</code> field, which is the number
-		   *          of valid bytes in this output stream.
-		   * @see     java.io.ByteArrayOutputStream#count
-		   */
-		  public int size() {
-		    return count;
-		  }
-
-		  /**
-		   * Converts the buffer's contents into a string, translating bytes into
-		   * characters according to the platform's default character encoding.
-		   *
-		   * @return String translated from the buffer's contents.
-		   * @since   JDK1.1
-		   */
-		  @Override
-		  public String toString() {
-		    return new String(buf, 0, count);
-		  }
-
-		  /**
-		   * Converts the buffer's contents into a string, translating bytes into
-		   * characters according to the specified character encoding.
-		   *
-		   * @param   enc  a character-encoding name.
-		   * @return String translated from the buffer's contents.
-		   * @throws UnsupportedEncodingException
-		   *         If the named encoding is not supported.
-		   * @since   JDK1.1
-		   */
-		  public String toString(String enc) throws UnsupportedEncodingException {
-		    return new String(buf, 0, count, enc);
-		  }
-
-		  /**
-		   * Creates a newly allocated string. Its size is the current size of 
-		   * the output stream and the valid contents of the buffer have been 
-		   * copied into it. Each character <i>c</i> in the resulting string is 
-		   * constructed from the corresponding element <i>b</i> in the byte 
-		   * array such that:
-		   * <blockquote><pre>
-		   *     c == (char)(((hibyte &amp; 0xff) &lt;&lt; 8) | (b &amp; 0xff))
-		   * </pre></blockquote>
-		   *
-		   * @deprecated This method does not properly convert bytes into characters.
-		   * As of JDK&nbsp;1.1, the preferred way to do this is via the
-		   * <code>toString(String enc)</code> method, which takes an encoding-name
-		   * argument, or the <code>toString()</code> method, which uses the
-		   * platform's default character encoding.
-		   *
-		   * @param      hibyte    the high byte of each resulting Unicode character.
-		   * @return     the current contents of the output stream, as a string.
-		   * @see        java.io.ByteArrayOutputStream#size()
-		   * @see        java.io.ByteArrayOutputStream#toString(String)
-		   * @see        java.io.ByteArrayOutputStream#toString()
-		   */
-		  @Deprecated
-		  public String toString(int hibyte) {
-		    return new String(buf, hibyte, 0, count);
-		  }
-
-		  /**
-		   * Closing a <tt>ByteArrayOutputStream</tt> has no effect. The methods in
-		   * this class can be called after the stream has been closed without
-		   * generating an <tt>IOException</tt>.
-		   * <p>
-		   *
-		   */
-		  @Override
-		  public void close() {
-		  }
-
-		  /**
-		   * Returns the underlying byte buffer for this stream.
-		   * 
-		   * @return the underlying byte buffer for this stream
-		   */
-		  public synchronized byte[] getBuffer() {
-		    return buf;
-		  }
-
-		  /**
-		   * Returns a no-copy NSData of the byte buffer for this stream.
-		   * 
-		   * @return a no-copy NSData of the byte buffer for this stream
-		   */
-		  public synchronized NSData toNSData() {
-		    return new NSData(buf, new NSRange(0, count), true);
-		  }
+		private static NSData noCopyData(byte[] bytes) {
+			return new NSData(bytes, new NSRange(0, bytes.length), true);
 		}
 	}
-}
\ No newline at end of file
+}
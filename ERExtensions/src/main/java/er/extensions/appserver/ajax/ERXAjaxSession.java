@@ -6,11 +6,16 @@
  * included with this distribution in the LICENSE.NPL file.  */
 package er.extensions.appserver.ajax;
 
+import java.io.ByteArrayOutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
@@ -32,6 +37,7 @@ import com.webobjects.foundation.NSMutableDictionary;
 
 import er.extensions.appserver.cachemonitor.PageCacheReuseStats;
 import er.extensions.foundation.ERXProperties;
+import er.extensions.statistics.store.IERXSessionMemoryEstimate;
 
 /**
  * ERXAjaxSession owns THE page cache: one session-side map of {@code contextID -> live page instance}
@@ -43,11 +49,19 @@ import er.extensions.foundation.ERXProperties;
  * The cache keys each rendered page by its render contextID. Every request mints a new contextID, so
  * one page instance accumulates many contextID keys over its life - a still-rendered link carries the
  * contextID it was rendered in, and that key is still here, so it resolves directly however many
- * interactions ago it was rendered. The cache is bounded by the number of distinct page INSTANCES (not
- * contextIDs), configured by WO's own knob: {@link WOApplication#pageCacheSize()} ({@code WOPageCacheSize},
- * default 30). Note the semantic shift from stock WO: the bound counts live page instances retained,
- * not backtrack steps - each retained instance is a real page tree in memory, so prefer small values.
- * Eviction is LRU over instances; evicting an instance drops all its contextID keys together.
+ * interactions ago it was rendered (up to the per-instance alias cap, see below). The cache is bounded
+ * by the number of distinct page INSTANCES (not contextIDs), configured by WO's own knob:
+ * {@link WOApplication#pageCacheSize()} ({@code WOPageCacheSize}, default 30). Note the semantic shift
+ * from stock WO: the bound counts live page instances retained, not backtrack steps - each retained
+ * instance is a real page tree in memory, so prefer small values. Eviction is LRU over instances;
+ * evicting an instance drops all its contextID keys together.
+ * <p>
+ * The contextID keys (aliases) of a single instance are capped too, by
+ * {@code er.extensions.appserver.ajax.ERXAjaxSession.maxContextsPerInstance} (default 1000, 0 for no
+ * cap), so a page polled through an AjaxUpdateContainer doesn't grow a record per poll forever. Past
+ * the cap the instance's least recently stored/restored alias goes first. A link still on screen that
+ * carries such an alias will fail to restore - {@link PageCacheReuseStats#evictedAliasesRequested()}
+ * counts exactly those, so the cap can be tuned from production data.
  * <p>
  * Unifying the caches also absorbs the one job WO's backtrack cache did besides storing pages: the
  * repeated-request guard behind page-refresh-on-backtrack. When (and only when)
@@ -64,12 +78,14 @@ import er.extensions.foundation.ERXProperties;
  * silently meaning something weaker than the caller asked for.
  *
  * @property WOPageCacheSize number of distinct live page instances retained per session (default 30)
+ * @property er.extensions.appserver.ajax.ERXAjaxSession.maxContextsPerInstance number of contextID aliases retained per page instance (default 1000, 0 for no limit)
+ * @property er.extensions.appserver.ajax.ERXAjaxSession.estimatedPageSize bytes a cached page instance is assumed to hold on to for {@link #estimatedMemorySize()} (default 65536)
  * @property er.extensions.appserver.ajax.ERXAjaxSession.storesPageInfo=false
  * @property er.extensions.appserver.ajax.ERXAjaxSession.logPageCache log cache structure on every store
  *
  * @author mschrag
  */
-public class ERXAjaxSession extends WOSession {
+public class ERXAjaxSession extends WOSession implements IERXSessionMemoryEstimate {
 
 	/**
 	 * Key that tells the session not to store the current page. Checks both the
@@ -94,6 +110,15 @@ public class ERXAjaxSession extends WOSession {
 
 	private static boolean storesPageInfo = ERXProperties.booleanForKeyWithDefault("er.extensions.appserver.ajax.ERXAjaxSession.storesPageInfo", false);
 
+	/** Cap on the contextID aliases kept per page instance, oldest evicted first. 0 or less means no cap. */
+	private static int maxContextsPerInstance = ERXProperties.intForKeyWithDefault("er.extensions.appserver.ajax.ERXAjaxSession.maxContextsPerInstance", 1000);
+
+	/** Bytes a cached page instance (the component tree plus what it references) is assumed to hold on to, see {@link #estimatedMemorySize()}. */
+	private static long estimatedPageSize = ERXProperties.longForKeyWithDefault("er.extensions.appserver.ajax.ERXAjaxSession.estimatedPageSize", 65536L);
+
+	/** Rough size of one contextID entry in the page cache: the key, the TransactionRecord and the map entries pointing at it. */
+	private static final long ESTIMATED_ENTRY_SIZE = 200L;
+
 	private NSMutableDictionary<WOComponent, NSMutableDictionary<String, Object>> pageInfoDictionary;
 
 	private static final Logger log = LoggerFactory.getLogger(ERXAjaxSession.class);
@@ -111,16 +136,20 @@ public class ERXAjaxSession extends WOSession {
 	}
 
 	/**
-	 * The unified page cache: render contextID -> record holding the live page instance. Insertion
-	 * order doubles as LRU order over instances (see {@link #touchInstanceInPageCache}). Access is safe
-	 * without synchronization because WO serializes request handling per session; the read-only
-	 * monitoring accessors defensively copy instead.
+	 * The unified page cache: render contextID -> record holding the live page instance, plus the
+	 * instance-level LRU index (see {@link ERXPageCache}). Request handling is serialized per session,
+	 * but the memory-pressure purge and the monitoring accessors reach in from other threads, so every
+	 * access synchronizes on the cache instance. Volatile for those threads, as it's created lazily.
+	 * Serialized with the session (see {@link ERXPageCache}).
 	 */
-	private LinkedHashMap<String, TransactionRecord> _pageCache;
+	private volatile ERXPageCache _pageCache;
 
-	protected LinkedHashMap<String, TransactionRecord> _pageCache() {
+	/**
+	 * @return The session's page cache, created on first use. Synchronize on it while using it.
+	 */
+	protected ERXPageCache _pageCache() {
 		if (_pageCache == null) {
-			_pageCache = new LinkedHashMap<>();
+			_pageCache = new ERXPageCache(maxContextsPerInstance);
 		}
 		return _pageCache;
 	}
@@ -146,24 +175,36 @@ public class ERXAjaxSession extends WOSession {
 	 * Two timestamps are tracked purely for diagnostics (e.g. the exception-page cache report): when the
 	 * entry was first stored ({@link #createdAt()}) and when it was last resolved by a restore
 	 * ({@link #lastAccessedAt()}). They do not drive eviction - that is LRU over instances via the cache's
-	 * insertion order - so they are free to read and never affect cache behavior.
+	 * instance list - so they are free to read and never affect cache behavior.
+	 * <p>
+	 * A long-lived page can hold a record per interaction, so records are kept compact: timestamps are
+	 * epoch millis rather than Instants, the senderID and container key (drawn from a small set of
+	 * element IDs) are interned so identical values share one String, and the form values are kept as a
+	 * 128-bit hash held in two longs plus their canonical UTF-8 encoding, which a hash match is verified
+	 * against (see {@link #requestFingerprint}).
 	 */
-	static class TransactionRecord implements Serializable {
+	public static class TransactionRecord implements Serializable {
 
-		private WOComponent _page;
-		private String _requestContextID;
+		private final WOComponent _page;
+		private final String _requestContextID;
+		private final String _key;
+		private final long _createdAtMillis;
+		private long _lastAccessedAtMillis;
 		private String _senderID;
-		private String _formValuesFingerprint;
-		private String _key;
-		private Instant _createdAt;
-		private Instant _lastAccessedAt;
+		private long _fingerprintHigh;
+		private long _fingerprintLow;
+		private byte[] _formValues;
 
 		public TransactionRecord(WOComponent page, WOContext context, String key) {
+			this(page, context._requestContextID(), key);
+		}
+
+		TransactionRecord(WOComponent page, String requestContextID, String key) {
 			_page = page;
-			_requestContextID = context._requestContextID();
-			_key = key;
-			_createdAt = Instant.now();
-			_lastAccessedAt = _createdAt;
+			_requestContextID = requestContextID;
+			_key = key == null ? null : key.intern();
+			_createdAtMillis = System.currentTimeMillis();
+			_lastAccessedAtMillis = _createdAtMillis;
 		}
 
 		public WOComponent page() {
@@ -184,30 +225,46 @@ public class ERXAjaxSession extends WOSession {
 			return _senderID;
 		}
 
-		/** Fingerprint of the producing request's form values; non-null only with provenance. */
-		public String formValuesFingerprint() {
-			return _formValuesFingerprint;
+		/**
+		 * True if provenance was recorded and the producing request's form values are the ones the given
+		 * fingerprint was made from. The hashes are compared first; only a match compares the values.
+		 */
+		public boolean hasFingerprint(RequestFingerprint fingerprint) {
+			return _senderID != null && _fingerprintHigh == fingerprint.high() && _fingerprintLow == fingerprint.low()
+					&& Arrays.equals(_formValues, fingerprint.formValues());
+		}
+
+		/** @return The size in bytes of the form values kept for the repeated-request guard, 0 if provenance wasn't recorded. */
+		int formValuesLength() {
+			return _formValues == null ? 0 : _formValues.length;
 		}
 
 		/** Record the producing request's identity for the repeated-request guard. */
-		public void recordProvenance(String senderID, String formValuesFingerprint) {
-			_senderID = senderID;
-			_formValuesFingerprint = formValuesFingerprint;
+		public void recordProvenance(String senderID, RequestFingerprint formValuesFingerprint) {
+			_senderID = senderID == null ? null : senderID.intern();
+			_fingerprintHigh = formValuesFingerprint.high();
+			_fingerprintLow = formValuesFingerprint.low();
+			_formValues = formValuesFingerprint.formValues();
 		}
 
 		/** When this entry was stored in the cache. */
 		public Instant createdAt() {
-			return _createdAt;
+			return Instant.ofEpochMilli(_createdAtMillis);
+		}
+
+		/** When this entry was stored in the cache, in epoch millis. */
+		long createdAtMillis() {
+			return _createdAtMillis;
 		}
 
 		/** When this entry was last resolved by a restore (= the created time until it is first reused). */
 		public Instant lastAccessedAt() {
-			return _lastAccessedAt;
+			return Instant.ofEpochMilli(_lastAccessedAtMillis);
 		}
 
 		/** Mark this entry as just used (called when a restore resolves it). */
 		public void markAccessed() {
-			_lastAccessedAt = Instant.now();
+			_lastAccessedAtMillis = System.currentTimeMillis();
 		}
 
 		@Override
@@ -232,10 +289,11 @@ public class ERXAjaxSession extends WOSession {
 	 * {@link WOApplication#pageCacheSize()} is the only bound.
 	 * <p>
 	 * Every interaction mints a new contextID, so one PAGE INSTANCE accumulates many contextID keys over
-	 * its life - that is fine: they are cheap pointers to the same live object. We do NOT bound the
-	 * contextID count; we bound the number of distinct page INSTANCES (see
-	 * {@link #enforcePageCacheInstanceLimit}). When an instance is evicted, all of its contextID keys go
-	 * together. ContextIDs are session-unique, so two pages never collide (no bleed).
+	 * its life - that is fine: they are cheap pointers to the same live object. The cache's main bound is
+	 * the number of distinct page INSTANCES (see {@link #enforcePageCacheInstanceLimit}); the contextID
+	 * count per instance only has a generous safety cap ({@code maxContextsPerInstance}) against pollers.
+	 * When an instance is evicted, all of its contextID keys go together. ContextIDs are session-unique,
+	 * so two pages never collide (no bleed).
 	 * <p>
 	 * One class of render is deliberately NOT stored: an ajax request that produced no restorable
 	 * content (flagged {@link #DONT_STORE_PAGE} with no {@link #PAGE_REPLACEMENT_CACHE_LOOKUP_KEY}) -
@@ -289,21 +347,17 @@ public class ERXAjaxSession extends WOSession {
 	 * @param mayRecordProvenance whether this save may record request provenance for the repeat guard
 	 */
 	private void storePage(WOComponent page, WOContext context, String diagnosticKey, boolean mayRecordProvenance) {
-		LinkedHashMap<String, TransactionRecord> pageCache = _pageCache();
+		ERXPageCache pageCache = _pageCache();
 
-		// The map instance doubles as the lock: mutations from the session's own request thread are
+		// The cache instance doubles as the lock: mutations from the session's own request thread are
 		// already serialized by session checkout, but the memory-pressure purge (and the cross-session
-		// cache overview) touch this map from other threads. Contention is nil in normal operation.
+		// cache overview) touch the cache from other threads. Contention is nil in normal operation.
 		synchronized (pageCache) {
 			// Memory bound: cap the number of distinct PAGE INSTANCES, not contextIDs. Adding a context for
 			// an instance we already hold is free; a genuinely new instance over the limit evicts the
 			// least-recently-used instance (all its contextID keys).
 			enforcePageCacheInstanceLimit(pageCache, page);
 
-			// Touch: move this instance's existing contextID entries to the tail so eviction is LRU over
-			// instances (drop the instance gone longest without use), not FIFO by first-seen contextID.
-			touchInstanceInPageCache(pageCache, page);
-
 			TransactionRecord record = new TransactionRecord(page, context, diagnosticKey);
 			if (mayRecordProvenance && WOApplication.application().isPageRefreshOnBacktrackEnabled()) {
 				WORequest request = context.request();
@@ -317,7 +371,12 @@ public class ERXAjaxSession extends WOSession {
 					record.recordProvenance(senderID, requestFingerprint(request));
 				}
 			}
-			pageCache.put(context.contextID(), record);
+			// Storing also touches: the instance becomes the most recently used, so eviction is LRU over
+			// instances (drop the instance gone longest without use), not FIFO by first-seen contextID.
+			int evictedAliases = pageCache.put(context.contextID(), record);
+			if (evictedAliases > 0) {
+				PageCacheReuseStats.recordAliasEvictions(evictedAliases);
+			}
 
 			// Per-request visibility into the page cache. Off by default (free in production); set
 			// er.extensions.appserver.ajax.ERXAjaxSession.logPageCache=true to watch the cache size +
@@ -357,7 +416,8 @@ public class ERXAjaxSession extends WOSession {
 		if (!WOApplication.application().isPageRefreshOnBacktrackEnabled()) {
 			return null;
 		}
-		if (_pageCache == null || _pageCache.isEmpty() || context == null) {
+		ERXPageCache pageCache = _pageCache;
+		if (pageCache == null || context == null) {
 			return null;
 		}
 		WORequest request = context.request();
@@ -369,17 +429,15 @@ public class ERXAjaxSession extends WOSession {
 		if (requestContextID == null || senderID == null || senderID.isEmpty()) {
 			return null;
 		}
-		String fingerprint = requestFingerprint(request);
-		String match = null;
-		for (Map.Entry<String, TransactionRecord> entry : _pageCache.entrySet()) {
-			TransactionRecord record = entry.getValue();
-			if (record.senderID() != null
-					&& requestContextID.equals(record.requestContextID())
-					&& senderID.equals(record.senderID())
-					&& fingerprint.equals(record.formValuesFingerprint())) {
-				// Keep scanning: with several identical repeats the LAST (most recent) state wins.
-				match = entry.getKey();
+		// An index lookup by (request contextID, senderID) rather than a scan of the cache. Usually zero
+		// or one candidate; only with several identical repeats are there more, and then the most
+		// recently stored state wins.
+		String match;
+		synchronized (pageCache) {
+			if (!pageCache.hasProvenance(requestContextID, senderID)) {
+				return null;
 			}
+			match = pageCache.contextIDWithProvenance(requestContextID, senderID, requestFingerprint(request));
 		}
 		if (match != null) {
 			log.debug("Repeated request detected (request context {}, sender {}) -> stored context {}", requestContextID, senderID, match);
@@ -387,21 +445,73 @@ public class ERXAjaxSession extends WOSession {
 		return match;
 	}
 
+	/**
+	 * A request's form values, for detecting a repeated request: a 128-bit hash to compare first, and
+	 * the canonical encoding the hash was computed from, to verify a hash match with. Compare with
+	 * {@link TransactionRecord#hasFingerprint}; the record's equals() compares the array by identity.
+	 *
+	 * @param high the first 64 bits of the hash
+	 * @param low the second 64 bits of the hash
+	 * @param formValues the canonical encoding of the form values (don't modify)
+	 */
+	record RequestFingerprint(long high, long low, byte[] formValues) implements Serializable {}
+
 	/**
 	 * A stable, order-independent fingerprint of a request's form values, compared to detect a repeated
-	 * request. Keys are sorted so multi-value ordering quirks can't cause false negatives; values are
-	 * kept verbatim (a hash could collide, and a false match would silently SKIP an action).
+	 * request. Keys are sorted so multi-value ordering quirks can't cause false negatives, and the sorted
+	 * keys and values are encoded as length-prefixed UTF-8. That encoding is kept, because a false match
+	 * would silently SKIP an action: a hash match is always verified against the full values. What the
+	 * SHA-256 hash (of which we keep 128 bits) buys is that the values are only ever compared for a
+	 * request that's almost certainly a repeat, and that the UTF-8 encoding is about half the size of the
+	 * String it replaced.
 	 */
-	private static String requestFingerprint(WORequest request) {
-		NSDictionary<String, ?> formValues = request.formValues();
-		if (formValues == null || formValues.count() == 0) {
-			return "";
+	static RequestFingerprint requestFingerprint(WORequest request) {
+		return requestFingerprint(request.formValues());
+	}
+
+	/**
+	 * @return The fingerprint of the given form values, see {@link #requestFingerprint(WORequest)}
+	 */
+	static RequestFingerprint requestFingerprint(NSDictionary<String, ?> formValues) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		}
+		catch (NoSuchAlgorithmException e) {
+			// SHA-256 is required to be present in every Java platform
+			throw new IllegalStateException(e);
 		}
-		TreeMap<String, String> sorted = new TreeMap<>();
-		for (String key : formValues.allKeys()) {
-			sorted.put(key, String.valueOf(formValues.objectForKey(key)));
+		byte[] canonicalFormValues = canonicalFormValues(formValues);
+		ByteBuffer hash = ByteBuffer.wrap(digest.digest(canonicalFormValues));
+		return new RequestFingerprint(hash.getLong(), hash.getLong(), canonicalFormValues);
+	}
+
+	/**
+	 * @return The given form values as UTF-8, sorted by key, each key and value prefixed by it's length
+	 * so no key/value boundary can be shifted into a different pair
+	 */
+	static byte[] canonicalFormValues(NSDictionary<String, ?> formValues) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		if (formValues != null && formValues.count() > 0) {
+			TreeMap<String, String> sorted = new TreeMap<>();
+			for (String key : formValues.allKeys()) {
+				sorted.put(key, String.valueOf(formValues.objectForKey(key)));
+			}
+			for (Map.Entry<String, String> entry : sorted.entrySet()) {
+				writeLengthPrefixed(out, entry.getKey());
+				writeLengthPrefixed(out, entry.getValue());
+			}
 		}
-		return sorted.toString();
+		return out.toByteArray();
+	}
+
+	private static void writeLengthPrefixed(ByteArrayOutputStream out, String string) {
+		byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+		out.write(bytes.length >>> 24);
+		out.write(bytes.length >>> 16);
+		out.write(bytes.length >>> 8);
+		out.write(bytes.length);
+		out.write(bytes, 0, bytes.length);
 	}
 
 	/**
@@ -413,27 +523,59 @@ public class ERXAjaxSession extends WOSession {
 	 * @return a single-line summary, e.g. {@code pageCache: 42 contexts / 2 instance(s)}
 	 */
 	public String pageCacheSummary() {
-		LinkedHashMap<String, TransactionRecord> cache = _pageCache;
-		if (cache == null || cache.isEmpty()) {
+		ERXPageCache cache = _pageCache;
+		if (cache == null) {
 			return "pageCache: empty";
 		}
-		LinkedHashSet<WOComponent> instances = new LinkedHashSet<>();
-		Instant oldestStored = null;
-		Instant newestUsed = null;
-		for (TransactionRecord record : cache.values()) {
-			if (record.page() != null) {
-				instances.add(record.page());
-			}
-			if (oldestStored == null || record.createdAt().isBefore(oldestStored)) {
-				oldestStored = record.createdAt();
+		synchronized (cache) {
+			if (cache.isEmpty()) {
+				return "pageCache: empty";
 			}
-			if (newestUsed == null || record.lastAccessedAt().isAfter(newestUsed)) {
-				newestUsed = record.lastAccessedAt();
+			Instant oldestStored = null;
+			Instant newestUsed = null;
+			for (Map.Entry<String, TransactionRecord> entry : cache.entries()) {
+				TransactionRecord record = entry.getValue();
+				if (oldestStored == null || record.createdAt().isBefore(oldestStored)) {
+					oldestStored = record.createdAt();
+				}
+				if (newestUsed == null || record.lastAccessedAt().isAfter(newestUsed)) {
+					newestUsed = record.lastAccessedAt();
+				}
 			}
+			Instant now = Instant.now();
+			return "pageCache: " + cache.size() + " contexts / " + cache.instanceCount() + " instance(s)"
+					+ " (oldest stored " + ago(oldestStored, now) + ", last used " + ago(newestUsed, now) + ")";
+		}
+	}
+
+	/**
+	 * @return The number of distinct page instances in the page cache. Safe to call from any thread.
+	 */
+	public int pageCacheInstanceCount() {
+		ERXPageCache cache = _pageCache;
+		if (cache == null) {
+			return 0;
+		}
+		synchronized (cache) {
+			return cache.instanceCount();
+		}
+	}
+
+	/**
+	 * Estimates the session's memory from it's page cache, which is what usually dominates it: every cached page
+	 * instance counts as {@code estimatedPageSize} bytes, every contextID entry as a small fixed size, plus the form
+	 * values the entries keep for the repeated-request guard. Subclasses holding on to other large state can add
+	 * to it. Safe to call from any thread.
+	 */
+	@Override
+	public long estimatedMemorySize() {
+		ERXPageCache cache = _pageCache;
+		if (cache == null) {
+			return 0L;
+		}
+		synchronized (cache) {
+			return cache.instanceCount() * estimatedPageSize + cache.size() * ESTIMATED_ENTRY_SIZE + cache.formValueBytes();
 		}
-		Instant now = Instant.now();
-		return "pageCache: " + cache.size() + " contexts / " + instances.size() + " instance(s)"
-				+ " (oldest stored " + ago(oldestStored, now) + ", last used " + ago(newestUsed, now) + ")";
 	}
 
 	/**
@@ -453,22 +595,17 @@ public class ERXAjaxSession extends WOSession {
 	 * @return one tuple per cached entry (empty if the cache is absent/empty)
 	 */
 	public List<Object[]> pageCacheSnapshot() {
-		LinkedHashMap<String, TransactionRecord> cache = _pageCache;
+		ERXPageCache cache = _pageCache;
 		List<Object[]> snapshot = new ArrayList<>();
 		if (cache != null) {
-			// Copy the values out before reading them: a concurrent request may evict/touch the cache while a
-			// monitoring page iterates it (esp. across sessions, under concurrent request handling), which could
-			// otherwise throw ConcurrentModificationException. A best-effort copy degrades to a partial/empty
-			// snapshot rather than failing the page.
-			List<TransactionRecord> records;
-			try {
-				records = new ArrayList<>(cache.values());
+			// Copy the entries out under the lock before reading them: a concurrent request may evict/touch the
+			// cache while a monitoring page iterates it (esp. across sessions, under concurrent request handling).
+			List<Map.Entry<String, TransactionRecord>> entries;
+			synchronized (cache) {
+				entries = cache.entries();
 			}
-			catch (RuntimeException e) {
-				log.debug("pageCacheSnapshot: cache changed during copy, returning empty: {}", e.toString());
-				return snapshot;
-			}
-			for (TransactionRecord record : records) {
+			for (Map.Entry<String, TransactionRecord> entry : entries) {
+				TransactionRecord record = entry.getValue();
 				WOComponent page = record.page();
 				snapshot.add(new Object[] {
 						page == null ? "(null)" : page.getClass().getSimpleName(),
@@ -481,75 +618,58 @@ public class ERXAjaxSession extends WOSession {
 		return snapshot;
 	}
 
-	/**
-	 * Moves every cache entry pointing at {@code page} to the most-recent end of the map's insertion
-	 * order, so the instance limit (which reads that order oldest-first) evicts the least-recently-USED
-	 * instance rather than the first-inserted one (LRU, not FIFO). Without this, an instance you open
-	 * first and keep returning to is the oldest by insertion and so the first evicted.
-	 * <p>
-	 * Matching is by object identity ({@code record.page() == page}), so all the contextID keys that point
-	 * at this one live instance travel together.
-	 *
-	 * @param pageCache the cache
-	 * @param page the page instance that was just stored or restored; no-op if null or not present
-	 */
-	protected void touchInstanceInPageCache(LinkedHashMap<String, TransactionRecord> pageCache, WOComponent page) {
-		if (pageCache == null || page == null) {
-			return;
-		}
-		LinkedHashMap<String, TransactionRecord> moved = new LinkedHashMap<>();
-		for (Map.Entry<String, TransactionRecord> entry : pageCache.entrySet()) {
-			if (entry.getValue().page() == page) {
-				moved.put(entry.getKey(), entry.getValue());
-			}
-		}
-		for (Map.Entry<String, TransactionRecord> e : moved.entrySet()) {
-			pageCache.remove(e.getKey());
-			pageCache.put(e.getKey(), e.getValue());
-		}
-	}
-
 	/**
 	 * Bounds the cache by the number of distinct page INSTANCES it holds, not by the number of contextID
 	 * entries. One page instance accumulates many contextID keys over its life (one per interaction) -
-	 * those are cheap pointers to the same live object and are NOT bounded. What is bounded is the count
+	 * those are cheap pointers to the same live object and only have a generous per-instance safety cap
+	 * (see {@link ERXPageCache}), applied when they're stored. What is bounded here is the count
 	 * of distinct live instances: when a genuinely new instance would push us over
 	 * {@link WOApplication#pageCacheSize()}, the least-recently-used instance is evicted and ALL of its
 	 * contextID keys go with it (along with its pageInfo entry, when page info is enabled).
 	 * <p>
-	 * Instances are compared by object identity. The cache's insertion order is LRU-over-instances (see
-	 * {@link #touchInstanceInPageCache}), so the instance owning the head entry is the one gone
-	 * longest without use - the right one to drop.
+	 * Instances are compared by object identity. The cache keeps its instances in LRU order (stores and
+	 * restores move an instance to the most-recent end), so the head instance is the one gone longest
+	 * without use - the right one to drop. Both checks and the eviction itself are O(1) per instance
+	 * evicted (plus its keys), independent of how many contexts the cache holds.
 	 *
 	 * @param pageCache the cache being added to
 	 * @param currentPage the page instance about to be (re)stored; never evicted
 	 */
-	protected void enforcePageCacheInstanceLimit(LinkedHashMap<String, TransactionRecord> pageCache, WOComponent currentPage) {
-		// Distinct instances in cache order (least-recently-used first), using identity.
-		LinkedHashSet<WOComponent> instances = new LinkedHashSet<>();
-		for (TransactionRecord record : pageCache.values()) {
-			WOComponent p = record.page();
-			if (p != null) {
-				instances.add(p);
-			}
-		}
-		// Already holding this instance, or under the limit -> nothing to evict.
-		if (instances.contains(currentPage) || instances.size() < WOApplication.application().pageCacheSize()) {
+	protected void enforcePageCacheInstanceLimit(ERXPageCache pageCache, WOComponent currentPage) {
+		// Already holding this instance -> nothing to evict.
+		if (pageCache.containsInstance(currentPage)) {
 			return;
 		}
-		// Over the limit and adding a NEW instance: drop every entry of the least-recently-used instance.
-		WOComponent oldest = instances.iterator().next();
-		Iterator<Map.Entry<String, TransactionRecord>> evictEnum = pageCache.entrySet().iterator();
-		while (evictEnum.hasNext()) {
-			Map.Entry<String, TransactionRecord> entry = evictEnum.next();
-			if (entry.getValue().page() == oldest) {
-				if (log.isDebugEnabled()) log.debug("Instance-limit reached; evicting context {} of LRU instance", entry.getKey());
-				evictEnum.remove();
+		// Adding a NEW instance: make room by dropping every entry of the least-recently-used instance(s).
+		// A loop rather than a single eviction, in case pageCacheSize was lowered at runtime.
+		final int limit = WOApplication.application().pageCacheSize();
+		while (pageCache.instanceCount() > 0 && pageCache.instanceCount() >= limit) {
+			WOComponent oldest = pageCache.evictLeastRecentlyUsed();
+			if (log.isDebugEnabled()) log.debug("Instance-limit reached; evicted LRU instance {}", oldest == null ? null : oldest.name());
+			if (storesPageInfo()) {
+				pageInfoDictionary().removeObjectForKey(oldest);
 			}
 		}
-		if (storesPageInfo()) {
-			pageInfoDictionary().removeObjectForKey(oldest);
+	}
+
+	/**
+	 * Makes {@code page} the most recently used instance, so the instance limit evicts the
+	 * least-recently-USED instance rather than the first-inserted one (LRU, not FIFO). Without this, an
+	 * instance you open first and keep returning to would be the oldest and so the first evicted.
+	 * Called when a restore resolves one of the instance's contextIDs; storing a page touches it's
+	 * instance as part of {@link ERXPageCache#put}.
+	 * <p>
+	 * Matching is by object identity, so all the contextID keys that point at this one live instance
+	 * travel together. O(1), whatever the number of keys.
+	 *
+	 * @param pageCache the cache, locked by the caller
+	 * @param page the page instance that was just restored; no-op if null or not present
+	 */
+	protected void touchInstanceInPageCache(ERXPageCache pageCache, WOComponent page) {
+		if (pageCache == null || page == null) {
+			return;
 		}
+		pageCache.touch(page);
 	}
 
 	/**
@@ -558,50 +678,28 @@ public class ERXAjaxSession extends WOSession {
 	 * {@code ERXPageCachePressureValve}). Never trims below one instance: the most recently used one
 	 * is the session's current page for backtracking purposes, and purging it would break the very
 	 * next interaction of a merely-slow user. Safe to call from any thread (synchronizes on the
-	 * cache map, like every other cache access).
+	 * cache, like every other cache access).
 	 *
 	 * @param maxInstances the instance count to trim down to (floored at 1)
 	 * @return the number of page instances evicted
 	 */
 	public int trimPageCacheToInstanceCount(int maxInstances) {
-		LinkedHashMap<String, TransactionRecord> cache = _pageCache;
+		ERXPageCache cache = _pageCache;
 		if (cache == null) {
 			return 0;
 		}
 		final int keep = Math.max(1, maxInstances);
+		int evicted = 0;
 		synchronized (cache) {
-			if (cache.isEmpty()) {
-				return 0;
-			}
-			// Distinct instances in cache order = LRU-over-instances, least recently used first.
-			final java.util.Set<WOComponent> instances = java.util.Collections.newSetFromMap(new java.util.LinkedHashMap<>());
-			for (TransactionRecord record : cache.values()) {
-				instances.add(record.page());
-			}
-			final int evictCount = instances.size() - keep;
-			if (evictCount <= 0) {
-				return 0;
-			}
-			final java.util.Set<WOComponent> doomed = java.util.Collections.newSetFromMap(new java.util.IdentityHashMap<>());
-			for (WOComponent page : instances) {
-				if (doomed.size() >= evictCount) {
-					break;
-				}
-				doomed.add(page);
-			}
-			final Iterator<Map.Entry<String, TransactionRecord>> entries = cache.entrySet().iterator();
-			while (entries.hasNext()) {
-				if (doomed.contains(entries.next().getValue().page())) {
-					entries.remove();
-				}
-			}
-			if (storesPageInfo()) {
-				for (WOComponent page : doomed) {
+			while (cache.instanceCount() > keep) {
+				WOComponent page = cache.evictLeastRecentlyUsed();
+				if (storesPageInfo()) {
 					pageInfoDictionary().removeObjectForKey(page);
 				}
+				evicted++;
 			}
-			return doomed.size();
 		}
+		return evicted;
 	}
 
 	/**
@@ -652,19 +750,25 @@ public class ERXAjaxSession extends WOSession {
 	public WOComponent restorePageForContextID(String contextID) {
 		log.debug("Restoring page for contextID: {}", contextID);
 		WOComponent page = null;
-		if (_pageCache != null) {
-			synchronized (_pageCache) {
-				TransactionRecord record = _pageCache.get(contextID);
+		ERXPageCache pageCache = _pageCache;
+		if (pageCache != null) {
+			synchronized (pageCache) {
+				TransactionRecord record = pageCache.get(contextID);
 				if (record != null) {
 					page = record.page();
-					recordReuseProfile(page);
+					recordReuseProfile(pageCache, page);
 					record.markAccessed();
-					// Access = most-recently-used for this INSTANCE: move all its contextID entries to the tail
-					// so eviction drops the least-recently-used instance, not the first-inserted one.
-					touchInstanceInPageCache(_pageCache, page);
+					// Access = most-recently-used for this INSTANCE: move it to the most-recent end of the LRU
+					// so eviction drops the least-recently-used instance, not the first-inserted one. The alias
+					// itself also becomes the instance's most recently used, last in line for the alias cap.
+					touchInstanceInPageCache(pageCache, page);
+					pageCache.touchAlias(contextID);
 				}
 				else {
 					PageCacheReuseStats.recordMiss();
+					if (pageCache.wasEvictedAlias(contextID)) {
+						PageCacheReuseStats.recordEvictedAliasRequested();
+					}
 				}
 			}
 		}
@@ -685,40 +789,12 @@ public class ERXAjaxSession extends WOSession {
 	 * the hit is marked accessed / re-topped, since both numbers describe the state the hit found.
 	 * Measurement only - a failure here must never break a page restore, hence the catch-all.
 	 */
-	private void recordReuseProfile(WOComponent hitPage) {
+	private void recordReuseProfile(ERXPageCache pageCache, WOComponent hitPage) {
 		try {
-			// One pass over the cache: distinct instances in LRU order (least recently used first),
-			// and the hit instance's most recent access across all its contextID entries.
-			List<WOComponent> instances = new ArrayList<>();
-			Instant lastAccess = null;
-			for (TransactionRecord record : _pageCache.values()) {
-				WOComponent page = record.page();
-				boolean seen = false;
-				for (WOComponent instance : instances) {
-					if (instance == page) {
-						seen = true;
-						break;
-					}
-				}
-				if (!seen) {
-					instances.add(page);
-				}
-				if (page == hitPage && (lastAccess == null || record.lastAccessedAt().isAfter(lastAccess))) {
-					lastAccess = record.lastAccessedAt();
-				}
-			}
-
-			int position = -1;
-			for (int i = 0; i < instances.size(); i++) {
-				if (instances.get(i) == hitPage) {
-					position = i;
-					break;
-				}
-			}
-
-			if (position >= 0 && lastAccess != null) {
-				int depth = instances.size() - position;
-				long idleSeconds = Duration.between(lastAccess, Instant.now()).getSeconds();
+			ERXPageCache.Instance instance = pageCache.instance(hitPage);
+			int depth = pageCache.depthOf(hitPage);
+			if (instance != null && depth > 0 && instance.lastAccessedAt() != null) {
+				long idleSeconds = Duration.between(instance.lastAccessedAt(), Instant.now()).getSeconds();
 				PageCacheReuseStats.recordHit(idleSeconds, depth, hitPage == null ? "(null)" : hitPage.name());
 			}
 		}
@@ -750,27 +826,30 @@ public class ERXAjaxSession extends WOSession {
 		out.append("config: maxInstances=").append(WOApplication.application().pageCacheSize())
 			 .append("  storesPageInfo=").append(storesPageInfo).append('\n');
 
-		LinkedHashMap<String, TransactionRecord> cache = _pageCache;
-		if (cache == null || cache.isEmpty()) {
+		ERXPageCache cache = _pageCache;
+		// Copy out under the lock, format outside it. The entries come grouped by the live page instance
+		// they point at, in LRU order (least-recently-used instance first). We carry the MAP KEY through
+		// - that is the contextID the cache is actually keyed by (context.contextID(), the value a rendered
+		// link will carry back), which is the useful one for matching a stale link to its entry.
+		LinkedHashMap<WOComponent, NSMutableArray<Map.Entry<String, TransactionRecord>>> byInstance = new LinkedHashMap<>();
+		int contextCount = 0;
+		if (cache != null) {
+			synchronized (cache) {
+				for (ERXPageCache.Instance instance : cache.instances()) {
+					NSMutableArray<Map.Entry<String, TransactionRecord>> entries = new NSMutableArray<>();
+					for (String contextID : instance.contextIDs()) {
+						entries.add(Map.entry(contextID, cache.get(contextID)));
+					}
+					byInstance.put(instance.page(), entries);
+				}
+				contextCount = cache.size();
+			}
+		}
+		if (byInstance.isEmpty()) {
 			out.append("pageCache: empty");
 		}
 		else {
-			// Group the map by the live page instance it points at, preserving the cache's insertion order
-			// (which is LRU-over-instances: least-recently-used instance first). We carry the MAP KEY through
-			// - that is the contextID the cache is actually keyed by (context.contextID(), the value a rendered
-			// link will carry back), which is the useful one for matching a stale link to its entry.
-			LinkedHashMap<WOComponent, NSMutableArray<Map.Entry<String, TransactionRecord>>> byInstance = new LinkedHashMap<>();
-			for (Map.Entry<String, TransactionRecord> entry : cache.entrySet()) {
-				WOComponent page = entry.getValue().page();
-				NSMutableArray<Map.Entry<String, TransactionRecord>> entries = byInstance.get(page);
-				if (entries == null) {
-					entries = new NSMutableArray<>();
-					byInstance.put(page, entries);
-				}
-				entries.add(entry);
-			}
-
-			out.append("pageCache: ").append(cache.size()).append(" contexts / ")
+			out.append("pageCache: ").append(contextCount).append(" contexts / ")
 				 .append(byInstance.size()).append(" instance(s)").append("  (oldest-used first)\n");
 
 			for (Map.Entry<WOComponent, NSMutableArray<Map.Entry<String, TransactionRecord>>> e : byInstance.entrySet()) {
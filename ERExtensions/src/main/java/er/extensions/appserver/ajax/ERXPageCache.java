@@ -0,0 +1,452 @@
+package er.extensions.appserver.ajax;
+
+import java.io.Serializable;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.webobjects.appserver.WOComponent;
+
+import er.extensions.appserver.ajax.ERXAjaxSession.TransactionRecord;
+
+/**
+ * The data structure behind {@link ERXAjaxSession}'s unified page cache: {@code contextID -> record}
+ * for restores, plus an instance-level index that the LRU operates on.
+ * <p>
+ * Every live page instance gets one {@link Instance} node, found through an {@link IdentityHashMap}
+ * (pages are compared by identity, never equals()) and linked into a doubly linked list in LRU order
+ * (head = least recently used). That makes the operations done on every request cheap, however many
+ * contextIDs an instance has accumulated:
+ * <ul>
+ * <li>restore: one hash lookup</li>
+ * <li>store and touch: a hash lookup plus relinking one node - O(1)</li>
+ * <li>evicting the least recently used instance: O(keys of that one instance)</li>
+ * </ul>
+ * The number of contextID keys (aliases) per instance can be capped. Past the cap, an instance's
+ * least recently stored/restored alias is dropped, so a page that's polled through an
+ * AjaxUpdateContainer for hours doesn't accumulate a record per poll. The most recently evicted
+ * aliases are remembered (just the strings, a bounded number) so a later request for one can be
+ * counted - see {@link #wasEvictedAlias(String)}.
+ * <p>
+ * Records that carry request provenance (see {@link ERXAjaxSession#contextIDForRepeatedRequest}) are
+ * also indexed by (request contextID, senderID), so the repeated-request guard is a lookup rather than
+ * a scan of every entry.
+ * <p>
+ * Previously the cache was a single insertion-ordered {@code LinkedHashMap<contextID, record>} and both
+ * the instance limit and the LRU touch walked every entry of every instance on every store, making a
+ * long-lived ajax page O(contexts) per request.
+ * <p>
+ * The cache is Serializable along with the session that holds it, so sessions that cached pages
+ * can still be passivated to a session store. Like the LinkedHashMap it replaced, it's written with
+ * it's page instances; the LRU list is only as long as the instance limit, so writing it recursively
+ * is fine.
+ * <p>
+ * Not thread safe. The session serializes access by synchronizing on the cache instance (see
+ * {@link ERXAjaxSession}), since the memory-pressure valve and monitoring pages reach in from other threads.
+ * Subclasses of ERXAjaxSession get at it through {@link ERXAjaxSession#_pageCache()}, and must hold that
+ * lock too.
+ */
+public final class ERXPageCache implements Serializable {
+
+	/**
+	 * One live page instance in the cache: it's contextID keys (least recently stored or restored first) and it's place in the LRU list
+	 */
+	public static final class Instance implements Serializable {
+
+		private final WOComponent _page;
+		private final LinkedHashSet<String> _contextIDs = new LinkedHashSet<>();
+		private long _lastAccessedAtMillis;
+		private Instance _previous;
+		private Instance _next;
+
+		private Instance(WOComponent page) {
+			_page = page;
+		}
+
+		public WOComponent page() {
+			return _page;
+		}
+
+		/**
+		 * @return The instance's contextID keys, least recently used first
+		 */
+		public Set<String> contextIDs() {
+			return Collections.unmodifiableSet(_contextIDs);
+		}
+
+		/**
+		 * @return The last time any of this instance's entries was stored or restored
+		 */
+		public Instant lastAccessedAt() {
+			return Instant.ofEpochMilli(_lastAccessedAtMillis);
+		}
+	}
+
+	/**
+	 * Number of evicted aliases we remember for {@link #wasEvictedAlias(String)}
+	 */
+	private static final int EVICTED_ALIAS_MEMORY = 256;
+
+	private final int _maxContextsPerInstance;
+	private final HashMap<String, TransactionRecord> _records = new HashMap<>();
+	private final IdentityHashMap<WOComponent, Instance> _instances = new IdentityHashMap<>();
+
+	/**
+	 * Key of the provenance index: the request that produced a page state
+	 */
+	private record Provenance(String requestContextID, String senderID) implements Serializable {}
+
+	/**
+	 * (request contextID, senderID) -> contextIDs of the records that request produced, oldest first. Only populated in page-refresh-on-backtrack mode.
+	 */
+	private final HashMap<Provenance, List<String>> _provenanceIndex = new HashMap<>();
+
+	/**
+	 * Total size of the form values the records keep for the repeated-request guard
+	 */
+	private long _formValueBytes;
+
+	/**
+	 * Aliases recently evicted by the per-instance cap, oldest first. Null until the first eviction.
+	 */
+	private LinkedHashSet<String> _evictedAliases;
+
+	/**
+	 * The least recently used instance
+	 */
+	private Instance _head;
+
+	/**
+	 * The most recently used instance
+	 */
+	private Instance _tail;
+
+	/**
+	 * @param maxContextsPerInstance the maximum number of contextID aliases kept per page instance. 0 or less means no limit.
+	 */
+	ERXPageCache(int maxContextsPerInstance) {
+		_maxContextsPerInstance = maxContextsPerInstance;
+	}
+
+	/**
+	 * @return The record stored under the given contextID, or null
+	 */
+	public TransactionRecord get(String contextID) {
+		return _records.get(contextID);
+	}
+
+	/**
+	 * @return The instance node for the given page, or null if it isn't cached
+	 */
+	public Instance instance(WOComponent page) {
+		return _instances.get(page);
+	}
+
+	public boolean isEmpty() {
+		return _records.isEmpty();
+	}
+
+	/**
+	 * @return Number of contextID entries
+	 */
+	public int size() {
+		return _records.size();
+	}
+
+	/**
+	 * @return Number of distinct page instances
+	 */
+	public int instanceCount() {
+		return _instances.size();
+	}
+
+	/**
+	 * @return Total size in bytes of the form values the records keep for the repeated-request guard
+	 */
+	public long formValueBytes() {
+		return _formValueBytes;
+	}
+
+	public boolean containsInstance(WOComponent page) {
+		return _instances.containsKey(page);
+	}
+
+	/**
+	 * Stores the record under the given contextID, adding it's page as the most recently used instance (or moving it there if it's already cached).
+	 * Doesn't evict instances; enforcing the instance limit is the caller's business. Does evict the instance's oldest alias(es) if it's now over the per-instance cap.
+	 *
+	 * @return the number of aliases evicted
+	 */
+	int put(String contextID, TransactionRecord record) {
+		WOComponent page = record.page();
+
+		Instance instance = _instances.get(page);
+
+		if (instance == null) {
+			instance = new Instance(page);
+			_instances.put(page, instance);
+			linkLast(instance);
+		}
+		else {
+			moveToTail(instance);
+		}
+
+		TransactionRecord previous = _records.put(contextID, record);
+		_formValueBytes += record.formValuesLength();
+
+		if (previous != null) {
+			unindex(contextID, previous);
+
+			// A contextID re-stored for a different instance: that instance loses the key (and it's place in the cache if it was it's last)
+			if (previous.page() != page) {
+				removeContextIDFromInstance(contextID, previous.page());
+			}
+		}
+
+		if (record.senderID() != null) {
+			_provenanceIndex.computeIfAbsent(new Provenance(record.requestContextID(), record.senderID()), _ -> new ArrayList<>(1)).add(contextID);
+		}
+
+		instance._contextIDs.add(contextID);
+		instance._lastAccessedAtMillis = record.createdAtMillis();
+
+		int evicted = 0;
+
+		if (_maxContextsPerInstance > 0) {
+			while (instance._contextIDs.size() > _maxContextsPerInstance) {
+				String oldest = instance._contextIDs.removeFirst();
+				unindex(oldest, _records.remove(oldest));
+				rememberEvictedAlias(oldest);
+				evicted++;
+			}
+		}
+
+		return evicted;
+	}
+
+	/**
+	 * Marks the given page as the most recently used instance. No-op if it isn't cached.
+	 */
+	public void touch(WOComponent page) {
+		Instance instance = _instances.get(page);
+
+		if (instance != null) {
+			moveToTail(instance);
+			instance._lastAccessedAtMillis = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * Marks the given contextID as it's instance's most recently used alias, so it's the last in line for the per-instance cap.
+	 * Doesn't touch the instance itself (see {@link #touch(WOComponent)}). No-op if the contextID isn't cached.
+	 */
+	void touchAlias(String contextID) {
+		TransactionRecord record = _records.get(contextID);
+
+		if (record != null) {
+			Instance instance = _instances.get(record.page());
+
+			if (instance != null && instance._contextIDs.remove(contextID)) {
+				instance._contextIDs.add(contextID);
+			}
+		}
+	}
+
+	/**
+	 * @return true if any record was produced by a request with the given contextID and senderID
+	 */
+	boolean hasProvenance(String requestContextID, String senderID) {
+		return !_provenanceIndex.isEmpty() && _provenanceIndex.containsKey(new Provenance(requestContextID, senderID));
+	}
+
+	/**
+	 * @return The contextID of the most recently stored record produced by a request with the given contextID, senderID and form values, or null
+	 */
+	String contextIDWithProvenance(String requestContextID, String senderID, ERXAjaxSession.RequestFingerprint fingerprint) {
+		List<String> contextIDs = _provenanceIndex.get(new Provenance(requestContextID, senderID));
+
+		if (contextIDs != null) {
+			for (int i = contextIDs.size() - 1; i >= 0; i--) {
+				String contextID = contextIDs.get(i);
+
+				if (_records.get(contextID).hasFingerprint(fingerprint)) {
+					return contextID;
+				}
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * @return true if the given contextID is one we recently evicted because of the per-instance alias cap. Answers true only once per alias.
+	 */
+	boolean wasEvictedAlias(String contextID) {
+		return _evictedAliases != null && _evictedAliases.remove(contextID);
+	}
+
+	private void rememberEvictedAlias(String contextID) {
+		if (_evictedAliases == null) {
+			_evictedAliases = new LinkedHashSet<>();
+		}
+
+		if (_evictedAliases.size() >= EVICTED_ALIAS_MEMORY) {
+			_evictedAliases.removeFirst();
+		}
+
+		_evictedAliases.add(contextID);
+	}
+
+	/**
+	 * Removes the least recently used instance along with all of it's contextID entries
+	 *
+	 * @return The evicted page, or null if the cache is empty
+	 */
+	public WOComponent evictLeastRecentlyUsed() {
+		Instance instance = _head;
+
+		if (instance == null) {
+			return null;
+		}
+
+		remove(instance);
+		return instance._page;
+	}
+
+	/**
+	 * @return The given page's position in the LRU order, 1 being the most recently used instance. -1 if it isn't cached.
+	 *
+	 * Walks the instance list from the most recently used end, so this is O(instances), which is bounded by the page cache size.
+	 */
+	public int depthOf(WOComponent page) {
+		int depth = 1;
+
+		for (Instance instance = _tail; instance != null; instance = instance._previous) {
+			if (instance._page == page) {
+				return depth;
+			}
+
+			depth++;
+		}
+
+		return -1;
+	}
+
+	/**
+	 * @return The cached instances, least recently used first
+	 */
+	public List<Instance> instances() {
+		List<Instance> result = new ArrayList<>(_instances.size());
+
+		for (Instance instance = _head; instance != null; instance = instance._next) {
+			result.add(instance);
+		}
+
+		return result;
+	}
+
+	/**
+	 * @return All entries, grouped by instance in LRU order (least recently used instance first), each instance's entries oldest first
+	 */
+	public List<Map.Entry<String, TransactionRecord>> entries() {
+		List<Map.Entry<String, TransactionRecord>> result = new ArrayList<>(_records.size());
+
+		for (Instance instance = _head; instance != null; instance = instance._next) {
+			for (String contextID : instance._contextIDs) {
+				result.add(Map.entry(contextID, _records.get(contextID)));
+			}
+		}
+
+		return result;
+	}
+
+	private void remove(Instance instance) {
+		for (String contextID : instance._contextIDs) {
+			unindex(contextID, _records.remove(contextID));
+		}
+
+		_instances.remove(instance._page);
+		unlink(instance);
+	}
+
+	/**
+	 * Removes the given record (stored under the given contextID, and just removed from _records) from the provenance index and the form value total
+	 */
+	private void unindex(String contextID, TransactionRecord record) {
+		if (record != null) {
+			_formValueBytes -= record.formValuesLength();
+		}
+
+		if (record != null && record.senderID() != null) {
+			Provenance provenance = new Provenance(record.requestContextID(), record.senderID());
+			List<String> contextIDs = _provenanceIndex.get(provenance);
+
+			if (contextIDs != null) {
+				contextIDs.remove(contextID);
+
+				if (contextIDs.isEmpty()) {
+					_provenanceIndex.remove(provenance);
+				}
+			}
+		}
+	}
+
+	private void removeContextIDFromInstance(String contextID, WOComponent page) {
+		Instance instance = _instances.get(page);
+
+		if (instance != null) {
+			instance._contextIDs.remove(contextID);
+
+			if (instance._contextIDs.isEmpty()) {
+				_instances.remove(page);
+				unlink(instance);
+			}
+		}
+	}
+
+	private void moveToTail(Instance instance) {
+		if (instance != _tail) {
+			unlink(instance);
+			linkLast(instance);
+		}
+	}
+
+	private void linkLast(Instance instance) {
+		instance._previous = _tail;
+		instance._next = null;
+
+		if (_tail == null) {
+			_head = instance;
+		}
+		else {
+			_tail._next = instance;
+		}
+
+		_tail = instance;
+	}
+
+	private void unlink(Instance instance) {
+		if (instance._previous == null) {
+			_head = instance._next;
+		}
+		else {
+			instance._previous._next = instance._next;
+		}
+
+		if (instance._next == null) {
+			_tail = instance._previous;
+		}
+		else {
+			instance._next._previous = instance._previous;
+		}
+
+		instance._previous = null;
+		instance._next = null;
+	}
+}
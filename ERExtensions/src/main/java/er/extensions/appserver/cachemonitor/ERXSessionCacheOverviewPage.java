@@ -144,6 +144,14 @@ public class ERXSessionCacheOverviewPage extends ERXComponent {
 		return PageCacheReuseStats.pressurePurges();
 	}
 
+	public long evictedAliases() {
+		return PageCacheReuseStats.evictedAliases();
+	}
+
+	public long evictedAliasesRequested() {
+		return PageCacheReuseStats.evictedAliasesRequested();
+	}
+
 	public boolean hasPressurePurges() {
 		return pressurePurges() > 0;
 	}
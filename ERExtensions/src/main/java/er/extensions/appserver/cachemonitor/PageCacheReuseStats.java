@@ -6,6 +6,9 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.atomic.LongAdder;
 
+import er.extensions.statistics.ERXMetrics;
+import er.extensions.statistics.ERXMetrics.MetricWriter;
+
 /**
  * App-wide reuse profile of the unified page cache. Every cache HIT records two numbers about the
  * instance being restored - how long it had been idle, and how deep it sat in the instance-LRU
@@ -34,6 +37,10 @@ public final class PageCacheReuseStats {
 	static final int[] DEPTH_BOUNDS = { 1, 3, 5, 10, 20, 30, 50, 100 };
 	private static final String[] DEPTH_LABELS = { "1", "2 – 3", "4 – 5", "6 – 10", "11 – 20", "21 – 30", "31 – 50", "51 – 100", "> 100" };
 
+	/** The bucket bounds above as OpenMetrics le label values. */
+	private static final String[] IDLE_BOUND_METRIC_LABELS = { "10.0", "60.0", "300.0", "900.0", "1800.0", "3600.0", "7200.0", "14400.0" };
+	private static final String[] DEPTH_BOUND_METRIC_LABELS = { "1.0", "3.0", "5.0", "10.0", "20.0", "30.0", "50.0", "100.0" };
+
 	/** A hit deeper than this, or idler than {@link #NOTABLE_IDLE_SECONDS}, lands in the notable-reaches list. */
 	private static final int NOTABLE_DEPTH = 20;
 	private static final long NOTABLE_IDLE_SECONDS = 1800;
@@ -46,6 +53,8 @@ public final class PageCacheReuseStats {
 	private static final LongAdder _expiredSessionAttempts = new LongAdder();
 	private static final LongAdder _pressurePurges = new LongAdder();
 	private static final LongAdder _pressurePurgedInstances = new LongAdder();
+	private static final LongAdder _evictedAliases = new LongAdder();
+	private static final LongAdder _evictedAliasesRequested = new LongAdder();
 	private static final Instant _since = Instant.now();
 
 	private static final ArrayDeque<NotableReach> _notableReaches = new ArrayDeque<>();
@@ -117,6 +126,31 @@ public final class PageCacheReuseStats {
 		return _pressurePurgedInstances.sum();
 	}
 
+	/**
+	 * Records contextID aliases dropped by the per-instance alias cap
+	 * ({@code er.extensions.appserver.ajax.ERXAjaxSession.maxContextsPerInstance}) while their instance stayed cached.
+	 */
+	public static void recordAliasEvictions( final long count ) {
+		_evictedAliases.add( count );
+	}
+
+	/**
+	 * Records a restore attempt for an alias the per-instance cap had evicted - a link that would still
+	 * have worked without the cap. Compared against {@link #evictedAliases()}, this is what tells you if the
+	 * cap is safe: a handful per thousands evicted is a cap doing it's job, a large share means it's too low.
+	 */
+	public static void recordEvictedAliasRequested() {
+		_evictedAliasesRequested.increment();
+	}
+
+	public static long evictedAliases() {
+		return _evictedAliases.sum();
+	}
+
+	public static long evictedAliasesRequested() {
+		return _evictedAliasesRequested.sum();
+	}
+
 	public static long hits() {
 		return _hits.sum();
 	}
@@ -162,6 +196,25 @@ public final class PageCacheReuseStats {
 		return rows;
 	}
 
+	/**
+	 * Writes the reuse counters and histograms for the /metrics endpoint, see {@link ERXMetrics}. Reads the adders directly, nothing is copied.
+	 */
+	public static void writeMetrics( final MetricWriter writer ) {
+		writer.counter( "erx_page_cache_hits", "Page restores served from the page cache", _hits.sum() );
+		writer.counter( "erx_page_cache_misses", "Page restores that missed the page cache", _misses.sum() );
+		writer.counter( "erx_page_cache_expired_session_attempts", "Page restores attempted against an expired session", _expiredSessionAttempts.sum() );
+		writer.counter( "erx_page_cache_pressure_purges", "Memory pressure purges of the page cache", _pressurePurges.sum() );
+		writer.counter( "erx_page_cache_pressure_purged_instances", "Page instances dropped by memory pressure purges", _pressurePurgedInstances.sum() );
+		writer.counter( "erx_page_cache_evicted_aliases", "Context ID aliases evicted from the page cache", _evictedAliases.sum() );
+		writer.counter( "erx_page_cache_evicted_aliases_requested", "Requests for a context ID alias that had been evicted", _evictedAliasesRequested.sum() );
+
+		writer.family( "erx_page_cache_reuse_idle_seconds", "histogram", "How long a page instance had been idle when it was restored from the cache" );
+		writer.histogram( "erx_page_cache_reuse_idle_seconds", IDLE_BOUND_METRIC_LABELS, _idleBuckets );
+
+		writer.family( "erx_page_cache_reuse_depth", "histogram", "LRU depth of a page instance when it was restored from the cache (1 = most recently used)" );
+		writer.histogram( "erx_page_cache_reuse_depth", DEPTH_BOUND_METRIC_LABELS, _depthBuckets );
+	}
+
 	private static long[] counts( final LongAdder[] buckets ) {
 		final long[] counts = new long[buckets.length];
 
@@ -1,23 +1,23 @@
 package er.extensions.browser;
 
 import java.nio.charset.StandardCharsets;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
 import java.util.StringTokenizer;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.regex.Pattern;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.webobjects.appserver.WORequest;
-import com.webobjects.foundation.NSArray;
 import com.webobjects.foundation.NSDictionary;
-import com.webobjects.foundation.NSMutableArray;
-import com.webobjects.foundation.NSMutableDictionary;
 
 import er.extensions.appserver.ERXDirectAction;
 import er.extensions.appserver.ERXSession;
+import er.extensions.foundation.ERXProperties;
 import er.extensions.foundation.ERXUtilities;
 
 /**
@@ -71,6 +71,11 @@ import er.extensions.foundation.ERXUtilities;
  * <p>
  * <code>ERXBrowserFactory.factory().{@link #setBrowserClassName 
  * setBrowserClassName("NameOfTheSubClassOfERXBrowser")}</code>
+ * <p>
+ * Parsed user-agent strings are cached, but since they're supplied by the client the cache is bounded: once it holds more than
+ * <code>er.extensions.ERXBrowserFactory.userAgentCacheSize</code> entries, the least recently used tenth of them is evicted.
+ * User-agent strings longer than <code>er.extensions.ERXBrowserFactory.maxCachedUserAgentLength</code> are parsed every time.
+ * Neither the cache nor the browser pool takes a lock on the factory, so parsing scales with the number of request threads.
  *
  * <p>
  * <pre>
@@ -104,6 +109,8 @@ import er.extensions.foundation.ERXUtilities;
  *
  * @property er.extensions.ERXBrowserFactory.FactoryClassName
  * @property er.extensions.ERXBrowserFactory.BrowserClassName (default ERXBasicBrowser)
+ * @property er.extensions.ERXBrowserFactory.userAgentCacheSize (default 10000, 0 disables the cache)
+ * @property er.extensions.ERXBrowserFactory.maxCachedUserAgentLength (default 1024)
  */
 public class ERXBrowserFactory {
 
@@ -119,15 +126,6 @@ public class ERXBrowserFactory {
      */
     private static ERXBrowserFactory _factory;
 
-    /** 
-     * Expressions that define a robot
-     */
-    private static final NSMutableArray<Pattern> robotExpressions = new NSMutableArray();
-
-    /** 
-     * Mapping of UAs to browsers
-     */
-    private static final Map _cache = new ConcurrentHashMap<>();
 
     /**
      * Gets the singleton browser factory object.
@@ -195,8 +193,47 @@ public class ERXBrowserFactory {
     public ERXBrowserFactory() {
         // ENHANCEME: (tk) to arrow to set the class name from property files and launch arguments. 
         setBrowserClassName(System.getProperty("er.extensions.ERXBrowserFactory.BrowserClassName", _DEFAULT_BROWSER_CLASS_NAME));
+        _userAgentCacheSize = ERXProperties.intForKeyWithDefault("er.extensions.ERXBrowserFactory.userAgentCacheSize", 10000);
+        _maxCachedUserAgentLength = ERXProperties.intForKeyWithDefault("er.extensions.ERXBrowserFactory.maxCachedUserAgentLength", 1024);
+    }
+
+    /**
+     * A parsed user-agent string. lastUsed is written without synchronization since it only has to be roughly right for eviction.
+     */
+    private static final class CachedBrowser {
+        private final ERXBrowser _browser;
+        private long _lastUsed;
+
+        private CachedBrowser(ERXBrowser browser) {
+            _browser = browser;
+            _lastUsed = System.nanoTime();
+        }
     }
 
+    /**
+     * Mapping of UAs to browsers, bounded by _userAgentCacheSize
+     */
+    private final ConcurrentHashMap<String, CachedBrowser> _userAgentCache = new ConcurrentHashMap<>();
+
+    /**
+     * Maximum number of cached UAs. 0 or less means we don't cache.
+     */
+    private final int _userAgentCacheSize;
+
+    /**
+     * UAs longer than this aren't cached
+     */
+    private final int _maxCachedUserAgentLength;
+
+    /**
+     * Set while a thread is evicting from the UA cache, so the others don't pile on
+     */
+    private final AtomicBoolean _evictingUserAgents = new AtomicBoolean();
+
+    private final LongAdder _userAgentCacheHits = new LongAdder();
+    private final LongAdder _userAgentCacheMisses = new LongAdder();
+    private final LongAdder _userAgentCacheEvictions = new LongAdder();
+
     /** 
      * Gets a shared browser object for given request. 
      * Parses <code>"user-agent"</code> string in the request and gets 
@@ -245,22 +282,110 @@ public class ERXBrowserFactory {
             		ERXBrowser.UNKNOWN_VERSION, ERXBrowser.UNKNOWN_PLATFORM, null);
         }
         
-       	ERXBrowser result = (ERXBrowser) _cache.get(ua);
-       	if (result == null) {
-       		String browserName 		= parseBrowserName(ua);
-       		String version 			= parseVersion(ua);
-       		String mozillaVersion	= parseMozillaVersion(ua);
-       		String platform 		= parsePlatform(ua);
-       		NSDictionary userInfo 	= new NSDictionary(
-       				new Object[] {parseCPU(ua), parseGeckoVersion(ua)},
-       				new Object[] {"cpu", "geckoRevision"});
-       		
-        	result = getBrowserInstance(browserName, version, mozillaVersion, platform, userInfo);
-        	_cache.put(ua,result);
+        CachedBrowser cached = _userAgentCache.get(ua);
+        if (cached != null) {
+            cached._lastUsed = System.nanoTime();
+            _userAgentCacheHits.increment();
+            return cached._browser;
+        }
+
+        _userAgentCacheMisses.increment();
+
+        String browserName 		= parseBrowserName(ua);
+        String version 			= parseVersion(ua);
+        String mozillaVersion	= parseMozillaVersion(ua);
+        String platform 		= parsePlatform(ua);
+        NSDictionary userInfo 	= new NSDictionary(
+        		new Object[] {parseCPU(ua), parseGeckoVersion(ua)},
+        		new Object[] {"cpu", "geckoRevision"});
+
+        ERXBrowser result = getBrowserInstance(browserName, version, mozillaVersion, platform, userInfo);
+
+        if (_userAgentCacheSize > 0 && ua.length() <= _maxCachedUserAgentLength) {
+            cached = _userAgentCache.putIfAbsent(ua, new CachedBrowser(result));
+
+            // Another thread parsed the same UA first, share it's browser
+            if (cached != null) {
+                return cached._browser;
+            }
+
+            if (_userAgentCache.size() > _userAgentCacheSize) {
+                evictLeastRecentlyUsedUserAgents();
+            }
         }
+
         return result;
     }
 
+    /**
+     * Brings the UA cache down to 90% of it's maximum size by removing the least recently used entries. Evicting a batch at a time keeps the
+     * sort amortized over many insertions. If another thread is already evicting, returns immediately.
+     */
+    private void evictLeastRecentlyUsedUserAgents() {
+        if (!_evictingUserAgents.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            int excess = _userAgentCache.size() - _userAgentCacheSize / 10 * 9;
+
+            if (excess > 0) {
+                // lastUsed is captured up front since it keeps changing while we sort
+                record Candidate(String userAgent, CachedBrowser cached, long lastUsed) {}
+
+                List<Candidate> candidates = new ArrayList<>(_userAgentCache.size());
+                _userAgentCache.forEach((userAgent, cached) -> candidates.add(new Candidate(userAgent, cached, cached._lastUsed)));
+                candidates.sort(Comparator.comparingLong(Candidate::lastUsed));
+
+                for (int i = 0; i < excess && i < candidates.size(); i++) {
+                    Candidate candidate = candidates.get(i);
+
+                    if (_userAgentCache.remove(candidate.userAgent(), candidate.cached())) {
+                        _userAgentCacheEvictions.increment();
+                    }
+                }
+            }
+        }
+        finally {
+            _evictingUserAgents.set(false);
+        }
+    }
+
+    /**
+     * @return Number of UA strings currently cached
+     */
+    public int cachedUserAgentCount() {
+        return _userAgentCache.size();
+    }
+
+    /**
+     * @return Number of UA lookups answered from the cache since startup
+     */
+    public long userAgentCacheHits() {
+        return _userAgentCacheHits.sum();
+    }
+
+    /**
+     * @return Number of UA lookups that had to parse the UA since startup
+     */
+    public long userAgentCacheMisses() {
+        return _userAgentCacheMisses.sum();
+    }
+
+    /**
+     * @return Number of UA strings evicted from the cache since startup
+     */
+    public long userAgentCacheEvictions() {
+        return _userAgentCacheEvictions.sum();
+    }
+
+    /**
+     * @return Number of browsers currently retained in the browser pool
+     */
+    public int pooledBrowserCount() {
+        return _browserPool.size();
+    }
+
     /** 
      * Gets a shared browser object from browser pool. If such browser 
      * object does not exist, this method will create one by using 
@@ -274,12 +399,12 @@ public class ERXBrowserFactory {
      * 
      * @return a shared browser object
      */
-    public synchronized ERXBrowser getBrowserInstance(String browserName, String version, String mozillaVersion, String platform, NSDictionary userInfo) {
+    public ERXBrowser getBrowserInstance(String browserName, String version, String mozillaVersion, String platform, NSDictionary userInfo) {
         String key = _computeKey(browserName, version, mozillaVersion, platform, userInfo);
-        ERXBrowser browser = (ERXBrowser)_browserPool().objectForKey(key);
-        if (browser == null) 
-            browser = createBrowser(browserName, version, mozillaVersion, platform, userInfo);
-        return browser;
+        PooledBrowser pooled = _browserPool.get(key);
+        if (pooled != null)
+            return pooled.browser();
+        return createBrowser(browserName, version, mozillaVersion, platform, userInfo);
     }
 
     /** 
@@ -300,7 +425,7 @@ public class ERXBrowserFactory {
      * 
      * @return new browser object that is a concrete subclass of <code>ERXBrowser</code>
      */
-    public synchronized ERXBrowser createBrowser(String browserName, String version, String mozillaVersion, String platform, NSDictionary userInfo) {
+    public ERXBrowser createBrowser(String browserName, String version, String mozillaVersion, String platform, NSDictionary userInfo) {
         ERXBrowser browser = null;
         try {
             browser = _createBrowserWithClassName(browserClassNameForBrowserNamed(browserName), browserName, version, mozillaVersion, platform, userInfo);
@@ -346,10 +471,10 @@ public class ERXBrowserFactory {
      * 
      * @param browser to be retained
      */
-    public synchronized void retainBrowser(ERXBrowser browser) {
+    public void retainBrowser(ERXBrowser browser) {
         String key = _computeKey(browser);
-        _browserPool().setObjectForKey(browser, key);
-        _incrementReferenceCounterForKey(key);
+        PooledBrowser pooled = _browserPool.compute(key, (_, current) -> current == null ? new PooledBrowser(browser, 1) : new PooledBrowser(current.browser(), current.retainCount() + 1));
+        log.debug("retainBrowser() - count = {}, key = {}", pooled.retainCount(), key);
     }
 
     /**
@@ -357,16 +482,10 @@ public class ERXBrowserFactory {
      * 
      * @param browser to be released
      */
-    public synchronized void releaseBrowser(ERXBrowser browser) {
+    public void releaseBrowser(ERXBrowser browser) {
         String key = _computeKey(browser);
-        AtomicInteger count = _decrementReferenceCounterForKey(key);
-        if (count == null) {
-            // Perhaps forgot to call registerBrowser() but try to remove the browser for sure
-            _browserPool().removeObjectForKey(key);
-        } else if (count.intValue() <= 0) {
-            _browserPool().removeObjectForKey(key);
-            _referenceCounters().removeObjectForKey(key);
-        } 
+        PooledBrowser pooled = _browserPool.computeIfPresent(key, (_, current) -> current.retainCount() <= 1 ? null : new PooledBrowser(current.browser(), current.retainCount() - 1));
+        log.debug("releaseBrowser() - count = {}, key = {}", pooled == null ? 0 : pooled.retainCount(), key);
     }
 
     /**
@@ -402,26 +521,21 @@ public class ERXBrowserFactory {
         return browser;
     }
 
+    /**
+     * The expressions in robots.txt, compiled the first time we need them (the holder class is initialized by the JVM, so there's no lock after that)
+     */
+    private static final class RobotMatcherHolder {
+        private static final ERXRobotMatcher MATCHER = ERXRobotMatcher.fromRobotsTxt(ERXUtilities.readStringFromBundleResource("robots.txt", "ERExtensions", null, StandardCharsets.UTF_8));
+    }
+
     private boolean isRobot(String userAgent) {
-    	synchronized (robotExpressions) {
-			if(robotExpressions.count()==0) {
-				String strings = ERXUtilities.readStringFromBundleResource("robots.txt", "ERExtensions", null, StandardCharsets.UTF_8);
-				for (String item : NSArray.componentsSeparatedByString(strings, "\n")) {
-					if(item.trim().length() > 0 && item.charAt(0) != '#') {
-						robotExpressions.addObject(Pattern.compile(item));
-					}
-				}
-			}
-			userAgent = userAgent.toLowerCase();
-			for (Pattern pattern : robotExpressions) {
-				if (pattern.matcher(userAgent).find()) {
-					log.debug("{} matches {}", pattern, userAgent);
-					return true;
-				}
-			}
-		}
-		
-    	return false;
+        boolean isRobot = RobotMatcherHolder.MATCHER.matches(userAgent.toLowerCase());
+
+        if (isRobot) {
+            log.debug("{} is a robot", userAgent);
+        }
+
+        return isRobot;
     }
     
     public String parseGeckoVersion(String userAgent) {
@@ -586,43 +700,15 @@ public class ERXBrowserFactory {
         return userAgent;
     }
 
-    private NSMutableDictionary _browserPool;
-    private NSMutableDictionary _browserPool() { 
-        if (_browserPool == null) 
-            _browserPool = new NSMutableDictionary();
-        return _browserPool;
-    }
-
-    private NSMutableDictionary _referenceCounters;
-    private NSMutableDictionary _referenceCounters() {
-        if (_referenceCounters == null)
-            _referenceCounters = new NSMutableDictionary();
-        return _referenceCounters;
-    }
-
-    private AtomicInteger _incrementReferenceCounterForKey(String key) {
-        AtomicInteger count = (AtomicInteger)_referenceCounters().objectForKey(key);
-        if (count != null) {
-        	count.incrementAndGet();
-        }
-        else {
-            count = new AtomicInteger(1);
-            _referenceCounters().setObjectForKey(count, key);
-        }
-        log.debug("_incrementReferenceCounterForKey() - count = {}, key = {}", count, key);
-        return count;
-    }
+    /**
+     * A browser in the pool and the number of times it's been retained
+     */
+    private record PooledBrowser(ERXBrowser browser, int retainCount) {}
 
-    private AtomicInteger _decrementReferenceCounterForKey(String key) {
-    	AtomicInteger count = (AtomicInteger)_referenceCounters().objectForKey(key);
-    	
-        if (count != null) {
-        	count.decrementAndGet();
-        }
-        
-        log.debug("_decrementReferenceCounterForKey() - count = {}, key = {}", count, key);
-        return count;
-    }
+    /**
+     * Retained browsers by key. Retain counts are updated atomically per key through compute(), so there's no lock on the factory.
+     */
+    private final ConcurrentHashMap<String, PooledBrowser> _browserPool = new ConcurrentHashMap<>();
 
     private String _computeKey(ERXBrowser browser) {
         return browser.browserName() + "." + browser.version() + "." + browser.mozillaVersion() + "." + browser.platform() + "." + browser.userInfo();
@@ -0,0 +1,381 @@
+package er.extensions.browser;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Tells whether a user-agent string matches any of a list of robot expressions (the format of ERExtensions' robots.txt, one regular expression per line),
+ * in a single pass over the string and without locking.
+ * <p>
+ * Almost all robot expressions are plain words ("googlebot", "acme\.spider"). Those are compiled into one Aho-Corasick automaton, flattened into a
+ * transition table, so every character of the user-agent is looked at once however many words there are. The few real regular expressions
+ * ("calif[^r]") are only run when the automaton has found a word they can't match without ("calif"), so user-agents of ordinary browsers never
+ * get to java.util.regex at all. An expression we can't find such a word in is run on every user-agent.
+ * <p>
+ * Previously every expression was a separate Pattern, run in sequence while holding a global lock.
+ * <p>
+ * Immutable, so a single instance can be shared by all threads.
+ */
+
+public final class ERXRobotMatcher {
+
+	private static final int ROOT = 0;
+
+	/**
+	 * Characters that make an expression a regular expression unless escaped
+	 */
+	private static final String METACHARACTERS = ".[]{}()*+?^$|";
+
+	/**
+	 * Maps an ASCII character to it's column in the transition table. Characters that don't occur in any word (including all non-ASCII characters) map to column 0.
+	 */
+	private final int[] _columns = new int[128];
+
+	/**
+	 * Number of columns in the transition table
+	 */
+	private final int _columnCount;
+
+	/**
+	 * The automaton's next state, indexed by (state * _columnCount + column)
+	 */
+	private final int[] _transitions;
+
+	/**
+	 * true for states where a word ends
+	 */
+	private final boolean[] _accepting;
+
+	/**
+	 * Indexes (in _patterns) of the expressions whose required word ends in each state. null for states where none does.
+	 */
+	private final int[][] _candidates;
+
+	/**
+	 * The expressions that aren't plain words
+	 */
+	private final Pattern[] _patterns;
+
+	/**
+	 * Indexes (in _patterns) of the expressions we couldn't find a required word in
+	 */
+	private final int[] _unconditionalPatterns;
+
+	/**
+	 * @param expressions regular expressions, each matched anywhere in the user-agent (as by {@link java.util.regex.Matcher#find()})
+	 */
+	public ERXRobotMatcher( final List<String> expressions ) {
+		// The words we look for, and for each the index of the pattern it's the required word of (-1 if it's a plain word expression)
+		final List<String> words = new ArrayList<>();
+		final List<Integer> wordPatterns = new ArrayList<>();
+		final List<Pattern> patterns = new ArrayList<>();
+		final List<Integer> unconditionalPatterns = new ArrayList<>();
+
+		for( String expression : expressions ) {
+			final String word = wordFromExpression( expression );
+
+			if( word != null ) {
+				words.add( word );
+				wordPatterns.add( -1 );
+			}
+			else {
+				final String requiredWord = requiredWordInExpression( expression );
+
+				if( requiredWord != null ) {
+					words.add( requiredWord );
+					wordPatterns.add( patterns.size() );
+				}
+				else {
+					unconditionalPatterns.add( patterns.size() );
+				}
+
+				patterns.add( Pattern.compile( expression ) );
+			}
+		}
+
+		int columnCount = 1;
+
+		for( String word : words ) {
+			for( int i = 0; i < word.length(); i++ ) {
+				final char c = word.charAt( i );
+
+				if( _columns[c] == 0 ) {
+					_columns[c] = columnCount++;
+				}
+			}
+		}
+
+		_columnCount = columnCount;
+
+		// Build the trie. -1 means there's no edge (yet).
+		final List<int[]> trie = new ArrayList<>();
+		final List<Boolean> accepting = new ArrayList<>();
+		final List<List<Integer>> candidates = new ArrayList<>();
+		trie.add( newRow( columnCount ) );
+		accepting.add( false );
+		candidates.add( List.of() );
+
+		for( int w = 0; w < words.size(); w++ ) {
+			final String word = words.get( w );
+			int state = ROOT;
+
+			for( int i = 0; i < word.length(); i++ ) {
+				final int column = _columns[word.charAt( i )];
+
+				if( trie.get( state )[column] == -1 ) {
+					trie.get( state )[column] = trie.size();
+					trie.add( newRow( columnCount ) );
+					accepting.add( false );
+					candidates.add( List.of() );
+				}
+
+				state = trie.get( state )[column];
+			}
+
+			if( wordPatterns.get( w ) == -1 ) {
+				accepting.set( state, true );
+			}
+			else {
+				final List<Integer> stateCandidates = new ArrayList<>( candidates.get( state ) );
+				stateCandidates.add( wordPatterns.get( w ) );
+				candidates.set( state, stateCandidates );
+			}
+		}
+
+		// Turn it into a DFA by filling in the missing edges through the failure links, breadth first so a state's failure state is always done before it
+		final int stateCount = trie.size();
+		final int[] failure = new int[stateCount];
+		_transitions = new int[stateCount * columnCount];
+		_accepting = new boolean[stateCount];
+		_candidates = new int[stateCount][];
+
+		final ArrayDeque<Integer> queue = new ArrayDeque<>();
+
+		for( int column = 0; column < columnCount; column++ ) {
+			final int next = trie.get( ROOT )[column];
+
+			if( next == -1 ) {
+				_transitions[column] = ROOT;
+			}
+			else {
+				_transitions[column] = next;
+				failure[next] = ROOT;
+				queue.add( next );
+			}
+		}
+
+		while( !queue.isEmpty() ) {
+			final int state = queue.poll();
+			_accepting[state] = accepting.get( state ) || _accepting[failure[state]];
+
+			// A state also ends every word that ends in it's failure state
+			if( !candidates.get( state ).isEmpty() || _candidates[failure[state]] != null ) {
+				final List<Integer> stateCandidates = new ArrayList<>( candidates.get( state ) );
+
+				if( _candidates[failure[state]] != null ) {
+					for( int candidate : _candidates[failure[state]] ) {
+						stateCandidates.add( candidate );
+					}
+				}
+
+				_candidates[state] = stateCandidates.stream().distinct().mapToInt( Integer::intValue ).toArray();
+			}
+
+			for( int column = 0; column < columnCount; column++ ) {
+				final int next = trie.get( state )[column];
+				final int fallback = _transitions[failure[state] * columnCount + column];
+
+				if( next == -1 ) {
+					_transitions[state * columnCount + column] = fallback;
+				}
+				else {
+					_transitions[state * columnCount + column] = next;
+					failure[next] = fallback;
+					queue.add( next );
+				}
+			}
+		}
+
+		_patterns = patterns.toArray( Pattern[]::new );
+		_unconditionalPatterns = unconditionalPatterns.stream().mapToInt( Integer::intValue ).toArray();
+	}
+
+	/**
+	 * @param robotsTxt Contents of a robots.txt file, one expression per line. Empty lines and lines starting with # are ignored. null matches nothing.
+	 */
+	public static ERXRobotMatcher fromRobotsTxt( final String robotsTxt ) {
+		final List<String> expressions = new ArrayList<>();
+
+		if( robotsTxt == null ) {
+			return new ERXRobotMatcher( expressions );
+		}
+
+		for( String line : robotsTxt.split( "\n" ) ) {
+			if( line.trim().length() > 0 && line.charAt( 0 ) != '#' ) {
+				expressions.add( line );
+			}
+		}
+
+		return new ERXRobotMatcher( expressions );
+	}
+
+	/**
+	 * @param userAgent the string to check, lowercased (the expressions are matched case sensitively)
+	 * @return true if any of the expressions matches the given string
+	 */
+	public boolean matches( final String userAgent ) {
+		int state = ROOT;
+
+		// Patterns we've already run, allocated when we first run one
+		boolean[] tried = null;
+
+		for( int i = 0; i < userAgent.length(); i++ ) {
+			final char c = userAgent.charAt( i );
+			state = _transitions[state * _columnCount + (c < 128 ? _columns[c] : 0)];
+
+			if( _accepting[state] ) {
+				return true;
+			}
+
+			if( _candidates[state] != null ) {
+				if( tried == null ) {
+					tried = new boolean[_patterns.length];
+				}
+
+				for( int candidate : _candidates[state] ) {
+					if( !tried[candidate] ) {
+						tried[candidate] = true;
+
+						if( _patterns[candidate].matcher( userAgent ).find() ) {
+							return true;
+						}
+					}
+				}
+			}
+		}
+
+		for( int index : _unconditionalPatterns ) {
+			if( _patterns[index].matcher( userAgent ).find() ) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * @return The literal ASCII string the given expression matches if it's a plain word (possibly with escaped punctuation), null if it's a real regular expression
+	 */
+	private static String wordFromExpression( final String expression ) {
+		final StringBuilder word = new StringBuilder( expression.length() );
+
+		for( int i = 0; i < expression.length(); i++ ) {
+			char c = expression.charAt( i );
+
+			if( c == '\\' ) {
+				// An escaped letter or digit is a character class (\d, \w...) or some other construct, not a literal
+				if( i + 1 == expression.length() || Character.isLetterOrDigit( expression.charAt( i + 1 ) ) ) {
+					return null;
+				}
+
+				c = expression.charAt( ++i );
+			}
+			else if( METACHARACTERS.indexOf( c ) != -1 ) {
+				return null;
+			}
+
+			if( c >= 128 ) {
+				return null;
+			}
+
+			word.append( c );
+		}
+
+		return word.isEmpty() ? null : word.toString();
+	}
+
+	/**
+	 * @return The longest run of literal characters in the given expression if the expression is a plain sequence (literal characters, escaped
+	 * punctuation, character classes, '.', '^' and '$'), since every match of such an expression contains that run. null if it's anything else
+	 * (alternation, groups, quantifiers) or has no literal characters.
+	 */
+	private static String requiredWordInExpression( final String expression ) {
+		String longest = "";
+		final StringBuilder current = new StringBuilder();
+
+		for( int i = 0; i < expression.length(); i++ ) {
+			char c = expression.charAt( i );
+
+			if( c == '\\' ) {
+				if( i + 1 == expression.length() || Character.isLetterOrDigit( expression.charAt( i + 1 ) ) ) {
+					return null;
+				}
+
+				c = expression.charAt( ++i );
+			}
+			else if( c == '[' ) {
+				// A character class (matches a single character, so it ends the run). Skip to it's end.
+				i++;
+
+				if( i < expression.length() && expression.charAt( i ) == '^' ) {
+					i++;
+				}
+
+				// A ']' right at the start is a literal
+				if( i < expression.length() && expression.charAt( i ) == ']' ) {
+					i++;
+				}
+
+				while( i < expression.length() && expression.charAt( i ) != ']' ) {
+					if( expression.charAt( i ) == '[' || expression.charAt( i ) == '&' ) {
+						return null;
+					}
+
+					if( expression.charAt( i ) == '\\' ) {
+						i++;
+					}
+
+					i++;
+				}
+
+				if( i >= expression.length() ) {
+					return null;
+				}
+
+				longest = longer( longest, current );
+				current.setLength( 0 );
+				continue;
+			}
+			else if( c == '.' || c == '^' || c == '$' ) {
+				longest = longer( longest, current );
+				current.setLength( 0 );
+				continue;
+			}
+			else if( METACHARACTERS.indexOf( c ) != -1 ) {
+				return null;
+			}
+
+			if( c >= 128 ) {
+				return null;
+			}
+
+			current.append( c );
+		}
+
+		longest = longer( longest, current );
+		return longest.isEmpty() ? null : longest;
+	}
+
+	private static String longer( final String longest, final CharSequence current ) {
+		return current.length() > longest.length() ? current.toString() : longest;
+	}
+
+	private static int[] newRow( final int columnCount ) {
+		final int[] row = new int[columnCount];
+		Arrays.fill( row, -1 );
+		return row;
+	}
+}
@@ -1,10 +1,18 @@
 package er.extensions.resources;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
 import com.webobjects.appserver.WOContext;
 import com.webobjects.appserver.WORequest;
 import com.webobjects.foundation.NSArray;
 
+import er.extensions.appserver.ERXApplication;
 import er.extensions.appserver.ERXWOContext;
+import er.extensions.foundation.ERXProperties;
 
 /**
  * ResourceManager implementation for serving web server resources through the application (rather than the web server "split install")
@@ -12,6 +20,11 @@ import er.extensions.appserver.ERXWOContext;
  * URLs look the same in development and production, containing frameworkName, resourceName and languages.
  * The request handler looks at the URL, finds the data and serves it.
  * This means serving of resources is entirely controlled from within the application and works identically in development and production.
+ *
+ * If <code>er.extensions.ERXAppBasedResourceManager.fingerprintURLs</code> is true, generated URLs carry a hash of the resource's content
+ * (framework/resourceName?v=[hash]) so the request handler can serve them as immutable and browsers never need to ask for them again.
+ * The hash is computed the first time a URL for the resource is generated and kept for the application's lifetime, except in development,
+ * where it's computed for every URL so edited resources get new URLs right away.
  */
 
 public class ERXAppBasedResourceManager extends ERXResourceManagerBase {
@@ -27,6 +40,26 @@ public class ERXAppBasedResourceManager extends ERXResourceManagerBase {
 	 */
 	public static final String URL_ROUTE_PREFIX = "/wres/";
 
+	/**
+	 * Query parameter holding the fingerprint in a fingerprinted URL (framework/resourceName?v=[fingerprint])
+	 */
+	static final String FINGERPRINT_KEY = "v";
+
+	/**
+	 * Indicates if we're generating fingerprinted URLs.
+	 *
+	 * The fingerprint goes in the query string rather than the path, so a fingerprinted URL has the same path as the plain one and relative
+	 * references inside a resource (like url(../../otherfw/x.png) in a stylesheet) resolve just as they would without fingerprinting.
+	 * Those references don't carry a fingerprint themselves though, so what they point to is served with the regular Cache-Control,
+	 * not as immutable. Generate such URLs through the resource manager if they should be.
+	 */
+	private final boolean _fingerprintURLs = ERXProperties.booleanForKeyWithDefault( "er.extensions.ERXAppBasedResourceManager.fingerprintURLs", false );
+
+	/**
+	 * Content hash for each framework/resourceName we've generated a fingerprinted URL for. Empty string for resources we can't fingerprint (i.e. that weren't found).
+	 */
+	private final Map<String, String> _fingerprints = new ConcurrentHashMap<>();
+
 	/**
 	 * Generates a URL for the given resource. Format: .../App.woa/res/[framework]/[resourceName]?languages=[lang1,lang2,lang3]
 	 * 
@@ -39,11 +72,60 @@ public class ERXAppBasedResourceManager extends ERXResourceManagerBase {
 			frameworkName = "app";
 		}
 
+		final String resourcePath = frameworkName + "/" + resourceName;
+		final String queryString = _fingerprintURLs ? fingerprintQueryString( resourceName, frameworkName ) : null;
+
 		if( USE_NEW_URLS ) {
-			return URL_ROUTE_PREFIX + frameworkName + "/" + resourceName;
+			return URL_ROUTE_PREFIX + resourcePath + (queryString != null ? "?" + queryString : "");
+		}
+
+		return context( request ).urlWithRequestHandlerKey(ERXAppBasedResourceRequestHandler.KEY, resourcePath, queryString);
+	}
+
+	/**
+	 * @return The query string carrying the given resource's fingerprint, i.e. v=[fingerprint]. null if the resource doesn't exist.
+	 */
+	private String fingerprintQueryString( final String resourceName, final String frameworkName ) {
+		final String path = frameworkName + "/" + resourceName;
+
+		final String fingerprint;
+
+		if( ERXApplication.isDevelopmentModeSafe() ) {
+			fingerprint = fingerprint( resourceName, frameworkName );
+		}
+		else {
+			fingerprint = _fingerprints.computeIfAbsent( path, _ -> fingerprint( resourceName, frameworkName ) );
+		}
+
+		if( fingerprint.isEmpty() ) {
+			return null;
 		}
 
-		return context( request ).urlWithRequestHandlerKey(ERXAppBasedResourceRequestHandler.KEY, frameworkName + "/" + resourceName, null);
+		return FINGERPRINT_KEY + "=" + fingerprint;
+	}
+
+	/**
+	 * @return The given resource's content hash, empty string if it's not a webserver resource we can serve
+	 */
+	private String fingerprint( final String resourceName, final String frameworkName ) {
+
+		if( !isWebServerResource( resourceName, frameworkName ) ) {
+			return "";
+		}
+
+		// Streamed, so hashing a large resource doesn't read it into the heap
+		final URL url = pathURLForResourceNamed( resourceName, frameworkName, null );
+
+		if( url == null ) {
+			return "";
+		}
+
+		try( InputStream stream = url.openStream() ) {
+			return ERXAppBasedResourceRequestHandler.contentHash( stream );
+		}
+		catch( IOException e ) {
+			return "";
+		}
 	}
 
 	/**
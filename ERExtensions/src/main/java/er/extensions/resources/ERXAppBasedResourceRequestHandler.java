@@ -1,8 +1,40 @@
 package er.extensions.resources;
 
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.Deflater;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.webobjects.appserver.WOApplication;
 import com.webobjects.appserver.WORequest;
@@ -11,6 +43,9 @@ import com.webobjects.appserver.WOResponse;
 import com.webobjects.foundation.NSDictionary;
 
 import er.extensions.appserver.ERXApplication;
+import er.extensions.appserver.ERXFileResponse;
+import er.extensions.appserver.ERXResponseCompression;
+import er.extensions.foundation.ERXProperties;
 
 /**
  * Request handler for serving web server resources through the application (rather than the web server "split install").
@@ -19,42 +54,138 @@ import er.extensions.appserver.ERXApplication;
  * The request handler looks at the URL, finds the data and serves it.
  * This means serving of resources is entirely controlled from within the application and works identically in development and production.
  *
+ * In production, responses are kept in an in-memory cache that's bounded both by number of entries and by bytes, evicting the least recently used.
+ * Paths that weren't found (404) are cached separately and only for a short while, so requests for bogus paths don't cost a resource lookup each,
+ * but can't fill the cache either. Configured by properties under <code>er.extensions.ERXAppBasedResourceRequestHandler.</code>
+ *
+ * <ul>
+ * <li>cacheMaxEntries: Maximum number of cached resources (default 2000)</li>
+ * <li>cacheMaxBytes: Maximum total size of cached resources (default 64MB)</li>
+ * <li>cacheMaxEntrySize: Resources larger than this are never cached (default 4MB)</li>
+ * <li>notFoundCacheSeconds: How long a 404 is remembered (default 60, 0 disables)</li>
+ * <li>notFoundCacheMaxEntries: Maximum number of remembered 404s (default 1000)</li>
+ * <li>largeResourceSize: Resources of this size or larger are served from a file rather than the heap (default 1MB)</li>
+ * </ul>
+ *
+ * Large resources (fonts, PDFs, video) are never read into the heap. They're served from their file as an {@link ERXFileResponse}, which our adaptors
+ * send with FileChannel.transferTo() (single ranges too). Resources inside jars are first copied to a temporary file. For these, the cache only holds
+ * metadata (file, length, headers and validators), so they take up no room in it's byte budget. A file's hash (and a jar resource's copy) is
+ * reused until the file's size or modification time changes, and a cached entry whose file has gone or changed length is reloaded.
+ *
+ * Range requests are supported (single ranges and multipart/byteranges, see {@link ERXRangeRequest}), so media elements can seek and resume.
+ *
+ * Found resources carry a strong ETag (a hash of their content, computed once per loaded resource) and a Last-Modified (the resource file's modification
+ * time, or the application's start time for resources inside jars), and conditional requests (If-None-Match, If-Modified-Since) are answered with
+ * 304 Not Modified. Client-side caching is controlled by Cache-Control, settable per content type:
+ *
+ * <ul>
+ * <li>cacheControl: Default Cache-Control header in production (default "public, max-age=3600")</li>
+ * <li>cacheControl.[type]/[subtype] and cacheControl.[type]/*: Cache-Control for the given content type, e.g. <code>er.extensions.ERXAppBasedResourceRequestHandler.cacheControl.image/*=public, max-age=86400</code></li>
+ * </ul>
+ *
+ * In development, resources are sent with "no-cache", so the browser revalidates them on every use and picks up changes at once (while unchanged ones still get a 304).
+ *
+ * URLs fingerprinted by {@link ERXAppBasedResourceManager} (framework/resourceName?v=[hash]) are served from the plain resource. If the hash is the
+ * resource's current content hash, the response is sent as "public, max-age=31536000, immutable" since that URL can never point to different content.
+ * Any other hash (a stale URL) or none (say, a relative URL in a stylesheet) gets the resource's regular Cache-Control.
+ *
+ * Cached text resources (text/*, JavaScript, JSON, XML, SVG and ERXResponseCompression's responseCompressionTypes) of 1KB or more are gzipped once,
+ * at the highest compression level, when they're loaded. Clients that accept gzip get that copy (with it's own ETag), the others get the original,
+ * both with "Vary: Accept-Encoding". ERXResponseCompression leaves these responses alone, so text resources no longer cost a compression per request.
+ *
  * Work to do before labeling this "totally ready":
  * 
- * FIXME: Resource cache needs work (currently stores all resources in-memory indefinitely in production) // Hugi 2025-10-04
- * FIXME: Support range requests (Range / 206 Partial Content / Accept-Ranges). We currently always serve a full 200 with the whole resource, ignoring Range headers. This breaks media: a <video> element streams via range requests, and browsers tend not to cache range-incapable media — so e.g. an autoplay marketing video re-downloads in full on every refresh, and seeking is degraded. // Hugi 2026-06-04
- * TODO: Add some nice way to control client-side caching (i.e. set caching headers on the response) // Hugi 2025-10-04
  * TODO: Handle localized resources // Hugi 2025-10-04
  * TODO: ERXResourceManager's "resource versioning" is a nice idea, we could do with something like that // Hugi 2025-10-05
- * TODO: Along the lines of versioning, we should see if serving ETag headers is worth the effort // Hugi 2025-11-16
  * TODO: Look into "resource processing". E.g. for templating in resources // Hugi 2025-10-05
  */
 
 public class ERXAppBasedResourceRequestHandler extends WORequestHandler {
 
+	private static final Logger logger = LoggerFactory.getLogger( ERXAppBasedResourceRequestHandler.class );
+
 	/**
 	 * Default request handler key
 	 */
 	public static final String KEY = "res";
 
+	/**
+	 * Prefix of our properties
+	 */
+	private static final String PROPERTY_PREFIX = "er.extensions.ERXAppBasedResourceRequestHandler.";
+
+	/**
+	 * Format of HTTP dates (IMF-fixdate). DateTimeFormatter.RFC_1123_DATE_TIME won't do for formatting since it doesn't zero pad the day of month.
+	 */
+	private static final DateTimeFormatter HTTP_DATE_FORMATTER = DateTimeFormatter.ofPattern( "EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US ).withZone( ZoneOffset.UTC );
+
+	/**
+	 * Used as Last-Modified for resources we can't get a modification time for (the ones inside jars). They can't change while we're running.
+	 */
+	private static final Instant STARTED_AT = Instant.now().truncatedTo( ChronoUnit.SECONDS );
+
+	/**
+	 * Cache-Control for a fingerprinted URL whose fingerprint matches the resource's content
+	 */
+	private static final String IMMUTABLE_CACHE_CONTROL = "public, max-age=31536000, immutable";
+
+	/**
+	 * Content types we precompress in addition to text/* and ERXResponseCompression.responseCompressionTypes()
+	 */
+	private static final Set<String> PRECOMPRESSED_TYPES = Set.of( "application/javascript", "application/json", "application/xml", "image/svg+xml" );
+
+	/**
+	 * Resources smaller than this aren't worth precompressing
+	 */
+	private static final int PRECOMPRESSION_MINIMUM_SIZE = 1024;
+
 	/**
 	 * Indicates if we want to enable in-memory caching of resources
 	 */
 	private final boolean _useCache;
+
+	/**
+	 * Resources of this size or larger are served from a file instead of being read into the heap
+	 */
+	private final long _largeResourceSize;
+
+	/**
+	 * Directory holding copies of large resources that don't live in a file of their own (i.e. are inside a jar). Created when first needed.
+	 */
+	private Path _spoolDirectory;
+
+	/**
+	 * A file a large resource is served from (it's own, or our copy of it), with it's size and modification time when we hashed it
+	 */
+	private record ResourceFile( Path file, long size, FileTime lastModifiedTime, String hash ) {}
+
+	/**
+	 * The files of the large resources we've loaded, keyed by resource URL. Loading a resource again (on every request in development,
+	 * or after it's been evicted from the cache) reuses the hash, and for a resource inside a jar the copy, as long as the file is unchanged.
+	 */
+	private final Map<String, ResourceFile> _resourceFiles = new ConcurrentHashMap<>();
 	
 	/**
-	 * In-memory resource cache. Stores everything! Forever! Which isn't great. FIXME: Needs work // Hugi 2025-10-04
+	 * In-memory resource cache, keyed by request path
 	 */
-	private final Map<String,CachedResourceResponse> _cache = new ConcurrentHashMap<>();
+	private final ResourceCache _cache;
 
 	public ERXAppBasedResourceRequestHandler() {
 		_useCache = !ERXApplication.isDevelopmentModeSafe();
+		_largeResourceSize = ERXProperties.longForKeyWithDefault( PROPERTY_PREFIX + "largeResourceSize", 1024 * 1024 );
+
+		_cache = new ResourceCache(
+				ERXProperties.intForKeyWithDefault( PROPERTY_PREFIX + "cacheMaxEntries", 2000 ),
+				ERXProperties.longForKeyWithDefault( PROPERTY_PREFIX + "cacheMaxBytes", 64 * 1024 * 1024 ),
+				ERXProperties.longForKeyWithDefault( PROPERTY_PREFIX + "cacheMaxEntrySize", 4 * 1024 * 1024 ),
+				ERXProperties.intForKeyWithDefault( PROPERTY_PREFIX + "notFoundCacheSeconds", 60 ) * 1000L,
+				ERXProperties.intForKeyWithDefault( PROPERTY_PREFIX + "notFoundCacheMaxEntries", 1000 ) );
 	}
 
 	@Override
 	public WOResponse handleRequest(WORequest request) {
 		
-		final String path;
+		final String requestPath;
 
 		if( ERXAppBasedResourceManager.USE_NEW_URLS ) {
 			// WO returns the URI including the query string, so we strip it ourselves
@@ -67,17 +198,39 @@ public class ERXAppBasedResourceRequestHandler extends WORequestHandler {
 				uri = uri.substring(0, questionMarkIndex);
 			}
 
-			path = uri.substring(ERXAppBasedResourceManager.URL_ROUTE_PREFIX.length());
+			requestPath = uri.substring(ERXAppBasedResourceManager.URL_ROUTE_PREFIX.length());
 		}
 		else {
-			path = request.requestHandlerPath();
+			requestPath = request.requestHandlerPath();
 		}
 
-		if( _useCache ) {
-			return _cache.computeIfAbsent(path, _ -> new CachedResourceResponse( responseForPath(path) )).streamingResponse();
+		// Fingerprinted and plain URLs share one cache entry, the fingerprint is in the query string
+		final String fingerprint = request.stringFormValueForKey(ERXAppBasedResourceManager.FINGERPRINT_KEY);
+
+		final CachedResourceResponse resource = _useCache ? cachedResourceForPath(requestPath) : new CachedResourceResponse( responseForPath(requestPath), false );
+		return resource.responseForRequest(request, fingerprint);
+	}
+
+	/**
+	 * @return The resource for the given request handler path, from the cache if possible
+	 */
+	private CachedResourceResponse cachedResourceForPath(final String path) {
+		CachedResourceResponse cached = _cache.get(path);
+
+		if( cached != null && !cached.isFileIntact() ) {
+			// The file a large resource is served from has been deleted (by a tmp cleaner, say) or changed length. Loading it again copies or hashes it again.
+			logger.info( "File of cached resource '{}' is gone or has changed, reloading it", path );
+			_cache.remove(path, cached);
+			cached = null;
+		}
+
+		if( cached == null ) {
+			// Concurrent misses for the same path may each load the resource. That's cheaper than holding a lock over the load, and the last one in wins.
+			cached = new CachedResourceResponse( responseForPath(path), true );
+			_cache.put(path, cached);
 		}
 
-		return responseForPath(path);
+		return cached;
 	}
 
 	/**
@@ -85,6 +238,11 @@ public class ERXAppBasedResourceRequestHandler extends WORequestHandler {
 	 */
 	private WOResponse responseForPath(final String path) {
 		final int firstSlashIndex = path.indexOf('/');
+
+		if( firstSlashIndex == -1 ) {
+			return notFoundResponse(path);
+		}
+
 		final String frameworkName = path.substring( 0, firstSlashIndex );
 		final String resourceName = path.substring(firstSlashIndex+1, path.length());
 		return responseForResource(frameworkName, resourceName);
@@ -96,57 +254,767 @@ public class ERXAppBasedResourceRequestHandler extends WORequestHandler {
 	private WOResponse responseForResource(final String frameworkName, final String resourceName) {
 		final ERXAppBasedResourceManager resourceManager = (ERXAppBasedResourceManager) WOApplication.application().resourceManager();
 
-		final byte[] bytes = resourceManager.bytesForResourceNamed(resourceName, frameworkName, null);
-		
 		// Resource not found or isn't a webserver resource -> 404
-		if( bytes == null || !resourceManager.isWebServerResource( resourceName, frameworkName ) ) {
-			final WOResponse response = new WOResponse();
-			response.setStatus(404);
-			response.setContent("Resource '[%s]/[%s]' not found".formatted(frameworkName, resourceName) );
-			return response;
+		if( !resourceManager.isWebServerResource( resourceName, frameworkName ) ) {
+			return notFoundResponse("[%s]/[%s]".formatted(frameworkName, resourceName));
 		}
 
-		// Resource found, return that thing
 		final String contentType = resourceManager.contentTypeForResourceNamed(resourceName);
+		final URL url = resourceManager.pathURLForResourceNamed(resourceName, frameworkName, null);
+
+		if( url != null && contentLength(url) >= _largeResourceSize ) {
+			return fileResponseForResource(url, frameworkName, resourceName, contentType, resourceManager);
+		}
+
+		final byte[] bytes = resourceManager.bytesForResourceNamed(resourceName, frameworkName, null);
+
+		if( bytes == null ) {
+			return notFoundResponse("[%s]/[%s]".formatted(frameworkName, resourceName));
+		}
+
+		// Resource found, return that thing
 		final String contentLength = String.valueOf( bytes.length );
 
 		final WOResponse response = new WOResponse();
 		response.setContent(bytes);
 		response.setHeader(contentLength, "content-length");
 		response.setHeader(contentType, "content-type");
+		response.setHeader("bytes", "accept-ranges");
+		response.setHeader(etagForContent(bytes), "etag");
+		response.setHeader(HTTP_DATE_FORMATTER.format(lastModified(resourceManager, resourceName, frameworkName)), "last-modified");
+		response.setHeader(cacheControlForContentType(contentType), "cache-control");
+
+		return response;
+	}
+
+	/**
+	 * @return A response serving the given (large) resource from a file. If the resource isn't a file of it's own, it's copied to one first.
+	 */
+	private WOResponse fileResponseForResource(final URL url, final String frameworkName, final String resourceName, final String contentType, final ERXAppBasedResourceManager resourceManager) {
+		final ResourceFile resourceFile;
+
+		try {
+			resourceFile = resourceFile(url, frameworkName + "/" + resourceName);
+		}
+		catch( IOException | URISyntaxException e ) {
+			throw new UncheckedIOException("Failed to serve resource '[%s]/[%s]' from a file".formatted(frameworkName, resourceName), e instanceof IOException ioe ? ioe : new IOException(e));
+		}
+
+		final ERXFileResponse response = new ERXFileResponse(resourceFile.file(), 0, resourceFile.size());
+		response.setHeader(contentType, "content-type");
+		response.setHeader("bytes", "accept-ranges");
+		response.setHeader("\"" + resourceFile.hash() + "\"", "etag");
+		response.setHeader(HTTP_DATE_FORMATTER.format(lastModified(resourceManager, resourceName, frameworkName)), "last-modified");
+		response.setHeader(cacheControlForContentType(contentType), "cache-control");
+		return response;
+	}
+
+	/**
+	 * @param path the resource's request handler path, names the copy of a resource inside a jar
+	 * @return The file to serve the resource at the given URL from, along with it's hash. If we've loaded the resource before and the file hasn't
+	 * changed since, that's what we found then. Otherwise a file: resource is hashed, and any other is copied to a file (and hashed while it's copied).
+	 */
+	private ResourceFile resourceFile(final URL url, final String path) throws IOException, URISyntaxException {
+		final String key = url.toExternalForm();
+		final ResourceFile known = _resourceFiles.get(key);
+
+		if( known != null && isUnchanged(known) ) {
+			return known;
+		}
+
+		final ResourceFile resourceFile;
+
+		if( "file".equals(url.getProtocol()) ) {
+			final Path file = Path.of(url.toURI());
+			final long size = Files.size(file);
+			final FileTime lastModifiedTime = Files.getLastModifiedTime(file);
+
+			try( InputStream stream = Files.newInputStream(file) ) {
+				resourceFile = new ResourceFile(file, size, lastModifiedTime, contentHash(stream));
+			}
+		}
+		else {
+			final Path file = spoolFileFor(path);
+			final Path tempFile = Files.createTempFile(file.getParent(), "spool-", ".tmp");
+			final MessageDigest digest = sha256();
+
+			try {
+				try( InputStream stream = new DigestInputStream(url.openStream(), digest) ) {
+					Files.copy(stream, tempFile, StandardCopyOption.REPLACE_EXISTING);
+				}
+
+				// Moved into place atomically so a request still reading an earlier copy keeps reading that one
+				Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			}
+			catch( IOException | RuntimeException e ) {
+				try {
+					Files.deleteIfExists(tempFile);
+				}
+				catch( IOException deleteException ) {
+					e.addSuppressed(deleteException);
+				}
+
+				throw e;
+			}
+
+			resourceFile = new ResourceFile(file, Files.size(file), Files.getLastModifiedTime(file), encodeHash(digest));
+		}
+
+		_resourceFiles.put(key, resourceFile);
+		return resourceFile;
+	}
+
+	/**
+	 * @return true if the given file still exists with the size and modification time it had when we hashed it
+	 */
+	private static boolean isUnchanged(final ResourceFile resourceFile) {
+		try {
+			return Files.size(resourceFile.file()) == resourceFile.size() && Files.getLastModifiedTime(resourceFile.file()).equals(resourceFile.lastModifiedTime());
+		}
+		catch( IOException e ) {
+			return false;
+		}
+	}
+
+	/**
+	 * @return The file we copy the resource with the given path to. Named by a hash of the path, so names from requests never become file system paths.
+	 */
+	private synchronized Path spoolFileFor(final String path) throws IOException {
+		if( _spoolDirectory == null ) {
+			_spoolDirectory = Files.createTempDirectory("ERXAppBasedResources-");
+			_spoolDirectory.toFile().deleteOnExit();
+		}
+
+		final Path file = _spoolDirectory.resolve(contentHash(path.getBytes(StandardCharsets.UTF_8)));
+		file.toFile().deleteOnExit();
+		return file;
+	}
+
+	/**
+	 * @return The length of the resource at the given URL, -1 if unknown
+	 */
+	private static long contentLength(final URL url) {
+		try {
+			if( "file".equals(url.getProtocol()) ) {
+				return Files.size(Path.of(url.toURI()));
+			}
+
+			final URLConnection connection = url.openConnection();
+			return connection.getContentLengthLong();
+		}
+		catch( IOException | URISyntaxException | IllegalArgumentException e ) {
+			return -1;
+		}
+	}
+
+	/**
+	 * @return The Cache-Control header to send with a resource of the given content type
+	 */
+	private String cacheControlForContentType(final String contentType) {
+
+		if( !_useCache ) {
+			return "no-cache";
+		}
+
+		final String defaultCacheControl = ERXProperties.stringForKeyWithDefault(PROPERTY_PREFIX + "cacheControl", "public, max-age=3600");
+
+		if( contentType == null ) {
+			return defaultCacheControl;
+		}
+
+		final String mimeType = contentType.split(";")[0].trim().toLowerCase();
+		String cacheControl = ERXProperties.stringForKey(PROPERTY_PREFIX + "cacheControl." + mimeType);
+
+		if( cacheControl == null && mimeType.indexOf('/') > 0 ) {
+			cacheControl = ERXProperties.stringForKey(PROPERTY_PREFIX + "cacheControl." + mimeType.substring(0, mimeType.indexOf('/')) + "/*");
+		}
+
+		return cacheControl != null ? cacheControl : defaultCacheControl;
+	}
+
+	/**
+	 * @return A strong ETag for the given content, i.e. it's quoted content hash
+	 */
+	private static String etagForContent(final byte[] bytes) {
+		return "\"" + contentHash(bytes) + "\"";
+	}
+
+	/**
+	 * @return A hash of the given content, used both for ETags and URL fingerprints: the first 128 bits of it's SHA-256, base64url encoded
+	 */
+	static String contentHash(final byte[] bytes) {
+		final MessageDigest digest = sha256();
+		digest.update(bytes);
+		return encodeHash(digest);
+	}
+
+	/**
+	 * @return The content hash of the given stream's content (read to it's end, not closed)
+	 */
+	static String contentHash(final InputStream stream) throws IOException {
+		final MessageDigest digest = sha256();
+		final byte[] buffer = new byte[64 * 1024];
+		int read;
+
+		while( (read = stream.read(buffer)) != -1 ) {
+			digest.update(buffer, 0, read);
+		}
+
+		return encodeHash(digest);
+	}
+
+	private static MessageDigest sha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		}
+		catch (NoSuchAlgorithmException e) {
+			// SHA-256 is required to be present in every Java platform
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @return The first 128 bits of the given digest, base64url encoded
+	 */
+	private static String encodeHash(final MessageDigest digest) {
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(Arrays.copyOf(digest.digest(), 16));
+	}
+
+	/**
+	 * @return The modification time of the given resource's file. For a resource inside a jar (or one we can't locate) that's the application's start time.
+	 */
+	private static Instant lastModified(final ERXAppBasedResourceManager resourceManager, final String resourceName, final String frameworkName) {
+		final URL url = resourceManager.pathURLForResourceNamed(resourceName, frameworkName, null);
+
+		if( url != null && "file".equals(url.getProtocol()) ) {
+			try {
+				return Files.getLastModifiedTime(Path.of(url.toURI())).toInstant().truncatedTo(ChronoUnit.SECONDS);
+			}
+			catch( IOException | URISyntaxException | IllegalArgumentException e ) {
+				// Fall through to the start time
+			}
+		}
+
+		return STARTED_AT;
+	}
+
+	/**
+	 * @return true if the given If-None-Match header value matches the given ETag (using the weak comparison, as the spec prescribes for If-None-Match)
+	 */
+	private static boolean ifNoneMatchMatches(final String ifNoneMatch, final String etag) {
+
+		if( ifNoneMatch.trim().equals("*") ) {
+			return true;
+		}
+
+		for( String candidate : ifNoneMatch.split(",") ) {
+			candidate = candidate.trim();
+
+			if( candidate.startsWith("W/") ) {
+				candidate = candidate.substring(2);
+			}
+
+			if( candidate.equals(etag) ) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * @return true if we keep a gzipped copy of resources of the given content type
+	 */
+	private static boolean isPrecompressible(final String contentType) {
+
+		if( contentType == null ) {
+			return false;
+		}
+
+		final String mimeType = contentType.split(";")[0].trim().toLowerCase();
+		return mimeType.startsWith("text/") || PRECOMPRESSED_TYPES.contains(mimeType) || ERXResponseCompression.responseCompressionTypes().contains(mimeType);
+	}
+
+	/**
+	 * @return The given bytes gzipped at the highest compression level, or null if that doesn't make them at least 10% smaller
+	 */
+	private static byte[] gzip(final byte[] bytes) {
+		final byte[] gzipped = ERXResponseCompression.gzip(bytes, Deflater.BEST_COMPRESSION);
+		return gzipped.length < bytes.length * 0.9 ? gzipped : null;
+	}
+
+	/**
+	 * @return true if the given Accept-Encoding header value allows gzip
+	 */
+	private static boolean acceptsGzip(final String acceptEncoding) {
+
+		if( acceptEncoding == null ) {
+			return false;
+		}
+
+		for( String coding : acceptEncoding.split(",") ) {
+			final String[] parts = coding.split(";");
+			final String name = parts[0].trim();
+
+			if( name.equalsIgnoreCase("gzip") || name.equals("*") ) {
+				for( int i = 1; i < parts.length; i++ ) {
+					final String parameter = parts[i].trim();
+
+					if( parameter.startsWith("q=") ) {
+						try {
+							return Double.parseDouble(parameter.substring(2)) > 0;
+						}
+						catch( NumberFormatException e ) {
+							return false;
+						}
+					}
+				}
 
-		// FIXME: Temporarily setting one hour client-side caching (in production). This should be user controllable // Hugi 2025-10-04
-		if( _useCache ) {
-			response.setHeader("public, max-age=3600", "cache-control" );
+				return true;
+			}
 		}
 
+		return false;
+	}
+
+	/**
+	 * @return The given HTTP date as an Instant, or null if it can't be parsed
+	 */
+	private static Instant parseHttpDate(final String date) {
+		try {
+			return ZonedDateTime.parse(date.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant();
+		}
+		catch( DateTimeParseException e ) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return A 404 response for the given resource
+	 */
+	private static WOResponse notFoundResponse(final String resourceDescription) {
+		final WOResponse response = new WOResponse();
+		response.setStatus(404);
+		response.setContent("Resource '%s' not found".formatted(resourceDescription) );
 		return response;
 	}
 
 	/**
-	 * Entry for our resource cache
+	 * @return Number of requests served from the resource cache (including remembered 404s)
+	 */
+	public long cacheHits() {
+		return _cache._hits.sum();
+	}
+
+	/**
+	 * @return Number of requests that had to load the resource
+	 */
+	public long cacheMisses() {
+		return _cache._misses.sum();
+	}
+
+	/**
+	 * @return Number of requests answered by a remembered 404
+	 */
+	public long cacheNotFoundHits() {
+		return _cache._notFoundHits.sum();
+	}
+
+	/**
+	 * @return Number of resources evicted from the cache to stay within it's limits (expired 404s not included)
+	 */
+	public long cacheEvictions() {
+		return _cache._evictions.sum();
+	}
+
+	/**
+	 * @return Total size of the resources currently in the cache, including their precompressed copies
+	 */
+	public long cacheBytes() {
+		return _cache.bytes();
+	}
+
+	/**
+	 * @return Number of resources currently in the cache
+	 */
+	public int cacheEntries() {
+		return _cache.entries();
+	}
+
+	/**
+	 * Bounded LRU cache of resource responses. Found resources are limited by count and total bytes, 404s are kept in a separate (smaller, count limited) map and expire.
+	 */
+	private static class ResourceCache {
+
+		private final int _maxEntries;
+		private final long _maxBytes;
+		private final long _maxEntrySize;
+		private final long _notFoundTTLMillis;
+		private final int _maxNotFoundEntries;
+
+		/**
+		 * Found resources, in access order (least recently used first)
+		 */
+		private final LinkedHashMap<String, CachedResourceResponse> _found = new LinkedHashMap<>(16, 0.75f, true);
+
+		/**
+		 * 404s, in insertion order (so oldest, i.e. first to expire, first)
+		 */
+		private final LinkedHashMap<String, CachedResourceResponse> _notFound = new LinkedHashMap<>();
+
+		/**
+		 * Total length of the resources in _found
+		 */
+		private long _bytes;
+
+		private final LongAdder _hits = new LongAdder();
+		private final LongAdder _misses = new LongAdder();
+		private final LongAdder _notFoundHits = new LongAdder();
+		private final LongAdder _evictions = new LongAdder();
+
+		public ResourceCache( final int maxEntries, final long maxBytes, final long maxEntrySize, final long notFoundTTLMillis, final int maxNotFoundEntries ) {
+			_maxEntries = maxEntries;
+			_maxBytes = maxBytes;
+			_maxEntrySize = maxEntrySize;
+			_notFoundTTLMillis = notFoundTTLMillis;
+			_maxNotFoundEntries = maxNotFoundEntries;
+		}
+
+		/**
+		 * @return The cached response for the given path, or null
+		 */
+		public synchronized CachedResourceResponse get( final String path ) {
+			CachedResourceResponse cached = _found.get(path);
+
+			if( cached != null ) {
+				_hits.increment();
+				return cached;
+			}
+
+			cached = _notFound.get(path);
+
+			if( cached != null ) {
+				if( System.currentTimeMillis() - cached._cachedAtMillis < _notFoundTTLMillis ) {
+					_hits.increment();
+					_notFoundHits.increment();
+					return cached;
+				}
+
+				_notFound.remove(path);
+			}
+
+			_misses.increment();
+			return null;
+		}
+
+		/**
+		 * Caches the given response, if it's cacheable, evicting the least recently used resources as required to stay within our limits
+		 */
+		public synchronized void put( final String path, final CachedResourceResponse cached ) {
+
+			if( cached._status == 404 ) {
+				if( _notFoundTTLMillis > 0 && _maxNotFoundEntries > 0 ) {
+					_notFound.remove(path);
+					_notFound.put(path, cached);
+
+					while( _notFound.size() > _maxNotFoundEntries ) {
+						_notFound.pollFirstEntry();
+					}
+				}
+
+				return;
+			}
+
+			if( cached._status != 200 || cached.size() > _maxEntrySize || cached.size() > _maxBytes ) {
+				return;
+			}
+
+			final CachedResourceResponse previous = _found.put(path, cached);
+
+			if( previous != null ) {
+				_bytes -= previous.size();
+			}
+
+			_bytes += cached.size();
+
+			final Iterator<CachedResourceResponse> iterator = _found.values().iterator();
+
+			while( (_bytes > _maxBytes || _found.size() > _maxEntries) && iterator.hasNext() ) {
+				final CachedResourceResponse eldest = iterator.next();
+				iterator.remove();
+				_bytes -= eldest.size();
+				_evictions.increment();
+			}
+		}
+
+		/**
+		 * Removes the given response for the given path, if it's still the one cached
+		 */
+		public synchronized void remove( final String path, final CachedResourceResponse cached ) {
+			if( _found.remove(path, cached) ) {
+				_bytes -= cached.size();
+			}
+		}
+
+		public synchronized long bytes() {
+			return _bytes;
+		}
+
+		public synchronized int entries() {
+			return _found.size();
+		}
+	}
+
+	/**
+	 * Entry for our resource cache. Also used uncached in development, so responses are generated the same way in both.
 	 * 
-	 * TODO: A little silly caching strategy (constructing the streaming response from a non-streaming one). Also; we're not streaming in dev mode // Hugi 2025-10-04 
+	 * TODO: A little silly caching strategy (constructing the streaming response from a non-streaming one) // Hugi 2025-10-04 
 	 */
 	private static class CachedResourceResponse {
 		
 		private final int _status;
 		private final NSDictionary _headers;
+
+		/**
+		 * The content, null if it's served from a file
+		 */
 		private final byte[] _content;
+
+		/**
+		 * The file the content is served from, null if it's in _content
+		 */
+		private final Path _file;
+
 		private final long _length;
+		private final String _contentType;
+		private final String _etag;
+		private final String _lastModified;
+		private final Instant _lastModifiedInstant;
+		private final String _cacheControl;
+		private final long _cachedAtMillis;
+
+		/**
+		 * Indicates that clients get to choose between the original and (if we have one) the gzipped copy, i.e. that we send Vary: Accept-Encoding
+		 */
+		private final boolean _negotiatesEncoding;
 
-		public CachedResourceResponse( final WOResponse response ) {
+		/**
+		 * Gzipped copy of the content, null if we don't have one
+		 */
+		private final byte[] _gzippedContent;
+
+		/**
+		 * ETag of the gzipped copy, a different representation than the original
+		 */
+		private final String _gzippedETag;
+
+		/**
+		 * @param precompress true if we should keep a gzipped copy of a precompressible resource
+		 */
+		public CachedResourceResponse( final WOResponse response, final boolean precompress ) {
 			_status = response.status();
 			_headers = response.headers();
-			_content = response.content().bytes();
-			_length = _content.length;
+
+			if( response instanceof ERXFileResponse fileResponse ) {
+				_content = null;
+				_file = fileResponse.file();
+				_length = fileResponse.length();
+			}
+			else {
+				_content = response.content().bytes();
+				_file = null;
+				_length = _content.length;
+			}
+
+			_contentType = response.headerForKey("content-type");
+			_etag = response.headerForKey("etag");
+			_lastModified = response.headerForKey("last-modified");
+			_lastModifiedInstant = _lastModified != null ? parseHttpDate( _lastModified ) : null;
+			_cacheControl = response.headerForKey("cache-control");
+			_cachedAtMillis = System.currentTimeMillis();
+			_negotiatesEncoding = precompress && _content != null && _status == 200 && isPrecompressible( _contentType );
+			_gzippedContent = _negotiatesEncoding && _length >= PRECOMPRESSION_MINIMUM_SIZE ? gzip( _content ) : null;
+			_gzippedETag = _gzippedContent != null && _etag != null ? _etag.substring( 0, _etag.length() - 1 ) + ".gz\"" : null;
+		}
+
+		/**
+		 * @return true unless we serve from a file that has since been deleted or changed length
+		 */
+		public boolean isFileIntact() {
+			if( _file == null ) {
+				return true;
+			}
+
+			try {
+				return Files.size( _file ) == _length;
+			}
+			catch( IOException e ) {
+				return false;
+			}
+		}
+
+		/**
+		 * @return Heap bytes held by this entry (not counting metadata)
+		 */
+		public long size() {
+			return (_content != null ? _length : 0) + (_gzippedContent != null ? _gzippedContent.length : 0);
+		}
+
+		/**
+		 * @param fingerprint the fingerprint in the requested URL, if any
+		 * @return A response to the given request, the whole resource or the part(s) of it the request's Range header asks for
+		 */
+		public WOResponse responseForRequest( final WORequest request, final String fingerprint ) {
+			final boolean immutable = fingerprint != null && _etag != null && _etag.equals( "\"" + fingerprint + "\"" );
+			final String cacheControl = immutable ? IMMUTABLE_CACHE_CONTROL : _cacheControl;
+			final boolean gzip = _gzippedContent != null && acceptsGzip( request.headerForKey("accept-encoding") );
+
+			if( _status == 200 ) {
+				final String notModifiedETag = notModifiedETag( request, gzip );
+
+				if( notModifiedETag != null ) {
+					return notModifiedResponse( notModifiedETag, cacheControl );
+				}
+			}
+
+			final WOResponse response = responseWithContent( request, gzip );
+
+			if( immutable ) {
+				response.setHeader( cacheControl, "cache-control" );
+			}
+
+			if( _negotiatesEncoding ) {
+				response.setHeader( "Accept-Encoding", "vary" );
+				ERXResponseCompression.disableCompression( response );
+			}
+
+			return response;
 		}
 
-		public WOResponse streamingResponse() {
+		/**
+		 * @return A response with the whole resource, or the part(s) of it the request's Range header asks for
+		 */
+		private WOResponse responseWithContent( final WORequest request, final boolean gzip ) {
+
+			if( _status == 200 && "GET".equals( request.method() ) && ERXRangeRequest.ifRangeMatches( request.headerForKey("if-range"), _etag, _lastModified ) ) {
+				final List<ERXRangeRequest.Range> ranges = ERXRangeRequest.parse( request.headerForKey("range"), _length );
+
+				if( ranges != null ) {
+					if( ranges.isEmpty() ) {
+						final WOResponse response = headersOnlyResponse();
+						ERXRangeRequest.applyUnsatisfiable( response, _length );
+						return response;
+					}
+
+					if( ranges.size() == 1 ) {
+						final ERXRangeRequest.Range range = ranges.getFirst();
+						final WOResponse response = regionResponse( range.first(), range.length() );
+						ERXRangeRequest.applyRange( response, range, _length );
+						return response;
+					}
+
+					final WOResponse response = headersOnlyResponse();
+					ERXRangeRequest.applyRanges( response, ranges, _length, _contentType, _file != null ? ERXRangeRequest.slice( _file ) : ERXRangeRequest.slice( _content ), 32000 );
+					return response;
+				}
+			}
+
+			if( gzip ) {
+				final WOResponse response = headersOnlyResponse();
+				response.setHeader( "gzip", "content-encoding" );
+				response.setHeader( String.valueOf( _gzippedContent.length ), "content-length" );
+				response.setHeader( _gzippedETag, "etag" );
+				response.setContentStream(new ByteArrayInputStream( _gzippedContent ), 32000, _gzippedContent.length);
+				return response;
+			}
+
+			return regionResponse( 0, _length );
+		}
+
+		/**
+		 * @return A response with our status and headers, and [length] bytes of the content starting at [offset]. An ERXFileResponse if we serve from a file, so adaptors can use transferTo().
+		 */
+		private WOResponse regionResponse( final long offset, final long length ) {
+			final WOResponse response = _file != null ? new ERXFileResponse( _file, offset, length ) : new WOResponse();
+			response.setStatus( _status );
+			response.setHeaders(_headers);
+			response.setHeader( String.valueOf( length ), "content-length" );
+
+			if( _content != null ) {
+				response.setContentStream(new ByteArrayInputStream( _content, (int)offset, (int)length ), 32000, length);
+			}
+
+			return response;
+		}
+
+		/**
+		 * @return A response with our status and headers, but no content yet
+		 */
+		private WOResponse headersOnlyResponse() {
 			final WOResponse response = new WOResponse();
 			response.setStatus( _status );
 			response.setHeaders(_headers);
-			response.setContentStream(new ByteArrayInputStream( _content ), 32000, _length);
+			return response;
+		}
+
+		/**
+		 * @param gzip true if we'd send the gzipped copy
+		 * @return If the given request is a conditional GET/HEAD that one of our current representations satisfies, that representation's ETag (to send with a 304). Otherwise null.
+		 * If-None-Match takes precedence over If-Modified-Since.
+		 */
+		private String notModifiedETag( final WORequest request, final boolean gzip ) {
+
+			if( !"GET".equals( request.method() ) && !"HEAD".equals( request.method() ) ) {
+				return null;
+			}
+
+			final String ifNoneMatch = request.headerForKey("if-none-match");
+
+			if( ifNoneMatch != null ) {
+				// The client may hold either representation, so either validates
+				if( _gzippedETag != null && ifNoneMatchMatches( ifNoneMatch, _gzippedETag ) ) {
+					return _gzippedETag;
+				}
+
+				return _etag != null && ifNoneMatchMatches( ifNoneMatch, _etag ) ? _etag : null;
+			}
+
+			final String ifModifiedSince = request.headerForKey("if-modified-since");
+
+			if( ifModifiedSince != null && _lastModifiedInstant != null ) {
+				final Instant since = parseHttpDate( ifModifiedSince );
+
+				if( since != null && !_lastModifiedInstant.isAfter( since ) ) {
+					return gzip ? _gzippedETag : _etag;
+				}
+			}
+
+			return null;
+		}
+
+		/**
+		 * @return A 304 carrying the validators and caching headers a 200 would have had
+		 */
+		private WOResponse notModifiedResponse( final String etag, final String cacheControl ) {
+			final WOResponse response = new WOResponse();
+			response.setStatus( 304 );
+
+			if( etag != null ) {
+				response.setHeader( etag, "etag" );
+			}
+
+			if( _negotiatesEncoding ) {
+				response.setHeader( "Accept-Encoding", "vary" );
+			}
+
+			if( _lastModified != null ) {
+				response.setHeader( _lastModified, "last-modified" );
+			}
+
+			if( cacheControl != null ) {
+				response.setHeader( cacheControl, "cache-control" );
+			}
+
 			return response;
 		}
 	}
@@ -0,0 +1,249 @@
+package er.extensions.resources;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+
+import com.webobjects.appserver.WOResponse;
+
+import er.extensions.appserver.ERXFileResponse;
+
+/**
+ * HTTP range request support (RFC 9110, section 14) for resources we serve whole, i.e. parsing Range/If-Range and turning a full response into a 206 or 416.
+ *
+ * Overlapping and adjacent ranges are coalesced. A Range header we can't parse, or one that still asks for more than MAX_RANGES ranges after coalescing,
+ * is ignored (the spec allows that) so the client gets the full resource.
+ */
+
+final class ERXRangeRequest {
+
+	/**
+	 * Maximum number of ranges we serve in one multipart response
+	 */
+	private static final int MAX_RANGES = 16;
+
+	/**
+	 * A satisfiable byte range, both ends inclusive
+	 */
+	record Range( long first, long last ) {
+
+		long length() {
+			return last - first + 1;
+		}
+
+		String contentRange( final long totalLength ) {
+			return "bytes %s-%s/%s".formatted( first, last, totalLength );
+		}
+	}
+
+	/**
+	 * Provides the content of a part of the resource
+	 */
+	@FunctionalInterface
+	interface Slice {
+		InputStream stream( long offset, long length );
+	}
+
+	private ERXRangeRequest() {}
+
+	/**
+	 * @return A Slice over the given bytes. Doesn't copy them.
+	 */
+	static Slice slice( final byte[] bytes ) {
+		return ( offset, length ) -> new ByteArrayInputStream( bytes, (int)offset, (int)length );
+	}
+
+	/**
+	 * @return A Slice over the given file. Parts are read from the file as they're sent.
+	 */
+	static Slice slice( final Path file ) {
+		return ( offset, length ) -> ERXFileResponse.regionStream( file, offset, length );
+	}
+
+	/**
+	 * @param rangeHeader value of the request's Range header
+	 * @param totalLength length of the resource
+	 * @return The satisfiable ranges in the given header, sorted and coalesced. Empty if none of them is satisfiable (answer 416). null if the header should be ignored (answer 200).
+	 */
+	static List<Range> parse( final String rangeHeader, final long totalLength ) {
+
+		if( rangeHeader == null ) {
+			return null;
+		}
+
+		final int equalsIndex = rangeHeader.indexOf( '=' );
+
+		if( equalsIndex == -1 || !rangeHeader.substring( 0, equalsIndex ).trim().equalsIgnoreCase( "bytes" ) ) {
+			return null;
+		}
+
+		final List<Range> ranges = new ArrayList<>();
+		boolean hasSpecs = false;
+
+		for( String spec : rangeHeader.substring( equalsIndex + 1 ).split( "," ) ) {
+			spec = spec.trim();
+
+			if( spec.isEmpty() ) {
+				continue;
+			}
+
+			hasSpecs = true;
+
+			final int dashIndex = spec.indexOf( '-' );
+
+			if( dashIndex == -1 ) {
+				return null;
+			}
+
+			final String firstString = spec.substring( 0, dashIndex ).trim();
+			final String lastString = spec.substring( dashIndex + 1 ).trim();
+
+			try {
+				if( firstString.isEmpty() ) {
+					// Suffix range, i.e. the last n bytes
+					final long suffixLength = Long.parseLong( lastString );
+
+					if( suffixLength < 0 ) {
+						return null;
+					}
+
+					if( suffixLength > 0 && totalLength > 0 ) {
+						ranges.add( new Range( Math.max( 0, totalLength - suffixLength ), totalLength - 1 ) );
+					}
+				}
+				else {
+					final long first = Long.parseLong( firstString );
+					final long last = lastString.isEmpty() ? Long.MAX_VALUE : Long.parseLong( lastString );
+
+					if( first < 0 || last < first ) {
+						return null;
+					}
+
+					if( first < totalLength ) {
+						ranges.add( new Range( first, Math.min( last, totalLength - 1 ) ) );
+					}
+				}
+			}
+			catch( NumberFormatException e ) {
+				return null;
+			}
+		}
+
+		if( !hasSpecs ) {
+			return null;
+		}
+
+		final List<Range> coalesced = coalesce( ranges );
+
+		if( coalesced.size() > MAX_RANGES ) {
+			return null;
+		}
+
+		return coalesced;
+	}
+
+	/**
+	 * @return The given ranges sorted, with overlapping and adjacent ranges merged
+	 */
+	private static List<Range> coalesce( final List<Range> ranges ) {
+
+		if( ranges.size() < 2 ) {
+			return ranges;
+		}
+
+		ranges.sort( Comparator.comparingLong( Range::first ) );
+
+		final List<Range> result = new ArrayList<>();
+		Range current = ranges.getFirst();
+
+		for( int i = 1; i < ranges.size(); i++ ) {
+			final Range next = ranges.get( i );
+
+			if( next.first() <= current.last() + 1 ) {
+				current = new Range( current.first(), Math.max( current.last(), next.last() ) );
+			}
+			else {
+				result.add( current );
+				current = next;
+			}
+		}
+
+		result.add( current );
+		return result;
+	}
+
+	/**
+	 * @param ifRangeHeader value of the request's If-Range header
+	 * @param etag the resource's current (strong) ETag, if any
+	 * @param lastModified the resource's current Last-Modified header value, if any
+	 * @return true if the Range header should be honored, i.e. there's no If-Range or it matches the resource's current validator
+	 */
+	static boolean ifRangeMatches( final String ifRangeHeader, final String etag, final String lastModified ) {
+
+		if( ifRangeHeader == null ) {
+			return true;
+		}
+
+		final String ifRange = ifRangeHeader.trim();
+
+		// An entity tag. Must match strongly, so weak tags never do.
+		if( ifRange.startsWith( "\"" ) || ifRange.startsWith( "W/" ) ) {
+			return etag != null && !ifRange.startsWith( "W/" ) && ifRange.equals( etag );
+		}
+
+		// Otherwise it's a date, which must be exactly the one we sent
+		return lastModified != null && ifRange.equals( lastModified );
+	}
+
+	/**
+	 * Turns the given response into a 416 Range Not Satisfiable
+	 */
+	static void applyUnsatisfiable( final WOResponse response, final long totalLength ) {
+		response.setStatus( 416 );
+		response.setHeader( "bytes */" + totalLength, "content-range" );
+		response.setHeader( "0", "content-length" );
+		response.setContentStream( InputStream.nullInputStream(), 1, 0 );
+	}
+
+	/**
+	 * Turns the given response, whose content is already the given range, into a 206 Partial Content for that range
+	 */
+	static void applyRange( final WOResponse response, final Range range, final long totalLength ) {
+		response.setStatus( 206 );
+		response.setHeader( range.contentRange( totalLength ), "content-range" );
+		response.setHeader( String.valueOf( range.length() ), "content-length" );
+	}
+
+	/**
+	 * Turns the given response into a 206 Partial Content for the given ranges, served as multipart/byteranges
+	 */
+	static void applyRanges( final WOResponse response, final List<Range> ranges, final long totalLength, final String contentType, final Slice slice, final int bufferSize ) {
+		response.setStatus( 206 );
+
+		final String boundary = UUID.randomUUID().toString();
+		final List<InputStream> parts = new ArrayList<>( ranges.size() * 2 + 1 );
+		long length = 0;
+
+		for( Range range : ranges ) {
+			final byte[] partHeader = ("\r\n--" + boundary + "\r\n" + (contentType != null ? "Content-Type: " + contentType + "\r\n" : "") + "Content-Range: " + range.contentRange( totalLength ) + "\r\n\r\n").getBytes( StandardCharsets.US_ASCII );
+			parts.add( new ByteArrayInputStream( partHeader ) );
+			parts.add( slice.stream( range.first(), range.length() ) );
+			length += partHeader.length + range.length();
+		}
+
+		final byte[] closingBoundary = ("\r\n--" + boundary + "--\r\n").getBytes( StandardCharsets.US_ASCII );
+		parts.add( new ByteArrayInputStream( closingBoundary ) );
+		length += closingBoundary.length;
+
+		response.setHeader( "multipart/byteranges; boundary=" + boundary, "content-type" );
+		response.setHeader( String.valueOf( length ), "content-length" );
+		response.setContentStream( new SequenceInputStream( Collections.enumeration( parts ) ), bufferSize, length );
+	}
+}
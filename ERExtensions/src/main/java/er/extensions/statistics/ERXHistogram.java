@@ -0,0 +1,212 @@
+package er.extensions.statistics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of non-negative long values (typically durations), for percentiles that are cheap enough to record all the time.
+ * <p>
+ * Buckets are log-linear, like HdrHistogram's: values below 16 get a bucket each, and every power of two above that is split into 16
+ * equally sized buckets. So a percentile is reported with at most 1/16 (6.25%) relative error, whatever the magnitude, using a fixed
+ * {@value #BUCKET_COUNT} buckets. Values of 2^40 and above all go into the last bucket.
+ * <p>
+ * Recording is a handful of atomic increments and never blocks. Count and sum are {@link LongAdder}s, so threads recording into the same
+ * histogram don't contend on a single counter. Reading while others record gives a view that may be a few values behind, but never
+ * a torn one: {@link #snapshot()} copies the buckets and computes everything from the copy.
+ */
+
+public class ERXHistogram {
+
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+	private static final int MAX_EXPONENT = 40;
+
+	/**
+	 * Number of buckets in every histogram
+	 */
+	public static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT;
+
+	private final AtomicLongArray _buckets = new AtomicLongArray( BUCKET_COUNT );
+	private final LongAdder _count = new LongAdder();
+	private final LongAdder _sum = new LongAdder();
+	private final AtomicLong _min = new AtomicLong( Long.MAX_VALUE );
+	private final AtomicLong _max = new AtomicLong( Long.MIN_VALUE );
+
+	/**
+	 * A consistent copy of a histogram's state
+	 *
+	 * @param count number of recorded values (the sum of the buckets)
+	 * @param sum sum of the recorded values
+	 * @param min smallest recorded value, 0 if there are none
+	 * @param max largest recorded value, 0 if there are none
+	 * @param buckets number of values in each bucket, see {@link ERXHistogram#bucketUpperBound(int)}
+	 */
+	public record Snapshot( long count, long sum, long min, long max, long[] buckets ) {
+
+		/**
+		 * @return The mean of the recorded values, 0 if there are none
+		 */
+		public double mean() {
+			return count == 0 ? 0 : sum / (double)count;
+		}
+
+		/**
+		 * @param percentile a percentile between 0 and 100
+		 * @return The value below or at which the given percentage of the recorded values lie (the upper bound of the bucket it's in, capped by max). 0 if there are no values.
+		 */
+		public long valueAtPercentile( final double percentile ) {
+			if( count == 0 ) {
+				return 0;
+			}
+
+			final long rank = Math.max( 1, (long)Math.ceil( Math.min( percentile, 100 ) / 100 * count ) );
+			long seen = 0;
+
+			for( int i = 0; i < buckets.length; i++ ) {
+				seen += buckets[i];
+
+				if( seen >= rank ) {
+					return Math.max( min, Math.min( bucketUpperBound( i ), max ) );
+				}
+			}
+
+			return max;
+		}
+	}
+
+	/**
+	 * Records a value. Negative values are recorded as 0.
+	 */
+	public void record( long value ) {
+		if( value < 0 ) {
+			value = 0;
+		}
+
+		_buckets.incrementAndGet( bucketIndex( value ) );
+		_count.increment();
+		_sum.add( value );
+
+		long current;
+
+		while( value > (current = _max.get()) && !_max.compareAndSet( current, value ) ) {}
+
+		while( value < (current = _min.get()) && !_min.compareAndSet( current, value ) ) {}
+	}
+
+	/**
+	 * @return Number of recorded values
+	 */
+	public long count() {
+		return _count.sum();
+	}
+
+	/**
+	 * @return Sum of the recorded values
+	 */
+	public long sum() {
+		return _sum.sum();
+	}
+
+	/**
+	 * @return The smallest recorded value, 0 if there are none
+	 */
+	public long min() {
+		final long min = _min.get();
+		return min == Long.MAX_VALUE ? 0 : min;
+	}
+
+	/**
+	 * @return The largest recorded value, 0 if there are none
+	 */
+	public long max() {
+		final long max = _max.get();
+		return max == Long.MIN_VALUE ? 0 : max;
+	}
+
+	/**
+	 * @return The value at the given percentile (0-100), see {@link Snapshot#valueAtPercentile(double)}. Takes a snapshot, so if you need several percentiles, take one yourself.
+	 */
+	public long valueAtPercentile( final double percentile ) {
+		return snapshot().valueAtPercentile( percentile );
+	}
+
+	/**
+	 * @return A consistent copy of the histogram, with count being the sum of the copied buckets
+	 */
+	public Snapshot snapshot() {
+		final long[] buckets = new long[BUCKET_COUNT];
+		long count = 0;
+
+		for( int i = 0; i < BUCKET_COUNT; i++ ) {
+			buckets[i] = _buckets.get( i );
+			count += buckets[i];
+		}
+
+		return new Snapshot( count, sum(), min(), max(), buckets );
+	}
+
+	/**
+	 * Counts the recorded values at or below each of the given bounds, straight from the buckets (without taking a snapshot).
+	 * Values are counted by the upper bound of their bucket, so a count can be low by the values in the bucket the bound falls in.
+	 *
+	 * @param bounds values to count at, ascending
+	 * @param counts receives the number of values at or below each bound
+	 * @return Total number of values read from the buckets
+	 */
+	public long cumulativeCounts( final long[] bounds, final long[] counts ) {
+		long seen = 0;
+		int bound = 0;
+
+		for( int i = 0; i < BUCKET_COUNT; i++ ) {
+			final long upperBound = bucketUpperBound( i );
+
+			while( bound < bounds.length && upperBound > bounds[bound] ) {
+				counts[bound++] = seen;
+			}
+
+			seen += _buckets.get( i );
+		}
+
+		while( bound < bounds.length ) {
+			counts[bound++] = seen;
+		}
+
+		return seen;
+	}
+
+	/**
+	 * @return The largest value that's recorded in the bucket with the given index
+	 */
+	public static long bucketUpperBound( final int index ) {
+		if( index < SUB_BUCKET_COUNT ) {
+			return index;
+		}
+
+		if( index == BUCKET_COUNT - 1 ) {
+			return Long.MAX_VALUE;
+		}
+
+		final int shift = index / SUB_BUCKET_COUNT - 1;
+		final long lower = (long)(SUB_BUCKET_COUNT + index % SUB_BUCKET_COUNT) << shift;
+		return lower + (1L << shift) - 1;
+	}
+
+	/**
+	 * @return Index of the bucket the given (non-negative) value is recorded in
+	 */
+	static int bucketIndex( final long value ) {
+		if( value < SUB_BUCKET_COUNT ) {
+			return (int)value;
+		}
+
+		final int exponent = 63 - Long.numberOfLeadingZeros( value );
+
+		if( exponent >= MAX_EXPONENT ) {
+			return BUCKET_COUNT - 1;
+		}
+
+		final int shift = exponent - SUB_BUCKET_BITS;
+		return (shift + 1) * SUB_BUCKET_COUNT + (int)((value >>> shift) & (SUB_BUCKET_COUNT - 1));
+	}
+}
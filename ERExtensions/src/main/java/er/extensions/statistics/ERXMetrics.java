@@ -0,0 +1,551 @@
+package er.extensions.statistics;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryUsage;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.webobjects.appserver.WOAdaptor;
+import com.webobjects.appserver.WOAdaptorConcurrencyLimiter;
+import com.webobjects.appserver.WOAdaptorNIO;
+import com.webobjects.appserver.WOAdaptorPlain;
+import com.webobjects.appserver.WOApplication;
+import com.webobjects.foundation.NSArray;
+
+import er.extensions.appserver.ERXResponseCompression;
+import er.extensions.appserver.cachemonitor.PageCacheReuseStats;
+import er.extensions.browser.ERXBrowserFactory;
+import er.extensions.resources.ERXAppBasedResourceRequestHandler;
+import er.extensions.statistics.ERXRequestTimeline.Phase;
+
+/**
+ * Application metrics in the OpenMetrics text format, served by ERXMonitorServer at /metrics for Prometheus and the like.
+ * <p>
+ * Metrics come from collectors, registered under a name with {@link #register(String, Collector)}. A collector writes the current
+ * values of it's metric families to a {@link MetricWriter} when the metrics are scraped, so there's nothing to update as things
+ * happen: existing counters (LongAdders, ERXHistograms) are read as they are. Frameworks add their own metrics the same way, or
+ * with {@link #registerGauge(String, String, DoubleSupplier)} for a single value. Registering under a name that's taken replaces
+ * the collector.
+ * <p>
+ * The framework's own collectors (registered here) export request latency by page and phase (see {@link ERXRequestTimeline}),
+ * ERXStats durations, adaptor concurrency, sessions, page cache reuse, resource and compression caches, the user-agent cache,
+ * memory pools and garbage collection.
+ * <p>
+ * Rendering is a single pass over the collectors into one StringBuilder. Histograms are reported with fixed bucket bounds
+ * (1ms to 60s) that are counted straight from ERXHistogram's buckets, so a scrape costs in proportion to the number of
+ * metrics and doesn't build any intermediate maps.
+ */
+
+public final class ERXMetrics {
+
+	private static final Logger log = LoggerFactory.getLogger( ERXMetrics.class );
+
+	/**
+	 * The OpenMetrics text format's content type
+	 */
+	public static final String CONTENT_TYPE = "application/openmetrics-text; version=1.0.0; charset=utf-8";
+
+	/**
+	 * Upper bounds of the buckets duration histograms are reported with, in seconds
+	 */
+	private static final double[] BUCKET_BOUNDS_SECONDS = { 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60 };
+
+	/**
+	 * BUCKET_BOUNDS_SECONDS as le label values
+	 */
+	private static final String[] BUCKET_BOUND_LABELS = { "0.001", "0.0025", "0.005", "0.01", "0.025", "0.05", "0.1", "0.25", "0.5", "1.0", "2.5", "5.0", "10.0", "30.0", "60.0" };
+
+	private static final double NANOSECONDS = 1e-9;
+	private static final double MILLISECONDS = 1e-3;
+
+	private static final Map<String, Collector> _collectors = new ConcurrentSkipListMap<>();
+
+	private static final List<MemoryPoolMXBean> _memoryPools = ManagementFactory.getMemoryPoolMXBeans();
+	private static final List<GarbageCollectorMXBean> _garbageCollectors = ManagementFactory.getGarbageCollectorMXBeans();
+
+	static {
+		register( "erx.requests", ERXMetrics::writeRequestMetrics );
+		register( "erx.stats", ERXMetrics::writeStatsMetrics );
+		register( "erx.adaptors", ERXMetrics::writeAdaptorMetrics );
+		register( "erx.pageCache", PageCacheReuseStats::writeMetrics );
+		register( "erx.caches", ERXMetrics::writeCacheMetrics );
+		register( "jvm", ERXMetrics::writeJVMMetrics );
+	}
+
+	private ERXMetrics() {}
+
+	/**
+	 * Writes metric families when metrics are scraped
+	 */
+	@FunctionalInterface
+	public interface Collector {
+
+		/**
+		 * Writes the collector's metric families. Called on the scraping thread, so this must be thread safe and should be quick.
+		 */
+		void collect( MetricWriter writer );
+	}
+
+	/**
+	 * Registers the given collector under the given name, replacing the one that was registered under that name (if any)
+	 */
+	public static void register( final String name, final Collector collector ) {
+		_collectors.put( name, collector );
+	}
+
+	/**
+	 * Removes the collector registered under the given name
+	 */
+	public static void unregister( final String name ) {
+		_collectors.remove( name );
+	}
+
+	/**
+	 * Registers a collector for a single gauge, registered under the metric's name
+	 *
+	 * @param name the metric's name, like "ajax_active_updates"
+	 * @param help a description of the metric
+	 * @param value provides the metric's value when scraped
+	 */
+	public static void registerGauge( final String name, final String help, final DoubleSupplier value ) {
+		register( name, writer -> writer.gauge( name, help, value.getAsDouble() ) );
+	}
+
+	/**
+	 * Registers a collector for a single counter, registered under the metric's name
+	 *
+	 * @param name the metric's name, without the _total suffix
+	 * @param help a description of the metric
+	 * @param value provides the counter's current value when scraped
+	 */
+	public static void registerCounter( final String name, final String help, final DoubleSupplier value ) {
+		register( name, writer -> writer.counter( name, help, value.getAsDouble() ) );
+	}
+
+	/**
+	 * @return All metrics in the OpenMetrics text format. A collector that fails is left out (and logged), the others are still reported.
+	 */
+	public static String render() {
+		final StringBuilder out = new StringBuilder( 16384 );
+		final MetricWriter writer = new MetricWriter( out );
+
+		for( Map.Entry<String, Collector> entry : _collectors.entrySet() ) {
+			final int length = out.length();
+
+			try {
+				entry.getValue().collect( writer );
+			}
+			catch( RuntimeException e ) {
+				// Drop whatever the collector wrote before failing, a half written family would make the whole scrape invalid
+				out.setLength( length );
+				log.warn( "Metrics collector {} failed.", entry.getKey(), e );
+			}
+		}
+
+		out.append( "# EOF\n" );
+		return out.toString();
+	}
+
+	/**
+	 * Writes metric families in the OpenMetrics text format. Write a family's metadata with {@link #family(String, String, String)},
+	 * then all of it's samples, before starting the next family.
+	 */
+	public static final class MetricWriter {
+
+		private final StringBuilder _out;
+
+		/**
+		 * Scratch space for histograms, reused for every histogram in a scrape
+		 */
+		private final long[] _bounds = new long[BUCKET_BOUNDS_SECONDS.length];
+		private final long[] _counts = new long[BUCKET_BOUNDS_SECONDS.length];
+
+		MetricWriter( final StringBuilder out ) {
+			_out = out;
+		}
+
+		/**
+		 * Starts a metric family
+		 *
+		 * @param name the family's name. For counters, without the _total suffix of it's samples.
+		 * @param type "gauge", "counter", "histogram" (or another OpenMetrics type)
+		 * @param help a description of the metric
+		 */
+		public void family( final String name, final String type, final String help ) {
+			_out.append( "# TYPE " ).append( name ).append( ' ' ).append( type ).append( '\n' );
+
+			if( help != null ) {
+				_out.append( "# HELP " ).append( name ).append( ' ' );
+				appendEscaped( help );
+				_out.append( '\n' );
+			}
+		}
+
+		/**
+		 * Writes a sample without labels
+		 */
+		public void sample( final String name, final double value ) {
+			sample( name, null, null, null, null, null, value );
+		}
+
+		/**
+		 * Writes a sample with a label
+		 */
+		public void sample( final String name, final String labelName, final String labelValue, final double value ) {
+			sample( name, null, labelName, labelValue, null, null, value );
+		}
+
+		/**
+		 * Writes a sample with two labels
+		 */
+		public void sample( final String name, final String labelName, final String labelValue, final String secondLabelName, final String secondLabelValue, final double value ) {
+			sample( name, null, labelName, labelValue, secondLabelName, secondLabelValue, value );
+		}
+
+		/**
+		 * Writes a gauge family with a single sample
+		 */
+		public void gauge( final String name, final String help, final double value ) {
+			family( name, "gauge", help );
+			sample( name, value );
+		}
+
+		/**
+		 * Writes a counter family with a single sample
+		 *
+		 * @param name the family's name, without the _total suffix
+		 */
+		public void counter( final String name, final String help, final double value ) {
+			family( name, "counter", help );
+			sample( name, "_total", null, null, null, null, value );
+		}
+
+		/**
+		 * Writes a counter sample with a label, to a family started with {@link #family(String, String, String)}
+		 *
+		 * @param name the family's name, without the _total suffix
+		 */
+		public void counterSample( final String name, final String labelName, final String labelValue, final double value ) {
+			sample( name, "_total", labelName, labelValue, null, null, value );
+		}
+
+		/**
+		 * Writes the samples of a duration histogram in seconds to a family started with {@link #family(String, String, String)}
+		 *
+		 * @param name the family's name
+		 * @param labelName name of a label identifying the histogram within the family, null for none
+		 * @param labelValue value of that label
+		 * @param histogram the histogram
+		 * @param unitSeconds the unit of the histogram's values, in seconds (1e-9 for nanoseconds)
+		 */
+		public void durationHistogram( final String name, final String labelName, final String labelValue, final ERXHistogram histogram, final double unitSeconds ) {
+			durationHistogram( name, labelName, labelValue, null, null, histogram, unitSeconds );
+		}
+
+		/**
+		 * Writes the samples of a duration histogram in seconds, identified by two labels, to a family started with {@link #family(String, String, String)}
+		 */
+		public void durationHistogram( final String name, final String labelName, final String labelValue, final String secondLabelName, final String secondLabelValue, final ERXHistogram histogram, final double unitSeconds ) {
+			for( int i = 0; i < BUCKET_BOUNDS_SECONDS.length; i++ ) {
+				_bounds[i] = (long)(BUCKET_BOUNDS_SECONDS[i] / unitSeconds);
+			}
+
+			final long count = histogram.cumulativeCounts( _bounds, _counts );
+
+			for( int i = 0; i < BUCKET_BOUND_LABELS.length; i++ ) {
+				bucket( name, labelName, labelValue, secondLabelName, secondLabelValue, BUCKET_BOUND_LABELS[i], _counts[i] );
+			}
+
+			bucket( name, labelName, labelValue, secondLabelName, secondLabelValue, "+Inf", count );
+			sample( name, "_count", labelName, labelValue, secondLabelName, secondLabelValue, count );
+			sample( name, "_sum", labelName, labelValue, secondLabelName, secondLabelValue, histogram.sum() * unitSeconds );
+		}
+
+		/**
+		 * Writes the samples of a histogram with fixed buckets, to a family started with {@link #family(String, String, String)}. No _sum sample is written.
+		 *
+		 * @param bucketBounds the buckets' upper bounds as le label values, ascending
+		 * @param buckets number of values in each bucket (not cumulative), with one more element than bucketBounds for the values above the last bound
+		 */
+		public void histogram( final String name, final String[] bucketBounds, final LongAdder[] buckets ) {
+			long cumulative = 0;
+
+			for( int i = 0; i < bucketBounds.length; i++ ) {
+				cumulative += buckets[i].sum();
+				bucket( name, null, null, null, null, bucketBounds[i], cumulative );
+			}
+
+			cumulative += buckets[bucketBounds.length].sum();
+			bucket( name, null, null, null, null, "+Inf", cumulative );
+			sample( name, "_count", null, null, null, null, cumulative );
+		}
+
+		private void bucket( final String name, final String labelName, final String labelValue, final String secondLabelName, final String secondLabelValue, final String le, final long count ) {
+			_out.append( name ).append( "_bucket{" );
+
+			if( labelName != null ) {
+				label( labelName, labelValue );
+				_out.append( ',' );
+			}
+
+			if( secondLabelName != null ) {
+				label( secondLabelName, secondLabelValue );
+				_out.append( ',' );
+			}
+
+			_out.append( "le=\"" ).append( le ).append( "\"} " ).append( count ).append( '\n' );
+		}
+
+		private void sample( final String name, final String suffix, final String labelName, final String labelValue, final String secondLabelName, final String secondLabelValue, final double value ) {
+			_out.append( name );
+
+			if( suffix != null ) {
+				_out.append( suffix );
+			}
+
+			if( labelName != null ) {
+				_out.append( '{' );
+				label( labelName, labelValue );
+
+				if( secondLabelName != null ) {
+					_out.append( ',' );
+					label( secondLabelName, secondLabelValue );
+				}
+
+				_out.append( '}' );
+			}
+
+			_out.append( ' ' );
+			appendValue( value );
+			_out.append( '\n' );
+		}
+
+		private void label( final String name, final String value ) {
+			_out.append( name ).append( "=\"" );
+			appendEscaped( value != null ? value : "" );
+			_out.append( '"' );
+		}
+
+		private void appendValue( final double value ) {
+			if( Double.isNaN( value ) ) {
+				_out.append( "NaN" );
+			}
+			else if( Double.isInfinite( value ) ) {
+				_out.append( value > 0 ? "+Inf" : "-Inf" );
+			}
+			else if( value == Math.rint( value ) && Math.abs( value ) < 1e15 ) {
+				_out.append( (long)value );
+			}
+			else {
+				_out.append( value );
+			}
+		}
+
+		private void appendEscaped( final String string ) {
+			for( int i = 0; i < string.length(); i++ ) {
+				final char c = string.charAt( i );
+
+				switch( c ) {
+					case '\\' -> _out.append( "\\\\" );
+					case '\n' -> _out.append( "\\n" );
+					case '"' -> _out.append( "\\\"" );
+					default -> _out.append( c );
+				}
+			}
+		}
+	}
+
+	private static void writeRequestMetrics( final MetricWriter writer ) {
+		if( !(WOApplication.application().statisticsStore() instanceof ERXStatisticsStore store) ) {
+			return;
+		}
+
+		writer.gauge( "erx_sessions_active", "Number of live sessions", store.activeSessionCount() );
+
+		writer.family( "erx_request_duration_seconds", "histogram", "Time spent in dispatchRequest() per request" );
+		writer.durationHistogram( "erx_request_duration_seconds", null, null, store.requestTimelines().total(), NANOSECONDS );
+
+		final Map<String, ERXRequestTimeline.Summary> pageTimelines = store.pageTimelines();
+
+		writer.family( "erx_page_request_duration_seconds", "histogram", "Time spent in dispatchRequest() per component action request, by page" );
+
+		for( Map.Entry<String, ERXRequestTimeline.Summary> entry : pageTimelines.entrySet() ) {
+			writer.durationHistogram( "erx_page_request_duration_seconds", "page", entry.getKey(), entry.getValue().total(), NANOSECONDS );
+		}
+
+		writer.family( "erx_page_phase_duration_seconds", "histogram", "Time spent in each phase of component action requests, by page" );
+
+		for( Map.Entry<String, ERXRequestTimeline.Summary> entry : pageTimelines.entrySet() ) {
+			for( Phase phase : Phase.values() ) {
+				final ERXHistogram histogram = entry.getValue().phase( phase );
+
+				if( histogram.count() > 0 ) {
+					writer.durationHistogram( "erx_page_phase_duration_seconds", "page", entry.getKey(), "phase", phase.key(), histogram, NANOSECONDS );
+				}
+			}
+		}
+	}
+
+	private static void writeStatsMetrics( final MetricWriter writer ) {
+		writer.family( "erx_stats_duration_seconds", "histogram", "Durations tracked by ERXStats, by key" );
+
+		for( ERXStats.LogEntry entry : ERXStats.aggregateLogEntries() ) {
+			final ERXHistogram histogram = entry.histogram();
+
+			if( histogram != null ) {
+				writer.durationHistogram( "erx_stats_duration_seconds", "key", entry.key(), histogram, MILLISECONDS );
+			}
+		}
+	}
+
+	private static void writeAdaptorMetrics( final MetricWriter writer ) {
+		final NSArray<WOAdaptor> adaptors = WOApplication.application().adaptors();
+
+		writer.family( "erx_adaptor_in_flight_requests", "gauge", "Number of requests inside the application" );
+
+		for( WOAdaptor adaptor : adaptors ) {
+			final WOAdaptorConcurrencyLimiter limiter = concurrencyLimiter( adaptor );
+
+			if( limiter != null ) {
+				writer.sample( "erx_adaptor_in_flight_requests", "adaptor", adaptor.getClass().getSimpleName(), limiter.inFlight() );
+			}
+		}
+
+		writer.family( "erx_adaptor_queued_requests", "gauge", "Number of requests waiting to get into the application" );
+
+		for( WOAdaptor adaptor : adaptors ) {
+			final WOAdaptorConcurrencyLimiter limiter = concurrencyLimiter( adaptor );
+
+			if( limiter != null ) {
+				writer.sample( "erx_adaptor_queued_requests", "adaptor", adaptor.getClass().getSimpleName(), limiter.queued() );
+			}
+		}
+
+		writer.family( "erx_adaptor_max_concurrent_requests", "gauge", "Maximum number of requests inside the application, 0 if unlimited" );
+
+		for( WOAdaptor adaptor : adaptors ) {
+			final WOAdaptorConcurrencyLimiter limiter = concurrencyLimiter( adaptor );
+
+			if( limiter != null ) {
+				writer.sample( "erx_adaptor_max_concurrent_requests", "adaptor", adaptor.getClass().getSimpleName(), limiter.maxConcurrentRequests() );
+			}
+		}
+
+		writer.family( "erx_adaptor_dispatched_requests", "counter", "Requests handed to the application" );
+
+		for( WOAdaptor adaptor : adaptors ) {
+			final WOAdaptorConcurrencyLimiter limiter = concurrencyLimiter( adaptor );
+
+			if( limiter != null ) {
+				writer.counterSample( "erx_adaptor_dispatched_requests", "adaptor", adaptor.getClass().getSimpleName(), limiter.dispatched() );
+			}
+		}
+
+		writer.family( "erx_adaptor_rejected_requests", "counter", "Requests answered with 503 because the application was at it's concurrency limit" );
+
+		for( WOAdaptor adaptor : adaptors ) {
+			final WOAdaptorConcurrencyLimiter limiter = concurrencyLimiter( adaptor );
+
+			if( limiter != null ) {
+				writer.counterSample( "erx_adaptor_rejected_requests", "adaptor", adaptor.getClass().getSimpleName(), limiter.rejected() );
+			}
+		}
+
+		writer.family( "erx_adaptor_dispatch_latency_seconds", "counter", "Time requests spent between arriving and being handed to the application" );
+
+		for( WOAdaptor adaptor : adaptors ) {
+			final WOAdaptorConcurrencyLimiter limiter = concurrencyLimiter( adaptor );
+
+			if( limiter != null ) {
+				writer.counterSample( "erx_adaptor_dispatch_latency_seconds", "adaptor", adaptor.getClass().getSimpleName(), limiter.totalDispatchLatencyNanos() * NANOSECONDS );
+			}
+		}
+	}
+
+	/**
+	 * @return The given adaptor's concurrency limiter, null if it doesn't have one
+	 */
+	private static WOAdaptorConcurrencyLimiter concurrencyLimiter( final WOAdaptor adaptor ) {
+		if( adaptor instanceof WOAdaptorPlain plain ) {
+			return plain.concurrencyLimiter();
+		}
+
+		if( adaptor instanceof WOAdaptorNIO nio ) {
+			return nio.concurrencyLimiter();
+		}
+
+		return null;
+	}
+
+	private static void writeCacheMetrics( final MetricWriter writer ) {
+		writer.counter( "erx_compression_cache_hits", "Responses whose compressed body was found in ERXResponseCompression's cache", ERXResponseCompression.cacheHits() );
+		writer.counter( "erx_compression_cache_misses", "Responses that were looked up in ERXResponseCompression's cache and compressed", ERXResponseCompression.cacheMisses() );
+
+		final ERXBrowserFactory browserFactory = ERXBrowserFactory.factory();
+		writer.gauge( "erx_user_agent_cache_entries", "Number of user-agents in ERXBrowserFactory's cache", browserFactory.cachedUserAgentCount() );
+		writer.counter( "erx_user_agent_cache_hits", "User-agents found in ERXBrowserFactory's cache", browserFactory.userAgentCacheHits() );
+		writer.counter( "erx_user_agent_cache_misses", "User-agents parsed by ERXBrowserFactory", browserFactory.userAgentCacheMisses() );
+		writer.counter( "erx_user_agent_cache_evictions", "User-agents evicted from ERXBrowserFactory's cache", browserFactory.userAgentCacheEvictions() );
+
+		if( WOApplication.application().requestHandlerForKey( ERXAppBasedResourceRequestHandler.KEY ) instanceof ERXAppBasedResourceRequestHandler resourceHandler ) {
+			writer.gauge( "erx_resource_cache_entries", "Number of resources in the resource request handler's cache", resourceHandler.cacheEntries() );
+			writer.gauge( "erx_resource_cache_bytes", "Size of the resources in the resource request handler's cache", resourceHandler.cacheBytes() );
+			writer.counter( "erx_resource_cache_hits", "Resource requests answered from the cache (including cached 404s)", resourceHandler.cacheHits() );
+			writer.counter( "erx_resource_cache_misses", "Resource requests not found in the cache", resourceHandler.cacheMisses() );
+			writer.counter( "erx_resource_cache_not_found_hits", "Resource requests answered with a cached 404", resourceHandler.cacheNotFoundHits() );
+			writer.counter( "erx_resource_cache_evictions", "Resources evicted from the cache", resourceHandler.cacheEvictions() );
+		}
+	}
+
+	private static void writeJVMMetrics( final MetricWriter writer ) {
+		writer.family( "jvm_memory_pool_used_bytes", "gauge", "Memory used in each memory pool" );
+
+		for( MemoryPoolMXBean pool : _memoryPools ) {
+			writer.sample( "jvm_memory_pool_used_bytes", "pool", pool.getName(), pool.getUsage().getUsed() );
+		}
+
+		writer.family( "jvm_memory_pool_committed_bytes", "gauge", "Memory committed in each memory pool" );
+
+		for( MemoryPoolMXBean pool : _memoryPools ) {
+			writer.sample( "jvm_memory_pool_committed_bytes", "pool", pool.getName(), pool.getUsage().getCommitted() );
+		}
+
+		writer.family( "jvm_memory_pool_max_bytes", "gauge", "Maximum size of each memory pool, -1 if undefined" );
+
+		for( MemoryPoolMXBean pool : _memoryPools ) {
+			writer.sample( "jvm_memory_pool_max_bytes", "pool", pool.getName(), pool.getUsage().getMax() );
+		}
+
+		writer.family( "jvm_memory_pool_collection_used_bytes", "gauge", "Memory used in each memory pool after the last collection of it" );
+
+		for( MemoryPoolMXBean pool : _memoryPools ) {
+			final MemoryUsage usage = pool.getCollectionUsage();
+
+			if( usage != null ) {
+				writer.sample( "jvm_memory_pool_collection_used_bytes", "pool", pool.getName(), usage.getUsed() );
+			}
+		}
+
+		writer.family( "jvm_gc_collections", "counter", "Garbage collections by collector" );
+
+		for( GarbageCollectorMXBean gc : _garbageCollectors ) {
+			writer.counterSample( "jvm_gc_collections", "gc", gc.getName(), gc.getCollectionCount() );
+		}
+
+		writer.family( "jvm_gc_collection_seconds", "counter", "Time spent in garbage collection by collector" );
+
+		for( GarbageCollectorMXBean gc : _garbageCollectors ) {
+			writer.counterSample( "jvm_gc_collection_seconds", "gc", gc.getName(), gc.getCollectionTime() * MILLISECONDS );
+		}
+
+		writer.gauge( "jvm_threads_live", "Number of live platform threads", ManagementFactory.getThreadMXBean().getThreadCount() );
+	}
+}
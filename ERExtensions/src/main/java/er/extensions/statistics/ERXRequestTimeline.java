@@ -0,0 +1,212 @@
+package er.extensions.statistics;
+
+import er.extensions.foundation.ERXProperties;
+
+/**
+ * Where a request spent it's time: the duration of each phase of handling it (session check-out, page restoration,
+ * takeValuesFromRequest, invokeAction, appendToResponse, session check-in, compression) and of the whole request.
+ * <p>
+ * ERXApplication.dispatchRequest() begins a timeline for each request and hands it to the statistics store when the response
+ * is done. The request handlers record the phases they run with {@link #record(Phase, long)}. A timeline is a fixed array of
+ * System.nanoTime() deltas indexed by phase, so recording a phase is a thread-local lookup and an addition, cheap enough to
+ * leave on in production.
+ * <p>
+ * COMPRESSION is the time ERXResponseCompression spends on the response in dispatchRequest(). Large and streamed responses are
+ * compressed while the adaptor writes them, after the timeline has ended, so for those it's only the setup.
+ * <p>
+ * A timeline is only ever touched by the thread handling the request, and shouldn't be modified once it's been handed on.
+ *
+ * @property er.extensions.ERXRequestTimeline.enabled defaults to true
+ */
+
+public final class ERXRequestTimeline {
+
+	/**
+	 * The phases of handling a request
+	 */
+	public enum Phase {
+		SESSION_CHECK_OUT( "sessionCheckOut" ),
+		PAGE_RESTORE( "pageRestore" ),
+		TAKE_VALUES( "takeValues" ),
+		INVOKE_ACTION( "invokeAction" ),
+		APPEND_TO_RESPONSE( "appendToResponse" ),
+		SESSION_CHECK_IN( "sessionCheckIn" ),
+		COMPRESSION( "compression" );
+
+		private final String _key;
+
+		Phase( final String key ) {
+			_key = key;
+		}
+
+		/**
+		 * @return The phase's name in camel case, for use in logs and metric names
+		 */
+		public String key() {
+			return _key;
+		}
+	}
+
+	private static final Phase[] PHASES = Phase.values();
+
+	private static final boolean ENABLED = ERXProperties.booleanForKeyWithDefault( "er.extensions.ERXRequestTimeline.enabled", true );
+
+	private static final ThreadLocal<ERXRequestTimeline> CURRENT = new ThreadLocal<>();
+
+	private final long _startTime = System.nanoTime();
+	private long _endTime;
+	private final long[] _durations = new long[PHASES.length];
+
+	/**
+	 * Bit per phase (by ordinal), set when the phase has been recorded
+	 */
+	private int _recordedPhases;
+
+	private String _pageName;
+
+	private ERXRequestTimeline() {}
+
+	/**
+	 * Begins a timeline for the request the current thread is about to handle
+	 *
+	 * @return The new timeline, null if timelines are disabled or the thread is already handling a request (whose timeline the phases are recorded in)
+	 */
+	public static ERXRequestTimeline begin() {
+		if( !ENABLED || CURRENT.get() != null ) {
+			return null;
+		}
+
+		final ERXRequestTimeline timeline = new ERXRequestTimeline();
+		CURRENT.set( timeline );
+		return timeline;
+	}
+
+	/**
+	 * Ends this timeline. Must be called by the thread that began it.
+	 */
+	public void end() {
+		_endTime = System.nanoTime();
+
+		if( CURRENT.get() == this ) {
+			CURRENT.remove();
+		}
+	}
+
+	/**
+	 * @return The current thread's timeline, null if there is none
+	 */
+	public static ERXRequestTimeline current() {
+		return CURRENT.get();
+	}
+
+	/**
+	 * Adds the time from the given start time until now to the given phase of the current thread's timeline (if there is one)
+	 *
+	 * @param phase the phase that ran
+	 * @param startTime the System.nanoTime() at which the phase started
+	 */
+	public static void record( final Phase phase, final long startTime ) {
+		final ERXRequestTimeline timeline = CURRENT.get();
+
+		if( timeline != null ) {
+			timeline._durations[phase.ordinal()] += System.nanoTime() - startTime;
+			timeline._recordedPhases |= 1 << phase.ordinal();
+		}
+	}
+
+	/**
+	 * Sets the name of the page the request was handled by, which is what timelines are summarised by
+	 */
+	public static void setCurrentPageName( final String pageName ) {
+		final ERXRequestTimeline timeline = CURRENT.get();
+
+		if( timeline != null ) {
+			timeline._pageName = pageName;
+		}
+	}
+
+	/**
+	 * @return The name of the page the request was handled by, null if it wasn't a page (or the handler didn't tell)
+	 */
+	public String pageName() {
+		return _pageName;
+	}
+
+	/**
+	 * @return true if the given phase ran during the request
+	 */
+	public boolean hasPhase( final Phase phase ) {
+		return (_recordedPhases & (1 << phase.ordinal())) != 0;
+	}
+
+	/**
+	 * @return Nanoseconds spent in the given phase, 0 if it didn't run
+	 */
+	public long duration( final Phase phase ) {
+		return _durations[phase.ordinal()];
+	}
+
+	/**
+	 * @return Nanoseconds from beginning to end of the timeline (or until now, if it hasn't ended)
+	 */
+	public long totalDuration() {
+		return (_endTime != 0 ? _endTime : System.nanoTime()) - _startTime;
+	}
+
+	@Override
+	public String toString() {
+		final StringBuilder sb = new StringBuilder( 160 );
+		sb.append( "page=" ).append( _pageName ).append( " total=" ).append( millis( totalDuration() ) ).append( "ms" );
+
+		for( Phase phase : PHASES ) {
+			if( hasPhase( phase ) ) {
+				sb.append( ' ' ).append( phase.key() ).append( '=' ).append( millis( duration( phase ) ) ).append( "ms" );
+			}
+		}
+
+		return sb.toString();
+	}
+
+	private static String millis( final long nanos ) {
+		return String.format( "%.3f", nanos / 1e6 );
+	}
+
+	/**
+	 * Histograms of the timelines of a page's requests, one for the total duration and one for each phase (only counting requests the phase ran in), in nanoseconds
+	 */
+	public static final class Summary {
+
+		private final ERXHistogram _total = new ERXHistogram();
+		private final ERXHistogram[] _phases = new ERXHistogram[PHASES.length];
+
+		public Summary() {
+			for( int i = 0; i < _phases.length; i++ ) {
+				_phases[i] = new ERXHistogram();
+			}
+		}
+
+		public void record( final ERXRequestTimeline timeline ) {
+			_total.record( timeline.totalDuration() );
+
+			for( Phase phase : PHASES ) {
+				if( timeline.hasPhase( phase ) ) {
+					_phases[phase.ordinal()].record( timeline.duration( phase ) );
+				}
+			}
+		}
+
+		/**
+		 * @return Histogram of the requests' total durations
+		 */
+		public ERXHistogram total() {
+			return _total;
+		}
+
+		/**
+		 * @return Histogram of the given phase's durations
+		 */
+		public ERXHistogram phase( final Phase phase ) {
+			return _phases[phase.ordinal()];
+		}
+	}
+}
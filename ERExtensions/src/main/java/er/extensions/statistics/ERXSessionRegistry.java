@@ -0,0 +1,127 @@
+package er.extensions.statistics;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.webobjects.appserver.WOSession;
+
+/**
+ * The set of live sessions, as the statistics store sees them being created and terminated.
+ * <p>
+ * Sessions are compared by identity and held weakly, so the registry can't keep a session alive that nobody told us
+ * was terminated. Adding and removing are O(1) and don't lock anything but a bucket of a ConcurrentHashMap, so
+ * terminating a session no longer scans a list of all sessions under the store's lock.
+ */
+
+public class ERXSessionRegistry {
+
+	private final Set<SessionReference> _sessions = ConcurrentHashMap.newKeySet();
+	private final ReferenceQueue<WOSession> _collected = new ReferenceQueue<>();
+
+	/**
+	 * A weak reference that's equal to another one while both refer to the same session. A cleared reference is only equal to itself,
+	 * so it can still be removed from the set once it's been enqueued.
+	 */
+	private static final class SessionReference extends WeakReference<WOSession> {
+
+		private final int _hashCode;
+
+		SessionReference( final WOSession session, final ReferenceQueue<WOSession> queue ) {
+			super( session, queue );
+			_hashCode = System.identityHashCode( session );
+		}
+
+		@Override
+		public int hashCode() {
+			return _hashCode;
+		}
+
+		@Override
+		public boolean equals( final Object object ) {
+			if( this == object ) {
+				return true;
+			}
+
+			if( object instanceof SessionReference other ) {
+				final WOSession session = get();
+				return session != null && session == other.get();
+			}
+
+			return false;
+		}
+	}
+
+	public void add( final WOSession session ) {
+		expungeCollectedSessions();
+		_sessions.add( new SessionReference( session, _collected ) );
+	}
+
+	public void remove( final WOSession session ) {
+		expungeCollectedSessions();
+		_sessions.remove( new SessionReference( session, null ) );
+	}
+
+	/**
+	 * @return Number of registered sessions (that haven't been garbage collected yet)
+	 */
+	public int size() {
+		expungeCollectedSessions();
+		return _sessions.size();
+	}
+
+	/**
+	 * @return A copy of the registered sessions. Doesn't block adding or removing sessions while it's made, so a session
+	 * added or removed at the same time may or may not be in it.
+	 */
+	public List<WOSession> snapshot() {
+		final List<WOSession> sessions = new ArrayList<>( _sessions.size() );
+
+		for( SessionReference reference : _sessions ) {
+			final WOSession session = reference.get();
+
+			if( session != null ) {
+				sessions.add( session );
+			}
+		}
+
+		return sessions;
+	}
+
+	/**
+	 * @return Up to the given number of registered sessions, picked at random
+	 */
+	public List<WOSession> sample( final int count ) {
+		final List<WOSession> sessions = snapshot();
+
+		if( sessions.size() <= count ) {
+			return sessions;
+		}
+
+		// A partial Fisher-Yates shuffle, the first count elements are the sample
+		final ThreadLocalRandom random = ThreadLocalRandom.current();
+
+		for( int i = 0; i < count; i++ ) {
+			Collections.swap( sessions, i, i + random.nextInt( sessions.size() - i ) );
+		}
+
+		return sessions.subList( 0, count );
+	}
+
+	/**
+	 * Removes the references to sessions that have been garbage collected
+	 */
+	private void expungeCollectedSessions() {
+		Reference<? extends WOSession> reference;
+
+		while( (reference = _collected.poll()) != null ) {
+			_sessions.remove( reference );
+		}
+	}
+}
@@ -1,18 +1,27 @@
 package er.extensions.statistics;
 
-import java.lang.reflect.Field;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.sun.management.HotSpotDiagnosticMXBean;
+
 import com.webobjects.appserver.WOComponent;
 import com.webobjects.appserver.WOContext;
 import com.webobjects.appserver.WORequest;
@@ -20,34 +29,52 @@ import com.webobjects.appserver.WOSession;
 import com.webobjects.appserver.WOStatisticsStore;
 import com.webobjects.foundation.NSArray;
 import com.webobjects.foundation.NSDictionary;
-import com.webobjects.foundation.NSMutableArray;
 import com.webobjects.foundation.NSMutableDictionary;
 
+import er.extensions.appserver.ajax.ERXAjaxSession;
 import er.extensions.foundation.ERXProperties;
 import er.extensions.statistics.store.ERXDumbStatisticsStoreListener;
 import er.extensions.statistics.store.ERXEmptyRequestDescription;
 import er.extensions.statistics.store.ERXNormalRequestDescription;
 import er.extensions.statistics.store.IERXRequestDescription;
+import er.extensions.statistics.store.IERXSessionMemoryEstimate;
 import er.extensions.statistics.store.IERXStatisticsStoreListener;
 
 /**
  * Enhances the normal stats store with a bunch of useful things which get
  * displayed in the ERXStatisticsPage.
  * <ul>
- * <li>will dump warning and error messages when a request takes too long, complete with stack traces of all threads.</li>
+ * <li>will dump warning and error messages when a request takes too long, complete with a stack trace of the request's thread
+ * (virtual threads included) captured while it was running, and optionally a full thread dump.</li>
  * <li>logs fatal messages that occurred before a request finished processing.</li>
  * <li>fixes an incompatibility with 5.4.</li>
- * <li>fixes wrong computation of average session memory</li>
+ * <li>keeps track of the live sessions without locking, and estimates average session memory from a sample of them</li>
+ * <li>keeps histograms of the time each page's requests spend in each phase (see {@link ERXRequestTimeline})</li>
  * </ul>
  *
  * <p>In order to turn on this functionality, you must make this call in your Application null constructor:
  * <pre><code>this.setStatisticsStore(new ERXStatisticsStore());</code></pre>
  * 
  * Then configure the behavior of this class with the three properties that determine how much it logs and when it logs.
+ * A request's stack is captured when it has been running for half the warn time, half the error time and the fatal time,
+ * and logged with the warning or error when it ends (or right away when it reaches the fatal time), at most once per
+ * stackTraces.minimumInterval.
+ * <p>
+ * If you set a report directory, each logged trace is also written to a file there, and only the newest reports.maxCount
+ * files are kept. With threadDumps.enabled, reaching the error or fatal capture also writes a dump of all threads
+ * (HotSpotDiagnosticMXBean.dumpThreads(), JSON) to that directory, at most once per threadDumps.minimumInterval.
  *
  * @property er.extensions.ERXStatisticsStore.milliSeconds.warn defaults to 2000 ms
  * @property er.extensions.ERXStatisticsStore.milliSeconds.error defaults to 10 seconds
  * @property er.extensions.ERXStatisticsStore.milliSeconds.fatal defaults to 5 minutes
+ * @property er.extensions.ERXStatisticsStore.stackTraces.minimumInterval defaults to 10 seconds
+ * @property er.extensions.ERXStatisticsStore.reports.directory no reports are written if not set
+ * @property er.extensions.ERXStatisticsStore.reports.maxCount defaults to 50 files
+ * @property er.extensions.ERXStatisticsStore.threadDumps.enabled defaults to false
+ * @property er.extensions.ERXStatisticsStore.threadDumps.minimumInterval defaults to 1 minute
+ * @property er.extensions.ERXStatisticsStore.sessionMemory.sampleSize number of sessions average session memory is estimated from (see {@link IERXSessionMemoryEstimate}), defaults to 20
+ * @property er.extensions.ERXStatisticsStore.sessionMemory.maxAge how long an estimate of average session memory is reused, defaults to 1 minute
+ * @property er.extensions.ERXStatisticsStore.timelines.maxPages number of pages request timelines are summarised for, defaults to 1000
  *
  * @author ak
  * @author kieran (Oct 14, 2009) - minor changes to capture thread name in middle of the request (useful for {@link er.extensions.appserver.ERXSession#threadName()}}
@@ -56,16 +83,30 @@ public class ERXStatisticsStore extends WOStatisticsStore {
 
 	private static final Logger log = LoggerFactory.getLogger(ERXStatisticsStore.class);
 	private final StopWatchTimer _timer = new StopWatchTimer();
-	protected static Field initMemoryField;
+	private final ERXSessionRegistry _sessions = new ERXSessionRegistry();
+	private final int _sessionMemorySampleSize = ERXProperties.intForKeyWithDefault("er.extensions.ERXStatisticsStore.sessionMemory.sampleSize", 20);
+	private final long _sessionMemoryMaxAge = ERXProperties.longForKeyWithDefault("er.extensions.ERXStatisticsStore.sessionMemory.maxAge", 60000L);
+
+	/**
+	 * Average session size, as last estimated from a sample of sessions
+	 *
+	 * @param estimatedAt when the estimate was made
+	 * @param perSession average estimated size of the sampled sessions that provide an estimate
+	 * @param sampledSessions number of sessions the estimate is based on
+	 * @param pagesPerSession average number of page instances in the page caches of the sampled sessions
+	 */
+	private record SessionMemoryEstimate(long estimatedAt, long perSession, int sampledSessions, double pagesPerSession) {}
 
-	static {
-		try {
-			initMemoryField = WOStatisticsStore.class.getDeclaredField("_initializationMemory");
-			initMemoryField.setAccessible(true);
-		} catch (Exception e) {
-			log.warn("Could not access private field WOStatisticsStore._initializationMemory.", e);
-		}
-	}
+	private volatile SessionMemoryEstimate _sessionMemoryEstimate;
+
+	/**
+	 * Set once we've logged that there are sessions, but none of them estimate their size
+	 */
+	private volatile boolean _loggedMissingSessionMemoryEstimates;
+
+	private final ERXRequestTimeline.Summary _requestTimelines = new ERXRequestTimeline.Summary();
+	private final Map<String, ERXRequestTimeline.Summary> _pageTimelines = new ConcurrentHashMap<>();
+	private final int _maxTimelinePages = ERXProperties.intForKeyWithDefault("er.extensions.ERXStatisticsStore.timelines.maxPages", 1000);
 
 	private StopWatchTimer timer() {
 		return _timer;
@@ -88,84 +129,111 @@ public class ERXStatisticsStore extends WOStatisticsStore {
     }
 
     /**
-	 * Thread that checks each second for running requests and makes a snapshot
-	 * after a certain amount of time has expired.
+	 * Thread that checks each second for running requests and captures the stack
+	 * of those that have been running for longer than a certain amount of time.
+	 * <p>
+	 * Only the slow request's own thread is sampled. Thread.getAllStackTraces()
+	 * doesn't return virtual threads (which the adaptors run requests on), and
+	 * stopping every thread in the VM to get a stack we don't look at is what
+	 * an application that is already struggling needs least. If you need to see
+	 * the other threads, turn on the thread dumps, which include virtual threads.
 	 * 
 	 * @author ak
 	 */
 	class StopWatchTimer implements Runnable {
 
+		/**
+		 * Stack of a request thread captured while the request was running
+		 * 
+		 * @param threadName the thread's name at the time (which ERXSession sets to something meaningful)
+		 * @param thread the thread's description at the time
+		 * @param stack the thread's stack
+		 * @param threadDump file the full thread dump taken along with it was written to, null if none was
+		 */
+		record Capture(String threadName, String thread, StackTraceElement[] stack, Path threadDump) {}
+
+		/**
+		 * A request being timed. The captures are written by the timer thread and read by the request thread.
+		 */
+		static class RunningRequest {
+			final long _startTime = System.currentTimeMillis();
+			volatile Capture _warn;
+			volatile Capture _error;
+			volatile Capture _fatal;
+
+			Capture mostSevereCapture() {
+				Capture capture = _fatal;
+				if (capture == null) {
+					capture = _error;
+				}
+				if (capture == null) {
+					capture = _warn;
+				}
+				return capture;
+			}
+		}
+
+		private static final String REPORT_PREFIX = "slow-request-";
+		private static final DateTimeFormatter REPORT_TIMESTAMP = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss-SSS");
+
 		long _maximumRequestErrorTime;
 		long _maximumRequestWarnTime;
 		long _maximumRequestFatalTime;
-		long _lastLog;
+		long _stackTraceInterval;
+		long _threadDumpInterval;
+		boolean _threadDumpsEnabled;
+		Path _reportDirectory;
+		int _maxReports;
+
+		final AtomicLong _lastLog = new AtomicLong();
+		final AtomicLong _lastThreadDump = new AtomicLong();
+		final AtomicLong _reportSequence = new AtomicLong();
 
-		Map<Thread, Long> _requestThreads = new WeakHashMap<>();
-		Map<Thread, Map<Thread, StackTraceElement[]>> _warnTraces = Collections.synchronizedMap(new WeakHashMap<Thread, Map<Thread, StackTraceElement[]>>());
-		Map<Thread, Map<Thread, StackTraceElement[]>> _errorTraces = Collections.synchronizedMap(new WeakHashMap<Thread, Map<Thread, StackTraceElement[]>>());
-		Map<Thread, Map<Thread, StackTraceElement[]>> _fatalTraces = Collections.synchronizedMap(new WeakHashMap<Thread, Map<Thread, StackTraceElement[]>>());
-		Map<Thread, Map<Thread, String>> _warnTracesNames = Collections.synchronizedMap(new WeakHashMap<Thread, Map<Thread, String>>());
-		Map<Thread, Map<Thread, String>> _errorTracesNames = Collections.synchronizedMap(new WeakHashMap<Thread, Map<Thread, String>>());
-		Map<Thread, Map<Thread, String>> _fatalTracesNames = Collections.synchronizedMap(new WeakHashMap<Thread, Map<Thread, String>>());
+		/**
+		 * Weak keys, so a request that never ends (or ends without telling us) doesn't keep it's thread around
+		 */
+		Map<Thread, RunningRequest> _requests = Collections.synchronizedMap(new WeakHashMap<Thread, RunningRequest>());
 
 		public StopWatchTimer() {
-			Thread timerThread = new Thread(this);
-			timerThread.setDaemon(true);
-			timerThread.start();
 			_maximumRequestWarnTime = ERXProperties.longForKeyWithDefault("er.extensions.ERXStatisticsStore.milliSeconds.warn", 2000L);
 			_maximumRequestErrorTime = ERXProperties.longForKeyWithDefault("er.extensions.ERXStatisticsStore.milliSeconds.error", 10000L);
 			_maximumRequestFatalTime = ERXProperties.longForKeyWithDefault("er.extensions.ERXStatisticsStore.milliSeconds.fatal", 5 * 60 * 1000L);
+			_stackTraceInterval = ERXProperties.longForKeyWithDefault("er.extensions.ERXStatisticsStore.stackTraces.minimumInterval", 10000L);
+			_threadDumpsEnabled = ERXProperties.booleanForKeyWithDefault("er.extensions.ERXStatisticsStore.threadDumps.enabled", false);
+			_threadDumpInterval = ERXProperties.longForKeyWithDefault("er.extensions.ERXStatisticsStore.threadDumps.minimumInterval", 60000L);
+			_maxReports = ERXProperties.intForKeyWithDefault("er.extensions.ERXStatisticsStore.reports.maxCount", 50);
+			String reportDirectory = ERXProperties.stringForKey("er.extensions.ERXStatisticsStore.reports.directory");
+			_reportDirectory = reportDirectory != null ? Path.of(reportDirectory).toAbsolutePath() : null;
+
+			Thread timerThread = new Thread(this);
+			timerThread.setDaemon(true);
+			timerThread.start();
 		}
 
 		private long time() {
-			synchronized (_requestThreads) {
-				Long time = _requestThreads.get(Thread.currentThread());
-				return time == null ? 0L : time.longValue();
-			}
+			RunningRequest request = _requests.get(Thread.currentThread());
+			return request == null ? 0L : request._startTime;
 		}
 
 		protected void endTimer(WOContext aContext, String aString) {
 			try {
+				RunningRequest request = _requests.remove(Thread.currentThread());
 				long requestTime = 0;
-				if (hasTimerStarted()) {
-					requestTime = System.currentTimeMillis() - time();
+				Capture capture = null;
+				if (request != null) {
+					requestTime = System.currentTimeMillis() - request._startTime;
+					capture = request.mostSevereCapture();
 				}
-				
-				Thread currentThread = Thread.currentThread();
-				
-				// get the most severe trace for the current thread
-				Map<Thread, StackTraceElement[]> traces = _fatalTraces.get(currentThread);
-				Map<Thread, String> names = _fatalTracesNames.get(currentThread);
-				if (traces == null) {
-					traces = _errorTraces.get(currentThread);
-					names = _errorTracesNames.get(currentThread);
-				}
-				if (traces == null) {
-					traces = _warnTraces.get(currentThread);
-					names = _warnTracesNames.get(currentThread);
-				}
-
-				// remove the current thread for _all_ traces
-				_fatalTraces.remove(currentThread);
-				_fatalTracesNames.remove(currentThread);
-				_errorTraces.remove(currentThread);
-				_errorTracesNames.remove(currentThread);
-				_warnTraces.remove(currentThread);
-				_warnTracesNames.remove(currentThread);
 
-				synchronized (_requestThreads) {
-					_requestThreads.remove(Thread.currentThread());
-				}
-				
-				// Don't get the traces string if we have already logged all
-				// of the stacks within the last 10s. All of this logging
+				// Don't get the trace string if we have already logged
+				// one within the last 10s (by default). All of this logging
 				// could just makes it worse for an application that is 
 				// already struggling.
-				String trace = " - (skipped stack traces)";
-				long currentTime = System.currentTimeMillis();
-				if (currentTime - _lastLog > 10000) {
-					trace = stringFromTracesAndNames(traces, names);
-					_lastLog = currentTime;
+				String trace = "";
+				boolean logTrace = false;
+				if (capture != null) {
+					logTrace = acquire(_lastLog, _stackTraceInterval);
+					trace = logTrace ? stringFromCapture(capture) : " - (skipped stack traces)";
 				}
 			
                 IERXRequestDescription requestDescription = descriptionObjectForContext(aContext, aString);
@@ -179,6 +247,13 @@ public class ERXStatisticsStore extends WOStatisticsStore {
 				else if (requestTime > _maximumRequestWarnTime) {
 					log.warn("Request did take too long : {}ms request was: {}{}", requestTime, requestDescription, trace);
 				}
+				else {
+					logTrace = false;
+				}
+
+				if (logTrace) {
+					writeReport("Request did take too long : " + requestTime + "ms request was: " + requestDescription + trace);
+				}
 			}
 			catch (Exception ex) {
 				// AK: pretty important we don't mess up here
@@ -186,52 +261,17 @@ public class ERXStatisticsStore extends WOStatisticsStore {
 			}
 		}
 
-		private String stringFromTracesAndNames(Map<Thread, StackTraceElement[]> traces, Map<Thread, String> names) {
-			String trace = null;
-			if (traces != null) {
-				String capturedThreadName = null;
-				if (names == null) {
-					capturedThreadName = Thread.currentThread().getName();
-				} else {
-					capturedThreadName = names.get(Thread.currentThread());
-				}
-				
-				StringBuilder sb = new StringBuilder();
-				sb.append("\nRequest Thread Name: ").append(capturedThreadName).append("\n\n");
-				for (Iterator iterator = traces.keySet().iterator(); iterator.hasNext();) {
-					Thread t = (Thread) iterator.next();
-					StackTraceElement stack[] = traces.get(t);
-					String name = t.getName() != null ? t.getName() : "No name";
-					String groupName = t.getThreadGroup() != null ? t.getThreadGroup().getName() : "No group";
-
-					if (stack != null && stack.length > 2 && !name.equals("main") && !name.equals("ERXStopWatchTimer") && !groupName.equals("system")) {
-						StackTraceElement func = stack[0];
-						if (func != null && func.getClassName() != null && !func.getClassName().equals("java.net.PlainSocketImpl")) {
-							if (names != null) {
-								String customThreadName = names.get(t);
-								if (customThreadName != null) {
-									sb.append(customThreadName).append(":\n");
-								}
-							}
-							sb.append(t).append(":\n");
-							for (int i = 0; i < stack.length; i++) {
-								StackTraceElement stackTraceElement = stack[i];
-								sb.append("\tat ").append(stackTraceElement).append('\n');
-							}
-						}
-					}
-				}
-				sb.insert(0, '\n');
-				trace = sb.toString();
-				// trace =
-				// trace.replaceAll("at\\s+(com.webobjects|java|er|sun)\\..*?\\n",
-				// "...\n");
-				// trace = trace.replaceAll("(\t\\.\\.\\.\n+)+", "\t...\n");
+		private String stringFromCapture(Capture capture) {
+			StringBuilder sb = new StringBuilder();
+			sb.append("\n\nRequest Thread Name: ").append(capture.threadName()).append("\n\n");
+			sb.append(capture.thread()).append(":\n");
+			for (StackTraceElement stackTraceElement : capture.stack()) {
+				sb.append("\tat ").append(stackTraceElement).append('\n');
 			}
-			else {
-				trace = "";
+			if (capture.threadDump() != null) {
+				sb.append("\nThread dump: ").append(capture.threadDump()).append('\n');
 			}
-			return trace;
+			return sb.toString();
 		}
 
 		private boolean hasTimerStarted() {
@@ -240,9 +280,7 @@ public class ERXStatisticsStore extends WOStatisticsStore {
 
 		protected void startTimer() {
 			if (!hasTimerStarted()) {
-				synchronized (_requestThreads) {
-					_requestThreads.put(Thread.currentThread(), Long.valueOf(System.currentTimeMillis()));
-				}
+				_requests.put(Thread.currentThread(), new RunningRequest());
 			}
 		}
 
@@ -285,62 +323,115 @@ public class ERXStatisticsStore extends WOStatisticsStore {
 		}
 		
 		private void checkThreads() {
-			Map<Thread, Long> requestThreads = new HashMap<>();
-			synchronized (_requestThreads) {
-	            requestThreads.putAll(_requestThreads);
+			Map<Thread, RunningRequest> requests;
+			synchronized (_requests) {
+				requests = new HashMap<>(_requests);
 			}
-			if (!requestThreads.isEmpty()) {
+			if (!requests.isEmpty()) {
                 int deadlocksCount = 0;
-				Map<Thread, StackTraceElement[]> traces = null; 
-				for (Thread thread : requestThreads.keySet()) {
-					Long time = requestThreads.get(thread);
-					if (time != null) {
-						time = System.currentTimeMillis() - time;
-						if (time > _maximumRequestWarnTime/2 && _warnTraces.get(thread) == null) {
-							if(traces == null) {
-								traces = Thread.getAllStackTraces();
-							}
-							Map<Thread, String> names = getCurrentThreadNames(traces.keySet());
-							_warnTraces.put(thread, traces);
-							_warnTracesNames.put(thread, names);
-						}
-						if (time > _maximumRequestErrorTime/2 && _errorTraces.get(thread) == null) {
-							if(traces == null) {
-								traces = Thread.getAllStackTraces();
-							}
-							Map<Thread, String> names = getCurrentThreadNames(traces.keySet());
-							_errorTraces.put(thread, traces);
-							_errorTracesNames.put(thread, names);
-						}
-						if (time > _maximumRequestFatalTime && _fatalTraces.get(thread) == null) {
-							if(traces == null) {
-								traces = Thread.getAllStackTraces();
-							}
-							Map<Thread, String> names = getCurrentThreadNames(traces.keySet());
-							_fatalTraces.put(thread, traces);
-							_fatalTracesNames.put(thread, names);
-							StringBuilder sb = new StringBuilder();
-							sb.append("Request is taking too long, possible deadlock: ");
-							sb.append(time);
-							sb.append(" ms ");
-							sb.append(stringFromTracesAndNames(traces, names));
-							log.error(sb.toString());
-                            deadlocksCount++;
+				long now = System.currentTimeMillis();
+				for (Map.Entry<Thread, RunningRequest> entry : requests.entrySet()) {
+					Thread thread = entry.getKey();
+					RunningRequest request = entry.getValue();
+					long time = now - request._startTime;
+					if (time > _maximumRequestWarnTime/2 && request._warn == null) {
+						request._warn = capture(thread, false);
+					}
+					if (time > _maximumRequestErrorTime/2 && request._error == null) {
+						request._error = capture(thread, true);
+					}
+					if (time > _maximumRequestFatalTime && request._fatal == null) {
+						request._fatal = capture(thread, true);
+						String trace = " - (skipped stack traces)";
+						if (acquire(_lastLog, _stackTraceInterval)) {
+							trace = stringFromCapture(request._fatal);
+							writeReport("Request is taking too long, possible deadlock: " + time + " ms " + trace);
 						}
+						log.error("Request is taking too long, possible deadlock: {} ms {}", time, trace);
+                        deadlocksCount++;
 					}
 				}
                 _listener.deadlock(deadlocksCount);
 			}
 		}
 
-		private Map<Thread, String> getCurrentThreadNames(Set<Thread> keySet) {
-			Map<Thread, String> names = new HashMap<>();
-			for (Thread thread : keySet) {
-				names.put(thread, thread.getName());
+		/**
+		 * Captures the given thread's stack. Works for virtual threads, which are simply not running while they're unmounted.
+		 * 
+		 * @param thread a request thread
+		 * @param threadDump whether to also take a full thread dump (if they're turned on and the last one wasn't too recent)
+		 */
+		private Capture capture(Thread thread, boolean threadDump) {
+			Path threadDumpFile = null;
+			if (threadDump && _threadDumpsEnabled && _reportDirectory != null && acquire(_lastThreadDump, _threadDumpInterval)) {
+				threadDumpFile = writeThreadDump();
 			}
-			return names;
+			return new Capture(thread.getName(), thread.toString(), thread.getStackTrace(), threadDumpFile);
 		}
 
+		/**
+		 * Writes a dump of all threads, virtual ones included, in the JDK's JSON format to the report directory
+		 * 
+		 * @return The file the dump was written to, null if it couldn't be written
+		 */
+		private Path writeThreadDump() {
+			try {
+				Path file = _reportDirectory.resolve(nextReportName("-threads.json"));
+				Files.createDirectories(_reportDirectory);
+				ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class).dumpThreads(file.toString(), HotSpotDiagnosticMXBean.ThreadDumpFormat.JSON);
+				removeOldReports();
+				return file;
+			}
+			catch (IOException | RuntimeException e) {
+				log.warn("Could not write thread dump to {}.", _reportDirectory, e);
+				return null;
+			}
+		}
+
+		/**
+		 * Writes the given report to a new file in the report directory, if there is one
+		 */
+		private void writeReport(String report) {
+			if (_reportDirectory != null) {
+				try {
+					Files.createDirectories(_reportDirectory);
+					Files.writeString(_reportDirectory.resolve(nextReportName(".txt")), report);
+					removeOldReports();
+				}
+				catch (IOException | RuntimeException e) {
+					log.warn("Could not write slow request report to {}.", _reportDirectory, e);
+				}
+			}
+		}
+
+		/**
+		 * @return A new report file name. Names sort in the order they were created.
+		 */
+		private String nextReportName(String suffix) {
+			return REPORT_PREFIX + REPORT_TIMESTAMP.format(LocalDateTime.now()) + "-" + String.format("%06d", _reportSequence.incrementAndGet() % 1000000) + suffix;
+		}
+
+		/**
+		 * Deletes the oldest reports and thread dumps until there are no more than maxCount left
+		 */
+		private void removeOldReports() throws IOException {
+			List<Path> reports;
+			try (Stream<Path> files = Files.list(_reportDirectory)) {
+				reports = files.filter(file -> file.getFileName().toString().startsWith(REPORT_PREFIX)).sorted().toList();
+			}
+			for (int i = 0; i < reports.size() - _maxReports; i++) {
+				Files.deleteIfExists(reports.get(i));
+			}
+		}
+
+		/**
+		 * @return true (and the given time updated to now) if the given time is at least interval milliseconds ago
+		 */
+		private boolean acquire(AtomicLong last, long interval) {
+			long currentTime = System.currentTimeMillis();
+			long lastTime = last.get();
+			return currentTime - lastTime > interval && last.compareAndSet(lastTime, currentTime);
+		}
 	}
 
 	@Override
@@ -356,12 +447,10 @@ public class ERXStatisticsStore extends WOStatisticsStore {
 		return stats;
 	}
 
-	protected NSMutableArray<WOSession> sessions = new NSMutableArray<>();
-
 	@Override
 	protected void _applicationCreatedSession(WOSession wosession) {
+		_sessions.add(wosession);
 		synchronized (this) {
-			sessions.addObject(wosession);
 			super._applicationCreatedSession(wosession);
 		}
 	}
@@ -370,12 +459,22 @@ public class ERXStatisticsStore extends WOStatisticsStore {
 	protected void _sessionTerminating(WOSession wosession) {
 		synchronized (this) {
 			super._sessionTerminating(wosession);
-			sessions.removeObject(wosession);
 		}
+		_sessions.remove(wosession);
 	}
 
+	/**
+	 * @return A snapshot of the live sessions
+	 */
 	public NSArray<WOSession> activeSessions() {
-		return sessions;
+		return new NSArray<>(_sessions.snapshot());
+	}
+
+	/**
+	 * @return Number of live sessions, without making a snapshot of them
+	 */
+	public int activeSessionCount() {
+		return _sessions.size();
 	}
 
 	private void startTimer() {
@@ -422,6 +521,44 @@ public class ERXStatisticsStore extends WOStatisticsStore {
 		super.applicationDidHandleWebServiceRequestWithActionNamed(aString);
 	}
 
+	/**
+	 * Adds a finished request's timeline to the summary of all requests and to that of it's page (if it has one), and hands it to the listener.
+	 * Called by ERXApplication.dispatchRequest().
+	 */
+	public void logRequestTimeline(ERXRequestTimeline timeline) {
+		try {
+			_requestTimelines.record(timeline);
+			String pageName = timeline.pageName();
+			if (pageName != null) {
+				ERXRequestTimeline.Summary summary = _pageTimelines.get(pageName);
+				if (summary == null && _pageTimelines.size() < _maxTimelinePages) {
+					summary = _pageTimelines.computeIfAbsent(pageName, key -> new ERXRequestTimeline.Summary());
+				}
+				if (summary != null) {
+					summary.record(timeline);
+				}
+			}
+			_listener.timeline(timeline);
+		}
+		catch (Exception ex) {
+			log.error("Error", ex);
+		}
+	}
+
+	/**
+	 * @return Summary of the timelines of all requests
+	 */
+	public ERXRequestTimeline.Summary requestTimelines() {
+		return _requestTimelines;
+	}
+
+	/**
+	 * @return Summaries of the request timelines by page name, for at most timelines.maxPages pages (later pages aren't summarised)
+	 */
+	public Map<String, ERXRequestTimeline.Summary> pageTimelines() {
+		return Collections.unmodifiableMap(_pageTimelines);
+	}
+
 	private Object fix(Object value) {
 		if (value instanceof ArrayList) {
 			ArrayList converted = (ArrayList) value;
@@ -440,28 +577,61 @@ public class ERXStatisticsStore extends WOStatisticsStore {
 		return fix(result);
 	}
 
+	/**
+	 * Estimates session memory from a random sample of the live sessions (at most sessionMemory.sampleSize of them),
+	 * rather than from how much free memory the VM has lost since startup, which mostly measures garbage that hasn't been
+	 * collected yet. The estimate is reused for sessionMemory.maxAge ms.
+	 * <p>
+	 * The sessions aren't checked out, so nothing is done to them that could interfere with a request using them: only
+	 * sessions that implement {@link IERXSessionMemoryEstimate} (ERXAjaxSession and it's subclasses do) contribute a size,
+	 * and ERXAjaxSessions contribute the number of page instances in their page cache ("Cached Pages Per Session"), which
+	 * is what usually dominates a session's memory. If no sampled session provides a size, "Total Memory" and "Per Session"
+	 * are left out rather than reported as 0, and that's logged once.
+	 */
 	@Override
 	public HashMap getAverageSessionMemory() {
-		NSMutableDictionary<String, Long> avg = new NSMutableDictionary<>();
-		NSDictionary<String, Long> startMemory = null;
-		NSMutableDictionary<String, Long> currentMemory = memoryUsage();
-		try {
-			startMemory = (NSDictionary<String, Long>) initMemoryField.get(this);
-		} catch (Exception e) {
-			// ignore
+		SessionMemoryEstimate estimate = _sessionMemoryEstimate;
+		if (estimate == null || System.currentTimeMillis() - estimate.estimatedAt() > _sessionMemoryMaxAge) {
+			estimate = estimateSessionMemory();
+			_sessionMemoryEstimate = estimate;
 		}
-		int sessionCount = activeSessions().size();
-
-		Long totalSessionMemory = Long.valueOf(0L);
-		Long averageSessionMemory = Long.valueOf(0L);
-		if (startMemory != null && sessionCount > 0) {
-			totalSessionMemory = Long.valueOf(startMemory.get("Free Memory").longValue()
-					- currentMemory.get("Free Memory").longValue());
-			averageSessionMemory = Long.valueOf(totalSessionMemory.longValue() / sessionCount);
+
+		NSMutableDictionary<String, Number> avg = new NSMutableDictionary<>();
+		if (estimate.sampledSessions() > 0) {
+			avg.setObjectForKey(Long.valueOf(estimate.perSession() * activeSessionCount()), "Total Memory");
+			avg.setObjectForKey(Long.valueOf(estimate.perSession()), "Per Session");
 		}
-		avg.setObjectForKey(totalSessionMemory, "Total Memory");
-		avg.setObjectForKey(averageSessionMemory, "Per Session");
+		avg.setObjectForKey(Integer.valueOf(estimate.sampledSessions()), "Sampled Sessions");
+		avg.setObjectForKey(Double.valueOf(estimate.pagesPerSession()), "Cached Pages Per Session");
 
 		return avg.hashMap();
 	}
+
+	private SessionMemoryEstimate estimateSessionMemory() {
+		List<WOSession> sample = _sessions.sample(_sessionMemorySampleSize);
+		long sampledBytes = 0L;
+		int sampledSessions = 0;
+		long cachedPages = 0L;
+		for (WOSession session : sample) {
+			if (session instanceof IERXSessionMemoryEstimate sizedSession) {
+				try {
+					sampledBytes += sizedSession.estimatedMemorySize();
+					sampledSessions++;
+				}
+				catch (RuntimeException e) {
+					log.warn("Session {} failed to estimate it's memory size.", session.sessionID(), e);
+				}
+			}
+			if (session instanceof ERXAjaxSession ajaxSession) {
+				cachedPages += ajaxSession.pageCacheInstanceCount();
+			}
+		}
+		if (sampledSessions == 0 && !sample.isEmpty() && !_loggedMissingSessionMemoryEstimates) {
+			_loggedMissingSessionMemoryEstimates = true;
+			log.info("None of the sampled sessions estimate their size, so session memory isn't reported. Implement {} in your session class to report it.", IERXSessionMemoryEstimate.class.getName());
+		}
+		long perSession = sampledSessions > 0 ? sampledBytes / sampledSessions : 0L;
+		double pagesPerSession = sample.isEmpty() ? 0 : cachedPages / (double) sample.size();
+		return new SessionMemoryEstimate(System.currentTimeMillis(), perSession, sampledSessions, pagesPerSession);
+	}
 }
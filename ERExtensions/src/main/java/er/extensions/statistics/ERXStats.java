@@ -3,9 +3,10 @@ package er.extensions.statistics;
 import java.math.BigDecimal;
 import java.math.MathContext;
 import java.math.RoundingMode;
-import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -25,8 +26,15 @@ import er.extensions.foundation.ERXThreadStorage;
  * <p>
  * ERXStats provides a simple interface for logging statistics information like
  * WOEvent, but also tracked on a per-thread basis (so you can dump stats just
- * for a particular thread). YOU PROBABLY DO NOT WANT TO TURN THIS ON IN
- * PRODUCTION.
+ * for a particular thread).
+ * </p>
+ * 
+ * <p>
+ * Every duration is also recorded in a per-key {@link ERXHistogram} shared by all
+ * threads, which is what {@link #aggregateLogEntries()} reports (including
+ * p50/p95/p99). Recording is lock free, so it's cheap enough to leave on in production.
+ * A thread's own statistics are only ever touched by that thread and aren't kept
+ * after it's been reset.
  * </p>
  * 
  * <p>
@@ -54,14 +62,14 @@ import er.extensions.foundation.ERXThreadStorage;
  * 
  * @property er.extensions.erxStats.enabled if true, stats will be initialized on each for each request
  * @property er.extensions.erxStats.traceCollectingEnabled defaults to false
- * @property er.extensions.erxStats.max the maximum historical stats to collect (defaults to 1000) 
+ * @property er.extensions.erxStats.maxKeys the maximum number of distinct keys aggregated across threads (defaults to 2000). Durations for keys beyond that are only tracked per thread.
  */
 public class ERXStats {
 
 	private static final String STATS_INITIALIZED_KEY = "er.extensions.erxStats.initialized";
 	private static final String STATS_START_TIME_KEY = "er.extensions.erxStats.startTime";
 	private static final String STATS_LAST_TIME_KEY = "er.extensions.erxStats.lastTime";
-	private static final String STATS_MAX_KEY = "er.extensions.erxStats.max";
+	private static final String STATS_MAX_KEYS_KEY = "er.extensions.erxStats.maxKeys";
 	private static final String STATS_KEY = "er.extensions.erxStats.statistics";
 
     public static final String STATS_ENABLED_KEY = "er.extensions.erxStats.enabled";
@@ -78,7 +86,15 @@ public class ERXStats {
 		public String Batching = "Batching";
 	}
 	
-	private static NSMutableArray<NSMutableDictionary<String, LogEntry>> _allStatistics = new NSMutableArray<>();
+	/**
+	 * Aggregate log entries (histogram backed) by key, across all threads
+	 */
+	private static final ConcurrentHashMap<String, LogEntry> _aggregates = new ConcurrentHashMap<>();
+
+	/**
+	 * Number of recorded durations that weren't aggregated since maxKeys was reached
+	 */
+	private static final LongAdder _unaggregatedDurations = new LongAdder();
 
 	/**
 	 * Initializes the logging system if the property er.extensions.erxStats.enabled is true.
@@ -126,14 +142,6 @@ public class ERXStats {
 		if (statistics == null) {
 			statistics = new NSMutableDictionary<>();
 			ERXThreadStorage.takeValueForKey(statistics, ERXStats.STATS_KEY);
-			synchronized (_allStatistics) {
-				ERXStats._allStatistics.addObject(statistics);
-
-				int maxStatistics = ERXProperties.intForKeyWithDefault(ERXStats.STATS_MAX_KEY, 1000);
-				if (ERXStats._allStatistics.count() > maxStatistics) {
-					ERXStats._allStatistics.removeObjectAtIndex(0);
-				}
-			}
 		}
 		return statistics;
 	}
@@ -149,18 +157,33 @@ public class ERXStats {
 		final NSMutableDictionary<String, LogEntry> statistics = ERXStats.statistics();
 
 		if (statistics != null) {
-			synchronized (statistics) {
-				entry = statistics.objectForKey(key);
-				if (entry == null) {
-					entry = new LogEntry(key);
-					statistics.setObjectForKey(entry, key);
-				}
+			entry = statistics.objectForKey(key);
+			if (entry == null) {
+				entry = new LogEntry(key, aggregateLogEntryForKey(key));
+				statistics.setObjectForKey(entry, key);
 			}
 		}
 
 		return entry;
 	}
 
+	/**
+	 * @return The aggregate entry for the given key, created if necessary. null if we're already aggregating the maximum number of keys.
+	 */
+	private static LogEntry aggregateLogEntryForKey(String key) {
+		LogEntry aggregate = _aggregates.get(key);
+
+		if (aggregate == null) {
+			if (_aggregates.size() >= ERXProperties.intForKeyWithDefault(ERXStats.STATS_MAX_KEYS_KEY, 2000)) {
+				return null;
+			}
+
+			aggregate = _aggregates.computeIfAbsent(key, k -> new LogEntry(k, new ERXHistogram()));
+		}
+
+		return aggregate;
+	}
+
 	/**
      * Returns the log entry for the given key within the specified logging group.
      *
@@ -179,51 +202,34 @@ public class ERXStats {
 	 */
 	public static NSSet<String> aggregateKeys() {
 		NSMutableSet<String> keys = new NSMutableSet<>();
-		for (NSMutableDictionary<String, LogEntry> statistics : ERXStats._allStatistics) {
-			keys.addObjectsFromArray(statistics.allKeys());
+		for (String key : _aggregates.keySet()) {
+			keys.addObject(key);
 		}
 		return keys;
 	}
 
-	/**
-	 * Returns a LogEntry that represents the aggregate data collected for the
-	 * given key in all of the recorded threads.
-	 * 
-	 * @param key the key to lookup aggregate stats for
-	 * @return the aggregate log entry for the given key
-	 */
-	private static LogEntry aggregateLogEntryForKey(String key) {
-		LogEntry aggregateLogEntry = new LogEntry(key);
-		if (key != null) {
-			synchronized (ERXStats._allStatistics) {
-				for (NSMutableDictionary<String, LogEntry> statistics : ERXStats._allStatistics) {
-					LogEntry logEntry = statistics.objectForKey(key);
-					if (logEntry != null) {
-						aggregateLogEntry._add(logEntry);
-					}
-				}
-			}
-		}
-		return aggregateLogEntry;
-	}
-
 	/**
 	 * Returns an array of LogEntries that represents the aggregate time for
-	 * all of the tracked stats in the queue, uniqued on key.
+	 * all of the tracked stats across all threads, uniqued on key. The entries
+	 * are live, i.e. they keep counting after they've been returned.
 	 * 
 	 * @return an aggregate set of log entries
 	 */
 	public static NSArray<LogEntry> aggregateLogEntries() {
 		NSMutableArray<LogEntry> aggregateLogEntries = new NSMutableArray<>();
-		for (String key : aggregateKeys()) {
-			LogEntry logEntry = ERXStats.aggregateLogEntryForKey(key);
-			if (logEntry != null) {
-				aggregateLogEntries.addObject(logEntry);
-			}
+		for (LogEntry logEntry : _aggregates.values()) {
+			aggregateLogEntries.addObject(logEntry);
 		}
 		return aggregateLogEntries;
 	}
 
+	/**
+	 * @return Number of durations that were only tracked per thread because the maximum number of aggregated keys had been reached
+	 */
+	public static long unaggregatedDurations() {
+		return _unaggregatedDurations.sum();
+	}
+
 	/**
 	 * Mark the start of a process, call markEnd when it is over to log the duration.
 	 * 
@@ -296,8 +302,8 @@ public class ERXStats {
 	/**
 	 * Resets statistics for this thread AND the global queue.
 	 */
-	public static synchronized void reset() {
-		_allStatistics.removeAllObjects();
+	public static void reset() {
+		_aggregates.clear();
 		ERXThreadStorage.removeValueForKey(ERXStats.STATS_KEY);
 	}
 
@@ -320,90 +326,171 @@ public class ERXStats {
 		if(statsLog.isDebugEnabled()) {
 			NSMutableDictionary statistics = ERXStats.statistics();
 			if (statistics != null) {
-				synchronized (statistics) {
-//					NSArray values = ERXArrayUtilities.sortedArraySortedWithKey(statistics.allValues(), operation);
-					NSArray values = statistics.allValues(); // FIXME: This used to be sorted. Does it matter? Do I care?
-					if (values.count() > 0) {
-						Long startTime = (Long) ERXThreadStorage.valueForKey(ERXStats.STATS_START_TIME_KEY);
-						Long lastTime = (Long) ERXThreadStorage.valueForKey(ERXStats.STATS_LAST_TIME_KEY);
-						long currentTime = System.currentTimeMillis();
-						String result = NSPropertyListSerialization.stringFromPropertyList(values);
-						// result = result.replaceAll("\\n\\t", "\n\t\t");
-						// result = result.replaceAll("\\n", "\n\t\t");
-						statsLog.debug(
-								(startTime != null ? "Time since init " + (currentTime - startTime.longValue()) + " ms": "" ) + 
-								(lastTime != null ? ", last log " + (currentTime - lastTime.longValue()) + " ms": "" ) + 
-								", total cnt/sum: " + statistics.allValues().valueForKeyPath("@sum.count") + "/" + statistics.allValues().valueForKeyPath("@sum.sum") +
-								" (cnt/sum : min/max/avg|trace cnt -> key) = " + result);
-						ERXThreadStorage.takeValueForKey(Long.valueOf(currentTime), ERXStats.STATS_LAST_TIME_KEY);
-					}
+//				NSArray values = ERXArrayUtilities.sortedArraySortedWithKey(statistics.allValues(), operation);
+				NSArray values = statistics.allValues(); // FIXME: This used to be sorted. Does it matter? Do I care?
+				if (values.count() > 0) {
+					Long startTime = (Long) ERXThreadStorage.valueForKey(ERXStats.STATS_START_TIME_KEY);
+					Long lastTime = (Long) ERXThreadStorage.valueForKey(ERXStats.STATS_LAST_TIME_KEY);
+					long currentTime = System.currentTimeMillis();
+					String result = NSPropertyListSerialization.stringFromPropertyList(values);
+					// result = result.replaceAll("\\n\\t", "\n\t\t");
+					// result = result.replaceAll("\\n", "\n\t\t");
+					statsLog.debug(
+							(startTime != null ? "Time since init " + (currentTime - startTime.longValue()) + " ms": "" ) + 
+							(lastTime != null ? ", last log " + (currentTime - lastTime.longValue()) + " ms": "" ) + 
+							", total cnt/sum: " + statistics.allValues().valueForKeyPath("@sum.count") + "/" + statistics.allValues().valueForKeyPath("@sum.sum") +
+							" (cnt/sum : min/max/avg|trace cnt -> key) = " + result);
+					ERXThreadStorage.takeValueForKey(Long.valueOf(currentTime), ERXStats.STATS_LAST_TIME_KEY);
 				}
 			}
 		}
 	}
 
 	/**
-	 * A statistics logging entry.
+	 * An aggregate entry's p50, p95 and p99, taken from one snapshot of it's histogram. See {@link LogEntry#percentiles()}.
+	 */
+	public record Percentiles(long p50, long p95, long p99) {
+
+		@Override
+		public String toString() {
+			return p50 + "/" + p95 + "/" + p99;
+		}
+	}
+
+	/**
+	 * A statistics logging entry. Either a thread's entry for a key, which only that thread touches, or the aggregate entry for a key
+	 * across all threads, which is backed by a lock-free {@link ERXHistogram}.
 	 */
 	public static class LogEntry {
-		private float _avg;
+
+		/**
+		 * Maximum number of distinct traces an aggregate entry keeps
+		 */
+		private static final int MAX_AGGREGATE_TRACES = 100;
+
+		private final String _key;
+
+		/**
+		 * The aggregate entry's values. null for a thread's entry.
+		 */
+		private final ERXHistogram _histogram;
+
+		/**
+		 * For a thread's entry, the aggregate entry it's durations are also recorded in. null if there's none.
+		 */
+		private final LogEntry _aggregate;
+
 		private long _count;
 		private long _min;
 		private long _max;
 		private long _sum;
-        private long _latestDuration;
-		private String _key;
-		private Set<String> _traces = Collections.synchronizedSet(new HashSet<String>());
+		private long _latestDuration;
+		private final Set<String> _traces;
 		private NSArray<String> _traceArray = null;
 		private long _lastMark;
 
+		/**
+		 * Creates an entry for a single thread, not aggregated
+		 */
 		public LogEntry(String key) {
+			this(key, (LogEntry) null);
+		}
+
+		private LogEntry(String key, LogEntry aggregate) {
 			_key = key;
-			_avg = -1.0f;
+			_histogram = null;
+			_aggregate = aggregate;
 			_min = Long.MAX_VALUE;
-            _latestDuration = -1;
+			_latestDuration = -1;
+			_traces = new HashSet<>();
 		}
 
-		public synchronized void _add(LogEntry logEntry) {
-			long originalCount = _count;
-			if (logEntry._min < _min) {
-				_min = logEntry._min;
-			}
-			if (logEntry._max > _max) {
-				_max = logEntry._max;
-			}
-			_sum += logEntry._sum;
-			_count += logEntry._count;
-			_avg = -1.0f;
-			_traces.addAll(logEntry._traces);
-			_traceArray = null;
+		private LogEntry(String key, ERXHistogram histogram) {
+			_key = key;
+			_histogram = histogram;
+			_aggregate = null;
+			_latestDuration = -1;
+			_traces = ConcurrentHashMap.newKeySet();
 		}
 
-		public synchronized long count() {
-			return _count;
+		public long count() {
+			return _histogram != null ? _histogram.count() : _count;
 		}
 
-		public synchronized long min() {
+		public long min() {
+			if (_histogram != null) {
+				return _histogram.count() == 0 ? Long.MAX_VALUE : _histogram.min();
+			}
 			return _min;
 		}
 
-		public synchronized long max() {
-			return _max;
+		public long max() {
+			return _histogram != null ? _histogram.max() : _max;
+		}
+
+		public long sum() {
+			return _histogram != null ? _histogram.sum() : _sum;
+		}
+
+		/**
+		 * @return The most recent duration of a thread's entry. -1 for aggregate entries (and threads that haven't recorded anything).
+		 */
+		public long latestDuration() {
+			return _latestDuration;
+		}
+
+		/**
+		 * @return The duration below or at which the given percentage (0-100) of the durations lie, with a relative error of at most 6.25%. Only available on aggregate entries, -1 for a thread's entry.
+		 */
+		public long percentile(double percentile) {
+			return _histogram != null ? _histogram.valueAtPercentile(percentile) : -1;
+		}
+
+		public long p50() {
+			return percentile(50);
+		}
+
+		public long p95() {
+			return percentile(95);
+		}
+
+		public long p99() {
+			return percentile(99);
+		}
+
+		/**
+		 * Each of percentile(), p50(), p95() and p99() copies the histogram. When you want more than one of them (say, for a row of a report), use this
+		 * instead, which copies it once.
+		 *
+		 * @return The entry's p50, p95 and p99, all taken from the same snapshot of the histogram. All -1 for a thread's entry.
+		 */
+		public Percentiles percentiles() {
+			if (_histogram == null) {
+				return new Percentiles(-1, -1, -1);
+			}
+			ERXHistogram.Snapshot snapshot = _histogram.snapshot();
+			return new Percentiles(snapshot.valueAtPercentile(50), snapshot.valueAtPercentile(95), snapshot.valueAtPercentile(99));
 		}
 
-		public synchronized long sum() {
-			return _sum;
+		/**
+		 * @return The aggregate entry's (live) histogram, null for a thread's entry
+		 */
+		public ERXHistogram histogram() {
+			return _histogram;
 		}
 
-        public synchronized long latestDuration() {
-            return _latestDuration;
-        }
+		/**
+		 * @return A consistent copy of the aggregate entry's histogram, null for a thread's entry
+		 */
+		public ERXHistogram.Snapshot histogramSnapshot() {
+			return _histogram != null ? _histogram.snapshot() : null;
+		}
 
-		public synchronized void start() {
+		public void start() {
 			_lastMark = System.currentTimeMillis();
 		}
 
-		public synchronized void end() {
+		public void end() {
 			if (_lastMark > 0) {
 				add(System.currentTimeMillis() - _lastMark);
 				_lastMark = 0;
@@ -413,31 +500,51 @@ public class ERXStats {
 			}
 		}
 
-		public synchronized void add(long time) {
-            _latestDuration = time;
-			if (time < _min) {
-				_min = time;
-			}
-			if (time > _max) {
-				_max = time;
-			}
-			_count++;
-			_sum += time;
-			_avg = -1.0f;
+		public void add(long time) {
+			String trace = null;
 			if (traceCollectingEnabled()) {
 				// Throwable t = new RuntimeException();
 				// t.fillInStackTrace();
-				String trace = ERXExceptionUtilities.stackTrace(); 
+				trace = ERXExceptionUtilities.stackTrace(); 
+			}
+
+			_add(time, trace);
+
+			if (_histogram == null) {
+				if (_aggregate != null) {
+					_aggregate._add(time, trace);
+				}
+				else {
+					_unaggregatedDurations.increment();
+				}
+			}
+		}
+
+		private void _add(long time, String trace) {
+			if (_histogram != null) {
+				_histogram.record(time);
+			}
+			else {
+				_latestDuration = time;
+				if (time < _min) {
+					_min = time;
+				}
+				if (time > _max) {
+					_max = time;
+				}
+				_count++;
+				_sum += time;
+			}
+
+			if (trace != null && (_histogram == null || _traces.size() < MAX_AGGREGATE_TRACES)) {
 				_traces.add(trace);
 				_traceArray = null;
 			}
 		}
 
-		public synchronized float avg() {
-			if (_avg < 0.0f) {
-				_avg = (_count == 0 ? 0.0f : (_sum / ((float) _count)));
-			}
-			return _avg;
+		public float avg() {
+			long count = count();
+			return count == 0 ? 0.0f : (sum() / ((float) count));
 		}
 
 		public String key() {
@@ -445,22 +552,24 @@ public class ERXStats {
 		}
 
 		public NSArray traces() {
-			if(_traceArray == null) {
+			NSArray<String> traceArray = _traceArray;
+			if(traceArray == null) {
 				NSMutableSet<String> traces =  new NSMutableSet<>();
 				for (String trace : _traces) {
 					trace = trace.replaceAll("at\\s+(com.webobjects|java|er|sun)\\..*?\\n", "...\n");
 					trace = trace.replaceAll("(\\.\\.\\.\\s+)+", "...\n\t");
 					traces.addObject(trace);
 				}
-				_traceArray = traces.allObjects();
+				traceArray = traces.allObjects();
+				_traceArray = traceArray;
 			}
-			return _traceArray;
+			return traceArray;
 		}
 		
 		@Override
 		public String toString() {
-			return count() + "/" + sum() + " : " + min() + "/" + max() + "/" + new BigDecimal(avg(), MathContext.DECIMAL32).setScale(2, RoundingMode.HALF_EVEN) + "|" + _traces.size() + "->" + _key;
+			return count() + "/" + sum() + " : " + min() + "/" + max() + "/" + new BigDecimal(avg(), MathContext.DECIMAL32).setScale(2, RoundingMode.HALF_EVEN) + (_histogram != null ? " p50/p95/p99 " + percentiles() : "") + "|" + _traces.size() + "->" + _key;
 			// + "\n" + traces.iterator().next();
 		}
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,17 @@
+package er.extensions.statistics.store;
+
+/**
+ * Implemented by sessions that can tell ERXStatisticsStore roughly how much memory they hold on to, for
+ * {@link er.extensions.statistics.ERXStatisticsStore#getAverageSessionMemory()}.
+ * <p>
+ * It's called from whatever thread asks for the statistics, without checking the session out, while a request may be
+ * using the session. So an implementation must not change the session, must not wait on it, and must be cheap: read a few
+ * fields or counters the session keeps anyway (the size of a cached result set, say), don't walk the object graph.
+ */
+public interface IERXSessionMemoryEstimate {
+
+	/**
+	 * @return An estimate of the number of bytes the session holds on to
+	 */
+	public long estimatedMemorySize();
+}
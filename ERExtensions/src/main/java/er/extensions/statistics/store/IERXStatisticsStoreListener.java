@@ -1,8 +1,16 @@
 package er.extensions.statistics.store;
 
+import er.extensions.statistics.ERXRequestTimeline;
+
 public interface IERXStatisticsStoreListener {
 
 	public void log(long requestTime, IERXRequestDescription description);
 
 	public void deadlock(int deadlocksCount);
+
+	/**
+	 * Called with the phase timings of every request, once it's response is complete.
+	 * Runs on the request's thread, so it should be quick.
+	 */
+	public default void timeline(ERXRequestTimeline timeline) {}
 }
\ No newline at end of file
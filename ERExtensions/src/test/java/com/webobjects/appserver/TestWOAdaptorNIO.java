@@ -0,0 +1,181 @@
+package com.webobjects.appserver;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+public class TestWOAdaptorNIO {
+
+	private static InputStream stream( final String s ) {
+		return new ByteArrayInputStream( s.getBytes( StandardCharsets.ISO_8859_1 ) );
+	}
+
+	private static String decode( final String chunked ) throws IOException {
+		return new String( new WOAdaptorNIO.ChunkedInputStream( stream( chunked ) ).readAllBytes(), StandardCharsets.ISO_8859_1 );
+	}
+
+	/**
+	 * @return The given bytes chunked, in chunks of the given size
+	 */
+	private static byte[] chunked( final byte[] bytes, final int chunkSize ) {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		for( int offset = 0; offset < bytes.length; offset += chunkSize ) {
+			final int length = Math.min( chunkSize, bytes.length - offset );
+			out.writeBytes( (Integer.toHexString( length ) + "\r\n").getBytes( StandardCharsets.ISO_8859_1 ) );
+			out.write( bytes, offset, length );
+			out.writeBytes( "\r\n".getBytes( StandardCharsets.ISO_8859_1 ) );
+		}
+
+		out.writeBytes( "0\r\n\r\n".getBytes( StandardCharsets.ISO_8859_1 ) );
+		return out.toByteArray();
+	}
+
+	@Test
+	public void decodesChunks() throws IOException {
+		assertEquals( "Wikipedia in\r\n\r\nchunks.", decode( "4\r\nWiki\r\n5\r\npedia\r\nE\r\n in\r\n\r\nchunks.\r\n0\r\n\r\n" ) );
+	}
+
+	@Test
+	public void emptyBody() throws IOException {
+		assertEquals( "", decode( "0\r\n\r\n" ) );
+	}
+
+	@Test
+	public void hexSizesAreCaseInsensitive() throws IOException {
+		final String data = "x".repeat( 0xab );
+		assertEquals( data + data, decode( "ab\r\n" + data + "\r\nAB\r\n" + data + "\r\n0\r\n\r\n" ) );
+	}
+
+	@Test
+	public void chunkExtensionsAreIgnored() throws IOException {
+		assertEquals( "Wikipedia", decode( "4;name=value\r\nWiki\r\n5 ; quoted=\"a;b\"\r\npedia\r\n0;last\r\n\r\n" ) );
+	}
+
+	@Test
+	public void trailersAreSkipped() throws IOException {
+		assertEquals( "Wiki", decode( "4\r\nWiki\r\n0\r\nExpires: Wed, 21 Oct 2015 07:28:00 GMT\r\nX-Checksum: abc\r\n\r\n" ) );
+	}
+
+	@Test
+	public void bareLineFeedsAreAcceptedAfterSizeAndTrailerLines() throws IOException {
+		assertEquals( "Wikipedia", decode( "4\nWiki\r\n5\npedia\r\n0\nX-Trailer: 1\n\n" ) );
+	}
+
+	@Test
+	public void chunkDataMustBeFollowedByCRLF() {
+		assertThrows( WOAdaptorNIO.MalformedRequestException.class, () -> decode( "4\r\nWiki\n5\r\npedia\r\n0\r\n\r\n" ) );
+		assertThrows( WOAdaptorNIO.MalformedRequestException.class, () -> decode( "4\r\nWiki\r5\r\npedia\r\n0\r\n\r\n" ) );
+	}
+
+	@Test
+	public void chunkLongerThanItsSizeIsRejected() {
+		assertThrows( WOAdaptorNIO.MalformedRequestException.class, () -> decode( "4\r\nWikipedia\r\n0\r\n\r\n" ) );
+		assertThrows( WOAdaptorNIO.MalformedRequestException.class, () -> decode( "4\r\nWiki \r\n0\r\n\r\n" ) );
+	}
+
+	@Test
+	public void stopsAtTheEndOfTheBody() throws IOException {
+		// With keep-alive the next request follows right after the body, and must be left for the next read
+		final InputStream connection = stream( "4\r\nWiki\r\n0\r\nX-Trailer: 1\r\n\r\nGET / HTTP/1.1\r\n" );
+		final WOAdaptorNIO.ChunkedInputStream chunkedStream = new WOAdaptorNIO.ChunkedInputStream( connection );
+
+		assertEquals( "Wiki", new String( chunkedStream.readAllBytes(), StandardCharsets.ISO_8859_1 ) );
+		assertEquals( -1, chunkedStream.read() );
+		assertEquals( "GET / HTTP/1.1\r\n", new String( connection.readAllBytes(), StandardCharsets.ISO_8859_1 ) );
+	}
+
+	@Test
+	public void singleByteReads() throws IOException {
+		final WOAdaptorNIO.ChunkedInputStream chunkedStream = new WOAdaptorNIO.ChunkedInputStream( stream( "2\r\n\u00ffa\r\n1\r\nb\r\n0\r\n\r\n" ) );
+
+		assertEquals( 0xff, chunkedStream.read() );
+		assertEquals( 'a', chunkedStream.read() );
+		assertEquals( 'b', chunkedStream.read() );
+		assertEquals( -1, chunkedStream.read() );
+	}
+
+	@Test
+	public void invalidChunkSizeIsRejected() {
+		for( String size : new String[] { "zz", "4z", "", " 4", "0x4", "4.0" } ) {
+			assertThrows( WOAdaptorNIO.MalformedRequestException.class, () -> decode( size + "\r\nWiki\r\n0\r\n\r\n" ), size );
+		}
+	}
+
+	@Test
+	public void signedChunkSizeIsRejected() {
+		assertThrows( WOAdaptorNIO.MalformedRequestException.class, () -> decode( "-4\r\nWiki\r\n0\r\n\r\n" ) );
+		assertThrows( WOAdaptorNIO.MalformedRequestException.class, () -> decode( "+4\r\nWiki\r\n0\r\n\r\n" ) );
+		assertThrows( WOAdaptorNIO.MalformedRequestException.class, () -> decode( "4\r\nWiki\r\n-0\r\n\r\n" ) );
+	}
+
+	@Test
+	public void chunkSizeThatWouldOverflowIsRejected() {
+		assertThrows( WOAdaptorNIO.MalformedRequestException.class, () -> decode( "10000000000000000\r\nWiki\r\n0\r\n\r\n" ) );
+		assertThrows( WOAdaptorNIO.MalformedRequestException.class, () -> decode( "8000000000000000\r\nWiki\r\n0\r\n\r\n" ) );
+	}
+
+	@Test
+	public void overlongChunkLineIsRejected() {
+		assertThrows( IOException.class, () -> decode( "4;" + "x".repeat( 1024 * 1024 ) + "\r\nWiki\r\n0\r\n\r\n" ) );
+	}
+
+	@Test
+	public void truncatedBodyIsAnError() {
+		assertThrows( EOFException.class, () -> decode( "10\r\nWiki" ) );
+		assertThrows( EOFException.class, () -> decode( "4\r\nWiki\r\n" ) );
+		assertThrows( EOFException.class, () -> decode( "4\r\nWiki\r\n0\r\nX-Trailer: 1\r\n" ) );
+	}
+
+	@Test
+	public void largeChunkedBodyIsSpooledToAFile() throws IOException {
+		final byte[] body = new byte[64 * 1024 + 1];
+
+		for( int i = 0; i < body.length; i++ ) {
+			body[i] = (byte)i;
+		}
+
+		final Map<String, List<String>> headers = Map.of( "Transfer-Encoding", List.of( "chunked" ) );
+		final WOAdaptorRequestContent content = WOAdaptorRequestContent.spool( headers, new WOAdaptorNIO.ChunkedInputStream( new ByteArrayInputStream( chunked( body, 5000 ) ) ), Integer.MAX_VALUE, 64 * 1024 );
+
+		try {
+			assertNotNull( content.spoolFile() );
+			assertArrayEquals( body, Files.readAllBytes( content.spoolFile() ) );
+			assertEquals( List.of( String.valueOf( body.length ) ), content.headers().get( "Content-Length" ) );
+		}
+		finally {
+			content.dispose();
+		}
+	}
+
+	@Test
+	public void smallChunkedBodyIsKeptInMemory() throws IOException {
+		final byte[] body = new byte[64 * 1024];
+		final Map<String, List<String>> headers = Map.of( "Transfer-Encoding", List.of( "chunked" ) );
+		final WOAdaptorRequestContent content = WOAdaptorRequestContent.spool( headers, new WOAdaptorNIO.ChunkedInputStream( new ByteArrayInputStream( chunked( body, 5000 ) ) ), Integer.MAX_VALUE, 64 * 1024 );
+
+		assertNull( content.spoolFile() );
+		assertArrayEquals( body, content.data().bytes() );
+	}
+
+	@Test
+	public void chunkedBodyOverTheMaximumIsRejected() {
+		// The adaptor answers this with 413 Payload Too Large
+		final Map<String, List<String>> headers = Map.of( "Transfer-Encoding", List.of( "chunked" ) );
+		assertThrows( WOAdaptorRequestContent.TooLargeException.class, () -> WOAdaptorRequestContent.spool( headers, new WOAdaptorNIO.ChunkedInputStream( new ByteArrayInputStream( chunked( new byte[1001], 100 ) ) ), 1000, 64 * 1024 ) );
+	}
+}
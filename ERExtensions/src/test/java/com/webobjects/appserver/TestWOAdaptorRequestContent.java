@@ -0,0 +1,181 @@
+package com.webobjects.appserver;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+import com.webobjects.appserver._private.WOInputStreamData;
+
+public class TestWOAdaptorRequestContent {
+
+	private static final int THRESHOLD = 64 * 1024;
+
+	private static Map<String, List<String>> chunkedHeaders() {
+		final Map<String, List<String>> headers = new LinkedHashMap<>();
+		headers.put( "Host", List.of( "localhost" ) );
+		headers.put( "Transfer-Encoding", List.of( "chunked" ) );
+		return headers;
+	}
+
+	private static byte[] body( final int length ) {
+		final byte[] body = new byte[length];
+
+		for( int i = 0; i < length; i++ ) {
+			body[i] = (byte)(i * 31);
+		}
+
+		return body;
+	}
+
+	@Test
+	public void smallBodyIsKeptInMemory() throws IOException {
+		final byte[] body = body( 1000 );
+		final WOAdaptorRequestContent content = WOAdaptorRequestContent.spool( chunkedHeaders(), new ByteArrayInputStream( body ), Integer.MAX_VALUE, THRESHOLD );
+
+		assertNull( content.spoolFile() );
+		assertArrayEquals( body, content.data().bytes() );
+	}
+
+	@Test
+	public void headersGetTheKnownLength() throws IOException {
+		final Map<String, List<String>> requestHeaders = chunkedHeaders();
+		requestHeaders.put( "content-length", List.of( "5" ) );
+
+		final WOAdaptorRequestContent content = WOAdaptorRequestContent.spool( requestHeaders, new ByteArrayInputStream( body( 1234 ) ), Integer.MAX_VALUE, THRESHOLD );
+
+		assertEquals( List.of( "1234" ), content.headers().get( "Content-Length" ) );
+		assertFalse( content.headers().containsKey( "Transfer-Encoding" ) );
+		assertFalse( content.headers().containsKey( "content-length" ) );
+		assertEquals( List.of( "localhost" ), content.headers().get( "Host" ) );
+		assertFalse( WOAdaptorRequestContent.isChunked( content.headers() ) );
+	}
+
+	@Test
+	public void emptyBody() throws IOException {
+		final WOAdaptorRequestContent content = WOAdaptorRequestContent.spool( chunkedHeaders(), new ByteArrayInputStream( new byte[0] ), Integer.MAX_VALUE, THRESHOLD );
+
+		assertEquals( 0, content.data().length() );
+		assertEquals( List.of( "0" ), content.headers().get( "Content-Length" ) );
+	}
+
+	@Test
+	public void bodyAtTheThresholdIsKeptInMemory() throws IOException {
+		final byte[] body = body( THRESHOLD );
+		final WOAdaptorRequestContent content = WOAdaptorRequestContent.spool( chunkedHeaders(), new ByteArrayInputStream( body ), Integer.MAX_VALUE, THRESHOLD );
+
+		assertNull( content.spoolFile() );
+		assertArrayEquals( body, content.data().bytes() );
+	}
+
+	@Test
+	public void bodyAboveTheThresholdIsSpooledToAFile() throws IOException {
+		final byte[] body = body( THRESHOLD + 1 );
+		final WOAdaptorRequestContent content = WOAdaptorRequestContent.spool( chunkedHeaders(), new ByteArrayInputStream( body ), Integer.MAX_VALUE, THRESHOLD );
+		final Path spoolFile = content.spoolFile();
+
+		try {
+			assertNotNull( spoolFile );
+			assertTrue( content.data() instanceof WOInputStreamData );
+			assertEquals( body.length, content.data().length() );
+			assertArrayEquals( body, Files.readAllBytes( spoolFile ) );
+			assertEquals( List.of( String.valueOf( body.length ) ), content.headers().get( "Content-Length" ) );
+		}
+		finally {
+			content.dispose();
+		}
+
+		assertFalse( Files.exists( spoolFile ) );
+	}
+
+	@Test
+	public void tooLargeBodyIsRejected() {
+		assertThrows( WOAdaptorRequestContent.TooLargeException.class, () -> WOAdaptorRequestContent.spool( chunkedHeaders(), new ByteArrayInputStream( body( 1001 ) ), 1000, THRESHOLD ) );
+	}
+
+	@Test
+	public void bodyAtTheMaximumIsAccepted() throws IOException {
+		final WOAdaptorRequestContent content = WOAdaptorRequestContent.spool( chunkedHeaders(), new ByteArrayInputStream( body( 1000 ) ), 1000, THRESHOLD );
+		assertEquals( 1000, content.data().length() );
+	}
+
+	@Test
+	public void tooLargeSpooledBodyLeavesNoFileBehind() throws IOException {
+		final Path tempDirectory = Path.of( System.getProperty( "java.io.tmpdir" ) );
+		final long spoolFilesBefore = spoolFileCount( tempDirectory );
+
+		assertThrows( WOAdaptorRequestContent.TooLargeException.class, () -> WOAdaptorRequestContent.spool( chunkedHeaders(), new ByteArrayInputStream( body( 3 * THRESHOLD ) ), 2 * THRESHOLD, THRESHOLD ) );
+		assertEquals( spoolFilesBefore, spoolFileCount( tempDirectory ) );
+	}
+
+	@Test
+	public void readErrorLeavesNoFileBehind() throws IOException {
+		final Path tempDirectory = Path.of( System.getProperty( "java.io.tmpdir" ) );
+		final long spoolFilesBefore = spoolFileCount( tempDirectory );
+
+		final InputStream failingStream = new InputStream() {
+			private int _read;
+
+			@Override
+			public int read() throws IOException {
+				if( _read++ > 2 * THRESHOLD ) {
+					throw new IOException( "Connection reset" );
+				}
+
+				return 'x';
+			}
+		};
+
+		assertThrows( IOException.class, () -> WOAdaptorRequestContent.spool( chunkedHeaders(), failingStream, Integer.MAX_VALUE, THRESHOLD ) );
+		assertEquals( spoolFilesBefore, spoolFileCount( tempDirectory ) );
+	}
+
+	@Test
+	public void streamWithKnownLength() throws IOException {
+		final Map<String, List<String>> headers = Map.of( "Content-Length", List.of( "10" ) );
+		final WOAdaptorRequestContent content = WOAdaptorRequestContent.stream( headers, new ByteArrayInputStream( body( 10 ) ), 10, 1000 );
+
+		assertEquals( headers, content.headers() );
+		assertNull( content.spoolFile() );
+		assertEquals( 10, content.data().length() );
+	}
+
+	@Test
+	public void streamLongerThanTheMaximumIsRejected() {
+		assertThrows( WOAdaptorRequestContent.TooLargeException.class, () -> WOAdaptorRequestContent.stream( Map.of(), new ByteArrayInputStream( new byte[0] ), 1001, 1000 ) );
+	}
+
+	@Test
+	public void isChunked() {
+		assertTrue( WOAdaptorRequestContent.isChunked( Map.of( "Transfer-Encoding", List.of( "chunked" ) ) ) );
+		assertTrue( WOAdaptorRequestContent.isChunked( Map.of( "Transfer-Encoding", List.of( "gzip, Chunked" ) ) ) );
+		assertFalse( WOAdaptorRequestContent.isChunked( Map.of( "Transfer-Encoding", List.of( "gzip" ) ) ) );
+		assertFalse( WOAdaptorRequestContent.isChunked( Map.of() ) );
+	}
+
+	@Test
+	public void contentLength() {
+		assertEquals( 42, WOAdaptorRequestContent.contentLength( Map.of( "Content-Length", List.of( " 42 " ) ) ) );
+		assertEquals( 0, WOAdaptorRequestContent.contentLength( Map.of() ) );
+	}
+
+	private static long spoolFileCount( final Path directory ) throws IOException {
+		try( var files = Files.list( directory ) ) {
+			return files.filter( file -> file.getFileName().toString().startsWith( "WOAdaptor-" ) ).count();
+		}
+	}
+}
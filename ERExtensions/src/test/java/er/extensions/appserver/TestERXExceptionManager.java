@@ -0,0 +1,132 @@
+package er.extensions.appserver;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import er.extensions.appserver.ERXExceptionManager.ExceptionSummary;
+import er.extensions.appserver.ERXExceptionManager.LoggedException;
+
+public class TestERXExceptionManager {
+
+	private static final LocalDateTime NOW = LocalDateTime.of(2026, 1, 1, 12, 0);
+
+	private static StackTraceElement frame(String methodName, int lineNumber) {
+		return new StackTraceElement("com.example.Component", methodName, "Component.java", lineNumber);
+	}
+
+	private static <T extends Throwable> T withStackTrace(T throwable, StackTraceElement... stackTrace) {
+		throwable.setStackTrace(stackTrace);
+		return throwable;
+	}
+
+	/**
+	 * @return An exception with a stack trace of it's own, i.e. a distinct fingerprint
+	 */
+	private static Throwable exception(int i) {
+		return withStackTrace(new IllegalStateException(), frame("method" + i, i));
+	}
+
+	@Test
+	public void fingerprintIsTheClassAndTopFrames() {
+		Throwable throwable = withStackTrace(new IllegalStateException("message"), frame("a", 1), frame("b", 2));
+		assertEquals("java.lang.IllegalStateException|com.example.Component.a:1|com.example.Component.b:2", ERXExceptionManager.fingerprint(throwable));
+	}
+
+	@Test
+	public void fingerprintWithoutAStackTrace() {
+		assertEquals("java.lang.IllegalStateException", ERXExceptionManager.fingerprint(withStackTrace(new IllegalStateException())));
+	}
+
+	@Test
+	public void fingerprintIgnoresTheMessage() {
+		Throwable throwable = withStackTrace(new IllegalStateException("Object 1 not found"), frame("a", 1));
+		Throwable other = withStackTrace(new IllegalStateException("Object 2 not found"), frame("a", 1));
+		assertEquals(ERXExceptionManager.fingerprint(throwable), ERXExceptionManager.fingerprint(other));
+	}
+
+	@Test
+	public void fingerprintOnlyUsesTheTopFiveFrames() {
+		Throwable throwable = withStackTrace(new IllegalStateException(), frame("a", 1), frame("b", 2), frame("c", 3), frame("d", 4), frame("e", 5), frame("f", 6));
+		Throwable other = withStackTrace(new IllegalStateException(), frame("a", 1), frame("b", 2), frame("c", 3), frame("d", 4), frame("e", 5), frame("g", 7));
+		assertEquals(ERXExceptionManager.fingerprint(throwable), ERXExceptionManager.fingerprint(other));
+		assertFalse(ERXExceptionManager.fingerprint(throwable).contains(".f:6"));
+	}
+
+	@Test
+	public void fingerprintDependsOnTheClassAndTheFrames() {
+		Throwable throwable = withStackTrace(new IllegalStateException(), frame("a", 1));
+		assertNotEquals(ERXExceptionManager.fingerprint(throwable), ERXExceptionManager.fingerprint(withStackTrace(new IllegalArgumentException(), frame("a", 1))));
+		assertNotEquals(ERXExceptionManager.fingerprint(throwable), ERXExceptionManager.fingerprint(withStackTrace(new IllegalStateException(), frame("a", 2))));
+		assertNotEquals(ERXExceptionManager.fingerprint(throwable), ERXExceptionManager.fingerprint(withStackTrace(new IllegalStateException(), frame("b", 1))));
+	}
+
+	@Test
+	public void occurrencesWithTheSameFingerprintAreSummarized() {
+		ERXExceptionManager manager = new ERXExceptionManager();
+		LoggedException first = manager.log(exception(1), NOW, "1", null);
+		manager.log(exception(2), NOW.plusSeconds(1), "2", null);
+		LoggedException last = manager.log(exception(1), NOW.plusSeconds(2), "3", null);
+
+		List<ExceptionSummary> summaries = manager.exceptionSummaries();
+		assertEquals(2, summaries.size());
+
+		ExceptionSummary summary = summaries.getFirst();
+		assertEquals(2, summary.count());
+		assertEquals(NOW, summary.firstSeen());
+		assertEquals(NOW.plusSeconds(2), summary.lastSeen());
+		assertSame(last, summary.latest());
+		assertEquals(List.of(last, first), summary.samples());
+		assertEquals(IllegalStateException.class, summary.exceptionClass());
+	}
+
+	@Test
+	public void summaryKeepsTheFirstAndMostRecentOccurrences() {
+		ERXExceptionManager manager = new ERXExceptionManager();
+		LoggedException[] logged = new LoggedException[10];
+
+		for (int i = 0; i < logged.length; i++) {
+			logged[i] = manager.log(exception(1), NOW.plusSeconds(i), String.valueOf(i), null);
+		}
+
+		assertEquals(List.of(logged[9], logged[8], logged[7], logged[0]), manager.exceptionSummaries().getFirst().samples());
+	}
+
+	@Test
+	public void leastRecentlySeenSummaryIsEvicted() {
+		ERXExceptionManager manager = new ERXExceptionManager();
+
+		// Fills all 200 slots, seeing exception 0 again before the last one
+		for (int i = 0; i < 200; i++) {
+			manager.log(exception(i), NOW, String.valueOf(i), null);
+
+			if (i == 198) {
+				manager.log(exception(0), NOW, "again", null);
+			}
+		}
+
+		manager.log(exception(200), NOW, "200", null);
+
+		List<ExceptionSummary> summaries = manager.exceptionSummaries();
+		assertEquals(200, summaries.size());
+		assertTrue(summaries.stream().anyMatch(summary -> summary.fingerprint().equals(ERXExceptionManager.fingerprint(exception(0)))));
+		assertTrue(summaries.stream().anyMatch(summary -> summary.fingerprint().equals(ERXExceptionManager.fingerprint(exception(200)))));
+		assertFalse(summaries.stream().anyMatch(summary -> summary.fingerprint().equals(ERXExceptionManager.fingerprint(exception(1)))));
+	}
+
+	@Test
+	public void loggedExceptionsAreOldestFirst() {
+		ERXExceptionManager manager = new ERXExceptionManager();
+		LoggedException first = manager.log(exception(1), NOW, "1", null);
+		LoggedException second = manager.log(exception(2), NOW, "2", null);
+
+		assertEquals(List.of(first, second), manager.loggedExceptions());
+	}
+}
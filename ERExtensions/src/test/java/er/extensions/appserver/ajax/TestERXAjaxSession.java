@@ -0,0 +1,135 @@
+package er.extensions.appserver.ajax;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+import com.webobjects.appserver.WOComponent;
+import com.webobjects.foundation.NSArray;
+import com.webobjects.foundation.NSDictionary;
+import com.webobjects.foundation.NSMutableDictionary;
+
+import er.extensions.appserver.ajax.ERXAjaxSession.RequestFingerprint;
+import er.extensions.appserver.ajax.ERXAjaxSession.TransactionRecord;
+
+public class TestERXAjaxSession {
+
+	private static NSDictionary<String, Object> formValues(String... keysAndValues) {
+		NSMutableDictionary<String, Object> formValues = new NSMutableDictionary<>();
+		for (int i = 0; i < keysAndValues.length; i += 2) {
+			formValues.setObjectForKey(new NSArray<Object>(keysAndValues[i + 1]), keysAndValues[i]);
+		}
+		return formValues;
+	}
+
+	private static TransactionRecord recordWithProvenance(RequestFingerprint fingerprint) {
+		TransactionRecord record = new TransactionRecord(new WOComponent(), "1", null);
+		record.recordProvenance("0.1", fingerprint);
+		return record;
+	}
+
+	@Test
+	public void fingerprintDoesNotDependOnKeyOrder() {
+		RequestFingerprint fingerprint = ERXAjaxSession.requestFingerprint(formValues("a", "1", "b", "2", "c", "3"));
+		RequestFingerprint reordered = ERXAjaxSession.requestFingerprint(formValues("c", "3", "a", "1", "b", "2"));
+
+		assertEquals(fingerprint.high(), reordered.high());
+		assertEquals(fingerprint.low(), reordered.low());
+		assertArrayEquals(fingerprint.formValues(), reordered.formValues());
+	}
+
+	@Test
+	public void differentValuesHaveDifferentFingerprints() {
+		RequestFingerprint fingerprint = ERXAjaxSession.requestFingerprint(formValues("a", "1"));
+
+		assertNotEquals(fingerprint.high(), ERXAjaxSession.requestFingerprint(formValues("a", "2")).high());
+		assertNotEquals(fingerprint.high(), ERXAjaxSession.requestFingerprint(formValues("b", "1")).high());
+		assertNotEquals(fingerprint.high(), ERXAjaxSession.requestFingerprint(formValues("a", "1", "b", "1")).high());
+	}
+
+	@Test
+	public void keyValueBoundariesCantBeShifted() {
+		// Without length prefixes, these would encode to the same bytes
+		assertFalse(Arrays.equals(
+				ERXAjaxSession.canonicalFormValues(formValues("ab", "c")),
+				ERXAjaxSession.canonicalFormValues(formValues("a", "bc"))));
+		assertFalse(Arrays.equals(
+				ERXAjaxSession.canonicalFormValues(formValues("a", "b", "c", "d")),
+				ERXAjaxSession.canonicalFormValues(formValues("a", "bcd"))));
+	}
+
+	@Test
+	public void noFormValues() {
+		assertEquals(0, ERXAjaxSession.canonicalFormValues(null).length);
+		assertEquals(0, ERXAjaxSession.canonicalFormValues(new NSDictionary<>()).length);
+		assertArrayEquals(ERXAjaxSession.requestFingerprint((NSDictionary<String, ?>) null).formValues(), ERXAjaxSession.requestFingerprint(new NSDictionary<>()).formValues());
+	}
+
+	@Test
+	public void nonASCIIValues() {
+		RequestFingerprint fingerprint = ERXAjaxSession.requestFingerprint(formValues("name", "J\u00f3n \u00de\u00f3r"));
+
+		assertTrue(recordWithProvenance(fingerprint).hasFingerprint(ERXAjaxSession.requestFingerprint(formValues("name", "J\u00f3n \u00de\u00f3r"))));
+		assertFalse(recordWithProvenance(fingerprint).hasFingerprint(ERXAjaxSession.requestFingerprint(formValues("name", "Jon Thor"))));
+	}
+
+	@Test
+	public void recordMatchesTheSameFormValues() {
+		TransactionRecord record = recordWithProvenance(ERXAjaxSession.requestFingerprint(formValues("a", "1", "b", "2")));
+
+		assertTrue(record.hasFingerprint(ERXAjaxSession.requestFingerprint(formValues("b", "2", "a", "1"))));
+		assertFalse(record.hasFingerprint(ERXAjaxSession.requestFingerprint(formValues("a", "1", "b", "3"))));
+	}
+
+	@Test
+	public void hashMatchIsVerifiedAgainstTheFormValues() {
+		RequestFingerprint fingerprint = ERXAjaxSession.requestFingerprint(formValues("a", "1"));
+		byte[] otherFormValues = ERXAjaxSession.canonicalFormValues(formValues("a", "2"));
+
+		// A hash collision: same 128 bits, different values
+		RequestFingerprint collision = new RequestFingerprint(fingerprint.high(), fingerprint.low(), otherFormValues);
+
+		assertFalse(recordWithProvenance(fingerprint).hasFingerprint(collision));
+		assertTrue(recordWithProvenance(fingerprint).hasFingerprint(new RequestFingerprint(fingerprint.high(), fingerprint.low(), fingerprint.formValues().clone())));
+	}
+
+	@Test
+	public void recordWithoutProvenanceMatchesNothing() {
+		TransactionRecord record = new TransactionRecord(new WOComponent(), "1", null);
+		RequestFingerprint fingerprint = ERXAjaxSession.requestFingerprint(new NSDictionary<>());
+
+		assertFalse(record.hasFingerprint(fingerprint));
+		assertFalse(record.hasFingerprint(new RequestFingerprint(0, 0, null)));
+	}
+
+	@Test
+	public void fingerprintIsSerializable() throws IOException, ClassNotFoundException {
+		RequestFingerprint fingerprint = ERXAjaxSession.requestFingerprint(formValues("a", "1", "b", "2"));
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+			out.writeObject(fingerprint);
+		}
+
+		RequestFingerprint copy;
+		try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+			copy = (RequestFingerprint) in.readObject();
+		}
+
+		assertEquals(fingerprint.high(), copy.high());
+		assertEquals(fingerprint.low(), copy.low());
+		assertArrayEquals(fingerprint.formValues(), copy.formValues());
+		assertTrue(recordWithProvenance(fingerprint).hasFingerprint(copy));
+	}
+}
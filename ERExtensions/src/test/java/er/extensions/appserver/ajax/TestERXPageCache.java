@@ -0,0 +1,434 @@
+package er.extensions.appserver.ajax;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.jupiter.api.Test;
+
+import com.webobjects.appserver.WOComponent;
+
+import er.extensions.appserver.ajax.ERXAjaxSession.RequestFingerprint;
+import er.extensions.appserver.ajax.ERXAjaxSession.TransactionRecord;
+
+public class TestERXPageCache {
+
+	private static class Page extends WOComponent {}
+
+	private static TransactionRecord record(WOComponent page) {
+		return new TransactionRecord(page, (String) null, null);
+	}
+
+	private static TransactionRecord recordWithProvenance(WOComponent page, String requestContextID, String senderID, RequestFingerprint fingerprint) {
+		TransactionRecord record = new TransactionRecord(page, requestContextID, null);
+		record.recordProvenance(senderID, fingerprint);
+		return record;
+	}
+
+	private static RequestFingerprint fingerprint(int value) {
+		return new RequestFingerprint(value, value, new byte[] { (byte) value });
+	}
+
+	/**
+	 * Stores a page the way ERXAjaxSession.storePage() does: make room for a new instance, then put
+	 */
+	private static void store(ERXPageCache cache, String contextID, WOComponent page, int maxInstances) {
+		if (!cache.containsInstance(page)) {
+			while (cache.instanceCount() > 0 && cache.instanceCount() >= maxInstances) {
+				cache.evictLeastRecentlyUsed();
+			}
+		}
+		cache.put(contextID, record(page));
+	}
+
+	/**
+	 * Restores a page the way ERXAjaxSession.restorePageForContextID() does
+	 */
+	private static WOComponent restore(ERXPageCache cache, String contextID) {
+		TransactionRecord record = cache.get(contextID);
+		if (record == null) {
+			return null;
+		}
+		cache.touch(record.page());
+		cache.touchAlias(contextID);
+		return record.page();
+	}
+
+	private static List<WOComponent> pagesInLRUOrder(ERXPageCache cache) {
+		List<WOComponent> pages = new ArrayList<>();
+		for (ERXPageCache.Instance instance : cache.instances()) {
+			pages.add(instance.page());
+		}
+		return pages;
+	}
+
+	@Test
+	public void evictsTheLeastRecentlyUsedInstance() {
+		ERXPageCache cache = new ERXPageCache(0);
+		Page a = new Page(), b = new Page(), c = new Page();
+
+		cache.put("1", record(a));
+		cache.put("2", record(b));
+		cache.put("3", record(c));
+		assertEquals(List.of(a, b, c), pagesInLRUOrder(cache));
+
+		// Restoring a makes it the most recently used, so b goes first
+		assertSame(a, restore(cache, "1"));
+		assertEquals(List.of(b, c, a), pagesInLRUOrder(cache));
+		assertEquals(1, cache.depthOf(a));
+		assertEquals(3, cache.depthOf(b));
+
+		assertSame(b, cache.evictLeastRecentlyUsed());
+		assertNull(cache.get("2"));
+		assertFalse(cache.containsInstance(b));
+		assertEquals(-1, cache.depthOf(b));
+
+		assertSame(c, cache.evictLeastRecentlyUsed());
+		assertSame(a, cache.evictLeastRecentlyUsed());
+		assertNull(cache.evictLeastRecentlyUsed());
+		assertTrue(cache.isEmpty());
+	}
+
+	@Test
+	public void storingAnotherContextMovesTheInstanceToTheEnd() {
+		ERXPageCache cache = new ERXPageCache(0);
+		Page a = new Page(), b = new Page();
+
+		cache.put("1", record(a));
+		cache.put("2", record(b));
+		cache.put("3", record(a));
+
+		assertEquals(List.of(b, a), pagesInLRUOrder(cache));
+		assertEquals(3, cache.size());
+		assertEquals(2, cache.instanceCount());
+		assertEquals(List.of("2", "1", "3"), cache.entries().stream().map(Map.Entry::getKey).toList());
+	}
+
+	@Test
+	public void evictingAnInstanceRemovesAllOfItsContexts() {
+		ERXPageCache cache = new ERXPageCache(0);
+		Page a = new Page(), b = new Page();
+
+		cache.put("1", record(a));
+		cache.put("2", record(a));
+		cache.put("3", record(b));
+		cache.put("4", record(a));
+
+		assertSame(b, cache.evictLeastRecentlyUsed());
+		assertSame(a, cache.evictLeastRecentlyUsed());
+
+		for (String contextID : List.of("1", "2", "3", "4")) {
+			assertNull(cache.get(contextID));
+		}
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void aliasCapDropsTheOldestAliases() {
+		ERXPageCache cache = new ERXPageCache(3);
+		Page a = new Page();
+
+		assertEquals(0, cache.put("1", record(a)));
+		assertEquals(0, cache.put("2", record(a)));
+		assertEquals(0, cache.put("3", record(a)));
+		assertEquals(1, cache.put("4", record(a)));
+		assertEquals(1, cache.put("5", record(a)));
+
+		assertNull(cache.get("1"));
+		assertNull(cache.get("2"));
+		assertSame(a, cache.get("5").page());
+		assertEquals(Set.of("3", "4", "5"), cache.instance(a).contextIDs());
+		assertEquals(3, cache.size());
+
+		// Evicted aliases are remembered, and reported once
+		assertTrue(cache.wasEvictedAlias("1"));
+		assertFalse(cache.wasEvictedAlias("1"));
+		assertFalse(cache.wasEvictedAlias("3"));
+	}
+
+	@Test
+	public void restoredAliasIsLastInLineForTheCap() {
+		ERXPageCache cache = new ERXPageCache(3);
+		Page a = new Page();
+
+		cache.put("1", record(a));
+		cache.put("2", record(a));
+		cache.put("3", record(a));
+		restore(cache, "1");
+		cache.put("4", record(a));
+
+		assertSame(a, cache.get("1").page());
+		assertNull(cache.get("2"));
+		assertEquals(List.of("3", "1", "4"), new ArrayList<>(cache.instance(a).contextIDs()));
+	}
+
+	@Test
+	public void aliasCapIsPerInstance() {
+		ERXPageCache cache = new ERXPageCache(2);
+		Page a = new Page(), b = new Page();
+
+		cache.put("1", record(a));
+		cache.put("2", record(b));
+		cache.put("3", record(a));
+		cache.put("4", record(b));
+
+		assertEquals(4, cache.size());
+		assertEquals(1, cache.put("5", record(b)));
+		assertSame(a, cache.get("1").page());
+		assertNull(cache.get("2"));
+	}
+
+	@Test
+	public void rePutForAnotherInstanceMovesTheContext() {
+		ERXPageCache cache = new ERXPageCache(0);
+		Page a = new Page(), b = new Page();
+
+		cache.put("1", record(a));
+		cache.put("2", record(a));
+		cache.put("1", record(b));
+
+		assertSame(b, cache.get("1").page());
+		assertEquals(Set.of("2"), cache.instance(a).contextIDs());
+		assertEquals(Set.of("1"), cache.instance(b).contextIDs());
+		assertEquals(2, cache.size());
+
+		// a's last context goes to b as well, so a is no longer cached
+		cache.put("2", record(b));
+
+		assertFalse(cache.containsInstance(a));
+		assertEquals(1, cache.instanceCount());
+		assertEquals(List.of(b), pagesInLRUOrder(cache));
+		assertSame(b, cache.evictLeastRecentlyUsed());
+		assertTrue(cache.isEmpty());
+	}
+
+	@Test
+	public void rePutForTheSameInstanceKeepsOneAlias() {
+		ERXPageCache cache = new ERXPageCache(0);
+		Page a = new Page();
+
+		cache.put("1", record(a));
+		cache.put("1", record(a));
+
+		assertEquals(1, cache.size());
+		assertEquals(Set.of("1"), cache.instance(a).contextIDs());
+	}
+
+	@Test
+	public void findsRecordsByProvenance() {
+		ERXPageCache cache = new ERXPageCache(0);
+		Page a = new Page();
+
+		cache.put("2", recordWithProvenance(a, "1", "0.1", fingerprint(1)));
+		cache.put("3", recordWithProvenance(a, "1", "0.1", fingerprint(2)));
+		cache.put("4", record(a));
+
+		assertTrue(cache.hasProvenance("1", "0.1"));
+		assertFalse(cache.hasProvenance("1", "0.2"));
+		assertFalse(cache.hasProvenance("2", "0.1"));
+		assertEquals("2", cache.contextIDWithProvenance("1", "0.1", fingerprint(1)));
+		assertEquals("3", cache.contextIDWithProvenance("1", "0.1", fingerprint(2)));
+		assertNull(cache.contextIDWithProvenance("1", "0.1", fingerprint(3)));
+	}
+
+	@Test
+	public void mostRecentRecordWithProvenanceWins() {
+		ERXPageCache cache = new ERXPageCache(0);
+		Page a = new Page();
+
+		cache.put("2", recordWithProvenance(a, "1", "0.1", fingerprint(1)));
+		cache.put("3", recordWithProvenance(a, "1", "0.1", fingerprint(1)));
+
+		assertEquals("3", cache.contextIDWithProvenance("1", "0.1", fingerprint(1)));
+	}
+
+	@Test
+	public void provenanceIsUnindexedWhenTheAliasCapDropsTheRecord() {
+		ERXPageCache cache = new ERXPageCache(1);
+		Page a = new Page();
+
+		cache.put("2", recordWithProvenance(a, "1", "0.1", fingerprint(1)));
+		cache.put("3", record(a));
+
+		assertFalse(cache.hasProvenance("1", "0.1"));
+		assertNull(cache.contextIDWithProvenance("1", "0.1", fingerprint(1)));
+	}
+
+	@Test
+	public void provenanceIsUnindexedWhenTheInstanceIsEvicted() {
+		ERXPageCache cache = new ERXPageCache(0);
+		Page a = new Page(), b = new Page();
+
+		cache.put("2", recordWithProvenance(a, "1", "0.1", fingerprint(1)));
+		cache.put("3", recordWithProvenance(b, "1", "0.2", fingerprint(1)));
+		cache.evictLeastRecentlyUsed();
+
+		assertFalse(cache.hasProvenance("1", "0.1"));
+		assertTrue(cache.hasProvenance("1", "0.2"));
+	}
+
+	@Test
+	public void provenanceIsUnindexedWhenTheContextIsStoredAgain() {
+		ERXPageCache cache = new ERXPageCache(0);
+		Page a = new Page(), b = new Page();
+
+		cache.put("2", recordWithProvenance(a, "1", "0.1", fingerprint(1)));
+		cache.put("2", recordWithProvenance(b, "1", "0.2", fingerprint(1)));
+
+		assertFalse(cache.hasProvenance("1", "0.1"));
+		assertEquals("2", cache.contextIDWithProvenance("1", "0.2", fingerprint(1)));
+	}
+
+	@Test
+	public void provenanceIsKeptForTheRemainingRecords() {
+		ERXPageCache cache = new ERXPageCache(1);
+		Page a = new Page(), b = new Page();
+
+		cache.put("2", recordWithProvenance(a, "1", "0.1", fingerprint(1)));
+		cache.put("3", recordWithProvenance(b, "1", "0.1", fingerprint(2)));
+		cache.put("4", record(a));
+
+		assertTrue(cache.hasProvenance("1", "0.1"));
+		assertNull(cache.contextIDWithProvenance("1", "0.1", fingerprint(1)));
+		assertEquals("3", cache.contextIDWithProvenance("1", "0.1", fingerprint(2)));
+	}
+
+	@Test
+	public void formValueBytesFollowTheRecords() {
+		ERXPageCache cache = new ERXPageCache(2);
+		Page a = new Page(), b = new Page();
+		RequestFingerprint large = new RequestFingerprint(1, 1, new byte[100]);
+
+		cache.put("2", recordWithProvenance(a, "1", "0.1", large));
+		cache.put("3", recordWithProvenance(b, "1", "0.2", fingerprint(1)));
+		cache.put("4", record(b));
+		assertEquals(101, cache.formValueBytes());
+
+		// Dropped by the alias cap
+		cache.put("5", recordWithProvenance(b, "1", "0.3", fingerprint(2)));
+		assertEquals(101, cache.formValueBytes());
+
+		// Stored again
+		cache.put("5", record(b));
+		assertEquals(100, cache.formValueBytes());
+
+		cache.evictLeastRecentlyUsed();
+		assertEquals(0, cache.formValueBytes());
+	}
+
+	/**
+	 * The algorithm ERXPageCache replaced: one LinkedHashMap<contextID, page> in LRU-over-instances order, walked on every store and restore
+	 */
+	private static class LinkedHashMapPageCache {
+
+		private final LinkedHashMap<String, WOComponent> _cache = new LinkedHashMap<>();
+
+		void store(String contextID, WOComponent page, int maxInstances) {
+			LinkedHashSet<WOComponent> instances = new LinkedHashSet<>(_cache.values());
+
+			if (!instances.contains(page) && instances.size() >= maxInstances) {
+				WOComponent oldest = instances.iterator().next();
+				Iterator<WOComponent> pages = _cache.values().iterator();
+				while (pages.hasNext()) {
+					if (pages.next() == oldest) {
+						pages.remove();
+					}
+				}
+			}
+
+			touch(page);
+			_cache.put(contextID, page);
+		}
+
+		WOComponent restore(String contextID) {
+			WOComponent page = _cache.get(contextID);
+			if (page != null) {
+				touch(page);
+			}
+			return page;
+		}
+
+		private void touch(WOComponent page) {
+			LinkedHashMap<String, WOComponent> moved = new LinkedHashMap<>();
+			for (Map.Entry<String, WOComponent> entry : _cache.entrySet()) {
+				if (entry.getValue() == page) {
+					moved.put(entry.getKey(), entry.getValue());
+				}
+			}
+			for (Map.Entry<String, WOComponent> entry : moved.entrySet()) {
+				_cache.remove(entry.getKey());
+				_cache.put(entry.getKey(), entry.getValue());
+			}
+		}
+
+		List<WOComponent> pagesInLRUOrder() {
+			return new ArrayList<>(new LinkedHashSet<>(_cache.values()));
+		}
+
+		Map<WOComponent, Set<String>> contextIDsByPage() {
+			Map<WOComponent, Set<String>> result = new IdentityHashMap<>();
+			for (Map.Entry<String, WOComponent> entry : _cache.entrySet()) {
+				result.computeIfAbsent(entry.getValue(), _ -> new TreeSet<>()).add(entry.getKey());
+			}
+			return result;
+		}
+	}
+
+	@Test
+	public void behavesLikeTheLinkedHashMapCacheItReplaced() {
+		final int maxInstances = 5;
+		final Random random = new Random(20261017);
+
+		for (int run = 0; run < 50; run++) {
+			ERXPageCache cache = new ERXPageCache(0);
+			LinkedHashMapPageCache expected = new LinkedHashMapPageCache();
+			List<Page> pages = new ArrayList<>();
+			for (int i = 0; i < 12; i++) {
+				pages.add(new Page());
+			}
+			int nextContextID = 1;
+
+			for (int step = 0; step < 500; step++) {
+				if (random.nextInt(3) > 0) {
+					// Pages are mostly stored again (ajax interactions, backtracking), now and then a new one comes along
+					Page page = pages.get(random.nextInt(random.nextBoolean() ? 3 : pages.size()));
+					String contextID = String.valueOf(nextContextID++);
+					store(cache, contextID, page, maxInstances);
+					expected.store(contextID, page, maxInstances);
+				}
+				else {
+					String contextID = String.valueOf(1 + random.nextInt(nextContextID));
+					assertSame(expected.restore(contextID), restore(cache, contextID), "restore of " + contextID + " in run " + run + ", step " + step);
+				}
+
+				assertEquals(expected.pagesInLRUOrder(), pagesInLRUOrder(cache), "LRU order in run " + run + ", step " + step);
+				assertTrue(cache.instanceCount() <= maxInstances);
+
+				Map<WOComponent, Set<String>> contextIDsByPage = expected.contextIDsByPage();
+				for (ERXPageCache.Instance instance : cache.instances()) {
+					assertEquals(contextIDsByPage.get(instance.page()), new TreeSet<>(instance.contextIDs()));
+				}
+				for (int i = 1; i < nextContextID; i++) {
+					String contextID = String.valueOf(i);
+					WOComponent page = expected._cache.get(contextID);
+					TransactionRecord record = cache.get(contextID);
+					assertSame(page, record == null ? null : record.page(), "lookup of " + contextID + " in run " + run + ", step " + step);
+				}
+				assertEquals(expected._cache.size(), cache.size());
+			}
+		}
+	}
+}
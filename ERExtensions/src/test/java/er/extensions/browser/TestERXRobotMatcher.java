@@ -0,0 +1,200 @@
+package er.extensions.browser;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.Test;
+
+public class TestERXRobotMatcher {
+
+	/**
+	 * ERExtensions' robots.txt, relative to the module directory tests run in
+	 */
+	private static final Path ROBOTS_TXT = Path.of( "src/main/woresources/robots.txt" );
+
+	private static final String BROWSER = "mozilla/5.0 (windows nt 10.0; win64; x64) applewebkit/537.36 (khtml, like gecko) chrome/124.0.0.0 safari/537.36";
+
+	/**
+	 * What ERXBrowserFactory.isRobot() did before ERXRobotMatcher: every expression a separate Pattern, run in sequence
+	 */
+	private static boolean matchesOneByOne( final List<Pattern> patterns, final String userAgent ) {
+		for( Pattern pattern : patterns ) {
+			if( pattern.matcher( userAgent ).find() ) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	private static List<String> expressions( final String robotsTxt ) {
+		final List<String> expressions = new ArrayList<>();
+
+		for( String line : robotsTxt.split( "\n" ) ) {
+			if( line.trim().length() > 0 && line.charAt( 0 ) != '#' ) {
+				expressions.add( line );
+			}
+		}
+
+		return expressions;
+	}
+
+	@Test
+	public void plainWords() {
+		final ERXRobotMatcher matcher = new ERXRobotMatcher( List.of( "googlebot", "acme\\.spider", "adsbot\\-google" ) );
+
+		assertTrue( matcher.matches( "mozilla/5.0 (compatible; googlebot/2.1)" ) );
+		assertTrue( matcher.matches( "acme.spider" ) );
+		assertTrue( matcher.matches( "x adsbot-google y" ) );
+		assertFalse( matcher.matches( "acmexspider" ) );
+		assertFalse( matcher.matches( "googlebo" ) );
+		assertFalse( matcher.matches( BROWSER ) );
+	}
+
+	@Test
+	public void matchingIsCaseSensitive() {
+		assertFalse( new ERXRobotMatcher( List.of( "googlebot" ) ).matches( "Googlebot" ) );
+	}
+
+	@Test
+	public void wordsThatOverlap() {
+		// Only found through the automaton's failure links
+		final ERXRobotMatcher matcher = new ERXRobotMatcher( List.of( "he", "she", "hers", "abcd", "bc" ) );
+
+		assertTrue( matcher.matches( "ushers" ) );
+		assertTrue( matcher.matches( "xabcx" ) );
+		assertTrue( matcher.matches( "abbc" ) );
+		assertFalse( matcher.matches( "hrs abd" ) );
+	}
+
+	@Test
+	public void wordInsideAnotherWordsPrefix() {
+		final ERXRobotMatcher matcher = new ERXRobotMatcher( List.of( "spiderman", "derm" ) );
+
+		assertTrue( matcher.matches( "spidermax" ) );
+		assertFalse( matcher.matches( "spidem" ) );
+	}
+
+	@Test
+	public void regularExpressionsWithARequiredWord() {
+		final ERXRobotMatcher matcher = new ERXRobotMatcher( List.of( "calif[^r]", "^voyager\\/", "[^a]fish" ) );
+
+		assertTrue( matcher.matches( "california" ) );
+		assertFalse( matcher.matches( "califrnia" ) );
+		assertFalse( matcher.matches( "calif" ) );
+		assertTrue( matcher.matches( "voyager/1.0" ) );
+		assertFalse( matcher.matches( "x voyager/1.0" ) );
+		assertTrue( matcher.matches( "swordfish" ) );
+		assertFalse( matcher.matches( "afish" ) );
+		assertFalse( matcher.matches( "fish" ) );
+	}
+
+	@Test
+	public void regularExpressionIsOnlyRunOnceItsWordIsSeen() {
+		// The word occurs twice, the expression only matches at the second occurrence
+		assertTrue( new ERXRobotMatcher( List.of( "calif[^r]" ) ).matches( "california califx" ) );
+	}
+
+	@Test
+	public void regularExpressionsWithoutARequiredWord() {
+		final ERXRobotMatcher matcher = new ERXRobotMatcher( List.of( "crawl(er|bot)", "\\d{3}bot", "x|z" ) );
+
+		assertTrue( matcher.matches( "crawlbot" ) );
+		assertTrue( matcher.matches( "123bot" ) );
+		assertTrue( matcher.matches( "z" ) );
+		assertFalse( matcher.matches( "crawl 12bot" ) );
+	}
+
+	@Test
+	public void nonASCIIUserAgents() {
+		final ERXRobotMatcher matcher = new ERXRobotMatcher( List.of( "googlebot", "caf\u00e9bot", "[^a]fish" ) );
+
+		assertTrue( matcher.matches( "\u00fcgooglebot\u00fc" ) );
+		assertTrue( matcher.matches( "caf\u00e9bot" ) );
+		assertTrue( matcher.matches( "\u00fcfish" ) );
+		assertFalse( matcher.matches( "googl\u00e9bot" ) );
+	}
+
+	@Test
+	public void noExpressions() {
+		final ERXRobotMatcher matcher = new ERXRobotMatcher( List.of() );
+
+		assertFalse( matcher.matches( "" ) );
+		assertFalse( matcher.matches( "googlebot" ) );
+	}
+
+	@Test
+	public void robotsTxtCommentsAndEmptyLinesAreIgnored() {
+		final ERXRobotMatcher matcher = ERXRobotMatcher.fromRobotsTxt( "# a comment with googlebot\n\n  \nslurp\n" );
+
+		assertTrue( matcher.matches( "yahoo! slurp" ) );
+		assertFalse( matcher.matches( "googlebot" ) );
+		assertFalse( matcher.matches( "# a comment with googlebot" ) );
+		assertFalse( ERXRobotMatcher.fromRobotsTxt( null ).matches( "googlebot" ) );
+	}
+
+	@Test
+	public void sameAnswersAsOneByOneOverRobotsTxt() throws IOException {
+		final List<String> expressions = expressions( Files.readString( ROBOTS_TXT, StandardCharsets.UTF_8 ) );
+		final List<Pattern> patterns = expressions.stream().map( Pattern::compile ).toList();
+		final ERXRobotMatcher matcher = new ERXRobotMatcher( expressions );
+		final List<String> userAgents = new ArrayList<>();
+
+		userAgents.add( "" );
+		userAgents.add( BROWSER );
+
+		// Every expression's own text, unescaped, with parts cut off, and inside a browser's user-agent
+		for( String expression : expressions ) {
+			final String unescaped = expression.replace( "\\", "" ).replace( "^", "" ).replace( "[", "" ).replace( "]", "" );
+
+			userAgents.add( expression );
+			userAgents.add( unescaped );
+			userAgents.add( unescaped.substring( 1 ) );
+			userAgents.add( unescaped.substring( 0, unescaped.length() - 1 ) );
+			userAgents.add( BROWSER + " " + unescaped + "/1.0" );
+			userAgents.add( unescaped + "r" );
+			userAgents.add( "a" + unescaped );
+		}
+
+		// And random strings made of pieces of them
+		final Random random = new Random( 42 );
+
+		for( int i = 0; i < 20000; i++ ) {
+			final StringBuilder userAgent = new StringBuilder();
+
+			for( int pieces = random.nextInt( 4 ); pieces >= 0; pieces-- ) {
+				final String expression = expressions.get( random.nextInt( expressions.size() ) ).replace( "\\", "" );
+				final int start = random.nextInt( expression.length() );
+				userAgent.append( expression, start, start + random.nextInt( expression.length() - start + 1 ) );
+				userAgent.append( " /;-.abcdefghijklmnopqrstuvwxyz\u00e9".charAt( random.nextInt( 32 ) ) );
+			}
+
+			userAgents.add( userAgent.toString() );
+		}
+
+		int robots = 0;
+
+		for( String userAgent : userAgents ) {
+			final boolean expected = matchesOneByOne( patterns, userAgent );
+			assertEquals( expected, matcher.matches( userAgent ), userAgent );
+
+			if( expected ) {
+				robots++;
+			}
+		}
+
+		// Make sure both answers were actually exercised
+		assertTrue( robots > 1000 );
+		assertTrue( userAgents.size() - robots > 1000 );
+	}
+}
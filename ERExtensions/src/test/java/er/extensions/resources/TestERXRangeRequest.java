@@ -0,0 +1,210 @@
+package er.extensions.resources;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import com.webobjects.appserver.WOResponse;
+
+import er.extensions.resources.ERXRangeRequest.Range;
+
+public class TestERXRangeRequest {
+
+	private static final String ETAG = "\"abc123\"";
+	private static final String LAST_MODIFIED = "Wed, 21 Oct 2015 07:28:00 GMT";
+
+	@Test
+	public void singleRange() {
+		assertEquals( List.of( new Range( 0, 499 ) ), ERXRangeRequest.parse( "bytes=0-499", 10000 ) );
+		assertEquals( List.of( new Range( 500, 999 ) ), ERXRangeRequest.parse( "bytes=500-999", 10000 ) );
+	}
+
+	@Test
+	public void whitespaceAndUnitCaseAreIgnored() {
+		assertEquals( List.of( new Range( 0, 9 ), new Range( 20, 29 ) ), ERXRangeRequest.parse( " Bytes = 0-9 , 20-29 ", 100 ) );
+	}
+
+	@Test
+	public void openEndedRange() {
+		assertEquals( List.of( new Range( 9500, 9999 ) ), ERXRangeRequest.parse( "bytes=9500-", 10000 ) );
+	}
+
+	@Test
+	public void lastIsClippedToTheLength() {
+		assertEquals( List.of( new Range( 9500, 9999 ) ), ERXRangeRequest.parse( "bytes=9500-20000", 10000 ) );
+	}
+
+	@Test
+	public void suffixRange() {
+		assertEquals( List.of( new Range( 9500, 9999 ) ), ERXRangeRequest.parse( "bytes=-500", 10000 ) );
+	}
+
+	@Test
+	public void suffixRangeLongerThanTheResourceIsTheWholeResource() {
+		assertEquals( List.of( new Range( 0, 99 ) ), ERXRangeRequest.parse( "bytes=-500", 100 ) );
+	}
+
+	@Test
+	public void emptySuffixRangeIsUnsatisfiable() {
+		assertEquals( List.of(), ERXRangeRequest.parse( "bytes=-0", 100 ) );
+		assertEquals( List.of(), ERXRangeRequest.parse( "bytes=-10", 0 ) );
+	}
+
+	@Test
+	public void rangeStartingAfterTheEndIsUnsatisfiable() {
+		assertEquals( List.of(), ERXRangeRequest.parse( "bytes=100-199", 100 ) );
+		assertEquals( List.of(), ERXRangeRequest.parse( "bytes=100-", 100 ) );
+		assertEquals( List.of(), ERXRangeRequest.parse( "bytes=0-", 0 ) );
+	}
+
+	@Test
+	public void unsatisfiableRangesAreDropped() {
+		assertEquals( List.of( new Range( 0, 9 ) ), ERXRangeRequest.parse( "bytes=200-299,0-9", 100 ) );
+	}
+
+	@Test
+	public void rangesAreSorted() {
+		assertEquals( List.of( new Range( 0, 9 ), new Range( 50, 59 ) ), ERXRangeRequest.parse( "bytes=50-59,0-9", 100 ) );
+	}
+
+	@Test
+	public void overlappingRangesAreCoalesced() {
+		assertEquals( List.of( new Range( 0, 29 ) ), ERXRangeRequest.parse( "bytes=0-19,10-29", 100 ) );
+		assertEquals( List.of( new Range( 0, 99 ) ), ERXRangeRequest.parse( "bytes=10-19,0-,-5", 100 ) );
+		assertEquals( List.of( new Range( 0, 29 ) ), ERXRangeRequest.parse( "bytes=0-29,5-9", 100 ) );
+	}
+
+	@Test
+	public void adjacentRangesAreCoalesced() {
+		assertEquals( List.of( new Range( 0, 19 ) ), ERXRangeRequest.parse( "bytes=0-9,10-19", 100 ) );
+		assertEquals( List.of( new Range( 0, 9 ), new Range( 11, 19 ) ), ERXRangeRequest.parse( "bytes=0-9,11-19", 100 ) );
+	}
+
+	@Test
+	public void tooManyRangesAreIgnored() {
+		assertNull( ERXRangeRequest.parse( "bytes=" + ranges( 17 ), 1000 ) );
+		assertEquals( 16, ERXRangeRequest.parse( "bytes=" + ranges( 16 ), 1000 ).size() );
+	}
+
+	@Test
+	public void manyRangesThatCoalesceAreAccepted() {
+		final StringBuilder header = new StringBuilder( "bytes=0-0" );
+
+		for( int i = 1; i < 1000; i++ ) {
+			header.append( ',' ).append( i ).append( '-' ).append( i );
+		}
+
+		assertEquals( List.of( new Range( 0, 999 ) ), ERXRangeRequest.parse( header.toString(), 1000 ) );
+	}
+
+	@Test
+	public void invalidHeadersAreIgnored() {
+		assertNull( ERXRangeRequest.parse( null, 100 ) );
+		assertNull( ERXRangeRequest.parse( "items=0-9", 100 ) );
+		assertNull( ERXRangeRequest.parse( "bytes=", 100 ) );
+		assertNull( ERXRangeRequest.parse( "bytes=5", 100 ) );
+		assertNull( ERXRangeRequest.parse( "bytes=9-0", 100 ) );
+		assertNull( ERXRangeRequest.parse( "bytes=a-b", 100 ) );
+		assertNull( ERXRangeRequest.parse( "bytes=0-9,x", 100 ) );
+		assertNull( ERXRangeRequest.parse( "bytes=0-99999999999999999999", 100 ) );
+	}
+
+	@Test
+	public void rangeLengthAndContentRange() {
+		final Range range = new Range( 500, 999 );
+
+		assertEquals( 500, range.length() );
+		assertEquals( "bytes 500-999/10000", range.contentRange( 10000 ) );
+	}
+
+	@Test
+	public void noIfRangeMatches() {
+		assertTrue( ERXRangeRequest.ifRangeMatches( null, ETAG, LAST_MODIFIED ) );
+		assertTrue( ERXRangeRequest.ifRangeMatches( null, null, null ) );
+	}
+
+	@Test
+	public void ifRangeWithTheCurrentEtagMatches() {
+		assertTrue( ERXRangeRequest.ifRangeMatches( ETAG, ETAG, LAST_MODIFIED ) );
+		assertTrue( ERXRangeRequest.ifRangeMatches( " " + ETAG + " ", ETAG, null ) );
+		assertFalse( ERXRangeRequest.ifRangeMatches( "\"other\"", ETAG, LAST_MODIFIED ) );
+		assertFalse( ERXRangeRequest.ifRangeMatches( ETAG, null, LAST_MODIFIED ) );
+	}
+
+	@Test
+	public void ifRangeWithAWeakEtagNeverMatches() {
+		assertFalse( ERXRangeRequest.ifRangeMatches( "W/" + ETAG, ETAG, LAST_MODIFIED ) );
+		assertFalse( ERXRangeRequest.ifRangeMatches( "W/" + ETAG, "W/" + ETAG, LAST_MODIFIED ) );
+	}
+
+	@Test
+	public void ifRangeWithADateMustBeExact() {
+		assertTrue( ERXRangeRequest.ifRangeMatches( LAST_MODIFIED, ETAG, LAST_MODIFIED ) );
+		assertFalse( ERXRangeRequest.ifRangeMatches( "Thu, 22 Oct 2015 07:28:00 GMT", ETAG, LAST_MODIFIED ) );
+		assertFalse( ERXRangeRequest.ifRangeMatches( LAST_MODIFIED, ETAG, null ) );
+	}
+
+	@Test
+	public void unsatisfiableResponse() {
+		final WOResponse response = new WOResponse();
+		ERXRangeRequest.applyUnsatisfiable( response, 100 );
+
+		assertEquals( 416, response.status() );
+		assertEquals( "bytes */100", response.headerForKey( "content-range" ) );
+		assertEquals( "0", response.headerForKey( "content-length" ) );
+	}
+
+	@Test
+	public void singleRangeResponse() {
+		final WOResponse response = new WOResponse();
+		ERXRangeRequest.applyRange( response, new Range( 10, 19 ), 100 );
+
+		assertEquals( 206, response.status() );
+		assertEquals( "bytes 10-19/100", response.headerForKey( "content-range" ) );
+		assertEquals( "10", response.headerForKey( "content-length" ) );
+	}
+
+	@Test
+	public void multipleRangesResponse() throws IOException {
+		final byte[] bytes = "0123456789abcdefghijklmnopqrstuvwxyz".getBytes( StandardCharsets.US_ASCII );
+		final WOResponse response = new WOResponse();
+		ERXRangeRequest.applyRanges( response, List.of( new Range( 0, 3 ), new Range( 10, 12 ) ), bytes.length, "text/plain", ERXRangeRequest.slice( bytes ), 1024 );
+
+		assertEquals( 206, response.status() );
+
+		final String contentType = response.headerForKey( "content-type" );
+		assertTrue( contentType.startsWith( "multipart/byteranges; boundary=" ) );
+
+		final String boundary = contentType.substring( "multipart/byteranges; boundary=".length() );
+		final String expected = "\r\n--" + boundary + "\r\nContent-Type: text/plain\r\nContent-Range: bytes 0-3/36\r\n\r\n0123"
+				+ "\r\n--" + boundary + "\r\nContent-Type: text/plain\r\nContent-Range: bytes 10-12/36\r\n\r\nabc"
+				+ "\r\n--" + boundary + "--\r\n";
+
+		assertEquals( expected, new String( response.contentInputStream().readAllBytes(), StandardCharsets.US_ASCII ) );
+		assertEquals( String.valueOf( expected.length() ), response.headerForKey( "content-length" ) );
+	}
+
+	/**
+	 * @return The given number of separate one byte ranges
+	 */
+	private static String ranges( final int count ) {
+		final StringBuilder ranges = new StringBuilder();
+
+		for( int i = 0; i < count; i++ ) {
+			if( i > 0 ) {
+				ranges.append( ',' );
+			}
+
+			ranges.append( i * 2 ).append( '-' ).append( i * 2 );
+		}
+
+		return ranges.toString();
+	}
+}
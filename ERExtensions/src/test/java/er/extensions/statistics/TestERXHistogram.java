@@ -0,0 +1,205 @@
+package er.extensions.statistics;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import er.extensions.statistics.ERXHistogram.Snapshot;
+
+public class TestERXHistogram {
+
+	private static ERXHistogram histogram( final long... values ) {
+		final ERXHistogram histogram = new ERXHistogram();
+
+		for( long value : values ) {
+			histogram.record( value );
+		}
+
+		return histogram;
+	}
+
+	@Test
+	public void smallValuesGetABucketEach() {
+		for( int value = 0; value < 16; value++ ) {
+			assertEquals( value, ERXHistogram.bucketIndex( value ) );
+			assertEquals( value, ERXHistogram.bucketUpperBound( value ) );
+		}
+	}
+
+	@Test
+	public void bucketsAreContiguous() {
+		for( int index = 0; index < ERXHistogram.BUCKET_COUNT - 1; index++ ) {
+			final long upperBound = ERXHistogram.bucketUpperBound( index );
+
+			assertEquals( index, ERXHistogram.bucketIndex( upperBound ) );
+			assertEquals( index + 1, ERXHistogram.bucketIndex( upperBound + 1 ) );
+		}
+	}
+
+	@Test
+	public void powersOfTwoAreSplitInSixteen() {
+		assertEquals( 16, ERXHistogram.bucketIndex( 16 ) );
+		assertEquals( 31, ERXHistogram.bucketIndex( 31 ) );
+		assertEquals( 32, ERXHistogram.bucketIndex( 32 ) );
+		assertEquals( 32, ERXHistogram.bucketIndex( 33 ) );
+		assertEquals( 33, ERXHistogram.bucketIndex( 34 ) );
+		assertEquals( 33, ERXHistogram.bucketUpperBound( 32 ) );
+		assertEquals( 1024 + 64 - 1, ERXHistogram.bucketUpperBound( ERXHistogram.bucketIndex( 1024 ) ) );
+	}
+
+	@Test
+	public void bucketErrorIsAtMostOneSixteenth() {
+		final Random random = new Random( 42 );
+
+		// The last bucket has no upper bound
+		final long lastBucketStart = ERXHistogram.bucketUpperBound( ERXHistogram.BUCKET_COUNT - 2 ) + 1;
+
+		for( int i = 0; i < 100000; i++ ) {
+			final long value = random.nextLong( lastBucketStart );
+			final long upperBound = ERXHistogram.bucketUpperBound( ERXHistogram.bucketIndex( value ) );
+
+			assertTrue( upperBound >= value );
+			assertTrue( upperBound - value <= value / 16, () -> String.valueOf( value ) );
+		}
+	}
+
+	@Test
+	public void hugeValuesGoInTheLastBucket() {
+		assertEquals( ERXHistogram.BUCKET_COUNT - 1, ERXHistogram.bucketIndex( 1L << 40 ) );
+		assertEquals( ERXHistogram.BUCKET_COUNT - 1, ERXHistogram.bucketIndex( Long.MAX_VALUE ) );
+		assertEquals( Long.MAX_VALUE, ERXHistogram.bucketUpperBound( ERXHistogram.BUCKET_COUNT - 1 ) );
+	}
+
+	@Test
+	public void emptyHistogram() {
+		final ERXHistogram histogram = new ERXHistogram();
+		final Snapshot snapshot = histogram.snapshot();
+
+		assertEquals( 0, histogram.count() );
+		assertEquals( 0, histogram.min() );
+		assertEquals( 0, histogram.max() );
+		assertEquals( 0, histogram.valueAtPercentile( 50 ) );
+		assertEquals( 0, snapshot.count() );
+		assertEquals( 0, snapshot.mean(), 0 );
+	}
+
+	@Test
+	public void negativeValuesAreRecordedAsZero() {
+		final ERXHistogram histogram = histogram( -5 );
+
+		assertEquals( 1, histogram.count() );
+		assertEquals( 0, histogram.sum() );
+		assertEquals( 0, histogram.min() );
+		assertEquals( 0, histogram.max() );
+	}
+
+	@Test
+	public void countSumMinMaxAndMean() {
+		final Snapshot snapshot = histogram( 10, 2000, 30 ).snapshot();
+
+		assertEquals( 3, snapshot.count() );
+		assertEquals( 2040, snapshot.sum() );
+		assertEquals( 10, snapshot.min() );
+		assertEquals( 2000, snapshot.max() );
+		assertEquals( 680, snapshot.mean(), 0 );
+		assertEquals( snapshot.count(), Arrays.stream( snapshot.buckets() ).sum() );
+	}
+
+	@Test
+	public void percentilesOfSmallValuesAreExact() {
+		final Snapshot snapshot = histogram( 1, 2, 3, 4, 5, 6, 7, 8, 9, 10 ).snapshot();
+
+		assertEquals( 1, snapshot.valueAtPercentile( 0 ) );
+		assertEquals( 1, snapshot.valueAtPercentile( 10 ) );
+		assertEquals( 5, snapshot.valueAtPercentile( 50 ) );
+		assertEquals( 6, snapshot.valueAtPercentile( 51 ) );
+		assertEquals( 10, snapshot.valueAtPercentile( 99 ) );
+		assertEquals( 10, snapshot.valueAtPercentile( 100 ) );
+		assertEquals( 10, snapshot.valueAtPercentile( 150 ) );
+	}
+
+	@Test
+	public void percentilesAreWithinTheBucketError() {
+		final ERXHistogram histogram = new ERXHistogram();
+
+		for( long value = 1; value <= 10000; value++ ) {
+			histogram.record( value );
+		}
+
+		final Snapshot snapshot = histogram.snapshot();
+
+		for( double percentile : new double[] { 1, 25, 50, 90, 95, 99, 99.9 } ) {
+			final long exact = (long)Math.ceil( percentile * 100 );
+			final long reported = snapshot.valueAtPercentile( percentile );
+
+			assertTrue( reported >= exact && reported - exact <= exact / 16, () -> percentile + ": " + reported );
+		}
+
+		assertEquals( 10000, snapshot.valueAtPercentile( 100 ) );
+	}
+
+	@Test
+	public void percentilesAreCappedByMinAndMax() {
+		// 1000 and 1001 share a bucket whose upper bound is 1023
+		final Snapshot snapshot = histogram( 1001, 1001, 1000 ).snapshot();
+
+		assertEquals( 1001, snapshot.valueAtPercentile( 50 ) );
+		assertEquals( 1001, snapshot.valueAtPercentile( 100 ) );
+		assertEquals( 1000, histogram( 1000 ).valueAtPercentile( 0 ) );
+	}
+
+	@Test
+	public void cumulativeCountsAtBucketBounds() {
+		final ERXHistogram histogram = histogram( 0, 1, 5, 5, 15, 16, 100, 5000, 1L << 50 );
+		final long[] bounds = { 0, 5, 15, 16, ERXHistogram.bucketUpperBound( ERXHistogram.bucketIndex( 100 ) ), 10000, Long.MAX_VALUE };
+		final long[] counts = new long[bounds.length];
+
+		assertEquals( 9, histogram.cumulativeCounts( bounds, counts ) );
+		assertArrayEquals( new long[] { 1, 4, 5, 6, 7, 8, 9 }, counts );
+	}
+
+	@Test
+	public void cumulativeCountsLeaveOutTheBucketABoundFallsIn() {
+		// 100 and 101 share a bucket, so a bound of 100 doesn't count either of them
+		final long[] counts = new long[1];
+		histogram( 50, 100, 101 ).cumulativeCounts( new long[] { 100 }, counts );
+
+		assertEquals( 1, counts[0] );
+	}
+
+	@Test
+	public void cumulativeCountsWithoutBounds() {
+		assertEquals( 2, histogram( 1, 2 ).cumulativeCounts( new long[0], new long[0] ) );
+	}
+
+	@Test
+	public void concurrentRecording() throws InterruptedException {
+		final ERXHistogram histogram = new ERXHistogram();
+		final Thread[] threads = new Thread[4];
+
+		for( int t = 0; t < threads.length; t++ ) {
+			threads[t] = new Thread( () -> {
+				for( int i = 1; i <= 100000; i++ ) {
+					histogram.record( i );
+				}
+			} );
+			threads[t].start();
+		}
+
+		for( Thread thread : threads ) {
+			thread.join();
+		}
+
+		final Snapshot snapshot = histogram.snapshot();
+
+		assertEquals( 400000, snapshot.count() );
+		assertEquals( 4 * (100000L * 100001 / 2), snapshot.sum() );
+		assertEquals( 1, snapshot.min() );
+		assertEquals( 100000, snapshot.max() );
+	}
+}
@@ -0,0 +1,255 @@
+package er.extensions.statistics;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import er.extensions.statistics.ERXMetrics.MetricWriter;
+
+public class TestERXMetrics {
+
+	private static final Pattern METADATA = Pattern.compile( "# (TYPE|HELP) ([a-zA-Z_:][a-zA-Z0-9_:]*) (.*)" );
+	private static final Pattern ESCAPED_TEXT = Pattern.compile( "([^\"\\\\\\n]|\\\\[\\\\n\"])*" );
+	private static final Pattern SAMPLE = Pattern.compile( "([a-zA-Z_:][a-zA-Z0-9_:]*)(\\{([a-zA-Z_][a-zA-Z0-9_]*=\"([^\"\\\\\\n]|\\\\[\\\\n\"])*\"(,[a-zA-Z_][a-zA-Z0-9_]*=\"([^\"\\\\\\n]|\\\\[\\\\n\"])*\")*)?\\})? (NaN|[+-]Inf|-?[0-9]+(\\.[0-9]+)?([eE][+-]?[0-9]+)?)" );
+	private static final Set<String> TYPES = Set.of( "gauge", "counter", "histogram", "gaugehistogram", "summary", "stateset", "info", "unknown" );
+
+	private static final List<String> TEST_COLLECTORS = List.of( "test.first", "test.failing", "test.last", "test_gauge", "test_counter" );
+
+	@AfterEach
+	public void unregisterTestCollectors() {
+		TEST_COLLECTORS.forEach( ERXMetrics::unregister );
+	}
+
+	private static String write( final ERXMetrics.Collector collector ) {
+		final StringBuilder out = new StringBuilder();
+		collector.collect( new MetricWriter( out ) );
+		return out.toString();
+	}
+
+	/**
+	 * Checks the given exposition is valid OpenMetrics text: every line is metadata or a sample, every family is declared once and
+	 * before it's samples, samples have the names their family's type allows, and it ends with a single # EOF.
+	 */
+	private static void assertValidOpenMetrics( final String text ) {
+		assertTrue( text.endsWith( "# EOF\n" ), "Doesn't end with # EOF" );
+
+		final String[] lines = text.substring( 0, text.length() - "# EOF\n".length() ).split( "\n", -1 );
+		final Set<String> families = new HashSet<>();
+		String family = null;
+		String type = null;
+
+		// The last element is the empty string after the last newline (if there are any lines)
+		for( int i = 0; i < lines.length - 1; i++ ) {
+			final String line = lines[i];
+			final Matcher metadata = METADATA.matcher( line );
+
+			if( metadata.matches() ) {
+				if( metadata.group( 1 ).equals( "TYPE" ) ) {
+					family = metadata.group( 2 );
+					type = metadata.group( 3 );
+					assertTrue( families.add( family ), "Family declared twice: " + family );
+					assertTrue( TYPES.contains( type ), "Unknown type: " + line );
+				}
+				else {
+					assertEquals( family, metadata.group( 2 ), "HELP for another family: " + line );
+					assertTrue( ESCAPED_TEXT.matcher( metadata.group( 3 ) ).matches(), "HELP isn't escaped: " + line );
+				}
+
+				continue;
+			}
+
+			final Matcher sample = SAMPLE.matcher( line );
+			assertTrue( sample.matches(), "Invalid line: " + line );
+			assertTrue( family != null, "Sample outside of a family: " + line );
+
+			final String suffix = sample.group( 1 ).substring( Math.min( family.length(), sample.group( 1 ).length() ) );
+			assertTrue( sample.group( 1 ).startsWith( family ), "Sample of another family: " + line );
+
+			switch( type ) {
+				case "counter" -> assertTrue( suffix.equals( "_total" ) || suffix.equals( "_created" ), "Invalid counter sample: " + line );
+				case "histogram" -> assertTrue( suffix.equals( "_bucket" ) || suffix.equals( "_count" ) || suffix.equals( "_sum" ) || suffix.equals( "_created" ), "Invalid histogram sample: " + line );
+				default -> assertEquals( "", suffix, "Invalid " + type + " sample: " + line );
+			}
+		}
+
+		assertEquals( text.length() - "# EOF\n".length(), text.indexOf( "# EOF" ), "# EOF before the end" );
+	}
+
+	@Test
+	public void gauge() {
+		assertEquals( "# TYPE test_gauge gauge\n# HELP test_gauge A gauge\ntest_gauge 42\n", write( writer -> writer.gauge( "test_gauge", "A gauge", 42 ) ) );
+	}
+
+	@Test
+	public void counterSamplesHaveTheTotalSuffix() {
+		assertEquals( "# TYPE test_counter counter\n# HELP test_counter A counter\ntest_counter_total 3\n", write( writer -> writer.counter( "test_counter", "A counter", 3 ) ) );
+		assertEquals( "test_counter_total{adaptor=\"WOAdaptorNIO\"} 3\n", write( writer -> writer.counterSample( "test_counter", "adaptor", "WOAdaptorNIO", 3 ) ) );
+	}
+
+	@Test
+	public void familyWithoutHelp() {
+		assertEquals( "# TYPE test_gauge gauge\n", write( writer -> writer.family( "test_gauge", "gauge", null ) ) );
+	}
+
+	@Test
+	public void samplesWithLabels() {
+		assertEquals( "test_gauge{pool=\"G1 Eden Space\"} 1\n", write( writer -> writer.sample( "test_gauge", "pool", "G1 Eden Space", 1 ) ) );
+		assertEquals( "test_gauge{page=\"Main\",phase=\"appendToResponse\"} 1\n", write( writer -> writer.sample( "test_gauge", "page", "Main", "phase", "appendToResponse", 1 ) ) );
+		assertEquals( "test_gauge{page=\"\"} 1\n", write( writer -> writer.sample( "test_gauge", "page", null, 1 ) ) );
+	}
+
+	@Test
+	public void labelValuesAreEscaped() {
+		assertEquals( "test_gauge{key=\"a\\\\b\\n\\\"c\\\"\"} 1\n", write( writer -> writer.sample( "test_gauge", "key", "a\\b\n\"c\"", 1 ) ) );
+	}
+
+	@Test
+	public void helpIsEscaped() {
+		assertEquals( "# TYPE test_gauge gauge\n# HELP test_gauge a\\\\b\\n\\\"c\\\"\n", write( writer -> writer.family( "test_gauge", "gauge", "a\\b\n\"c\"" ) ) );
+	}
+
+	@Test
+	public void values() {
+		assertEquals( "test_gauge 0\n", write( writer -> writer.sample( "test_gauge", 0 ) ) );
+		assertEquals( "test_gauge -3\n", write( writer -> writer.sample( "test_gauge", -3 ) ) );
+		assertEquals( "test_gauge 0.25\n", write( writer -> writer.sample( "test_gauge", 0.25 ) ) );
+		assertEquals( "test_gauge 1.0E20\n", write( writer -> writer.sample( "test_gauge", 1e20 ) ) );
+		assertEquals( "test_gauge NaN\n", write( writer -> writer.sample( "test_gauge", Double.NaN ) ) );
+		assertEquals( "test_gauge +Inf\n", write( writer -> writer.sample( "test_gauge", Double.POSITIVE_INFINITY ) ) );
+		assertEquals( "test_gauge -Inf\n", write( writer -> writer.sample( "test_gauge", Double.NEGATIVE_INFINITY ) ) );
+	}
+
+	@Test
+	public void durationHistogram() {
+		final ERXHistogram histogram = new ERXHistogram();
+
+		// In milliseconds, reported in seconds. The last one is over all of the bounds.
+		histogram.record( 0 );
+		histogram.record( 7 );
+		histogram.record( 7 );
+		histogram.record( 200 );
+		histogram.record( 100000 );
+
+		final String text = write( writer -> {
+			writer.family( "test_seconds", "histogram", null );
+			writer.durationHistogram( "test_seconds", "key", "k", histogram, 1e-3 );
+		} );
+
+		final String expected = "# TYPE test_seconds histogram\n"
+				+ "test_seconds_bucket{key=\"k\",le=\"0.001\"} 1\n"
+				+ "test_seconds_bucket{key=\"k\",le=\"0.0025\"} 1\n"
+				+ "test_seconds_bucket{key=\"k\",le=\"0.005\"} 1\n"
+				+ "test_seconds_bucket{key=\"k\",le=\"0.01\"} 3\n"
+				+ "test_seconds_bucket{key=\"k\",le=\"0.025\"} 3\n"
+				+ "test_seconds_bucket{key=\"k\",le=\"0.05\"} 3\n"
+				+ "test_seconds_bucket{key=\"k\",le=\"0.1\"} 3\n"
+				+ "test_seconds_bucket{key=\"k\",le=\"0.25\"} 4\n"
+				+ "test_seconds_bucket{key=\"k\",le=\"0.5\"} 4\n"
+				+ "test_seconds_bucket{key=\"k\",le=\"1.0\"} 4\n"
+				+ "test_seconds_bucket{key=\"k\",le=\"2.5\"} 4\n"
+				+ "test_seconds_bucket{key=\"k\",le=\"5.0\"} 4\n"
+				+ "test_seconds_bucket{key=\"k\",le=\"10.0\"} 4\n"
+				+ "test_seconds_bucket{key=\"k\",le=\"30.0\"} 4\n"
+				+ "test_seconds_bucket{key=\"k\",le=\"60.0\"} 4\n"
+				+ "test_seconds_bucket{key=\"k\",le=\"+Inf\"} 5\n"
+				+ "test_seconds_count{key=\"k\"} 5\n"
+				+ "test_seconds_sum{key=\"k\"} 100.214\n";
+
+		assertEquals( expected, text );
+	}
+
+	@Test
+	public void durationHistogramWithoutLabels() {
+		final ERXHistogram histogram = new ERXHistogram();
+		histogram.record( 2_000_000_000L );
+
+		final String text = write( writer -> writer.durationHistogram( "test_seconds", null, null, histogram, 1e-9 ) );
+
+		assertTrue( text.startsWith( "test_seconds_bucket{le=\"0.001\"} 0\n" ) );
+		assertTrue( text.contains( "test_seconds_bucket{le=\"1.0\"} 0\ntest_seconds_bucket{le=\"2.5\"} 1\n" ) );
+		assertTrue( text.endsWith( "test_seconds_bucket{le=\"+Inf\"} 1\ntest_seconds_count 1\ntest_seconds_sum 2\n" ) );
+	}
+
+	@Test
+	public void fixedBucketHistogram() {
+		final LongAdder[] buckets = { new LongAdder(), new LongAdder(), new LongAdder() };
+		buckets[0].add( 2 );
+		buckets[2].add( 1 );
+
+		final String text = write( writer -> writer.histogram( "test_size", new String[] { "10", "100" }, buckets ) );
+
+		assertEquals( "test_size_bucket{le=\"10\"} 2\ntest_size_bucket{le=\"100\"} 2\ntest_size_bucket{le=\"+Inf\"} 3\ntest_size_count 3\n", text );
+	}
+
+	@Test
+	public void renderEndsWithEOF() {
+		final String text = ERXMetrics.render();
+
+		assertTrue( text.endsWith( "# EOF\n" ) );
+		assertEquals( text.indexOf( "# EOF" ), text.lastIndexOf( "# EOF" ) );
+	}
+
+	@Test
+	public void renderIsValidOpenMetrics() {
+		final ERXHistogram histogram = new ERXHistogram();
+		histogram.record( 5 );
+
+		ERXMetrics.registerGauge( "test_gauge", "A gauge with \"quotes\"\nand a newline", () -> 1.5 );
+		ERXMetrics.registerCounter( "test_counter", "A counter", () -> 7 );
+		ERXMetrics.register( "test.first", writer -> {
+			writer.family( "test_first_seconds", "histogram", "A histogram" );
+			writer.durationHistogram( "test_first_seconds", "page", "Main\\\"Page\"", histogram, 1e-3 );
+		} );
+
+		final String text = ERXMetrics.render();
+
+		assertValidOpenMetrics( text );
+		assertTrue( text.contains( "# TYPE test_gauge gauge\n# HELP test_gauge A gauge with \\\"quotes\\\"\\nand a newline\ntest_gauge 1.5\n" ) );
+		assertTrue( text.contains( "test_counter_total 7\n" ) );
+		assertTrue( text.contains( "test_first_seconds_count{page=\"Main\\\\\\\"Page\\\"\"} 1\n" ) );
+
+		// The JVM's metrics don't depend on a running application
+		assertTrue( text.contains( "# TYPE jvm_threads_live gauge\n" ) );
+	}
+
+	@Test
+	public void failingCollectorIsLeftOut() {
+		ERXMetrics.register( "test.first", writer -> writer.gauge( "test_first", null, 1 ) );
+		ERXMetrics.register( "test.failing", writer -> {
+			writer.family( "test_failing", "gauge", null );
+			throw new IllegalStateException( "Failed halfway" );
+		} );
+		ERXMetrics.register( "test.last", writer -> writer.gauge( "test_last", null, 2 ) );
+
+		final String text = ERXMetrics.render();
+
+		assertValidOpenMetrics( text );
+		assertTrue( text.contains( "test_first 1\n" ) );
+		assertTrue( text.contains( "test_last 2\n" ) );
+		assertFalse( text.contains( "test_failing" ) );
+	}
+
+	@Test
+	public void registeringUnderATakenNameReplacesTheCollector() {
+		ERXMetrics.register( "test.first", writer -> writer.gauge( "test_first", null, 1 ) );
+		ERXMetrics.register( "test.first", writer -> writer.gauge( "test_replaced", null, 1 ) );
+
+		final String text = ERXMetrics.render();
+
+		assertFalse( text.contains( "test_first" ) );
+		assertTrue( text.contains( "test_replaced 1\n" ) );
+
+		ERXMetrics.unregister( "test.first" );
+		assertFalse( ERXMetrics.render().contains( "test_replaced" ) );
+	}
+}
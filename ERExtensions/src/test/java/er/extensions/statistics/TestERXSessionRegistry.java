@@ -0,0 +1,197 @@
+package er.extensions.statistics;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.jupiter.api.Test;
+
+import com.webobjects.appserver.WOSession;
+
+public class TestERXSessionRegistry {
+
+	/**
+	 * A session that's equal to every other one, to check the registry goes by identity
+	 */
+	private static final class EqualSession extends WOSession {
+
+		@Override
+		public boolean equals( final Object object ) {
+			return object instanceof EqualSession;
+		}
+
+		@Override
+		public int hashCode() {
+			return 0;
+		}
+	}
+
+	@Test
+	public void addAndRemove() {
+		final ERXSessionRegistry registry = new ERXSessionRegistry();
+		final WOSession session = new WOSession();
+		final WOSession other = new WOSession();
+
+		registry.add( session );
+		registry.add( other );
+		assertEquals( 2, registry.size() );
+
+		registry.remove( session );
+		assertEquals( 1, registry.size() );
+		assertEquals( List.of( other ), registry.snapshot() );
+
+		registry.remove( other );
+		assertEquals( 0, registry.size() );
+		assertTrue( registry.snapshot().isEmpty() );
+	}
+
+	@Test
+	public void addingTwiceRegistersOnce() {
+		final ERXSessionRegistry registry = new ERXSessionRegistry();
+		final WOSession session = new WOSession();
+
+		registry.add( session );
+		registry.add( session );
+		assertEquals( 1, registry.size() );
+
+		registry.remove( session );
+		assertEquals( 0, registry.size() );
+	}
+
+	@Test
+	public void removingAnUnknownSessionDoesNothing() {
+		final ERXSessionRegistry registry = new ERXSessionRegistry();
+		final WOSession session = new WOSession();
+
+		registry.add( session );
+		registry.remove( new WOSession() );
+		assertEquals( List.of( session ), registry.snapshot() );
+	}
+
+	@Test
+	public void sessionsAreComparedByIdentity() {
+		final ERXSessionRegistry registry = new ERXSessionRegistry();
+		final WOSession session = new EqualSession();
+		final WOSession other = new EqualSession();
+
+		registry.add( session );
+		registry.add( other );
+		assertEquals( 2, registry.size() );
+
+		registry.remove( session );
+		assertEquals( 1, registry.size() );
+		assertSame( other, registry.snapshot().getFirst() );
+	}
+
+	@Test
+	public void collectedSessionsAreDropped() throws InterruptedException {
+		final ERXSessionRegistry registry = new ERXSessionRegistry();
+		final WOSession session = new WOSession();
+
+		registry.add( session );
+
+		for( int i = 0; i < 100; i++ ) {
+			registry.add( new WOSession() );
+		}
+
+		// Collection isn't guaranteed to happen when asked, so give it a few chances
+		for( int attempt = 0; attempt < 50 && registry.size() > 1; attempt++ ) {
+			System.gc();
+			Thread.sleep( 10 );
+		}
+
+		assertEquals( List.of( session ), registry.snapshot() );
+		assertEquals( 1, registry.size() );
+	}
+
+	@Test
+	public void sampleOfFewerSessionsThanAskedForIsAllOfThem() {
+		final ERXSessionRegistry registry = new ERXSessionRegistry();
+		final List<WOSession> sessions = List.of( new WOSession(), new WOSession() );
+		sessions.forEach( registry::add );
+
+		assertEquals( new HashSet<>( sessions ), new HashSet<>( registry.sample( 5 ) ) );
+	}
+
+	@Test
+	public void sampleIsDistinctRegisteredSessions() {
+		final ERXSessionRegistry registry = new ERXSessionRegistry();
+		final List<WOSession> sessions = new ArrayList<>();
+
+		for( int i = 0; i < 100; i++ ) {
+			sessions.add( new WOSession() );
+			registry.add( sessions.getLast() );
+		}
+
+		final List<WOSession> sample = registry.sample( 10 );
+
+		assertEquals( 10, sample.size() );
+		assertEquals( 10, new HashSet<>( sample ).size() );
+		assertTrue( sessions.containsAll( sample ) );
+	}
+
+	@Test
+	public void sampleCoversAllSessions() {
+		final ERXSessionRegistry registry = new ERXSessionRegistry();
+		final List<WOSession> sessions = new ArrayList<>();
+
+		for( int i = 0; i < 20; i++ ) {
+			sessions.add( new WOSession() );
+			registry.add( sessions.getLast() );
+		}
+
+		final HashSet<WOSession> sampled = new HashSet<>();
+
+		for( int i = 0; i < 1000 && sampled.size() < sessions.size(); i++ ) {
+			sampled.addAll( registry.sample( 2 ) );
+		}
+
+		assertEquals( new HashSet<>( sessions ), sampled );
+	}
+
+	@Test
+	public void concurrentAddAndRemove() throws InterruptedException {
+		final ERXSessionRegistry registry = new ERXSessionRegistry();
+		final List<WOSession> kept = new ArrayList<>();
+		final Thread[] threads = new Thread[4];
+		final CountDownLatch start = new CountDownLatch( 1 );
+
+		for( int t = 0; t < threads.length; t++ ) {
+			final WOSession keptSession = new WOSession();
+			kept.add( keptSession );
+
+			threads[t] = new Thread( () -> {
+				try {
+					start.await();
+				}
+				catch( InterruptedException e ) {
+					return;
+				}
+
+				registry.add( keptSession );
+
+				for( int i = 0; i < 10000; i++ ) {
+					final WOSession session = new WOSession();
+					registry.add( session );
+					registry.snapshot();
+					registry.remove( session );
+				}
+			} );
+			threads[t].start();
+		}
+
+		start.countDown();
+
+		for( Thread thread : threads ) {
+			thread.join();
+		}
+
+		assertEquals( new HashSet<>( kept ), new HashSet<>( registry.snapshot() ) );
+		assertEquals( kept.size(), registry.size() );
+	}
+}
@@ -0,0 +1,125 @@
+// Load-test harness for comparing adaptors. No dependencies, just node's http module.
+//
+// Start the same app twice, once per adaptor, e.g.
+//
+//   -WOAdaptor WOAdaptorPlain -WOPort 1200
+//   -WOAdaptor WOAdaptorNIO   -WOPort 1201
+//
+// then point the harness at the same URL on each:
+//
+//   node bench.js --url http://localhost:1200/wa/ping --url http://localhost:1201/wa/ping
+//
+// Each target gets a warmup phase (results discarded, lets the JIT settle) followed by the measured run.
+// Targets are measured one after the other, never concurrently, so they don't compete for the machine.
+//
+// Options:
+//   --url <url>           target URL (repeatable)
+//   --concurrency <n>     number of concurrent in-flight requests (default 64)
+//   --duration <seconds>  measured duration per target (default 20)
+//   --warmup <seconds>    warmup duration per target (default 5)
+//   --keepalive <bool>    reuse connections (default true)
+//   --method <method>     request method (default GET)
+//   --body-size <bytes>   send a request body of this size (default 0)
+
+import http from 'node:http';
+import { performance } from 'node:perf_hooks';
+
+function parseArgs(argv) {
+  const opts = { urls: [], concurrency: 64, duration: 20, warmup: 5, keepalive: true, method: 'GET', bodySize: 0 };
+  for (let i = 0; i < argv.length; i++) {
+    const arg = argv[i];
+    const value = argv[i + 1];
+    switch (arg) {
+      case '--url': opts.urls.push(value); i++; break;
+      case '--concurrency': opts.concurrency = parseInt(value, 10); i++; break;
+      case '--duration': opts.duration = parseFloat(value); i++; break;
+      case '--warmup': opts.warmup = parseFloat(value); i++; break;
+      case '--keepalive': opts.keepalive = value !== 'false'; i++; break;
+      case '--method': opts.method = value.toUpperCase(); i++; break;
+      case '--body-size': opts.bodySize = parseInt(value, 10); i++; break;
+      default: throw new Error(`Unknown argument: ${arg}`);
+    }
+  }
+  if (opts.urls.length === 0) {
+    throw new Error('At least one --url is required');
+  }
+  return opts;
+}
+
+function request(agent, url, opts, body) {
+  return new Promise((resolve) => {
+    const start = performance.now();
+    const req = http.request(url, { agent, method: opts.method, headers: body ? { 'content-length': body.length } : {} }, (res) => {
+      res.on('data', () => {});
+      res.on('end', () => resolve({ ok: res.statusCode < 500, status: res.statusCode, ms: performance.now() - start }));
+    });
+    req.on('error', (e) => resolve({ ok: false, status: e.code || 'ERR', ms: performance.now() - start }));
+    if (body) {
+      req.write(body);
+    }
+    req.end();
+  });
+}
+
+async function run(url, opts, seconds) {
+  const agent = new http.Agent({ keepAlive: opts.keepalive, maxSockets: opts.concurrency });
+  const body = opts.bodySize > 0 ? Buffer.alloc(opts.bodySize, 'x') : null;
+  const latencies = [];
+  const statuses = {};
+  let errors = 0;
+  const deadline = performance.now() + seconds * 1000;
+
+  async function worker() {
+    while (performance.now() < deadline) {
+      const result = await request(agent, url, opts, body);
+      latencies.push(result.ms);
+      statuses[result.status] = (statuses[result.status] || 0) + 1;
+      if (!result.ok) {
+        errors++;
+      }
+    }
+  }
+
+  const start = performance.now();
+  await Promise.all(Array.from({ length: opts.concurrency }, worker));
+  const elapsed = (performance.now() - start) / 1000;
+  agent.destroy();
+
+  latencies.sort((a, b) => a - b);
+  const percentile = (p) => latencies.length ? latencies[Math.min(latencies.length - 1, Math.floor(latencies.length * p))] : NaN;
+
+  return {
+    url,
+    requests: latencies.length,
+    rps: latencies.length / elapsed,
+    p50: percentile(0.50),
+    p99: percentile(0.99),
+    max: latencies.length ? latencies[latencies.length - 1] : NaN,
+    errors,
+    statuses,
+  };
+}
+
+async function main() {
+  const opts = parseArgs(process.argv.slice(2));
+  console.log(`concurrency=${opts.concurrency} duration=${opts.duration}s warmup=${opts.warmup}s keepalive=${opts.keepalive} method=${opts.method} bodySize=${opts.bodySize}`);
+
+  const results = [];
+  for (const url of opts.urls) {
+    console.log(`\nwarming up ${url}`);
+    await run(url, opts, opts.warmup);
+    console.log(`measuring ${url}`);
+    results.push(await run(url, opts, opts.duration));
+  }
+
+  console.log('');
+  console.log(['url', 'requests', 'req/s', 'p50 ms', 'p99 ms', 'max ms', 'errors'].join('\t'));
+  for (const r of results) {
+    console.log([r.url, r.requests, r.rps.toFixed(0), r.p50.toFixed(2), r.p99.toFixed(2), r.max.toFixed(2), r.errors].join('\t'));
+  }
+  for (const r of results) {
+    console.log(`${r.url} statuses: ${JSON.stringify(r.statuses)}`);
+  }
+}
+
+main().catch((e) => { console.error(e.message); process.exit(1); });
@@ -0,0 +1,146 @@
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.NotificationEmitter;
+import javax.management.openmbean.CompositeData;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+/**
+ * What a finalize() method on the request object costs the GC. See README.md.
+ *
+ * Run: java tools/finalizer-bench/FinalizerBench.java [--requests n] [--in-flight n] [--heap size]
+ */
+public class FinalizerBench {
+
+	/**
+	 * Roughly what a request drags along: headers, cookies and a small body
+	 */
+	static class Request {
+		final Map<String, String> headers = new HashMap<>();
+		final byte[] body;
+
+		Request( final long i ) {
+			headers.put( "user-agent", "Mozilla/5.0 (Macintosh; Intel Mac OS X 10_15_7) AppleWebKit/605.1.15 (KHTML, like Gecko) Version/17.4.1 Safari/605.1.15" );
+			headers.put( "accept", "text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8" );
+			headers.put( "cookie", "wosid=" + i );
+			body = new byte[1024];
+		}
+	}
+
+	static final LongAdder finalized = new LongAdder();
+
+	/**
+	 * A request like ERXRequest was, releasing it's browser in finalize()
+	 */
+	static final class FinalizableRequest extends Request {
+
+		FinalizableRequest( final long i ) {
+			super( i );
+		}
+
+		@Override
+		@SuppressWarnings( "removal" )
+		protected void finalize() {
+			finalized.increment();
+		}
+	}
+
+	public static void main( String[] args ) throws Exception {
+		long requests = 5_000_000;
+		int inFlight = 256;
+		String heap = "256m";
+		String mode = null;
+
+		for( int i = 0; i < args.length; i++ ) {
+			switch( args[i] ) {
+				case "--requests" -> requests = Long.parseLong( args[++i] );
+				case "--in-flight" -> inFlight = Integer.parseInt( args[++i] );
+				case "--heap" -> heap = args[++i];
+				case "--mode" -> mode = args[++i];
+				default -> throw new IllegalArgumentException( "Unknown argument " + args[i] );
+			}
+		}
+
+		if( mode != null ) {
+			run( mode.equals( "finalize" ), requests, inFlight );
+			return;
+		}
+
+		// Each mode gets a fresh JVM with the same heap, so one doesn't inherit the other's heap state
+		final String java = ProcessHandle.current().info().command().orElse( "java" );
+
+		for( String m : new String[] { "finalize", "plain" } ) {
+			final List<String> command = new ArrayList<>( List.of( java, "-Xms" + heap, "-Xmx" + heap, "-XX:+UseG1GC", "tools/finalizer-bench/FinalizerBench.java" ) );
+			command.addAll( List.of( "--mode", m, "--requests", String.valueOf( requests ), "--in-flight", String.valueOf( inFlight ) ) );
+			final Process process = new ProcessBuilder( command ).inheritIO().start();
+
+			if( process.waitFor() != 0 ) {
+				System.exit( 1 );
+			}
+		}
+	}
+
+	private static void run( final boolean finalizable, final long requests, final int inFlight ) {
+		final AtomicLong promotedBytes = new AtomicLong();
+
+		// Old generation growth over each young collection is what that collection promoted
+		for( GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans() ) {
+			((NotificationEmitter)gc).addNotificationListener( ( notification, handback ) -> {
+				if( notification.getType().equals( GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION ) ) {
+					final GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo.from( (CompositeData)notification.getUserData() );
+
+					if( info.getGcAction().contains( "minor" ) ) {
+						final long before = oldGenerationUsed( info.getGcInfo().getMemoryUsageBeforeGc() );
+						final long after = oldGenerationUsed( info.getGcInfo().getMemoryUsageAfterGc() );
+						promotedBytes.addAndGet( Math.max( 0, after - before ) );
+					}
+				}
+			}, null, null );
+		}
+
+		// A ring of in-flight requests, each replaced by the next request when it's done
+		final Request[] window = new Request[inFlight];
+		final long start = System.nanoTime();
+
+		for( long i = 0; i < requests; i++ ) {
+			window[(int)(i % inFlight)] = finalizable ? new FinalizableRequest( i ) : new Request( i );
+		}
+
+		final double seconds = (System.nanoTime() - start) / 1e9;
+		long youngCount = 0, youngMillis = 0, oldCount = 0, oldMillis = 0;
+
+		for( GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans() ) {
+			if( gc.getName().contains( "Young" ) ) {
+				youngCount += gc.getCollectionCount();
+				youngMillis += gc.getCollectionTime();
+			}
+			else if( gc.getName().contains( "Old" ) || gc.getName().contains( "Concurrent" ) ) {
+				oldCount += gc.getCollectionCount();
+				oldMillis += gc.getCollectionTime();
+			}
+		}
+
+		System.out.printf( "%-9s %,d requests in %.2fs (%,.0f/s)  young GCs %d (%d ms)  old/concurrent GCs %d (%d ms)  promoted %,d KB  finalized %,d%n",
+				finalizable ? "finalize" : "plain", requests, seconds, requests / seconds, youngCount, youngMillis, oldCount, oldMillis, promotedBytes.get() / 1024, finalized.sum() );
+	}
+
+	private static long oldGenerationUsed( final Map<String, MemoryUsage> usage ) {
+		long used = 0;
+
+		for( Map.Entry<String, MemoryUsage> entry : usage.entrySet() ) {
+			if( entry.getKey().contains( "Old" ) || entry.getKey().contains( "Tenured" ) ) {
+				used += entry.getValue().getUsed();
+			}
+		}
+
+		return used;
+	}
+}
@@ -0,0 +1,104 @@
+// Page cache scaling benchmark (raw HTTP, no browser): one page, thousands of ajax interactions.
+//
+// Every ajax update stores another contextID alias for the SAME page instance in ERXAjaxSession's page
+// cache, so a long-lived ajax page accumulates thousands of keys. This harness refreshes one
+// AjaxUpdateContainer of ScenarioServerUpdate over and over - always from the freshest render's
+// data-updateUrl, like AjaxSlim does - and reports the request latency per batch. The page cache's store
+// and touch are O(1) per request, so the latency of the last batch should match the first; a latency that
+// climbs with the interaction count means something on the store/restore path is O(contexts) again.
+//
+// At the end it re-requests a recent alias (rendered 10 interactions earlier), which must still resolve. Aliases
+// older than er.extensions.appserver.ajax.ERXAjaxSession.maxContextsPerInstance (default 1000) interactions are
+// evicted by design, so the FIRST alias is expected to resolve only when INTERACTIONS stays below that cap.
+//
+// e.g.  BASE=http://localhost:55432 INTERACTIONS=10000 BATCH=1000 node ajax-interactions.mjs
+
+const BASE = process.env.BASE || 'http://localhost:55432';
+const INTERACTIONS = Number(process.env.INTERACTIONS || 5000);
+const BATCH = Number(process.env.BATCH || 500);
+const PAGE_URL = `${BASE}/cgi-bin/WebObjects/AjaxPlayground.woa/wa/page?name=ScenarioServerUpdate`;
+const CONTAINER = 'allBox1';
+
+let cookie = '';
+
+async function req(url, options = {}) {
+  const res = await fetch(url, { redirect: 'follow', ...options, headers: { ...(options.headers || {}), ...(cookie ? { cookie } : {}) } });
+  const setCookie = res.headers.get('set-cookie');
+  if (setCookie) cookie = setCookie.split(';')[0];
+  return { status: res.status, html: await res.text() };
+}
+
+function updateUrl(html, containerID) {
+  const tag = html.match(new RegExp(`<[^>]*id="${containerID}"[^>]*>`));
+  if (!tag) return null;
+  const m = tag[0].match(/data-updateUrl="([^"]*)"/);
+  return m ? m[1].replaceAll('&amp;', '&') : null;
+}
+
+function count(html, elementId) {
+  const m = html.match(new RegExp(`id="${elementId}"[^>]*>(\\d+)<`));
+  return m ? Number(m[1]) : null;
+}
+
+const abs = url => url.startsWith('http') ? url : `${BASE}${url}`;
+
+function refreshUrl(url, i) {
+  const u = new URL(abs(url));
+  u.searchParams.set('_u', CONTAINER);
+  u.searchParams.set('_', String(i));
+  return u.toString();
+}
+
+function percentile(sorted, p) {
+  return sorted[Math.min(sorted.length - 1, Math.floor(sorted.length * p))];
+}
+
+async function main() {
+  let { status, html } = await req(PAGE_URL);
+  let url = updateUrl(html, CONTAINER);
+  if (status !== 200 || !url) {
+    console.log(`Could not load ${PAGE_URL} (status ${status}, updateUrl ${url})`);
+    process.exit(1);
+  }
+
+  let recentUrl = url;
+  const batches = [];
+  let latencies = [];
+  let errors = 0;
+
+  for (let i = 1; i <= INTERACTIONS; i++) {
+    const start = process.hrtime.bigint();
+    const r = await req(refreshUrl(url, i), { headers: { 'x-requested-with': 'XMLHttpRequest' } });
+    latencies.push(Number(process.hrtime.bigint() - start) / 1e6);
+
+    if (r.status !== 200) {
+      errors++;
+    }
+    else {
+      url = updateUrl(r.html, CONTAINER) || url;
+    }
+
+    if (i === INTERACTIONS - 10) {
+      recentUrl = url;
+    }
+
+    if (i % BATCH === 0) {
+      latencies.sort((a, b) => a - b);
+      const mean = latencies.reduce((a, b) => a + b, 0) / latencies.length;
+      batches.push(mean);
+      console.log(`  interactions ${String(i - BATCH + 1).padStart(6)}-${String(i).padEnd(6)}  mean ${mean.toFixed(2)}ms  p50 ${percentile(latencies, 0.5).toFixed(2)}ms  p99 ${percentile(latencies, 0.99).toFixed(2)}ms`);
+      latencies = [];
+    }
+  }
+
+  // A recent alias must still resolve: it's the same, still cached, instance and well within the alias cap.
+  const recent = await req(refreshUrl(recentUrl, 0), { headers: { 'x-requested-with': 'XMLHttpRequest' } });
+  const recentResolves = recent.status === 200 && count(recent.html, 'valAll1') !== null;
+
+  const ratio = batches.length > 1 ? batches[batches.length - 1] / batches[0] : 1;
+  console.log(`\n${INTERACTIONS} interactions, ${errors} errors. Last batch / first batch mean latency: ${ratio.toFixed(2)}x`);
+  console.log(`Recent alias ${recentResolves ? 'still resolves' : 'does NOT resolve'}`);
+  process.exit(errors > 0 || !recentResolves ? 1 : 0);
+}
+
+main().catch(e => { console.error(e); process.exit(1); });
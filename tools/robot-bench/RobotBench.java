@@ -0,0 +1,136 @@
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+import er.extensions.browser.ERXRobotMatcher;
+
+/**
+ * Robot detection benchmark: the old sequential, locked Pattern scan against ERXRobotMatcher. See README.md.
+ *
+ * Run from the repository root: java -cp ERExtensions/target/classes tools/robot-bench/RobotBench.java [--threads n] [--seconds n] [--robots path] [--user-agents path]
+ */
+public class RobotBench {
+
+	/**
+	 * What ERXBrowserFactory.isRobot() used to do
+	 */
+	static final class LegacyRobotDetector implements Predicate<String> {
+
+		private final List<Pattern> _expressions = new ArrayList<>();
+
+		LegacyRobotDetector( final String robotsTxt ) {
+			for( String item : robotsTxt.split( "\n" ) ) {
+				if( item.trim().length() > 0 && item.charAt( 0 ) != '#' ) {
+					_expressions.add( Pattern.compile( item ) );
+				}
+			}
+		}
+
+		@Override
+		public boolean test( String userAgent ) {
+			synchronized( _expressions ) {
+				userAgent = userAgent.toLowerCase();
+
+				for( Pattern pattern : _expressions ) {
+					if( pattern.matcher( userAgent ).find() ) {
+						return true;
+					}
+				}
+			}
+
+			return false;
+		}
+	}
+
+	public static void main( String[] args ) throws Exception {
+		int threads = Runtime.getRuntime().availableProcessors();
+		int seconds = 5;
+		Path robots = Path.of( "ERExtensions/src/main/woresources/robots.txt" );
+		Path userAgents = Path.of( "tools/robot-bench/user-agents.txt" );
+
+		for( int i = 0; i < args.length; i++ ) {
+			switch( args[i] ) {
+				case "--threads" -> threads = Integer.parseInt( args[++i] );
+				case "--seconds" -> seconds = Integer.parseInt( args[++i] );
+				case "--robots" -> robots = Path.of( args[++i] );
+				case "--user-agents" -> userAgents = Path.of( args[++i] );
+				default -> throw new IllegalArgumentException( "Unknown argument " + args[i] );
+			}
+		}
+
+		final String robotsTxt = Files.readString( robots );
+		final List<String> corpus = Files.readAllLines( userAgents ).stream().filter( l -> !l.isBlank() && !l.startsWith( "#" ) ).toList();
+
+		final Predicate<String> legacy = new LegacyRobotDetector( robotsTxt );
+		final ERXRobotMatcher matcher = ERXRobotMatcher.fromRobotsTxt( robotsTxt );
+		final Predicate<String> compiled = ua -> matcher.matches( ua.toLowerCase() );
+
+		int robotCount = 0;
+
+		for( String userAgent : corpus ) {
+			final boolean expected = legacy.test( userAgent );
+
+			if( compiled.test( userAgent ) != expected ) {
+				System.out.println( "MISMATCH (legacy says " + expected + "): " + userAgent );
+				System.exit( 1 );
+			}
+
+			if( expected ) {
+				robotCount++;
+			}
+		}
+
+		System.out.printf( "%s user-agents (%s robots), both implementations agree%n%n", corpus.size(), robotCount );
+
+		for( int threadCount : threads == 1 ? new int[] { 1 } : new int[] { 1, threads } ) {
+			for( String name : new String[] { "legacy", "compiled" } ) {
+				final Predicate<String> detector = name.equals( "legacy" ) ? legacy : compiled;
+				run( detector, corpus, threadCount, 1 );
+				final long ops = run( detector, corpus, threadCount, seconds );
+				final double opsPerSecond = ops / (double)seconds;
+				System.out.printf( "  %-8s threads %3d  %12.0f ops/s  %9.1f ns/op (per thread)%n", name, threadCount, opsPerSecond, 1e9 * threadCount / opsPerSecond );
+			}
+		}
+	}
+
+	/**
+	 * @return Number of user-agents checked by the given number of threads in the given time
+	 */
+	private static long run( final Predicate<String> detector, final List<String> corpus, final int threadCount, final int seconds ) throws InterruptedException {
+		final LongAdder ops = new LongAdder();
+		final CountDownLatch done = new CountDownLatch( threadCount );
+		final long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+		final LongAdder sink = new LongAdder();
+
+		for( int t = 0; t < threadCount; t++ ) {
+			final int offset = t;
+			Thread.ofPlatform().start( () -> {
+				long count = 0;
+				long robots = 0;
+				int i = offset;
+
+				while( System.nanoTime() < deadline ) {
+					for( int j = 0; j < 100; j++ ) {
+						if( detector.test( corpus.get( i++ % corpus.size() ) ) ) {
+							robots++;
+						}
+					}
+
+					count += 100;
+				}
+
+				ops.add( count );
+				sink.add( robots );
+				done.countDown();
+			} );
+		}
+
+		done.await();
+		return ops.sum();
+	}
+}